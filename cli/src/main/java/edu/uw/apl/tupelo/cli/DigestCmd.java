@@ -45,6 +45,8 @@ import org.apache.commons.cli.CommandLine;
 import edu.uw.apl.tupelo.config.Config;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+import edu.uw.apl.tupelo.model.DigestEngine;
+import edu.uw.apl.tupelo.model.GrainHash;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 
 /**
@@ -56,13 +58,23 @@ import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
  * unmanaged data.
  *
  * In the store, a digest lives as X.md5 alongside the
- * Tupelo-managed-disk file X.tmd.
+ * Tupelo-managed-disk file X.tmd.  The name is historical, the grain
+ * hash algorithm is the store's own setting, see -a.
  */
 
 public class DigestCmd extends Command {
 	DigestCmd() {
 		super( "digest" );//, "Compute md5 hash for store-managed disks" );
 
+		option( "t", "threads",
+				"Hash using this many threads, default #cpus" );
+		option( "r", "reads",
+				"Allow this many concurrent store reads, default " +
+				DigestEngine.IOREADS_DEFAULT );
+		option( "a", "algorithm",
+				"Set the store's grain hash algorithm, one of " +
+				GrainHash.MD5 + ", " + GrainHash.SHA256 + ", " +
+				GrainHash.MURMUR3 );
 		requiredArgs( "storeName" );
 		optionalArg( "index" );
 	}
@@ -98,6 +110,25 @@ public class DigestCmd extends Command {
 			return;
 		}
 		FilesystemStore fs = (FilesystemStore)s;
+		int threads = Runtime.getRuntime().availableProcessors();
+		if( cl.hasOption( "t" ) )
+			threads = Integer.parseInt( cl.getOptionValue( "t" ) );
+		int reads = DigestEngine.IOREADS_DEFAULT;
+		if( cl.hasOption( "r" ) )
+			reads = Integer.parseInt( cl.getOptionValue( "r" ) );
+		if( cl.hasOption( "a" ) )
+			fs.setDigestAlgorithm( cl.getOptionValue( "a" ) );
+		DigestEngine engine = new DigestEngine( threads, reads,
+												fs.getDigestAlgorithm() );
+		try {
+			digest( fs, index, engine );
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+	private void digest( FilesystemStore fs, int index, DigestEngine engine )
+		throws Exception {
 		Collection<ManagedDiskDescriptor> mdds = fs.enumerate();
 		List<ManagedDiskDescriptor> sorted = new ArrayList( mdds );
 		Collections.sort( sorted,
@@ -111,8 +142,11 @@ public class DigestCmd extends Command {
 			long sz = fs.size( mdd );
 			System.out.println( "Digesting: " + mdd +
 								" (" + sz + " bytes)" );
-			fs.computeDigest( mdd );
+			fs.computeDigests( Collections.singletonList( mdd ), engine );
 		} else {
+			// Ask about all first, then digest the chosen together
+			List<ManagedDiskDescriptor> chosen =
+				new ArrayList<ManagedDiskDescriptor>();
 			for( ManagedDiskDescriptor mdd : sorted ) {
 				boolean proceed = proceedTest( mdd );
 				if( !proceed )
@@ -120,8 +154,9 @@ public class DigestCmd extends Command {
 				long sz = fs.size( mdd );
 				System.out.println( "Digesting: " + mdd +
 									" (" + sz + " bytes)" );
-				fs.computeDigest( mdd );
+				chosen.add( mdd );
 			}
+			fs.computeDigests( chosen, engine );
 		}
 	}
 
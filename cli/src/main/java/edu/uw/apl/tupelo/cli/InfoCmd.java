@@ -45,6 +45,8 @@ import java.util.UUID;
 import org.apache.commons.cli.*;
 
 import edu.uw.apl.tupelo.config.Config;
+import edu.uw.apl.tupelo.http.client.HttpStoreProxy;
+import edu.uw.apl.tupelo.store.DiskSummary;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
@@ -104,21 +106,31 @@ public class InfoCmd extends Command {
 		Collections.sort( sorted,
 						  ManagedDiskDescriptor.DEFAULTCOMPARATOR );
 		
+		// a remote store answers for all disks in one request
+		List<DiskSummary> summaries = null;
+		if( store instanceof HttpStoreProxy ) {
+			summaries = ((HttpStoreProxy)store).summarize( sorted );
+		} else {
+			summaries = new ArrayList<DiskSummary>();
+			for( ManagedDiskDescriptor mdd : sorted )
+				summaries.add( DiskSummary.of( store, mdd ) );
+		}
+		
 		System.out.println( "Contents:" );
 		System.out.println();
 		int i = 1;
-		for( ManagedDiskDescriptor mdd : sorted ) {
-			report( mdd, store, i );
+		for( DiskSummary ds : summaries ) {
+			report( ds, i );
 			i++;
 		}
 	}
 
-	private void report( ManagedDiskDescriptor mdd, Store store, int n )
-		throws IOException {
+	private void report( DiskSummary ds, int n ) {
+		ManagedDiskDescriptor mdd = ds.getDescriptor();
 		System.out.println( n + " " + mdd.getDiskID() + ", " +
 							mdd.getSession() +
-							" (" + store.size( mdd ) + ")" );
-		Collection<String> attrNames = store.listAttributes( mdd );
+							" (" + ds.size() + ")" );
+		Collection<String> attrNames = ds.attributeNames();
 		List<String> sorted = new ArrayList( attrNames );
 		Collections.sort( sorted );
 		System.out.println( " Attributes: " );
@@ -35,6 +35,7 @@ package edu.uw.apl.tupelo.cli;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -66,6 +67,14 @@ public class PushCmd extends Command {
 		super( "push" );
 		//, "Push local device content to a Tupelo store" );
 
+		option( "t", "threads",
+				"Compress grains using this many threads, default 1" );
+		option( "z", "compression",
+				"Compress grains using one of " +
+				Arrays.toString( ManagedDisk.Compressions.values() ) +
+				", default SNAPPY" );
+		option( "l", "level",
+				"Compression level, default per compression" );
 		requiredArgs( "deviceName", "storeName" );
 	}
 	
@@ -143,7 +152,11 @@ public class PushCmd extends Command {
 			if( verbose )
 				System.out.println( "UUID: " + uuid );
 			log.info( "Requesting digest for: "+ recent );
-			digest = store.digest( recent );
+			// over a wan, fetch only that part of the digest we need
+			if( store instanceof HttpStoreProxy && !useFlatDisk( ud ) )
+				digest = ((HttpStoreProxy)store).deltaDigest( recent, ud );
+			if( digest == null )
+				digest = store.digest( recent );
 			if( digest == null ) {
 				System.out.println
 					( "No digest, continuing with full disk push" );
@@ -160,8 +173,7 @@ public class PushCmd extends Command {
 		}
 
 		ManagedDisk md = null;
-		boolean useFlatDisk = ud.size() < 1024L * 1024 * 1024;
-		if( useFlatDisk ) {
+		if( useFlatDisk( ud ) ) {
 			/*
 			  A FlatDisk always holds ALL the data,
 			  and makes no use of any 'parent' manageddisk,
@@ -174,6 +186,18 @@ public class PushCmd extends Command {
 			else
 				md = new StreamOptimizedDisk( ud, session );
 			md.setCompression( ManagedDisk.Compressions.SNAPPY );
+			if( cl.hasOption( "z" ) ) {
+				String s = cl.getOptionValue( "z" ).toUpperCase();
+				md.setCompression( ManagedDisk.Compressions.valueOf( s ) );
+			}
+			if( cl.hasOption( "l" ) ) {
+				int level = Integer.parseInt( cl.getOptionValue( "l" ) );
+				md.setCompressionLevel( level );
+			}
+			if( cl.hasOption( "t" ) ) {
+				int threads = Integer.parseInt( cl.getOptionValue( "t" ) );
+				((StreamOptimizedDisk)md).setCaptureThreads( threads );
+			}
 		}
 		
 		if( digest != null )
@@ -198,6 +222,10 @@ public class PushCmd extends Command {
 		int progressMonitorUpdateIntervalSecs = 5;
 		store.put( md, cb, progressMonitorUpdateIntervalSecs );
 	}
+
+	static private boolean useFlatDisk( UnmanagedDisk ud ) {
+		return ud.size() < 1024L * 1024 * 1024;
+	}
 }
 
 // eof
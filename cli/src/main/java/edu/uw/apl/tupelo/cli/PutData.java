@@ -37,6 +37,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -101,7 +102,13 @@ public class PutData extends CliBase {
 					  "Force stream-optimized managed disk, default based on unmanaged size" );
 		os.addOption( "q", false,
 					  "Quiet, do not print progress" );
-		String usage = commonUsage() + " [-f] [-o] [-n] [-q] /path/to/unmanagedData";
+		os.addOption( "z", true,
+					  "Stream-optimized grain compression, one of " +
+					  Arrays.toString( ManagedDisk.Compressions.values() ) +
+					  ", default " + COMPRESSIONDEFAULT );
+		os.addOption( "l", true,
+					  "Compression level, default per compression" );
+		String usage = commonUsage() + " [-f] [-o] [-n] [-q] [-z compression] [-l level] /path/to/unmanagedData";
 
 		final String HEADER =
 			"Transfer an unmanaged disk image to a Tupelo store.";
@@ -120,6 +127,21 @@ public class PutData extends CliBase {
 		forceFlatDisk = cl.hasOption( "f" );
 		forceStreamOptimizedDisk = cl.hasOption( "o" );
 		quiet = cl.hasOption( "q" );
+		compression = COMPRESSIONDEFAULT;
+		compressionLevel = ManagedDisk.COMPRESSIONLEVEL_DEFAULT;
+		try {
+			if( cl.hasOption( "z" ) ) {
+				String s = cl.getOptionValue( "z" ).toUpperCase();
+				compression = ManagedDisk.Compressions.valueOf( s );
+			}
+			if( cl.hasOption( "l" ) )
+				compressionLevel = Integer.parseInt( cl.getOptionValue( "l" ) );
+		} catch( IllegalArgumentException iae ) {
+			// includes NumberFormatException
+			System.err.println( iae.getMessage() );
+			printUsage( os, usage, HEADER, FOOTER );
+			System.exit(1);
+		}
 		args = cl.getArgs();
 		if( args.length == 1 ) {
 			rawData = new File( args[0] );
@@ -211,7 +233,8 @@ public class PutData extends CliBase {
 				md = new StreamOptimizedDisk( ud, session, uuid );
 			else
 				md = new StreamOptimizedDisk( ud, session );
-			md.setCompression( ManagedDisk.Compressions.SNAPPY );
+			md.setCompression( compression );
+			md.setCompressionLevel( compressionLevel );
 		}
 
 		if( digest != null )
@@ -254,7 +277,12 @@ public class PutData extends CliBase {
 
 	boolean forceFlatDisk, forceStreamOptimizedDisk, dryrun;
 	boolean quiet, verbose;
+	ManagedDisk.Compressions compression;
+	int compressionLevel;
 	File rawData;
+
+	static final ManagedDisk.Compressions COMPRESSIONDEFAULT =
+		ManagedDisk.Compressions.SNAPPY;
 }
 
 // eof
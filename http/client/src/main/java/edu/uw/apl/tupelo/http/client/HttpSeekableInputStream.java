@@ -0,0 +1,251 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.SeekableInputStream;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A SeekableInputStream over the content of a managed disk held by a
+ * remote Tupelo http store, via http Range requests to the
+ * DataServlet's /disks/data/get.  So remote tools can read managed
+ * data (e.g. to walk a filesystem) without a local mount.
+ *
+ * Data is fetched, and cached, in fixed size blocks, the least
+ * recently used block evicted once the cache is full.  Reads which
+ * are sequential, i.e. which want the block after the last one
+ * fetched, have the following blocks fetched too, in that same
+ * request, so a sequential reader makes one round trip per
+ * readAhead blocks, not one per block.
+ *
+ * Every request carries the disk's ETag (its create UUID) in an
+ * If-Range, so we would notice a different disk under the same
+ * name.
+ *
+ * Not thread-safe, as for any InputStream.
+ *
+ * @see HttpStoreProxy#getSeekableInputStream
+ */
+public class HttpSeekableInputStream extends SeekableInputStream {
+
+	HttpSeekableInputStream( String url, long size, String etag,
+							 HttpClient client ) {
+		super( size );
+		this.url = url;
+		this.etag = etag;
+		this.client = client;
+		blockSize = BLOCKSIZE_DEFAULT;
+		readAhead = READAHEAD_DEFAULT;
+		cacheBlocks( CACHEBLOCKS_DEFAULT );
+		log = LogFactory.getLog( getClass() );
+	}
+
+	/**
+	 * Learn the size and ETag of the disk, by a HEAD request
+	 */
+	static HttpSeekableInputStream open( String server,
+										 ManagedDiskDescriptor mdd,
+										 HttpClient client )
+		throws IOException {
+		String url = server + "disks/data/get/" + mdd.getDiskID() +
+			"/" + mdd.getSession();
+		HttpHead h = new HttpHead( url );
+		HttpResponse res = client.execute( h );
+		StatusLine sl = res.getStatusLine();
+		EntityUtils.consume( res.getEntity() );
+		if( sl.getStatusCode() != HttpStatus.SC_OK ) {
+			throw new IOException( mdd + ": " + sl );
+		}
+		long size = Long.parseLong
+			( res.getFirstHeader( "Content-Length" ).getValue() );
+		Header etag = res.getFirstHeader( "ETag" );
+		return new HttpSeekableInputStream
+			( url, size, etag == null ? null : etag.getValue(), client );
+	}
+
+	/**
+	 * @param bytes - must be set before any read
+	 */
+	public void setBlockSize( int bytes ) {
+		if( bytes < 1 )
+			throw new IllegalArgumentException( "Block size " + bytes );
+		blockSize = bytes;
+		cache.clear();
+		lastBlock = -2;
+	}
+	
+	/**
+	 * @param blocks - fetched in one request by a sequential read,
+	 * 1 for no read-ahead.  Must not exceed the cache size.
+	 */
+	public void setReadAhead( int blocks ) {
+		if( blocks < 1 || blocks > cacheBlocks )
+			throw new IllegalArgumentException( "Read ahead " + blocks );
+		readAhead = blocks;
+	}
+	
+	public void setCacheBlocks( int blocks ) {
+		if( blocks < readAhead )
+			throw new IllegalArgumentException( "Cache blocks " + blocks );
+		cacheBlocks( blocks );
+	}
+
+	public String getETag() {
+		return etag;
+	}
+	
+	@Override
+	public void seek( long s ) throws IOException {
+		posn = s;
+	}
+
+	/**
+	   As for other SeekableInputStreams, we satisfy the whole length
+	   requested, as far as the data goes.
+	*/
+	@Override
+	public int readImpl( byte[] ba, int off, int len ) throws IOException {
+		int total = 0;
+		while( total < len && posn < size ) {
+			long block = posn / blockSize;
+			byte[] data = block( block );
+			int offset = (int)(posn - block * blockSize);
+			int n = Math.min( len - total, data.length - offset );
+			System.arraycopy( data, offset, ba, off + total, n );
+			total += n;
+			posn += n;
+		}
+		return total;
+	}
+
+	/**
+	 * The client is shared, its connections the proxy's to release
+	 */
+	@Override
+	public void close() {
+		cache.clear();
+	}
+
+	private byte[] block( long block ) throws IOException {
+		byte[] result = cache.get( block );
+		if( result != null )
+			return result;
+		long blocks = (size + blockSize - 1) / blockSize;
+		int count = block == lastBlock + 1 ? readAhead : 1;
+		count = (int)Math.min( count, blocks - block );
+		fetch( block, count );
+		lastBlock = block + count - 1;
+		return cache.get( block );
+	}
+
+	private void fetch( long block, int count ) throws IOException {
+		long first = block * blockSize;
+		long last = Math.min( first + (long)count * blockSize, size ) - 1;
+		HttpGet g = new HttpGet( url );
+		g.addHeader( "Range", "bytes=" + first + "-" + last );
+		if( etag != null )
+			g.addHeader( "If-Range", etag );
+		log.debug( g.getRequestLine() + " " + first + "-" + last );
+		HttpResponse res = client.execute( g );
+		HttpEntity he = res.getEntity();
+		StatusLine sl = res.getStatusLine();
+		if( sl.getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT ) {
+			// a 200 here means our If-Range failed, the disk changed
+			EntityUtils.consume( he );
+			throw new IOException( url + ": " + sl );
+		}
+		InputStream is = he.getContent();
+		try {
+			for( int i = 0; i < count; i++ ) {
+				long from = first + (long)i * blockSize;
+				byte[] data = new byte[(int)Math.min( blockSize,
+													  last + 1 - from )];
+				IOUtils.readFully( is, data );
+				cache.put( block + i, data );
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	private void cacheBlocks( final int blocks ) {
+		cacheBlocks = blocks;
+		Map<Long,byte[]> lru = new LinkedHashMap<Long,byte[]>
+			( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry
+				( Map.Entry<Long,byte[]> eldest ) {
+				return size() > blocks;
+			}
+		};
+		if( cache != null )
+			lru.putAll( cache );
+		cache = lru;
+	}
+	
+	private final String url, etag;
+	private final HttpClient client;
+	private final Log log;
+	private int blockSize, readAhead, cacheBlocks;
+	private Map<Long,byte[]> cache;
+	private long lastBlock = -2;
+
+	static public final int BLOCKSIZE_DEFAULT = 256 * 1024;
+
+	static public final int READAHEAD_DEFAULT = 8;
+
+	static public final int CACHEBLOCKS_DEFAULT = 64;
+}
+
+// eof
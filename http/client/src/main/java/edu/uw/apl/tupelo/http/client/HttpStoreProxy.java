@@ -35,6 +35,8 @@ package edu.uw.apl.tupelo.http.client;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.File;
@@ -46,6 +48,8 @@ import java.io.PipedOutputStream;
 
 //import java.io.*;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -66,21 +70,32 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.uw.apl.tupelo.model.Constants;
+import edu.uw.apl.tupelo.model.DigestDelta;
 import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
 import edu.uw.apl.tupelo.model.Session;
 import edu.uw.apl.tupelo.model.ProgressMonitor;
+import edu.uw.apl.tupelo.model.UnmanagedDisk;
+import edu.uw.apl.tupelo.store.DiskSummary;
 import edu.uw.apl.tupelo.store.Store;
+import edu.uw.apl.tupelo.store.WireFormat;
 
 /**
  * @author Stuart Maclean
@@ -90,15 +105,62 @@ import edu.uw.apl.tupelo.store.Store;
  * stub. This http client talks HTTP to a servlet which then forwards
  * calls to a 'real' Store implementation, typically a FilesystemStore
  *
+ * All requests share one pool of keep-alive connections to the
+ * server, so a listing of a store, which makes several small requests
+ * per managed disk, does not pay for a new connection (and maybe a
+ * new TLS handshake) each time.  Every response must therefore be
+ * fully read, or closed, to return its connection to the pool.  See
+ * also summarize, one request in place of several per disk.
+ *
+ * Puts are resumable, from the very same bytes.  A put of a fresh
+ * ManagedDisk of the same unmanaged disk, even in a new process,
+ * first takes the create UUID of the server's partial upload, so
+ * produces those bytes again and carries on from the chunks the
+ * server already holds.  See put.
+ *
  * @see edu.uw.apl.tupelo.store.filesys.FilesystemStore
  */
 public class HttpStoreProxy implements Store {
 
 	public HttpStoreProxy( String s ) {
+		this( s, MAXCONNECTIONS_DEFAULT, CONNECTTIMEOUT_DEFAULT,
+			  SOCKETTIMEOUT_DEFAULT );
+	}
+
+	/**
+	 * @param maxConnections - to the server, i.e. the per-route limit,
+	 * so also how many calls may be in progress at once
+	 * @param connectTimeoutMillis - 0 for none
+	 * @param socketTimeoutMillis - longest wait between packets of a
+	 * response, 0 for none
+	 */
+	public HttpStoreProxy( String s, int maxConnections,
+						   int connectTimeoutMillis,
+						   int socketTimeoutMillis ) {
 		if( !s.endsWith( "/" ) )
 			s = s + "/";
 		this.server = s;
 		log = LogFactory.getLog( getClass() );
+		
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal( maxConnections );
+		connectionManager.setDefaultMaxPerRoute( maxConnections );
+		requestConfig = RequestConfig.custom().
+			setConnectTimeout( connectTimeoutMillis ).
+			setConnectionRequestTimeout( connectTimeoutMillis ).
+			setSocketTimeout( socketTimeoutMillis ).build();
+		client = HttpClients.custom().
+			setConnectionManager( connectionManager ).
+			setDefaultRequestConfig( requestConfig ).build();
+		uploadRetries = UPLOADRETRIES_DEFAULT;
+		chunkSize = CHUNKSIZE_DEFAULT;
+	}
+
+	/**
+	 * Release all pooled connections.  The proxy is unusable after.
+	 */
+	public void close() throws IOException {
+		client.close();
 	}
 
 	@Override
@@ -112,8 +174,7 @@ public class HttpStoreProxy implements Store {
 		HttpGet g = new HttpGet( server + "uuid" );
 		g.addHeader( "Accept", "application/x-java-serialized-object" );
 		log.debug( g.getRequestLine() );
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
 		ObjectInputStream ois = new ObjectInputStream( is );
@@ -132,8 +193,7 @@ public class HttpStoreProxy implements Store {
 		HttpGet g = new HttpGet( server + "usablespace" );
 		g.addHeader( "Accept", "application/x-java-serialized-object" );
 		log.debug( g.getRequestLine() );
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
 		ObjectInputStream ois = new ObjectInputStream( is );
@@ -155,8 +215,7 @@ public class HttpStoreProxy implements Store {
 	
 		log.debug( p.getRequestLine() );
 		
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( p );
+		HttpResponse res = client.execute( p );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
 		ObjectInputStream ois = new ObjectInputStream( is );
@@ -174,13 +233,19 @@ public class HttpStoreProxy implements Store {
 	public long size( ManagedDiskDescriptor mdd ) throws IOException {
 		HttpGet g = new HttpGet( server + "disks/data/size/" + mdd.getDiskID() +
 								 "/" + mdd.getSession() );
+		g.addHeader( "Accept", ACCEPTBINARY );
 		log.debug( g.getRequestLine() );
-		g.addHeader( "Accept", "application/x-java-serialized-object" );
-		log.debug( g.getRequestLine() );
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
+		if( isBinary( res ) ) {
+			DataInputStream dis = WireFormat.open( is );
+			try {
+				return dis.readLong();
+			} finally {
+				dis.close();
+			}
+		}
 		ObjectInputStream ois = new ObjectInputStream( is );
 		try {
 			long result = (Long)ois.readObject();
@@ -196,13 +261,19 @@ public class HttpStoreProxy implements Store {
 	public UUID uuid( ManagedDiskDescriptor mdd ) throws IOException {
 		HttpGet g = new HttpGet( server + "disks/data/uuid/" + mdd.getDiskID() +
 								   "/" + mdd.getSession() );
+		g.addHeader( "Accept", ACCEPTBINARY );
 		log.debug( g.getRequestLine() );
-		g.addHeader( "Accept", "application/x-java-serialized-object" );
-		log.debug( g.getRequestLine() );
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
+		if( isBinary( res ) ) {
+			DataInputStream dis = WireFormat.open( is );
+			try {
+				return WireFormat.readUUID( dis );
+			} finally {
+				dis.close();
+			}
+		}
 		ObjectInputStream ois = new ObjectInputStream( is );
 		try {
 			UUID result = (UUID)ois.readObject();
@@ -215,87 +286,375 @@ public class HttpStoreProxy implements Store {
 	}
 	
 	/**
-	   Slightly awkward implementation, making use of a Pipe.  We have
-	   a ManagedDisk as the source of our data, which supports just
-	   writeTo( OutputStream ). But the HttpClient InputStreamEntity
-	   wants to see an Inputstream.  So, in a new thread, we write the
-	   ManagedDisk to the OutputStream side of the Pipe.  The caller
-	   thread is then given the input side of the Pipe.
+	   Puts are resumable.  md's data, what its writeTo produces, goes
+	   to the server in chunks, each checked (SHA-256) and acknowledged
+	   by the server before the next is sent.  A chunk whose send
+	   fails, e.g. the connection dropped, is sent again after a pause,
+	   from wherever the server says it got to, up to uploadRetries
+	   times in a row.
+
+	   A put which gives up, or whose process dies, leaves its
+	   acknowledged chunks at the server.  A later put of the same
+	   managed disk produces md's data again, checks it against those
+	   chunks' digests, and sends only what follows them.  That needs
+	   the same bytes, so md first takes on the create UUID in the
+	   header the upload began with, see
+	   ManagedDisk.adoptUUIDCreate.  Data which differs anyway, the
+	   unmanaged disk having changed say, has the server's upload
+	   discarded and the put starts over.
+
+	   Chunks are CHUNKSIZE_DEFAULT long, a grain table's worth of
+	   grains at the default grain size, so at most that much is sent
+	   twice per failure.
+
+	   A server predating resumable puts is sent md's data in a single
+	   request, as before.
 	*/
 	@Override
-	public void put( final ManagedDisk md ) throws IOException {
+	public void put( ManagedDisk md ) throws IOException {
+		put( md, null, 0 );
+	}
+
+	@Override
+	public void put( ManagedDisk md, ProgressMonitor.Callback cb,
+					 int progressUpdateIntervalSecs )
+		throws IOException {
+
+		ManagedDiskDescriptor mdd = md.getDescriptor();
+		String path = mdd.getDiskID() + "/" + mdd.getSession();
+		Uploaded uploaded = startUpload( path );
+		if( uploaded == null ) {
+			putWhole( md, cb, progressUpdateIntervalSecs );
+			return;
+		}
+		if( uploaded.header != null ) {
+			try {
+				md.adoptUUIDCreate( uploaded.header );
+			} catch( IllegalArgumentException iae ) {
+				log.warn( mdd + ": " + iae.getMessage() );
+			} catch( IllegalStateException ise ) {
+				log.warn( mdd + ": " + ise.getMessage() );
+			}
+		}
+		Feed feed = new Feed( md, cb, progressUpdateIntervalSecs );
+		try {
+			if( !feed.matches( uploaded ) ) {
+				log.warn( mdd + ": differs from its upload so far, restarting" );
+				abortUpload( path );
+				feed.close();
+				feed = new Feed( md, cb, progressUpdateIntervalSecs );
+				uploaded = startUpload( path );
+			}
+			long offset = uploaded.offset;
+			if( offset > 0 )
+				log.info( mdd + ": resuming at " + offset );
+			byte[] ba = new byte[chunkSize];
+			while( true ) {
+				int n = feed.read( ba );
+				if( n == 0 )
+					break;
+				offset = sendChunk( path, offset, ba, n );
+			}
+			commitUpload( mdd, path, offset );
+		} finally {
+			feed.close();
+		}
+	}
+
+	/**
+	 * @param uploadRetries - how many times to resend a chunk, or
+	 * commit, on failure, before the put gives up
+	 */
+	public void setUploadRetries( int uploadRetries ) {
+		if( uploadRetries < 0 )
+			throw new IllegalArgumentException( "Retries: " + uploadRetries );
+		this.uploadRetries = uploadRetries;
+	}
+
+	public void setChunkSize( int chunkSize ) {
+		if( chunkSize < 1 )
+			throw new IllegalArgumentException( "Chunk size: " + chunkSize );
+		this.chunkSize = chunkSize;
+	}
+
+	/*
+	  The non-resumable put, all of md's data in one request.
+	*/
+	private void putWhole( ManagedDisk md, ProgressMonitor.Callback cb,
+						   int progressUpdateIntervalSecs )
+		throws IOException {
 		ManagedDiskDescriptor mdd = md.getDescriptor();
 		HttpPost p = new HttpPost( server + "disks/data/put/" +
 								   mdd.getDiskID() +
 								   "/" + mdd.getSession() );
 		log.debug( p.getRequestLine() );
 
-		final PipedOutputStream pos = new PipedOutputStream();
-		PipedInputStream pis = new PipedInputStream( pos );
+		Feed feed = new Feed( md, cb, progressUpdateIntervalSecs );
 		InputStreamEntity ise = new InputStreamEntity
-			( pis, -1, ContentType.APPLICATION_OCTET_STREAM );
+			( feed.pis, -1, ContentType.APPLICATION_OCTET_STREAM );
 		ise.setChunked( true );
 		p.setEntity( ise );
-		Runnable r = new Runnable() {
-				public void run() {
-					try {
-						md.writeTo( pos );
-						pos.close();
-					} catch( IOException ioe ) {
-						log.error( ioe );
-					}
-				}
-			};
-		Thread t = new Thread( r );
-		t.start();
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( p );
 		try {
-			t.join();
-		} catch( InterruptedException ie ) {
+			HttpResponse res = client.execute( p );
+			EntityUtils.consume( res.getEntity() );
+		} finally {
+			feed.close();
 		}
 	}
 
-	@Override
-	public synchronized void put( final ManagedDisk md,
-								  final ProgressMonitor.Callback cb,
-								  final int progressUpdateIntervalSecs )
+	/**
+	 * Open, or reopen, the server's upload of path (DID/SID)
+	 *
+	 * @return null if the server predates resumable puts
+	 */
+	private Uploaded startUpload( String path ) throws IOException {
+		HttpPost p = new HttpPost( server + "disks/data/upload/" + path );
+		log.debug( p.getRequestLine() );
+		HttpResponse res = client.execute( p );
+		int sc = res.getStatusLine().getStatusCode();
+		if( sc == HttpStatus.SC_NOT_FOUND ) {
+			EntityUtils.consume( res.getEntity() );
+			return null;
+		}
+		if( sc != HttpStatus.SC_OK ) {
+			EntityUtils.consume( res.getEntity() );
+			throw new IOException( path + ": " + res.getStatusLine() );
+		}
+		DataInputStream dis = WireFormat.open( res.getEntity().getContent() );
+		try {
+			Uploaded result = new Uploaded();
+			result.offset = dis.readLong();
+			int n = dis.readInt();
+			result.lengths = new long[n];
+			result.sha256s = new byte[n][];
+			for( int i = 0; i < n; i++ ) {
+				result.lengths[i] = dis.readLong();
+				result.sha256s[i] = new byte[32];
+				dis.readFully( result.sha256s[i] );
+			}
+			n = dis.readInt();
+			if( n > 0 ) {
+				result.header = new byte[n];
+				dis.readFully( result.header );
+			}
+			return result;
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Send len bytes of ba as the chunk at offset, retrying as needed
+	 *
+	 * @return the offset the server has now acknowledged, i.e. offset+len
+	 */
+	private long sendChunk( String path, long offset, byte[] ba, int len )
 		throws IOException {
+		MessageDigest md = sha256();
+		md.update( ba, 0, len );
+		String sha256 = Hex.encodeHexString( md.digest() );
+		for( int attempt = 0; true; attempt++ ) {
+			if( attempt > 0 ) {
+				pause( attempt );
+				/*
+				  Where did the server get to?  Our chunk may have
+				  arrived, and only its acknowledgement been lost.
+				*/
+				Uploaded u;
+				try {
+					u = startUpload( path );
+				} catch( IOException ioe ) {
+					if( attempt == uploadRetries )
+						throw ioe;
+					log.warn( path + ": " + ioe );
+					continue;
+				}
+				if( u == null )
+					throw new IOException( "Upload gone: " + path );
+				if( u.offset == offset + len )
+					return u.offset;
+				if( u.offset != offset )
+					throw new IOException( path + ": server at " + u.offset +
+										   ", expected " + offset );
+			}
+			HttpPost p = new HttpPost( server + "disks/data/uploadchunk/" +
+									   path );
+			p.addHeader( "X-Tupelo-Upload-Offset", "" + offset );
+			p.addHeader( "X-Tupelo-Chunk-SHA256", sha256 );
+			p.setEntity( new ByteArrayEntity
+						 ( ba, 0, len, ContentType.APPLICATION_OCTET_STREAM ) );
+			log.debug( p.getRequestLine() + " " + offset );
+			IOException failure;
+			try {
+				HttpResponse res = client.execute( p );
+				EntityUtils.consume( res.getEntity() );
+				StatusLine sl = res.getStatusLine();
+				if( sl.getStatusCode() == HttpStatus.SC_OK )
+					return offset + len;
+				// e.g. failed the integrity check, so try again
+				failure = new IOException( path + ": " + sl );
+			} catch( IOException ioe ) {
+				failure = ioe;
+			}
+			if( attempt == uploadRetries )
+				throw failure;
+			log.warn( path + ": " + failure );
+		}
+	}
 
-		ManagedDiskDescriptor mdd = md.getDescriptor();
-		HttpPost p = new HttpPost( server + "disks/data/put/" +
-								   mdd.getDiskID() +
-								   "/" + mdd.getSession() );
+	private void commitUpload( ManagedDiskDescriptor mdd, String path,
+							   long length ) throws IOException {
+		for( int attempt = 0; true; attempt++ ) {
+			HttpPost p = new HttpPost( server + "disks/data/uploadcommit/" +
+									   path );
+			p.addHeader( "X-Tupelo-Upload-Length", "" + length );
+			// the server stores the whole upload before it replies
+			p.setConfig( RequestConfig.copy( requestConfig ).
+						 setSocketTimeout( 0 ).build() );
+			log.debug( p.getRequestLine() );
+			HttpResponse res;
+			try {
+				res = client.execute( p );
+			} catch( IOException ioe ) {
+				if( attempt == uploadRetries )
+					throw ioe;
+				log.warn( path + ": " + ioe );
+				pause( attempt + 1 );
+				continue;
+			}
+			EntityUtils.consume( res.getEntity() );
+			StatusLine sl = res.getStatusLine();
+			if( sl.getStatusCode() == HttpStatus.SC_OK )
+				return;
+			// a commit made, but its reply lost, on an earlier attempt
+			if( sl.getStatusCode() == HttpStatus.SC_NOT_FOUND &&
+				attempt > 0 && enumerate().contains( mdd ) )
+				return;
+			throw new IOException( path + ": " + sl );
+		}
+	}
+
+	private void abortUpload( String path ) throws IOException {
+		HttpPost p = new HttpPost( server + "disks/data/uploadabort/" +
+								   path );
 		log.debug( p.getRequestLine() );
+		HttpResponse res = client.execute( p );
+		EntityUtils.consume( res.getEntity() );
+	}
 
-		final PipedOutputStream pos = new PipedOutputStream();
-		PipedInputStream pis = new PipedInputStream( pos );
-		InputStreamEntity ise = new InputStreamEntity
-			( pis, -1, ContentType.APPLICATION_OCTET_STREAM );
-		ise.setChunked( true );
-		p.setEntity( ise );
-		Runnable r = new Runnable() {
-				public void run() {
-					try {
-						ProgressMonitor pm = new ProgressMonitor
-							( md, pos, cb, progressUpdateIntervalSecs );
-						pm.start();
-						pos.close();
-					} catch( IOException ioe ) {
-						log.error( ioe );
-					}
-				}
-			};
-		Thread t = new Thread( r );
-		t.start();
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( p );
+	private void pause( int attempt ) throws IOException {
 		try {
-			t.join();
+			Thread.sleep( RETRYPAUSEMILLIS * attempt );
 		} catch( InterruptedException ie ) {
+			throw new IOException( ie );
+		}
+	}
+
+	static private MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance( "SHA-256" );
+		} catch( NoSuchAlgorithmException nsae ) {
+			// every jre has sha-256
+			throw new IllegalStateException( nsae );
 		}
 	}
 	
+	/*
+	  The server's record of an upload: the offset acknowledged, the
+	  chunks making it up and the header sector they start with (null
+	  if not yet sent)
+	*/
+	static private class Uploaded {
+		long offset;
+		long[] lengths;
+		byte[][] sha256s;
+		byte[] header;
+	}
+
+	/*
+	  Slightly awkward, making use of a Pipe.  We have a ManagedDisk
+	  as the source of our data, which supports just writeTo(
+	  OutputStream ). But we want an InputStream.  So, in a new
+	  thread, we write the ManagedDisk to the OutputStream side of the
+	  Pipe, and read the input side.  Closing the pipe early makes
+	  that write fail, and so the thread end.
+	*/
+	private class Feed {
+		Feed( final ManagedDisk md, final ProgressMonitor.Callback cb,
+			  final int progressUpdateIntervalSecs ) throws IOException {
+			final PipedOutputStream pos = new PipedOutputStream();
+			pis = new PipedInputStream( pos, 1024*64 );
+			Runnable r = new Runnable() {
+					public void run() {
+						try {
+							if( cb == null ) {
+								md.writeTo( pos );
+							} else {
+								ProgressMonitor pm = new ProgressMonitor
+									( md, pos, cb,
+									  progressUpdateIntervalSecs );
+								pm.start();
+							}
+							pos.close();
+						} catch( IOException ioe ) {
+							log.error( ioe );
+						}
+					}
+				};
+			t = new Thread( r );
+			t.start();
+		}
+
+		/**
+		 * Fill ba, short only at the end of the data
+		 *
+		 * @return bytes read, 0 at the end
+		 */
+		int read( byte[] ba ) throws IOException {
+			int total = 0;
+			while( total < ba.length ) {
+				int n = pis.read( ba, total, ba.length - total );
+				if( n < 0 )
+					break;
+				total += n;
+			}
+			return total;
+		}
+
+		/**
+		 * Read the data of the chunks already uploaded, checking it is
+		 * what was sent then
+		 */
+		boolean matches( Uploaded u ) throws IOException {
+			byte[] ba = new byte[1024*64];
+			for( int i = 0; i < u.lengths.length; i++ ) {
+				MessageDigest md = sha256();
+				long remaining = u.lengths[i];
+				while( remaining > 0 ) {
+					int n = pis.read( ba, 0,
+									  (int)Math.min( ba.length, remaining ) );
+					if( n < 0 )
+						return false;
+					md.update( ba, 0, n );
+					remaining -= n;
+				}
+				if( !MessageDigest.isEqual( md.digest(), u.sha256s[i] ) )
+					return false;
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			pis.close();
+			try {
+				t.join();
+			} catch( InterruptedException ie ) {
+			}
+		}
+
+		private final PipedInputStream pis;
+		private final Thread t;
+	}
 
 	@Override
 	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd )
@@ -303,36 +662,117 @@ public class HttpStoreProxy implements Store {
 		HttpGet g = new HttpGet( server + "disks/data/digest/" +
 								 mdd.getDiskID() +
 								 "/" + mdd.getSession() );
-		//		g.addHeader( "Accept", "application/x-java-serialized-object" );
-		g.addHeader( "Accept", "text/plain" );
+		// an older server ignores the binary form, sends text
+		g.addHeader( "Accept", WireFormat.CONTENTTYPE + ", text/plain;q=0.5" );
 	
 		log.debug( g.getRequestLine() );
 		
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		StatusLine sl = res.getStatusLine();
-		if( sl.getStatusCode() == HttpStatus.SC_NOT_FOUND )
+		if( sl.getStatusCode() == HttpStatus.SC_NOT_FOUND ) {
+			EntityUtils.consume( res.getEntity() );
 			return null;
+		}
 		
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
-		/*
-		  ObjectInputStream ois = new ObjectInputStream( is );
-		try {
-			List<byte[]>result = (List<byte[]>)ois.readObject();
-			return result;
-		} catch( ClassNotFoundException cnfe ) {
-			throw new IOException( cnfe );
-		} finally {
-			ois.close();
+		if( isBinary( res ) ) {
+			DataInputStream dis = WireFormat.open( is );
+			try {
+				return ManagedDiskDigest.readFrom( dis );
+			} finally {
+				dis.close();
+			}
 		}
-		*/
+		// An older server sends no algorithm, its digests are all md5
+		String algorithm = ManagedDisk.DIGESTALGORITHM;
+		Header h = res.getFirstHeader( "X-Tupelo-Digest-Algorithm" );
+		if( h != null )
+			algorithm = h.getValue();
 		InputStreamReader isr = new InputStreamReader( is );
-		ManagedDiskDigest result = ManagedDiskDigest.readFrom( isr );
+		ManagedDiskDigest result = ManagedDiskDigest.readFrom( isr, algorithm );
 		isr.close();
 		return result;
 	}
 
+	/**
+	 * The digest of parent, as digest( parent ) would return, but
+	 * negotiated a grain table at a time, so that only the grain
+	 * hashes of those tables in which ud differs from parent cross
+	 * the network.  For a mostly unchanged disk, that is a small
+	 * fraction of the whole digest.  In exchange, ud is read (and
+	 * hashed) once here, ahead of its capture.
+	 *
+	 * Assumes ud is to be captured at the default grain size, as the
+	 * parent's digest is by its grain size.
+	 *
+	 * @return null if the server has no digest for parent, or
+	 * predates this negotiation, in which case use digest( parent ).
+	 *
+	 * @see DigestDelta
+	 */
+	public ManagedDiskDigest deltaDigest( ManagedDiskDescriptor parent,
+										  UnmanagedDisk ud )
+		throws IOException {
+		HttpGet g = new HttpGet( server + "disks/data/tabledigest/" +
+								 parent.getDiskID() +
+								 "/" + parent.getSession() );
+		log.debug( g.getRequestLine() );
+
+		HttpResponse res = client.execute( g );
+		HttpEntity he = res.getEntity();
+		if( res.getStatusLine().getStatusCode() != HttpStatus.SC_OK ) {
+			EntityUtils.consume( he );
+			return null;
+		}
+		ManagedDiskDigest tables;
+		InputStream is = he.getContent();
+		try {
+			tables = ManagedDiskDigest.readFrom( is );
+		} finally {
+			is.close();
+		}
+		int grains = Integer.parseInt
+			( res.getFirstHeader( "X-Tupelo-Grain-Count" ).getValue() );
+		int grainsPerTable = Integer.parseInt
+			( res.getFirstHeader( "X-Tupelo-Grains-Per-Table" ).getValue() );
+
+		ManagedDiskDigest local = DigestDelta.digest
+			( ud, ManagedDisk.GRAINSIZE_DEFAULT * Constants.SECTORLENGTH,
+			  tables.getAlgorithm() );
+		DigestDelta dd = new DigestDelta( local, tables, grains,
+										  grainsPerTable );
+		int[] differing = dd.differing();
+		log.info( parent + ": " + differing.length + "/" + tables.size() +
+				  " grain tables differ" );
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream
+			( 4 * differing.length );
+		DataOutputStream dos = new DataOutputStream( baos );
+		for( int t : differing )
+			dos.writeInt( t );
+		dos.close();
+		HttpPost p = new HttpPost( server + "disks/data/tablehashes/" +
+								   parent.getDiskID() +
+								   "/" + parent.getSession() );
+		p.setEntity( new ByteArrayEntity
+					 ( baos.toByteArray(),
+					   ContentType.APPLICATION_OCTET_STREAM ) );
+		log.debug( p.getRequestLine() );
+		res = client.execute( p );
+		he = res.getEntity();
+		StatusLine sl = res.getStatusLine();
+		if( sl.getStatusCode() != HttpStatus.SC_OK ) {
+			EntityUtils.consume( he );
+			throw new IOException( "Table hashes: " + sl );
+		}
+		is = he.getContent();
+		try {
+			return dd.merge( ManagedDiskDigest.readFrom( is ) );
+		} finally {
+			is.close();
+		}
+	}
 		
 	@Override
 	public Collection<String> listAttributes( ManagedDiskDescriptor mdd )
@@ -344,8 +784,7 @@ public class HttpStoreProxy implements Store {
 	
 		log.debug( g.getRequestLine() );
 		
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
 		ObjectInputStream ois = new ObjectInputStream( is );
@@ -368,8 +807,7 @@ public class HttpStoreProxy implements Store {
 		g.addHeader( "Accept", "application/x-java-serialized-object" );
 		log.debug( g.getRequestLine() );
 		
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
 		ObjectInputStream ois = new ObjectInputStream( is );
@@ -395,22 +833,29 @@ public class HttpStoreProxy implements Store {
 		InputStreamEntity ise = new InputStreamEntity
 			( bais, value.length, ContentType.APPLICATION_OCTET_STREAM );
 		p.setEntity( ise );
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( p );
+		HttpResponse res = client.execute( p );
+		EntityUtils.consume( res.getEntity() );
 	}
 
 
 	@Override
 	public Collection<ManagedDiskDescriptor> enumerate() throws IOException {
 		HttpGet g = new HttpGet( server + "disks/data/enumerate" );
-		g.addHeader( "Accept", "application/x-java-serialized-object" );
+		g.addHeader( "Accept", ACCEPTBINARY );
 	
 		log.debug( g.getRequestLine() );
 		
-		HttpClient req = new DefaultHttpClient( );
-		HttpResponse res = req.execute( g );
+		HttpResponse res = client.execute( g );
 		HttpEntity he = res.getEntity();
 		InputStream is = he.getContent();
+		if( isBinary( res ) ) {
+			DataInputStream dis = WireFormat.open( is );
+			try {
+				return WireFormat.readDescriptors( dis );
+			} finally {
+				dis.close();
+			}
+		}
 		ObjectInputStream ois = new ObjectInputStream( is );
 		try {
 			Collection<ManagedDiskDescriptor> result =
@@ -423,6 +868,49 @@ public class HttpStoreProxy implements Store {
 		}
 	}
 
+	/**
+	 * The size, uuid and attribute names of each of mdds, in one
+	 * round trip, in place of three per descriptor.
+	 *
+	 * @return in the order of mdds
+	 */
+	public List<DiskSummary> summarize( Collection<ManagedDiskDescriptor> mdds )
+		throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = WireFormat.begin( baos );
+		WireFormat.writeDescriptors( dos, mdds );
+		dos.close();
+		HttpPost p = new HttpPost( server + "disks/data/summary" );
+		p.setEntity( new ByteArrayEntity
+					 ( baos.toByteArray(),
+					   ContentType.create( WireFormat.CONTENTTYPE ) ) );
+		log.debug( p.getRequestLine() );
+		HttpResponse res = client.execute( p );
+		HttpEntity he = res.getEntity();
+		StatusLine sl = res.getStatusLine();
+		if( sl.getStatusCode() != HttpStatus.SC_OK ) {
+			EntityUtils.consume( he );
+			throw new IOException( "Summary: " + sl );
+		}
+		DataInputStream dis = WireFormat.open( he.getContent() );
+		try {
+			return WireFormat.readSummaries( dis );
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Remote, seekable, read access to the content of a managed disk.
+	 * Caller to close.
+	 *
+	 * @see HttpSeekableInputStream
+	 */
+	public HttpSeekableInputStream getSeekableInputStream
+		( ManagedDiskDescriptor mdd ) throws IOException {
+		return HttpSeekableInputStream.open( server, mdd, client );
+	}
+
 	/*
 	  For the benefit of the fuse-based ManagedDiskFileSystem, so
 	  meaningless for a client-side http proxy.  Should never be
@@ -433,8 +921,43 @@ public class HttpStoreProxy implements Store {
 		throw new UnsupportedOperationException( "HttpStoreProxy.locate" );
 	}
 
+	/*
+	  By the response, not our request, since an older server knows
+	  only Java serialization
+	*/
+	static private boolean isBinary( HttpResponse res ) {
+		Header h = res.getFirstHeader( HttpHeaders.CONTENT_TYPE );
+		return h != null && h.getValue().startsWith( WireFormat.CONTENTTYPE );
+	}
+
 	private String server;
 	private final Log log;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final RequestConfig requestConfig;
+	private final CloseableHttpClient client;
+	private int uploadRetries;
+	private int chunkSize;
+
+	static public final int MAXCONNECTIONS_DEFAULT = 8;
+
+	static public final int CONNECTTIMEOUT_DEFAULT = 30 * 1000;
+
+	// a put can have the server busy, and quiet, for a while
+	static public final int SOCKETTIMEOUT_DEFAULT = 10 * 60 * 1000;
+
+	static public final int UPLOADRETRIES_DEFAULT = 10;
+
+	// one grain table's worth of grains, 32MB
+	static public final int CHUNKSIZE_DEFAULT = (int)
+		( ManagedDisk.NUMGTESPERGT * ManagedDisk.GRAINSIZE_DEFAULT *
+		  Constants.SECTORLENGTH );
+
+	// times the attempt number, so backing off
+	static private final long RETRYPAUSEMILLIS = 5 * 1000;
+	
+	// An older server sees only the substring it knows
+	static private final String ACCEPTBINARY = WireFormat.CONTENTTYPE +
+		", application/x-java-serialized-object;q=0.5";
 }
 
 // eof
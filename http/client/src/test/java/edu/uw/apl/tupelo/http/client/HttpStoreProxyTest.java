@@ -34,10 +34,13 @@
 package edu.uw.apl.tupelo.http.client;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
@@ -51,6 +54,7 @@ import org.junit.Before;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.webapp.WebAppContext;
 
+import edu.uw.apl.tupelo.store.DiskSummary;
 import edu.uw.apl.tupelo.store.Store;
 import edu.uw.apl.tupelo.model.Constants;
 import edu.uw.apl.tupelo.model.ManagedDisk;
@@ -172,6 +176,70 @@ public class HttpStoreProxyTest {//extends junit.framework.TestCase {
 		assertTrue( mddsPostPut.size() == mddsPrePut.size() + 1 );
 	}
 
+	@Test
+	public void testChunkedPut() throws IOException {
+		File f = new File( "src/test/resources/32m" );
+		if( !f.exists() )
+			return;
+		DiskImage di = new DiskImage( f );
+		Session s = store.newSession();
+		FlatDisk fd = new FlatDisk( di, s );
+		HttpStoreProxy hsp = (HttpStoreProxy)store;
+		// many chunks
+		hsp.setChunkSize( 1024 * 1024 );
+		hsp.put( fd );
+
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( di.getID(), s );
+		assertTrue( store.enumerate().contains( mdd ) );
+		assertEquals( f.length(), store.size( mdd ) );
+	}
+
+	/*
+	  A put which dies part way, as if its process did, then resumed
+	  by a fresh ManagedDisk, with its own create uuid, of the same
+	  data.  The stored disk has the first's uuid, so the second did
+	  carry on from the upload, and did not start over.
+	*/
+	@Test
+	public void testResumedPut() throws IOException {
+		File f = new File( "src/test/resources/32m" );
+		if( !f.exists() )
+			return;
+		DiskImage di = new DiskImage( f );
+		Session s = store.newSession();
+		HttpStoreProxy hsp = (HttpStoreProxy)store;
+		hsp.setChunkSize( 1024 * 1024 );
+		FlatDisk first = new FlatDisk( di, s ) {
+				@Override
+				public void writeTo( OutputStream os ) throws IOException {
+					super.writeTo( new FilterOutputStream( os ) {
+							@Override
+							public void write( byte[] ba, int off, int len )
+								throws IOException {
+								if( written + len > 5 * 1024 * 1024 )
+									throw new IOException( "Dropped" );
+								out.write( ba, off, len );
+								written += len;
+							}
+							long written;
+						} );
+				}
+			};
+		try {
+			hsp.put( first );
+			fail();
+		} catch( IOException ioe ) {
+		}
+
+		FlatDisk second = new FlatDisk( di, s );
+		assertFalse( first.getUUIDCreate().equals( second.getUUIDCreate() ) );
+		hsp.put( second );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( di.getID(), s );
+		assertTrue( store.enumerate().contains( mdd ) );
+		assertEquals( f.length(), store.size( mdd ) );
+		assertEquals( first.getUUIDCreate(), store.uuid( mdd ) );
+	}
+
 	@Ignore
 	public void testDigest() throws IOException {
 		File f = new File( "src/test/resources/64m" );
@@ -207,6 +275,49 @@ public class HttpStoreProxyTest {//extends junit.framework.TestCase {
 		}
 	}
 
+	@Test
+	public void testSummarize() throws IOException {
+		List<ManagedDiskDescriptor> mdds = new ArrayList<ManagedDiskDescriptor>
+			( store.enumerate() );
+		List<DiskSummary> dss = ((HttpStoreProxy)store).summarize( mdds );
+		assertEquals( mdds.size(), dss.size() );
+		for( int i = 0; i < mdds.size(); i++ ) {
+			ManagedDiskDescriptor mdd = mdds.get( i );
+			DiskSummary ds = dss.get( i );
+			assertEquals( mdd, ds.getDescriptor() );
+			assertEquals( store.size( mdd ), ds.size() );
+			assertEquals( store.uuid( mdd ), ds.uuid() );
+		}
+	}
+
+	@Test
+	public void testSeekableRead() throws IOException {
+		Collection<ManagedDiskDescriptor> mdds = store.enumerate();
+		assertNotNull( mdds );
+		if( mdds.isEmpty() )
+			return;
+		ManagedDiskDescriptor mdd = mdds.iterator().next();
+		HttpSeekableInputStream sis =
+			((HttpStoreProxy)store).getSeekableInputStream( mdd );
+		try {
+			assertNotNull( sis.getETag() );
+			sis.setBlockSize( 4096 );
+			sis.setReadAhead( 4 );
+			// across several blocks, sequentially, then again by seek
+			int len = (int)Math.min( 5 * 4096 + 100, store.size( mdd ) );
+			byte[] sequential = new byte[len];
+			for( int i = 0; i < len; i += 1000 )
+				sis.read( sequential, i, Math.min( 1000, len - i ) );
+			byte[] seeked = new byte[len - 10];
+			sis.seek( 10 );
+			assertEquals( seeked.length, sis.read( seeked ) );
+			assertTrue( Arrays.equals( Arrays.copyOfRange
+									   ( sequential, 10, len ), seeked ) );
+		} finally {
+			sis.close();
+		}
+	}
+
 	@Test
 	public void testAttributeList() throws IOException {
 		Collection<ManagedDiskDescriptor> mdds = store.enumerate();
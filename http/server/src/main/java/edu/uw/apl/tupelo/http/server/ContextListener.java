@@ -123,6 +123,32 @@ public class ContextListener implements ServletContextListener {
 		log.info( "Store UUID: " + store.getUUID() );
 		
 		sc.setAttribute( STOREKEY, store );
+
+		// resumable puts in progress, see DataServlet
+		File uploads = new File( dataRoot, "uploads" );
+		uploads.mkdirs();
+		expireUploads( sc, uploads );
+		sc.setAttribute( UPLOADSKEY, uploads );
+	}
+
+	/**
+	 * Remove the uploads clients abandoned, those untouched for
+	 * UPLOADSMAXAGEKEY days, 7 if not given
+	 */
+	private void expireUploads( ServletContext sc, File uploads )
+		throws IOException {
+		int days = UPLOADSMAXAGE_DEFAULT;
+		String daysS = sc.getInitParameter( UPLOADSMAXAGEKEY );
+		if( daysS != null ) {
+			try {
+				days = Integer.parseInt( daysS );
+			} catch( NumberFormatException nfe ) {
+				log.warn( "Bad " + UPLOADSMAXAGEKEY + ": " + daysS );
+			}
+		}
+		int n = Upload.expire( uploads, days * 24L * 60 * 60 * 1000 );
+		if( n > 0 )
+			log.info( "Expired uploads: " + n );
 	}
 
 	/**
@@ -226,6 +252,9 @@ public class ContextListener implements ServletContextListener {
 
 	static public final String DATAROOTKEY = "dataroot";
 	static public final String STOREKEY = "store";
+	static public final String UPLOADSKEY = "uploads";
+	static public final String UPLOADSMAXAGEKEY = "uploads.maxage.days";
+	static public final int UPLOADSMAXAGE_DEFAULT = 7;
 
 	static public final String AMQPBROKERKEY = "amqp.url";
 	static public final String AMQPSERVICEKEY = "amqpservice";
@@ -33,16 +33,24 @@
  */
 package edu.uw.apl.tupelo.http.server;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.ObjectOutputStream;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -66,12 +74,18 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonSerializer;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import org.apache.commons.codec.binary.Hex;
 
 import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
+import edu.uw.apl.tupelo.model.SeekableInputStream;
 import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.DiskSummary;
 import edu.uw.apl.tupelo.store.Store;
+import edu.uw.apl.tupelo.store.WireFormat;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -91,10 +105,43 @@ import org.apache.commons.logging.LogFactory;
  * /disks/data/size/DID/SID
  * /disks/data/uuid/DID/SID
  * /disks/data/digest/DID/SID
+ * /disks/data/get/DID/SID
+ * /disks/data/tabledigest/DID/SID
+ * /disks/data/tablehashes/DID/SID (POST)
+ * /disks/data/summary (POST)
+ * /disks/data/upload/DID/SID (POST)
+ * /disks/data/uploadchunk/DID/SID (POST)
+ * /disks/data/uploadcommit/DID/SID (POST)
+ * /disks/data/uploadabort/DID/SID (POST)
+ *
+ * Results of enumerate, size, uuid and digest are sent in one of
+ * several forms, by the request's Accept header: the WireFormat binary
+ * form, JSON, Java serialization (for older clients, never for a
+ * digest) or, failing those, text.  A digest is streamed in any form,
+ * so costs the servlet no memory however large.
+ *
+ * A get returns the managed disk's content, i.e. what its
+ * getInputStream would produce, honoring a single byte Range (see
+ * Utils.byteRange) so a remote client can seek.  The ETag is the disk's
+ * create UUID, immutable for the life of the disk.
  *
+ * tabledigest and tablehashes are for a client capturing
+ * incrementally against DID/SID, and wanting its digest without the
+ * cost of fetching it whole, see edu.uw.apl.tupelo.model.DigestDelta.
  *
- * /disks/data/get/DID/SID (TODO, currently no support for retrieving managed data)
+ * A summary is a batch request: the body lists descriptors (WireFormat
+ * enumerate form) and the result is a DiskSummary for each, so a
+ * client listing a store needs one round trip, not three per disk.
  *
+ * The upload calls are a put in pieces, which a client can resume
+ * after a dropped connection, see Upload.  upload opens (or reopens)
+ * the upload of DID/SID, the result being (WireFormat) the offset
+ * acknowledged so far, the chunks making it up and the managed disk
+ * header the data starts with, if sent yet.  uploadchunk sends
+ * the next chunk, headers X-Tupelo-Upload-Offset and
+ * X-Tupelo-Chunk-SHA256 saying where it goes and what it holds.
+ * uploadcommit, with the total length in X-Tupelo-Upload-Length, puts
+ * the whole into the store.  uploadabort discards it.
  */
 public class DataServlet extends HttpServlet {
 
@@ -109,6 +156,13 @@ public class DataServlet extends HttpServlet {
 		*/
 		ServletContext sc = config.getServletContext();
 		store = (Store)sc.getAttribute( ContextListener.STOREKEY );
+		uploadsDir = (File)sc.getAttribute( ContextListener.UPLOADSKEY );
+		uploads = new HashMap<ManagedDiskDescriptor,Upload>();
+
+		// gson object claimed thread-safe, so can be a member...
+		GsonBuilder gsonb = new GsonBuilder();
+		gsonb.registerTypeAdapter(Session.class, Constants.SESSIONSERIALIZER );
+		gson = gsonb.create();
 	}
 	
 	@Override
@@ -126,6 +180,12 @@ public class DataServlet extends HttpServlet {
 		} else if( pi.startsWith( "/digest/" ) ) {
 			String details = pi.substring( "/digest/".length() );
 			digest( req, res, details );
+		} else if( pi.startsWith( "/get/" ) ) {
+			String details = pi.substring( "/get/".length() );
+			getData( req, res, details );
+		} else if( pi.startsWith( "/tabledigest/" ) ) {
+			String details = pi.substring( "/tabledigest/".length() );
+			tableDigest( req, res, details );
 		} else if( pi.startsWith( "/size/" ) ) {
 			String details = pi.substring( "/size/".length() );
 			size( req, res, details );
@@ -139,6 +199,25 @@ public class DataServlet extends HttpServlet {
 		}
 	}
 	
+	/*
+	  For a get, not HttpServlet's doHead.  That runs doGet with the
+	  body discarded, then sets a Content-Length of the discarded
+	  bytes, so replacing ours (necessarily a header, a disk's length
+	  overflowing an int) with 0.  getData writes no body for a HEAD.
+	*/
+	@Override
+	public void doHead( HttpServletRequest req, HttpServletResponse res )
+		throws IOException, ServletException {
+
+		String pi = req.getPathInfo();
+		if( pi != null && pi.startsWith( "/get/" ) ) {
+			String details = pi.substring( "/get/".length() );
+			getData( req, res, details );
+		} else {
+			super.doHead( req, res );
+		}
+	}
+	
 	/**
 	 * We are mapped to /disks/data/*, so exactly which operation is
 	 * being requested is encoded into the PathInfo
@@ -156,6 +235,23 @@ public class DataServlet extends HttpServlet {
 		} else if( pi.startsWith( "/put/" ) ) {
 			String details = pi.substring( "/put/".length() );
 			putData( req, res, details );
+		} else if( pi.equals( "/summary" ) ) {
+			summary( req, res );
+		} else if( pi.startsWith( "/upload/" ) ) {
+			String details = pi.substring( "/upload/".length() );
+			startUpload( req, res, details );
+		} else if( pi.startsWith( "/uploadchunk/" ) ) {
+			String details = pi.substring( "/uploadchunk/".length() );
+			uploadChunk( req, res, details );
+		} else if( pi.startsWith( "/uploadcommit/" ) ) {
+			String details = pi.substring( "/uploadcommit/".length() );
+			commitUpload( req, res, details );
+		} else if( pi.startsWith( "/uploadabort/" ) ) {
+			String details = pi.substring( "/uploadabort/".length() );
+			abortUpload( req, res, details );
+		} else if( pi.startsWith( "/tablehashes/" ) ) {
+			String details = pi.substring( "/tablehashes/".length() );
+			tableHashes( req, res, details );
 		} else {
 			res.sendError( HttpServletResponse.SC_NOT_FOUND,
 						   "Unknown command '" + pi + "'" );
@@ -169,6 +265,11 @@ public class DataServlet extends HttpServlet {
 		Collection<ManagedDiskDescriptor> mdds = store.enumerate();
 		
 		if( false ) {
+		} else if( Utils.acceptsBinary( req ) ) {
+			res.setContentType( WireFormat.CONTENTTYPE );
+			DataOutputStream dos = WireFormat.begin( res.getOutputStream() );
+			WireFormat.writeDescriptors( dos, mdds );
+			dos.flush();
 		} else if( Utils.acceptsJavaObjects( req ) ) {
 			res.setContentType( "application/x-java-serialized-object" );
 			OutputStream os = res.getOutputStream();
@@ -205,6 +306,24 @@ public class DataServlet extends HttpServlet {
 		
 	}
 
+	private void summary( HttpServletRequest req, HttpServletResponse res )
+		throws IOException, ServletException {
+
+		DataInputStream dis = WireFormat.open( req.getInputStream() );
+		List<ManagedDiskDescriptor> mdds = WireFormat.readDescriptors( dis );
+		dis.close();
+		log.debug( "summary: " + mdds.size() );
+		
+		List<DiskSummary> dss = new ArrayList<DiskSummary>( mdds.size() );
+		for( ManagedDiskDescriptor mdd : mdds )
+			dss.add( DiskSummary.of( store, mdd ) );
+		res.setContentType( WireFormat.CONTENTTYPE );
+		DataOutputStream dos = WireFormat.begin
+			( new BufferedOutputStream( res.getOutputStream() ) );
+		WireFormat.writeSummaries( dos, dss );
+		dos.flush();
+	}
+
 	private void putData( HttpServletRequest req, HttpServletResponse res,
 						  String details )
 		throws IOException, ServletException {
@@ -231,6 +350,275 @@ public class DataServlet extends HttpServlet {
 		is.close();
 	}
 
+	private void startUpload( HttpServletRequest req,
+							  HttpServletResponse res, String details )
+		throws IOException, ServletException {
+
+		log.debug( "Upload.details: '" + details  + "'" );
+
+		ManagedDiskDescriptor mdd = null;
+		try {
+			mdd = fromPathInfo( details );
+		} catch( ParseException pe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed managed disk descriptor: " + details );
+			return;
+		}
+		if( store.locate( mdd ) != null ) {
+			res.sendError( HttpServletResponse.SC_CONFLICT,
+						   "Already stored: " + details );
+			return;
+		}
+		Upload u = upload( mdd, true );
+		long offset;
+		List<Upload.Chunk> cs;
+		byte[] header;
+		synchronized( u ) {
+			offset = u.acknowledged();
+			cs = u.chunks();
+			header = u.header();
+		}
+		res.setHeader( "X-Tupelo-Upload-Offset", "" + offset );
+		res.setContentType( WireFormat.CONTENTTYPE );
+		DataOutputStream dos = WireFormat.begin
+			( new BufferedOutputStream( res.getOutputStream() ) );
+		dos.writeLong( offset );
+		dos.writeInt( cs.size() );
+		for( Upload.Chunk c : cs ) {
+			dos.writeLong( c.length );
+			dos.write( c.sha256 );
+		}
+		// the header sector, 0 length if none yet
+		if( header == null ) {
+			dos.writeInt( 0 );
+		} else {
+			dos.writeInt( header.length );
+			dos.write( header );
+		}
+		dos.flush();
+	}
+
+	private void uploadChunk( HttpServletRequest req,
+							  HttpServletResponse res, String details )
+		throws IOException, ServletException {
+
+		Upload u = uploadOf( res, details );
+		if( u == null )
+			return;
+		long offset;
+		byte[] sha256;
+		try {
+			offset = Long.parseLong
+				( req.getHeader( "X-Tupelo-Upload-Offset" ) );
+			sha256 = Hex.decodeHex
+				( req.getHeader( "X-Tupelo-Chunk-SHA256" ).toCharArray() );
+		} catch( Exception e ) {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Missing or malformed chunk headers" );
+			return;
+		}
+		int length = req.getContentLength();
+		if( length < 0 ) {
+			res.sendError( HttpServletResponse.SC_LENGTH_REQUIRED );
+			return;
+		}
+		boolean accepted;
+		try {
+			accepted = u.append( offset, length, sha256,
+								 req.getInputStream() );
+		} catch( IllegalStateException ise ) {
+			res.setHeader( "X-Tupelo-Upload-Offset", "" + u.acknowledged() );
+			res.sendError( HttpServletResponse.SC_CONFLICT,
+						   ise.getMessage() );
+			return;
+		}
+		res.setHeader( "X-Tupelo-Upload-Offset", "" + u.acknowledged() );
+		if( !accepted ) {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Chunk failed integrity check" );
+			return;
+		}
+		log.debug( details + ": acknowledged " + u.acknowledged() );
+	}
+
+	/**
+	 * The store put happens with the upload locked, so that a client
+	 * retrying a commit whose response it never saw waits on, then
+	 * sees the result of, the first.  On failure, the upload remains
+	 * and may be committed again.
+	 */
+	private void commitUpload( HttpServletRequest req,
+							   HttpServletResponse res, String details )
+		throws IOException, ServletException {
+
+		Upload u = uploadOf( res, details );
+		if( u == null )
+			return;
+		long length;
+		try {
+			length = Long.parseLong
+				( req.getHeader( "X-Tupelo-Upload-Length" ) );
+		} catch( Exception e ) {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Missing or malformed upload length" );
+			return;
+		}
+		synchronized( u ) {
+			if( u.isCommitted() )
+				return;
+			if( length != u.acknowledged() ) {
+				res.setHeader( "X-Tupelo-Upload-Offset",
+							   "" + u.acknowledged() );
+				res.sendError( HttpServletResponse.SC_CONFLICT,
+							   "Length " + length + " != " +
+							   u.acknowledged() );
+				return;
+			}
+			InputStream is = new FileInputStream( u.getData() );
+			try {
+				ManagedDisk md = new HttpManagedDisk( u.getDescriptor(), is );
+				store.put( md );
+			} finally {
+				is.close();
+			}
+			u.commit();
+		}
+		synchronized( uploads ) {
+			uploads.remove( u.getDescriptor() );
+		}
+		log.info( "Upload committed: " + u.getDescriptor() );
+	}
+
+	private void abortUpload( HttpServletRequest req,
+							  HttpServletResponse res, String details )
+		throws IOException, ServletException {
+
+		Upload u = uploadOf( res, details );
+		if( u == null )
+			return;
+		synchronized( uploads ) {
+			uploads.remove( u.getDescriptor() );
+		}
+		u.delete();
+		log.info( "Upload aborted: " + u.getDescriptor() );
+	}
+	
+	/**
+	 * @return the upload of the managed disk named by details, or null
+	 * if none, an error having been sent
+	 */
+	private Upload uploadOf( HttpServletResponse res, String details )
+		throws IOException {
+		ManagedDiskDescriptor mdd = null;
+		try {
+			mdd = fromPathInfo( details );
+		} catch( ParseException pe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed managed disk descriptor: " + details );
+			return null;
+		}
+		Upload result = upload( mdd, false );
+		if( result == null )
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "No upload: " + details );
+		return result;
+	}
+
+	/**
+	 * Uploads live in files, so one not yet in our map, e.g. after a
+	 * server restart, is loaded from them.
+	 */
+	private Upload upload( ManagedDiskDescriptor mdd, boolean create )
+		throws IOException {
+		synchronized( uploads ) {
+			Upload result = uploads.get( mdd );
+			if( result != null )
+				return result;
+			File dir = new File( uploadsDir, mdd.getDiskID() + "-" +
+								 mdd.getSession() );
+			if( !create && !dir.isDirectory() )
+				return null;
+			result = new Upload( dir, mdd );
+			uploads.put( mdd, result );
+			return result;
+		}
+	}
+
+	private void getData( HttpServletRequest req, HttpServletResponse res,
+						  String details )
+		throws IOException, ServletException {
+
+		log.debug( "Get.details: '" + details  + "'" );
+
+		ManagedDiskDescriptor mdd = null;
+		try {
+			mdd = fromPathInfo( details );
+		} catch( ParseException pe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed managed disk descriptor: " + details );
+			return;
+		}
+		ManagedDisk md = store.locate( mdd );
+		if( md == null ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Unknown managed disk: " + details );
+			return;
+		}
+
+		String etag = "\"" + md.getUUIDCreate() + "\"";
+		res.setHeader( "ETag", etag );
+		res.setHeader( "Accept-Ranges", "bytes" );
+		if( etag.equals( req.getHeader( "If-None-Match" ) ) ) {
+			res.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+			return;
+		}
+		
+		long size = md.size();
+		long first = 0, last = size - 1;
+		// a stale If-Range means send it all
+		String ifRange = req.getHeader( "If-Range" );
+		if( ifRange == null || ifRange.equals( etag ) ) {
+			long[] range = Utils.byteRange( req.getHeader( "Range" ), size );
+			if( range != null && range.length == 0 ) {
+				res.setHeader( "Content-Range", "bytes */" + size );
+				res.sendError( HttpServletResponse.
+							   SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+				return;
+			}
+			if( range != null ) {
+				first = range[0];
+				last = range[1];
+				res.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+				res.setHeader( "Content-Range",
+							   "bytes " + first + "-" + last + "/" + size );
+			}
+		}
+		long length = last - first + 1;
+		log.debug( "Get.range: " + first + "-" + last + "/" + size );
+		res.setContentType( "application/octet-stream" );
+		res.setHeader( "Content-Length", "" + length );
+		// see doHead
+		if( req.getMethod().equals( "HEAD" ) )
+			return;
+
+		SeekableInputStream sis = md.getSeekableInputStream();
+		try {
+			sis.seek( first );
+			OutputStream os = res.getOutputStream();
+			byte[] ba = new byte[64 * 1024];
+			while( length > 0 ) {
+				int nin = sis.read( ba, 0, (int)Math.min( ba.length, length ) );
+				if( nin == -1 )
+					throw new IOException( mdd + ": short read at " +
+										   (last + 1 - length) );
+				os.write( ba, 0, nin );
+				length -= nin;
+			}
+		} finally {
+			sis.close();
+		}
+	}
+
 	private void size( HttpServletRequest req, HttpServletResponse res,
 					   String details )
 		throws IOException, ServletException {
@@ -255,6 +643,11 @@ public class DataServlet extends HttpServlet {
 		
 		
 		if( false ) {
+		} else if( Utils.acceptsBinary( req ) ) {
+			res.setContentType( WireFormat.CONTENTTYPE );
+			DataOutputStream dos = WireFormat.begin( res.getOutputStream() );
+			dos.writeLong( size );
+			dos.flush();
 		} else if( Utils.acceptsJavaObjects( req ) ) {
 			res.setContentType( "application/x-java-serialized-object" );
 			OutputStream os = res.getOutputStream();
@@ -298,6 +691,11 @@ public class DataServlet extends HttpServlet {
 		
 		
 		if( false ) {
+		} else if( Utils.acceptsBinary( req ) ) {
+			res.setContentType( WireFormat.CONTENTTYPE );
+			DataOutputStream dos = WireFormat.begin( res.getOutputStream() );
+			WireFormat.writeUUID( dos, uuid );
+			dos.flush();
 		} else if( Utils.acceptsJavaObjects( req ) ) {
 			res.setContentType( "application/x-java-serialized-object" );
 			OutputStream os = res.getOutputStream();
@@ -343,18 +741,20 @@ public class DataServlet extends HttpServlet {
 		}
 		
 		if( false ) {
-		} else if( false && Utils.acceptsJavaObjects( req ) ) {
-			res.setContentType( "application/x-java-serialized-object" );
-			OutputStream os = res.getOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream( os );
-			oos.writeObject( digest );
+		} else if( Utils.acceptsBinary( req ) ) {
+			res.setContentType( WireFormat.CONTENTTYPE );
+			OutputStream os = new BufferedOutputStream
+				( res.getOutputStream(), 1 << 16 );
+			DataOutputStream dos = WireFormat.begin( os );
+			digest.writeTo( dos );
 		} else if( Utils.acceptsJson( req ) ) {
 			res.setContentType( "application/json" );
-			String json = gson.toJson( digest );
-			PrintWriter pw = res.getWriter();
-			pw.print( json );
+			writeJson( digest, res.getOutputStream() );
 		} else {
 			res.setContentType( "text/plain" );
+			// the hex form itself cannot say which grain hash produced it
+			res.setHeader( "X-Tupelo-Digest-Algorithm",
+						   digest.getAlgorithm() );
 			PrintWriter pw = res.getWriter();
 			digest.writeTo( pw );
 			//			pw.println( "TODO: Store.digest text/plain" );
@@ -362,6 +762,115 @@ public class DataServlet extends HttpServlet {
 
 	}
 
+	/*
+	  Hex hashes, as for the text form, but wrapped in an object
+	  carrying what the text form cannot.  Streamed, one hash at a
+	  time, since a digest can be GBs.
+	*/
+	private void writeJson( ManagedDiskDigest digest, OutputStream os )
+		throws IOException {
+		JsonWriter jw = new JsonWriter
+			( new OutputStreamWriter( new BufferedOutputStream
+									  ( os, 1 << 16 ),
+									  StandardCharsets.UTF_8 ) );
+		jw.beginObject();
+		jw.name( "algorithm" ).value( digest.getAlgorithm() );
+		jw.name( "hashLength" ).value( digest.hashLength() );
+		jw.name( "count" ).value( digest.size() );
+		jw.name( "hashes" ).beginArray();
+		for( int i = 0; i < digest.size(); i++ )
+			jw.value( new String( Hex.encodeHex( digest.get( i ) ) ) );
+		jw.endArray();
+		jw.endObject();
+		jw.flush();
+	}
+
+	/*
+	  The digest of a digest, one hash per grain table, binary form
+	  only.  Headers carry what the client needs to interpret it.
+	*/
+	private void tableDigest( HttpServletRequest req, HttpServletResponse res,
+							  String details )
+		throws IOException, ServletException {
+		
+		log.debug( "tabledigest.details: '" + details  + "'" );
+
+		ManagedDiskDigest digest = digestOf( res, details );
+		if( digest == null )
+			return;
+		ManagedDiskDigest tables = digest.tableDigest
+			( ManagedDisk.NUMGTESPERGT );
+		res.setContentType( "application/octet-stream" );
+		res.setHeader( "X-Tupelo-Digest-Algorithm", digest.getAlgorithm() );
+		res.setHeader( "X-Tupelo-Grain-Count", "" + digest.size() );
+		res.setHeader( "X-Tupelo-Grains-Per-Table",
+					   "" + ManagedDisk.NUMGTESPERGT );
+		OutputStream os = new BufferedOutputStream( res.getOutputStream() );
+		tables.writeTo( os );
+	}
+
+	/*
+	  The grain hashes of just those grain tables listed in the
+	  request body, a sequence of ints, as a binary digest
+	*/
+	private void tableHashes( HttpServletRequest req,
+							  HttpServletResponse res, String details )
+		throws IOException, ServletException {
+
+		log.debug( "tablehashes.details: '" + details  + "'" );
+
+		ManagedDiskDigest digest = digestOf( res, details );
+		if( digest == null )
+			return;
+		List<Integer> ts = new ArrayList<Integer>();
+		DataInputStream dis = new DataInputStream( req.getInputStream() );
+		try {
+			while( true )
+				ts.add( dis.readInt() );
+		} catch( EOFException eof ) {
+		}
+		dis.close();
+		int[] tables = new int[ts.size()];
+		for( int i = 0; i < tables.length; i++ )
+			tables[i] = ts.get( i );
+		
+		ManagedDiskDigest selected = null;
+		try {
+			selected = digest.select( tables, ManagedDisk.NUMGTESPERGT );
+		} catch( IndexOutOfBoundsException ioobe ) {
+			res.sendError( HttpServletResponse.SC_BAD_REQUEST,
+						   "Grain table out of range: " + ioobe.getMessage() );
+			return;
+		}
+		log.debug( "tablehashes.result: " + tables.length + " tables, " +
+				   selected.size() + " hashes" );
+		res.setContentType( "application/octet-stream" );
+		OutputStream os = new BufferedOutputStream( res.getOutputStream() );
+		selected.writeTo( os );
+	}
+
+	/*
+	  The stored digest of the disk named by details, or null, the
+	  error then already sent
+	*/
+	private ManagedDiskDigest digestOf( HttpServletResponse res,
+										String details )
+		throws IOException {
+		ManagedDiskDescriptor mdd = null;
+		try {
+			mdd = fromPathInfo( details );
+		} catch( ParseException pe ) {
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Malformed managed disk descriptor: " + details );
+			return null;
+		}
+		ManagedDiskDigest result = store.digest( mdd );
+		if( result == null )
+			res.sendError( HttpServletResponse.SC_NOT_FOUND,
+						   "Missing digest: " + details );
+		return result;
+	}
+
 	private ManagedDiskDescriptor fromPathInfo( String pathInfo )
 		throws ParseException, IOException {
 
@@ -376,6 +885,8 @@ public class DataServlet extends HttpServlet {
 	}
 
 	private Store store;
+	private File uploadsDir;
+	private Map<ManagedDiskDescriptor,Upload> uploads;
 	private Gson gson;
 	private Log log;
 }
@@ -37,6 +37,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.UUID;
 
@@ -187,6 +188,12 @@ public class HttpManagedDisk extends ManagedDisk {
 		checkDelegate();
 		return delegate.getSeekableInputStream();
 	}
+
+	@Override
+	public int readAt( long offset, ByteBuffer dst ) throws IOException {
+		checkDelegate();
+		return delegate.readAt( offset, dst );
+	}
 	
 	@Override
 	public void verify() throws IOException {
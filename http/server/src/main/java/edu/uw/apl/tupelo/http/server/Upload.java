@@ -0,0 +1,392 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The server side of a resumable put of one managed disk.  The
+ * client sends the managed disk's data (what its writeTo produces) as
+ * a sequence of chunks, each with its SHA-256 digest.  A chunk is
+ * appended to the upload's data file only if it starts where the
+ * previous one ended and its digest checks, and is acknowledged only
+ * once on disk.  A chunk failing either test leaves the upload as it
+ * was, so the client can just send it again.
+ *
+ * All state is in files, under the directory given, so an upload
+ * survives a restart of the server as well as of the client.  The
+ * data file is trimmed on load back to the last acknowledged chunk,
+ * discarding anything a crash left half written.  The chunk list,
+ * one (length,digest) record per chunk, lets a client which no longer
+ * has the data it sent (a new process, say) check that it would send
+ * the same again, before continuing after the last of them.
+ *
+ * A chunk is read off the wire into a scratch file of its own, with
+ * the upload unlocked, so a stalled client blocks nobody else, not
+ * even its own retry.  Only the check of where the chunk starts and
+ * the append of the scratch file to the data take the lock.
+ *
+ * When the client has sent all its data, the data file is put into the
+ * Store, just as a non-resumable put streams the request body in.
+ * Uploads a client abandons are removed, once old, by expire.
+ */
+class Upload {
+
+	Upload( File dir, ManagedDiskDescriptor mdd ) throws IOException {
+		this.dir = dir;
+		this.mdd = mdd;
+		data = new File( dir, "data" );
+		chunkFile = new File( dir, "chunks" );
+		log = LogFactory.getLog( getClass() );
+		dir.mkdirs();
+		chunks = new ArrayList<Chunk>();
+		load();
+	}
+
+	ManagedDiskDescriptor getDescriptor() {
+		return mdd;
+	}
+	
+	File getData() {
+		return data;
+	}
+	
+	/**
+	 * @return the number of data bytes accepted so far, where the next
+	 * chunk must start
+	 */
+	synchronized long acknowledged() {
+		return acknowledged;
+	}
+
+	synchronized List<Chunk> chunks() {
+		return Collections.unmodifiableList( new ArrayList<Chunk>( chunks ) );
+	}
+
+	/**
+	 * @return the managed disk header which starts the data, so a
+	 * client can write the same data again, see
+	 * ManagedDisk.adoptUUIDCreate.  null if not yet acknowledged.
+	 */
+	synchronized byte[] header() throws IOException {
+		if( acknowledged < ManagedDisk.Header.SIZEOF )
+			return null;
+		byte[] result = new byte[ManagedDisk.Header.SIZEOF];
+		RandomAccessFile raf = new RandomAccessFile( data, "r" );
+		try {
+			raf.readFully( result );
+		} finally {
+			raf.close();
+		}
+		return result;
+	}
+
+	synchronized boolean isCommitted() {
+		return committed;
+	}
+	
+	/**
+	 * Append length bytes, read from is, at offset.  The read is into
+	 * a scratch file, with the upload unlocked.
+	 *
+	 * @return true if the chunk was accepted, false if is supplied
+	 * fewer than length bytes, or bytes not matching sha256, in which
+	 * case the upload is left unchanged
+	 *
+	 * @throws IllegalStateException if offset is not where the last
+	 * acknowledged chunk ended, before or after the read (another
+	 * request having sent the chunk meanwhile), or the upload is
+	 * committed or deleted
+	 */
+	boolean append( long offset, int length, byte[] sha256,
+					InputStream is ) throws IOException {
+		checkAppend( offset );
+		File scratch = File.createTempFile( "chunk", SCRATCHSUFFIX, dir );
+		try {
+			MessageDigest md = sha256();
+			FileOutputStream fos = new FileOutputStream( scratch );
+			int total = 0;
+			try {
+				byte[] ba = new byte[1024*64];
+				while( total < length ) {
+					int nin = is.read( ba, 0, Math.min( ba.length,
+														length - total ) );
+					if( nin < 0 )
+						break;
+					md.update( ba, 0, nin );
+					fos.write( ba, 0, nin );
+					total += nin;
+				}
+			} finally {
+				fos.close();
+			}
+			if( total < length ||
+				!MessageDigest.isEqual( sha256, md.digest() ) ) {
+				log.warn( mdd + ": chunk at " + offset + " rejected" );
+				return false;
+			}
+			synchronized( this ) {
+				checkAppend( offset );
+				appendData( scratch, length, sha256 );
+			}
+			return true;
+		} finally {
+			scratch.delete();
+		}
+	}
+
+	private synchronized void checkAppend( long offset ) {
+		if( committed )
+			throw new IllegalStateException( "Committed: " + mdd );
+		if( deleted )
+			throw new IllegalStateException( "Deleted: " + mdd );
+		if( offset != acknowledged )
+			throw new IllegalStateException
+				( "Offset " + offset + " != " + acknowledged );
+	}
+
+	/**
+	 * The chunk, checked and in the scratch file, onto the end of the
+	 * data, then into the chunk list.  Caller holds our lock.
+	 */
+	private void appendData( File scratch, int length, byte[] sha256 )
+		throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( data, "rw" );
+		FileInputStream fis = new FileInputStream( scratch );
+		boolean appended = false;
+		try {
+			FileChannel in = fis.getChannel();
+			FileChannel out = raf.getChannel();
+			long total = 0;
+			while( total < length ) {
+				long n = out.transferFrom( in, acknowledged + total,
+										   length - total );
+				if( n <= 0 )
+					throw new IOException( scratch + ": short at " + total );
+				total += n;
+			}
+			out.force( true );
+			appended = true;
+		} finally {
+			fis.close();
+			// e.g. out of disk space
+			if( !appended )
+				raf.setLength( acknowledged );
+			raf.close();
+		}
+		FileOutputStream fos = new FileOutputStream( chunkFile, true );
+		try {
+			DataOutputStream dos = new DataOutputStream( fos );
+			dos.writeLong( length );
+			dos.write( sha256 );
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		chunks.add( new Chunk( length, sha256 ) );
+		acknowledged += length;
+	}
+
+	/**
+	 * Mark the upload done, its data now in the store, and remove its
+	 * files.
+	 */
+	synchronized void commit() throws IOException {
+		committed = true;
+		delete();
+	}
+	
+	synchronized void delete() throws IOException {
+		deleted = true;
+		FileUtils.deleteDirectory( dir );
+		chunks.clear();
+		acknowledged = 0;
+	}
+
+	/**
+	 * Remove every upload under uploadsDir untouched, i.e. no chunk
+	 * appended, for maxAgeMillis.  For use before any Upload is
+	 * loaded, e.g. at server start.
+	 *
+	 * @return the number removed
+	 */
+	static int expire( File uploadsDir, long maxAgeMillis )
+		throws IOException {
+		File[] dirs = uploadsDir.listFiles();
+		if( dirs == null )
+			return 0;
+		long cutoff = System.currentTimeMillis() - maxAgeMillis;
+		int result = 0;
+		for( File d : dirs ) {
+			if( !d.isDirectory() )
+				continue;
+			long touched = d.lastModified();
+			File[] fs = d.listFiles();
+			if( fs != null )
+				for( File f : fs )
+					touched = Math.max( touched, f.lastModified() );
+			if( touched < cutoff ) {
+				FileUtils.deleteDirectory( d );
+				result++;
+			}
+		}
+		return result;
+	}
+	
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance( DIGESTALGORITHM );
+		} catch( NoSuchAlgorithmException nsae ) {
+			// every jre has sha-256
+			throw new IllegalStateException( nsae );
+		}
+	}
+	
+	private void load() throws IOException {
+		// chunks being read when the server stopped, never appended
+		File[] scratches = dir.listFiles();
+		if( scratches != null )
+			for( File f : scratches )
+				if( f.getName().endsWith( SCRATCHSUFFIX ) )
+					f.delete();
+		if( chunkFile.isFile() ) {
+			DataInputStream dis = new DataInputStream
+				( new FileInputStream( chunkFile ) );
+			try {
+				while( true ) {
+					long length = dis.readLong();
+					byte[] sha256 = new byte[DIGESTLENGTH];
+					dis.readFully( sha256 );
+					chunks.add( new Chunk( length, sha256 ) );
+					acknowledged += length;
+				}
+			} catch( EOFException eof ) {
+				// a partial record is a chunk never acknowledged
+			} finally {
+				dis.close();
+			}
+		}
+		long have = data.length();
+		if( have < acknowledged ) {
+			log.warn( mdd + ": data " + have + " < " + acknowledged +
+					  ", restarting" );
+			chunks.clear();
+			acknowledged = 0;
+		}
+		// rewrite both files as just the acknowledged chunks
+		RandomAccessFile raf = new RandomAccessFile( data, "rw" );
+		try {
+			raf.setLength( acknowledged );
+		} finally {
+			raf.close();
+		}
+		DataOutputStream dos = new DataOutputStream
+			( new FileOutputStream( chunkFile ) );
+		try {
+			for( Chunk c : chunks ) {
+				dos.writeLong( c.length );
+				dos.write( c.sha256 );
+			}
+		} finally {
+			dos.close();
+		}
+		if( acknowledged > 0 )
+			log.info( mdd + ": resuming at " + acknowledged );
+	}
+
+	static class Chunk {
+		Chunk( long length, byte[] sha256 ) {
+			this.length = length;
+			this.sha256 = sha256;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if( o == this )
+				return true;
+			if( !( o instanceof Chunk ) )
+				return false;
+			Chunk that = (Chunk)o;
+			return length == that.length &&
+				Arrays.equals( sha256, that.sha256 );
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode( sha256 );
+		}
+		
+		final long length;
+		final byte[] sha256;
+	}
+	
+	private final File dir, data, chunkFile;
+	private final ManagedDiskDescriptor mdd;
+	private final List<Chunk> chunks;
+	private long acknowledged;
+	private boolean committed, deleted;
+	private final Log log;
+
+	static public final String DIGESTALGORITHM = "SHA-256";
+	static public final int DIGESTLENGTH = 32;
+
+	static private final String SCRATCHSUFFIX = ".part";
+}
+
+// eof
@@ -35,6 +35,8 @@ package edu.uw.apl.tupelo.http.server;
 
 import javax.servlet.http.HttpServletRequest;
 
+import edu.uw.apl.tupelo.store.WireFormat;
+
 public class Utils {
 
 	static boolean acceptsJavaObjects( HttpServletRequest req ) {
@@ -44,12 +46,65 @@ public class Utils {
 		return h.indexOf( "application/x-java-serialized-object" ) > -1;
 	}
 						 
+	static boolean acceptsBinary( HttpServletRequest req ) {
+		String h = req.getHeader( "Accept" );
+		if( h == null )
+			return false;
+		return h.indexOf( WireFormat.CONTENTTYPE ) > -1;
+	}
+						 
 	static boolean acceptsJson( HttpServletRequest req ) {
 		String h = req.getHeader( "Accept" );
 		if( h == null )
 			return false;
 		return h.indexOf( "application/json" ) > -1;
 	}
+
+	/**
+	 * Parse an http Range header, of which we support a single byte
+	 * range only: first-last, first- or -suffixLength.
+	 *
+	 * @return {first,last}, both inclusive and within size, or null
+	 * if the header is absent, malformed or lists many ranges, so the
+	 * whole entity should be sent, or an empty array if the range is
+	 * unsatisfiable, i.e. starts at or beyond size.
+	 */
+	static long[] byteRange( String header, long size ) {
+		if( header == null || !header.startsWith( "bytes=" ) )
+			return null;
+		String spec = header.substring( "bytes=".length() ).trim();
+		int dash = spec.indexOf( '-' );
+		if( dash == -1 || spec.indexOf( ',' ) > -1 )
+			return null;
+		String f = spec.substring( 0, dash ).trim();
+		String l = spec.substring( dash+1 ).trim();
+		long first, last;
+		try {
+			if( f.isEmpty() ) {
+				if( l.isEmpty() )
+					return null;
+				long suffix = Long.parseLong( l );
+				if( suffix == 0 )
+					return new long[0];
+				first = Math.max( size - suffix, 0 );
+				last = size - 1;
+			} else {
+				first = Long.parseLong( f );
+				if( l.isEmpty() ) {
+					last = size - 1;
+				} else {
+					last = Long.parseLong( l );
+					if( last < first )
+						return null;
+				}
+			}
+		} catch( NumberFormatException nfe ) {
+			return null;
+		}
+		if( first >= size )
+			return new long[0];
+		return new long[] { first, Math.min( last, size - 1 ) };
+	}
 }
 
 // eof
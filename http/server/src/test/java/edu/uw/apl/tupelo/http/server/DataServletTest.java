@@ -0,0 +1,257 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.tupelo.model.FlatDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.RandomDisk;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.filesys.FilesystemStore;
+
+/**
+ * Driving the DataServlet get, i.e. HEAD and ranged GET of managed
+ * disk content, directly, with no container.  The requests and
+ * responses are dynamic proxies, recording just what the servlet sets.
+ */
+public class DataServletTest extends junit.framework.TestCase {
+
+	protected void setUp() throws Exception {
+		root = new File( "target/dataservlettest" );
+		FileUtils.deleteDirectory( root );
+		store = new FilesystemStore( root );
+		RandomDisk rd = new RandomDisk( SIZE );
+		Session s = store.newSession();
+		store.put( new FlatDisk( rd, s ) );
+		mdd = new ManagedDiskDescriptor( rd.getID(), s );
+		InputStream is = rd.getInputStream();
+		content = IOUtils.toByteArray( is );
+		is.close();
+
+		servlet = new DataServlet();
+		final Map<String,Object> attrs = new HashMap<String,Object>();
+		attrs.put( ContextListener.STOREKEY, store );
+		attrs.put( ContextListener.UPLOADSKEY, new File( root, "uploads" ) );
+		final ServletContext sc = (ServletContext)fake
+			( ServletContext.class, new InvocationHandler() {
+					public Object invoke( Object p, Method m, Object[] args ) {
+						if( m.getName().equals( "getAttribute" ) )
+							return attrs.get( args[0] );
+						return null;
+					}
+				} );
+		servlet.init( (ServletConfig)fake
+					  ( ServletConfig.class, new InvocationHandler() {
+							  public Object invoke( Object p, Method m,
+													Object[] args ) {
+								  if( m.getName().equals( "getServletContext" ) )
+									  return sc;
+								  return null;
+							  }
+						  } ) );
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory( root );
+	}
+	
+	public void testHead() throws Exception {
+		Response r = service( "HEAD", new HashMap<String,String>() );
+		assertEquals( HttpServletResponse.SC_OK, r.status );
+		assertEquals( "" + SIZE, r.headers.get( "Content-Length" ) );
+		assertNotNull( r.headers.get( "ETag" ) );
+		assertEquals( 0, r.body.size() );
+	}
+
+	public void testGetWhole() throws Exception {
+		Response r = service( "GET", new HashMap<String,String>() );
+		assertEquals( HttpServletResponse.SC_OK, r.status );
+		assertEquals( "" + SIZE, r.headers.get( "Content-Length" ) );
+		assertTrue( Arrays.equals( content, r.body.toByteArray() ) );
+	}
+
+	public void testGetRange() throws Exception {
+		Map<String,String> hdrs = new HashMap<String,String>();
+		hdrs.put( "Range", "bytes=1000-5999" );
+		Response r = service( "GET", hdrs );
+		assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, r.status );
+		assertEquals( "bytes 1000-5999/" + SIZE,
+					  r.headers.get( "Content-Range" ) );
+		assertEquals( "5000", r.headers.get( "Content-Length" ) );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( content, 1000, 6000 ),
+								   r.body.toByteArray() ) );
+
+		// a HEAD of a range, as the HttpSeekableInputStream never does
+		r = service( "HEAD", hdrs );
+		assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, r.status );
+		assertEquals( "5000", r.headers.get( "Content-Length" ) );
+		assertEquals( 0, r.body.size() );
+	}
+
+	public void testUnsatisfiable() throws Exception {
+		Map<String,String> hdrs = new HashMap<String,String>();
+		hdrs.put( "Range", "bytes=" + SIZE + "-" );
+		Response r = service( "GET", hdrs );
+		assertEquals( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+					  r.status );
+		assertEquals( "bytes */" + SIZE, r.headers.get( "Content-Range" ) );
+	}
+
+	public void testConditional() throws Exception {
+		String etag = service( "HEAD", new HashMap<String,String>() ).
+			headers.get( "ETag" );
+
+		Map<String,String> hdrs = new HashMap<String,String>();
+		hdrs.put( "If-None-Match", etag );
+		assertEquals( HttpServletResponse.SC_NOT_MODIFIED,
+					  service( "GET", hdrs ).status );
+
+		// a stale If-Range gets the whole disk, not the range
+		hdrs.clear();
+		hdrs.put( "Range", "bytes=0-99" );
+		hdrs.put( "If-Range", "\"stale\"" );
+		Response r = service( "GET", hdrs );
+		assertEquals( HttpServletResponse.SC_OK, r.status );
+		assertEquals( SIZE, r.body.size() );
+		hdrs.put( "If-Range", etag );
+		assertEquals( 100, service( "GET", hdrs ).body.size() );
+	}
+
+	public void testUnknown() throws Exception {
+		Response r = service( "HEAD", new HashMap<String,String>(),
+							  "/get/nosuchdisk/" + mdd.getSession() );
+		assertEquals( HttpServletResponse.SC_NOT_FOUND, r.status );
+	}
+	
+	private Response service( String method, Map<String,String> headers )
+		throws Exception {
+		return service( method, headers, "/get/" + mdd.getDiskID() + "/" +
+						mdd.getSession() );
+	}
+
+	private Response service( final String method,
+							  final Map<String,String> headers,
+							  final String pathInfo ) throws Exception {
+		HttpServletRequest req = (HttpServletRequest)fake
+			( HttpServletRequest.class, new InvocationHandler() {
+					public Object invoke( Object p, Method m, Object[] args ) {
+						String n = m.getName();
+						if( n.equals( "getMethod" ) )
+							return method;
+						if( n.equals( "getPathInfo" ) )
+							return pathInfo;
+						if( n.equals( "getServletPath" ) )
+							return "/disks/data";
+						if( n.equals( "getHeader" ) )
+							return headers.get( args[0] );
+						if( n.equals( "getDateHeader" ) )
+							return -1L;
+						if( n.equals( "getProtocol" ) )
+							return "HTTP/1.1";
+						return null;
+					}
+				} );
+		final Response result = new Response();
+		final ServletOutputStream sos = new ServletOutputStream() {
+				@Override
+				public void write( int b ) {
+					result.body.write( b );
+				}
+			};
+		HttpServletResponse res = (HttpServletResponse)fake
+			( HttpServletResponse.class, new InvocationHandler() {
+					public Object invoke( Object p, Method m, Object[] args ) {
+						String n = m.getName();
+						if( n.equals( "setHeader" ) )
+							result.headers.put( (String)args[0],
+												(String)args[1] );
+						else if( n.equals( "setContentLength" ) )
+							result.headers.put( "Content-Length",
+												"" + args[0] );
+						else if( n.equals( "setStatus" ) ||
+								 n.equals( "sendError" ) )
+							result.status = (Integer)args[0];
+						else if( n.equals( "getOutputStream" ) )
+							return sos;
+						else if( n.equals( "containsHeader" ) )
+							return result.headers.containsKey( args[0] );
+						else if( n.equals( "isCommitted" ) )
+							return false;
+						return null;
+					}
+				} );
+		servlet.service( req, res );
+		return result;
+	}
+
+	static private Object fake( Class<?> c, InvocationHandler ih ) {
+		return Proxy.newProxyInstance( c.getClassLoader(),
+									   new Class<?>[] { c }, ih );
+	}
+	
+	static class Response {
+		int status = HttpServletResponse.SC_OK;
+		Map<String,String> headers = new HashMap<String,String>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+	}
+	
+	private File root;
+	private FilesystemStore store;
+	private ManagedDiskDescriptor mdd;
+	private byte[] content;
+	private DataServlet servlet;
+
+	static final long SIZE = 1024 * 1024;
+}
+
+// eof
@@ -0,0 +1,76 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server;
+
+import java.util.Arrays;
+
+/**
+ * Testing the parsing of http Range headers, as used by the
+ * DataServlet get
+ */
+public class RangeTest extends junit.framework.TestCase {
+
+	static final long SIZE = 1000;
+	
+	public void testWhole() {
+		assertNull( Utils.byteRange( null, SIZE ) );
+		assertNull( Utils.byteRange( "lines=1-2", SIZE ) );
+		assertNull( Utils.byteRange( "bytes=x-2", SIZE ) );
+		assertNull( Utils.byteRange( "bytes=5-2", SIZE ) );
+		assertNull( Utils.byteRange( "bytes=-", SIZE ) );
+		// many ranges, we send the lot
+		assertNull( Utils.byteRange( "bytes=0-1,5-6", SIZE ) );
+	}
+
+	public void testRanges() {
+		same( 0, 99, Utils.byteRange( "bytes=0-99", SIZE ) );
+		same( 500, 999, Utils.byteRange( "bytes=500-", SIZE ) );
+		same( 900, 999, Utils.byteRange( "bytes=-100", SIZE ) );
+		same( 0, 999, Utils.byteRange( "bytes=-5000", SIZE ) );
+		// clipped to the size
+		same( 990, 999, Utils.byteRange( "bytes=990-5000", SIZE ) );
+	}
+
+	public void testUnsatisfiable() {
+		assertEquals( 0, Utils.byteRange( "bytes=1000-", SIZE ).length );
+		assertEquals( 0, Utils.byteRange( "bytes=2000-3000", SIZE ).length );
+		assertEquals( 0, Utils.byteRange( "bytes=-0", SIZE ).length );
+	}
+
+	private void same( long first, long last, long[] actual ) {
+		assertTrue( Arrays.equals( new long[] { first, last }, actual ) );
+	}
+}
+
+// eof
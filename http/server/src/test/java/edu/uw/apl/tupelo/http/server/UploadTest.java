@@ -0,0 +1,263 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+
+/**
+ * Testing the server side of resumable puts: that only whole, correct
+ * chunks are acknowledged, that an upload reloaded from its files
+ * carries on from its last acknowledged chunk, and that abandoned
+ * uploads expire.
+ */
+public class UploadTest extends junit.framework.TestCase {
+
+	protected void setUp() throws Exception {
+		dir = new File( "target/uploadtest" );
+		FileUtils.deleteDirectory( dir );
+		mdd = new ManagedDiskDescriptor
+			( "disk1", Session.parse( UUID.randomUUID(), "20160101.0001" ) );
+		Random r = new Random( 20160101 );
+		content = new byte[3 * CHUNK + 100];
+		r.nextBytes( content );
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory( dir );
+	}
+	
+	public void testAppend() throws Exception {
+		Upload u = new Upload( dir, mdd );
+		assertEquals( 0, u.acknowledged() );
+		assertNull( u.header() );
+		for( int off = 0; off < content.length; off += CHUNK )
+			assertTrue( send( u, off ) );
+		assertTrue( Arrays.equals
+					( Arrays.copyOf( content, ManagedDisk.Header.SIZEOF ),
+					  u.header() ) );
+		assertEquals( content.length, u.acknowledged() );
+		assertEquals( 4, u.chunks().size() );
+		assertTrue( Arrays.equals
+					( content, FileUtils.readFileToByteArray( u.getData() ) ) );
+	}
+
+	public void testRejected() throws Exception {
+		Upload u = new Upload( dir, mdd );
+		assertTrue( send( u, 0 ) );
+
+		// wrong digest
+		byte[] sha256 = digest( 0, CHUNK );
+		assertFalse( u.append( CHUNK, CHUNK, sha256, chunk( CHUNK ) ) );
+		assertEquals( CHUNK, u.acknowledged() );
+
+		// short chunk
+		byte[] bad = Arrays.copyOfRange( content, CHUNK, 2 * CHUNK - 1 );
+		assertFalse( u.append( CHUNK, CHUNK, digest( CHUNK, CHUNK ),
+							   new ByteArrayInputStream( bad ) ) );
+		assertEquals( CHUNK, u.acknowledged() );
+		assertEquals( CHUNK, u.getData().length() );
+
+		// not where the last one ended
+		try {
+			send( u, 2 * CHUNK );
+			fail();
+		} catch( IllegalStateException ise ) {
+		}
+		try {
+			send( u, 0 );
+			fail();
+		} catch( IllegalStateException ise ) {
+		}
+
+		// and the retry is fine
+		assertTrue( send( u, CHUNK ) );
+		assertEquals( 2 * CHUNK, u.acknowledged() );
+	}
+
+	public void testDropped() throws Exception {
+		Upload u = new Upload( dir, mdd );
+		assertTrue( send( u, 0 ) );
+		InputStream is = new ByteArrayInputStream
+			( content, CHUNK, CHUNK / 2 ) {
+				@Override
+				public synchronized int read( byte[] ba, int off, int len ) {
+					int n = super.read( ba, off, len );
+					if( n < 0 )
+						throw new IllegalStateException( "Dropped" );
+					return n;
+				}
+			};
+		try {
+			u.append( CHUNK, CHUNK, digest( CHUNK, CHUNK ), is );
+			fail();
+		} catch( IllegalStateException ise ) {
+		}
+		assertEquals( CHUNK, u.getData().length() );
+		// no scratch file left behind
+		assertEquals( 2, dir.list().length );
+	}
+
+	/*
+	  A client stalled mid chunk must not block others asking where
+	  the upload is at, e.g. its own retry after a timeout
+	*/
+	public void testStalled() throws Exception {
+		final Upload u = new Upload( dir, mdd );
+		assertTrue( send( u, 0 ) );
+		final CountDownLatch reading = new CountDownLatch( 1 );
+		final CountDownLatch resume = new CountDownLatch( 1 );
+		final InputStream is = new ByteArrayInputStream
+			( content, CHUNK, CHUNK ) {
+				@Override
+				public synchronized int read( byte[] ba, int off, int len ) {
+					if( pos > CHUNK + CHUNK / 2 ) {
+						reading.countDown();
+						try {
+							resume.await();
+						} catch( InterruptedException ie ) {
+						}
+					}
+					return super.read( ba, off, Math.min( len, 1000 ) );
+				}
+			};
+		ExecutorService es = Executors.newFixedThreadPool( 2 );
+		Future<Boolean> stalled = es.submit( new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return u.append( CHUNK, CHUNK, digest( CHUNK, CHUNK ),
+									 is );
+				}
+			} );
+		assertTrue( reading.await( 10, TimeUnit.SECONDS ) );
+		Future<Long> query = es.submit( new Callable<Long>() {
+				public Long call() {
+					u.chunks();
+					return u.acknowledged();
+				}
+			} );
+		assertEquals( CHUNK, query.get( 10, TimeUnit.SECONDS ).longValue() );
+		resume.countDown();
+		assertTrue( stalled.get( 10, TimeUnit.SECONDS ) );
+		assertEquals( 2 * CHUNK, u.acknowledged() );
+		es.shutdown();
+	}
+
+	public void testExpire() throws Exception {
+		File uploads = new File( dir, "uploads" );
+		Upload old = new Upload( new File( uploads, "old" ), mdd );
+		assertTrue( send( old, 0 ) );
+		Upload recent = new Upload( new File( uploads, "recent" ), mdd );
+		assertTrue( send( recent, 0 ) );
+		long then = System.currentTimeMillis() - 3 * DAY;
+		File oldDir = new File( uploads, "old" );
+		for( File f : oldDir.listFiles() )
+			f.setLastModified( then );
+		oldDir.setLastModified( then );
+
+		assertEquals( 1, Upload.expire( uploads, 2 * DAY ) );
+		assertFalse( oldDir.exists() );
+		assertTrue( new File( uploads, "recent" ).isDirectory() );
+	}
+	
+	public void testReload() throws Exception {
+		Upload u = new Upload( dir, mdd );
+		assertTrue( send( u, 0 ) );
+		assertTrue( send( u, CHUNK ) );
+
+		// as a crash might leave them, a chunk written but not recorded
+		FileOutputStream fos = new FileOutputStream( u.getData(), true );
+		fos.write( content, 2 * CHUNK, 500 );
+		fos.close();
+		fos = new FileOutputStream( new File( dir, "chunks" ), true );
+		fos.write( new byte[5] );
+		fos.close();
+
+		Upload u2 = new Upload( dir, mdd );
+		assertEquals( 2 * CHUNK, u2.acknowledged() );
+		assertEquals( u.chunks(), u2.chunks() );
+		assertEquals( 2 * CHUNK, u2.getData().length() );
+		assertTrue( send( u2, 2 * CHUNK ) );
+		assertTrue( send( u2, 3 * CHUNK ) );
+		assertTrue( Arrays.equals
+					( content, FileUtils.readFileToByteArray( u2.getData() ) ) );
+
+		u2.commit();
+		assertTrue( u2.isCommitted() );
+		assertFalse( dir.exists() );
+	}
+
+	private boolean send( Upload u, int off ) throws IOException {
+		int len = Math.min( CHUNK, content.length - off );
+		return u.append( off, len, digest( off, len ), chunk( off ) );
+	}
+	
+	private InputStream chunk( int off ) {
+		int len = Math.min( CHUNK, content.length - off );
+		return new ByteArrayInputStream( content, off, len );
+	}
+
+	private byte[] digest( int off, int len ) {
+		java.security.MessageDigest md = Upload.sha256();
+		md.update( content, off, len );
+		return md.digest();
+	}
+	
+	private File dir;
+	private ManagedDiskDescriptor mdd;
+	private byte[] content;
+
+	static final int CHUNK = 10000;
+
+	static final long DAY = 24L * 60 * 60 * 1000;
+}
+
+// eof
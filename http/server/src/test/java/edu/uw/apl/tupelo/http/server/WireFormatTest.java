@@ -0,0 +1,147 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.http.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.ManagedDiskDigest;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.store.DiskSummary;
+import edu.uw.apl.tupelo.store.WireFormat;
+
+/**
+ * Testing round trips of the WireFormat forms sent by the DataServlet
+ */
+public class WireFormatTest extends junit.framework.TestCase {
+
+	public void testUUID() throws IOException {
+		UUID u = UUID.randomUUID();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = WireFormat.begin( baos );
+		WireFormat.writeUUID( dos, u );
+		dos.writeLong( 1234567890123L );
+		dos.close();
+		DataInputStream dis = open( baos );
+		assertEquals( u, WireFormat.readUUID( dis ) );
+		assertEquals( 1234567890123L, dis.readLong() );
+	}
+
+	public void testDescriptors() throws Exception {
+		List<ManagedDiskDescriptor> mdds =
+			new ArrayList<ManagedDiskDescriptor>();
+		Session s = Session.parse( UUID.randomUUID(), "20160101.0001" );
+		for( int i = 0; i < 3; i++ ) {
+			mdds.add( new ManagedDiskDescriptor( "disk" + i, s ) );
+			s = s.successor();
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = WireFormat.begin( baos );
+		WireFormat.writeDescriptors( dos, mdds );
+		dos.close();
+		List<ManagedDiskDescriptor> read =
+			WireFormat.readDescriptors( open( baos ) );
+		assertEquals( mdds, read );
+		// the session's source uuid too, not just its printable form
+		assertEquals( mdds.get( 0 ).getSession().uuid(),
+					  read.get( 0 ).getSession().uuid() );
+	}
+
+	public void testSummaries() throws Exception {
+		Session s = Session.parse( UUID.randomUUID(), "20160101.0001" );
+		List<DiskSummary> dss = new ArrayList<DiskSummary>();
+		dss.add( new DiskSummary( new ManagedDiskDescriptor( "a", s ),
+								  1L << 40, UUID.randomUUID(),
+								  Arrays.asList( "hashfs-1", "md5" ) ) );
+		// as for a descriptor unknown to the store
+		dss.add( new DiskSummary( new ManagedDiskDescriptor( "b", s ),
+								  -1, null, new ArrayList<String>() ) );
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = WireFormat.begin( baos );
+		WireFormat.writeSummaries( dos, dss );
+		dos.close();
+		List<DiskSummary> read = WireFormat.readSummaries( open( baos ) );
+		assertEquals( dss.size(), read.size() );
+		for( int i = 0; i < dss.size(); i++ ) {
+			DiskSummary expected = dss.get( i );
+			DiskSummary actual = read.get( i );
+			assertEquals( expected.getDescriptor(), actual.getDescriptor() );
+			assertEquals( expected.size(), actual.size() );
+			assertEquals( expected.uuid(), actual.uuid() );
+			assertEquals( expected.attributeNames(),
+						  actual.attributeNames() );
+		}
+	}
+
+	public void testDigest() throws IOException {
+		ManagedDiskDigest digest = new ManagedDiskDigest();
+		for( int i = 0; i < 1000; i++ ) {
+			byte[] hash = new byte[16];
+			Arrays.fill( hash, (byte)i );
+			digest.add( hash );
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = WireFormat.begin( baos );
+		digest.writeTo( dos );
+		dos.close();
+		ManagedDiskDigest read = ManagedDiskDigest.readFrom( open( baos ) );
+		assertEquals( digest.size(), read.size() );
+		for( int i = 0; i < digest.size(); i++ )
+			assertTrue( read.matches( i, digest.get( i ) ) );
+	}
+
+	public void testNotWire() throws IOException {
+		try {
+			WireFormat.open( new ByteArrayInputStream( new byte[16] ) );
+			fail();
+		} catch( IOException expected ) {
+		}
+	}
+	
+	private DataInputStream open( ByteArrayOutputStream baos )
+		throws IOException {
+		return WireFormat.open( new ByteArrayInputStream
+								( baos.toByteArray() ) );
+	}
+}
+
+// eof
@@ -0,0 +1,159 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Reconstructs the digest of a parent ManagedDisk held remotely,
+ * without fetching all of it, for an incremental capture against
+ * that parent (see ManagedDisk.setParentDigest).
+ *
+ * A 1TB disk of 64K grains has 16M grain hashes, i.e. 256MB of md5,
+ * more than the changed data of a typical re-capture.  Instead, we
+ * are given the parent's table digest (ManagedDiskDigest.tableDigest),
+ * which is 512 times smaller, and a local digest of the unmanaged
+ * disk about to be captured.  Any table whose hashes agree needs
+ * nothing more, since its parent grain hashes equal our own.  Only
+ * for the tables which differ (see differing) need the parent's grain
+ * hashes be fetched.  merge then assembles the parent digest, in
+ * grain order, as far as the local disk extends.
+ *
+ * The cost is a local pass over the unmanaged disk to build the local
+ * digest, ahead of the capture itself.
+ */
+public class DigestDelta {
+
+	/**
+	 * @param local - digest of the unmanaged disk to be captured, by
+	 * the parent's grain size and digest algorithm
+	 * @param parentTables - the parent's table digest
+	 * @param parentGrains - grain count of the parent digest, since
+	 * its last table may be partial
+	 */
+	public DigestDelta( ManagedDiskDigest local,
+						ManagedDiskDigest parentTables,
+						int parentGrains, int grainsPerTable ) {
+		if( !GrainHash.same( local.getAlgorithm(),
+							 parentTables.getAlgorithm() ) )
+			throw new IllegalArgumentException
+				( "Digest algorithms differ: " + local.getAlgorithm() +
+				  ", " + parentTables.getAlgorithm() );
+		this.local = local;
+		this.parentGrains = parentGrains;
+		this.grainsPerTable = grainsPerTable;
+		ManagedDiskDigest localTables = local.tableDigest( grainsPerTable );
+		tables = Math.min( localTables.size(), parentTables.size() );
+		List<Integer> ts = new ArrayList<Integer>();
+		for( int t = 0; t < tables; t++ ) {
+			if( !parentTables.matches( t, localTables.get( t ) ) )
+				ts.add( t );
+		}
+		differing = new int[ts.size()];
+		for( int i = 0; i < differing.length; i++ )
+			differing[i] = ts.get( i );
+	}
+
+	/**
+	 * The local digest, by a sequential read of the whole unmanaged
+	 * disk.
+	 */
+	static public ManagedDiskDigest digest( UnmanagedDisk ud,
+											long grainSizeBytes,
+											String algorithm )
+		throws IOException {
+		int grains = (int)(Utils.alignUp( ud.size(), grainSizeBytes ) /
+						   grainSizeBytes);
+		GrainDigester gd = new GrainDigester( grainSizeBytes, grains,
+											  algorithm );
+		InputStream is = ud.getInputStream();
+		try {
+			byte[] ba = new byte[1 << 20];
+			int nin;
+			while( (nin = is.read( ba )) != -1 )
+				gd.update( ba, 0, nin );
+		} finally {
+			is.close();
+		}
+		return gd.finish();
+	}
+
+	/**
+	 * @return the indices, ascending, of those tables for which the
+	 * parent's grain hashes must be fetched
+	 */
+	public int[] differing() {
+		return differing;
+	}
+
+	/**
+	 * @param fetched - the parent's grain hashes for exactly the
+	 * differing() tables, in that order, as from
+	 * ManagedDiskDigest.select
+	 */
+	public ManagedDiskDigest merge( ManagedDiskDigest fetched ) {
+		ManagedDiskDigest result = new ManagedDiskDigest
+			( Math.min( tables * grainsPerTable, parentGrains ),
+			  local.getAlgorithm() );
+		int next = 0, from = 0;
+		for( int t = 0; t < tables; t++ ) {
+			int to = Math.min( (t+1) * grainsPerTable, parentGrains );
+			boolean differs = next < differing.length &&
+				differing[next] == t;
+			for( int i = t * grainsPerTable; i < to; i++ ) {
+				if( differs )
+					result.add( fetched.get( from++ ) );
+				else
+					result.add( local.get( i ) );
+			}
+			if( differs )
+				next++;
+		}
+		if( from != fetched.size() )
+			throw new IllegalArgumentException
+				( "Fetched hashes " + fetched.size() + " != " + from );
+		return result;
+	}
+
+	private final ManagedDiskDigest local;
+	private final int parentGrains, grainsPerTable, tables;
+	private final int[] differing;
+}
+
+// eof
@@ -0,0 +1,310 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Computes ManagedDiskDigests in parallel, the result identical to
+ * that of a sequential read and hash of the whole disk (see
+ * GrainDigester).
+ *
+ * A disk is split into grain-table sized ranges of grains.  Each
+ * range is a task on a fork-join pool, the range read via
+ * ManagedDisk.readAt (so no shared stream position) and its grains
+ * hashed straight into their slots in one flat hash array.  Several
+ * disks may be digested at once (digestAll), their tasks sharing the
+ * pool.
+ *
+ * Two budgets: the pool's size bounds cpu use (hashing, and
+ * decompression within readAt), while a separate count bounds how
+ * many reads are outstanding at once, across all disks, so that a
+ * store's spindle(s) are not thrashed.
+ *
+ * @see GrainDigester
+ */
+public class DigestEngine {
+
+	public DigestEngine() {
+		this( Runtime.getRuntime().availableProcessors(), IOREADS_DEFAULT );
+	}
+
+	/**
+	 * @param cpuThreads - fork-join pool size
+	 * @param ioReads - maximum concurrent reads
+	 */
+	public DigestEngine( int cpuThreads, int ioReads ) {
+		this( cpuThreads, ioReads, ManagedDisk.DIGESTALGORITHM );
+	}
+
+	/**
+	 * @param algorithm - grain hash algorithm of all digests produced,
+	 * see GrainHash
+	 */
+	public DigestEngine( int cpuThreads, int ioReads, String algorithm ) {
+		if( cpuThreads < 1 )
+			throw new IllegalArgumentException( "Threads: " + cpuThreads );
+		if( ioReads < 1 )
+			throw new IllegalArgumentException( "Reads: " + ioReads );
+		pool = new ForkJoinPool( cpuThreads );
+		reads = new Semaphore( ioReads, true );
+		this.algorithm = GrainHash.canonical( algorithm );
+		log = LogFactory.getLog( getClass() );
+	}
+
+	public ManagedDiskDigest digest( ManagedDisk md ) throws IOException {
+		return digestAll( Collections.singletonList( md ) ).get( 0 );
+	}
+
+	/**
+	 * Digest all the supplied disks concurrently.
+	 *
+	 * @return the digests, in the same order as the disks
+	 */
+	public List<ManagedDiskDigest> digestAll( List<? extends ManagedDisk> mds )
+		throws IOException {
+		List<DiskTask> tasks = new ArrayList<DiskTask>( mds.size() );
+		for( ManagedDisk md : mds ) {
+			DiskTask t = new DiskTask( md );
+			tasks.add( t );
+			pool.execute( t );
+		}
+		List<ManagedDiskDigest> result =
+			new ArrayList<ManagedDiskDigest>( mds.size() );
+		for( DiskTask t : tasks ) {
+			try {
+				result.add( t.get() );
+			} catch( InterruptedException ie ) {
+				for( DiskTask other : tasks )
+					other.cancel( true );
+				throw new java.io.InterruptedIOException( "Digest interrupted" );
+			} catch( ExecutionException ee ) {
+				for( DiskTask other : tasks )
+					other.cancel( true );
+				Throwable t2 = ee.getCause();
+				if( t2 instanceof ReadFailure )
+					throw (IOException)t2.getCause();
+				if( t2 instanceof RuntimeException )
+					throw (RuntimeException)t2;
+				if( t2 instanceof Error )
+					throw (Error)t2;
+				throw new IOException( t2 );
+			}
+		}
+		return result;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	
+	/**
+	 * Stop the pool, once any digests in progress are done
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	/**
+	   The whole of one disk.  Since all ranges write to disjoint
+	   parts of the one digest's chunks, and join() orders those
+	   writes before our read, no further synchronization is needed.
+	*/
+	class DiskTask extends RecursiveTask<ManagedDiskDigest> {
+		DiskTask( ManagedDisk md ) {
+			this.md = md;
+			grainSizeBytes = (int)md.grainSizeBytes();
+			long count = Utils.alignUp( md.size(), grainSizeBytes ) /
+				grainSizeBytes;
+			if( count > Integer.MAX_VALUE )
+				throw new IllegalStateException( md.getDescriptor() +
+												 ": too many grains " + count );
+			grains = (int)count;
+			rangeGrains = md.header.numGTEsPerGT;
+		}
+
+		@Override
+		protected ManagedDiskDigest compute() {
+			MessageDigest mdg = digests.get();
+			int hashLength = mdg.getDigestLength();
+			zeroHash = mdg.digest( new byte[grainSizeBytes] );
+			result = ManagedDiskDigest.sized( grains, hashLength, algorithm );
+			int ranges = (int)(((long)grains + rangeGrains - 1) / rangeGrains);
+			long start = System.currentTimeMillis();
+			if( ranges > 0 )
+				new RangeTask( this, 0, ranges ).invoke();
+			log.info( md.getDescriptor() + ": " + grains + " grains, " +
+					  (System.currentTimeMillis() - start) + "ms" );
+			return result;
+		}
+
+		final ManagedDisk md;
+		final int grainSizeBytes, grains, rangeGrains;
+		byte[] zeroHash;
+		ManagedDiskDigest result;
+	}
+	
+	/**
+	   A run of whole ranges, split in two until just the one
+	*/
+	class RangeTask extends RecursiveAction {
+		RangeTask( DiskTask disk, int from, int to ) {
+			this.disk = disk;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if( to - from > 1 ) {
+				int mid = (from + to) >>> 1;
+				invokeAll( new RangeTask( disk, from, mid ),
+						   new RangeTask( disk, mid, to ) );
+				return;
+			}
+			try {
+				digestRange( disk, from );
+			} catch( IOException ioe ) {
+				throw new ReadFailure( ioe );
+			}
+		}
+
+		private final DiskTask disk;
+		private final int from, to;
+	}
+
+	/**
+	 * Read a range of grains, BLOCKGRAINS at a time, and hash each
+	 * into its slot.  The last grain of the disk may be partial, the
+	 * rest of it is then hashed as zeros.
+	 */
+	private void digestRange( DiskTask disk, int range ) throws IOException {
+		int gsb = disk.grainSizeBytes;
+		int first = range * disk.rangeGrains;
+		int last = (int)Math.min( (long)first + disk.rangeGrains, disk.grains );
+		byte[] ba = buffer( BLOCKGRAINS * gsb );
+		MessageDigest mdg = digests.get();
+		int hashLength = mdg.getDigestLength();
+		for( int g = first; g < last; g += BLOCKGRAINS ) {
+			int n = Math.min( BLOCKGRAINS, last - g );
+			int len = n * gsb;
+			int nin;
+			reads.acquireUninterruptibly();
+			try {
+				nin = disk.md.readAt( (long)g * gsb,
+									  ByteBuffer.wrap( ba, 0, len ) );
+			} finally {
+				reads.release();
+			}
+			if( nin < len ) {
+				if( nin < 0 || g + n < disk.grains )
+					throw new IOException( disk.md.getDescriptor() +
+										   ": short read at grain " + g );
+				Arrays.fill( ba, nin, len, (byte)0 );
+			}
+			for( int i = 0; i < n; i++ ) {
+				byte[] chunk = disk.result.chunk( g + i );
+				int slot = disk.result.offset( g + i );
+				if( ZeroScan.isZero( ba, i * gsb, gsb ) ) {
+					System.arraycopy( disk.zeroHash, 0, chunk, slot,
+									  hashLength );
+					continue;
+				}
+				mdg.update( ba, i * gsb, gsb );
+				try {
+					mdg.digest( chunk, slot, hashLength );
+				} catch( DigestException de ) {
+					throw new IllegalStateException( de );
+				}
+			}
+		}
+	}
+
+	static private byte[] buffer( int len ) {
+		byte[] result = BUFFERS.get();
+		if( result == null || result.length < len ) {
+			result = new byte[len];
+			BUFFERS.set( result );
+		}
+		return result;
+	}
+
+	// carries an IOException out of a fork-join task
+	static class ReadFailure extends RuntimeException {
+		ReadFailure( IOException cause ) {
+			super( cause );
+		}
+	}
+	
+	private final ForkJoinPool pool;
+	private final Semaphore reads;
+	private final String algorithm;
+	private final Log log;
+
+	// the pool's threads are ours alone, so one hasher per thread
+	private final ThreadLocal<MessageDigest> digests =
+		new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return GrainHash.create( algorithm );
+		}
+	};
+
+	static public final int IOREADS_DEFAULT = 4;
+
+	// 16 grains, 1MB at the default grain size, per read
+	static private final int BLOCKGRAINS = 16;
+	
+	static private final ThreadLocal<byte[]> BUFFERS =
+		new ThreadLocal<byte[]>();
+}
+
+// eof
@@ -40,7 +40,7 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.UUID;
 
@@ -112,8 +112,11 @@ public class FlatDisk extends ManagedDisk {
 		InputStream is = unmanagedData.getInputStream();
 
 		header.writeTo( os );
+		GrainDigester digester = newDigester();
 		// IOUtils uses 4k buffers, pah!
-		if( false ) {
+		if( digester != null ) {
+			copyDigesting( is, os, digester );
+		} else if( false ) {
 			byte[] ba = new byte[1024*1024*16];
 			IOUtils.copyLarge( is, os, ba );
 		} else {
@@ -132,7 +135,10 @@ public class FlatDisk extends ManagedDisk {
 	public void readFromWriteTo( InputStream is, OutputStream os )
 		throws IOException {
 		header.writeTo( os );
-		if( true ) {
+		GrainDigester digester = newDigester();
+		if( digester != null ) {
+			copyDigesting( is, os, digester );
+		} else if( true ) {
 			IOUtils.copyLarge( is, os );
 		} else {
 			byte[] ba = new byte[1024*1024];
@@ -145,6 +151,19 @@ public class FlatDisk extends ManagedDisk {
 		}
 	}
 
+	private void copyDigesting( InputStream is, OutputStream os,
+								GrainDigester digester ) throws IOException {
+		byte[] ba = new byte[1024*1024];
+		while( true ) {
+			int nin = is.read( ba );
+			if( nin < 0 )
+				break;
+			digester.update( ba, 0, nin );
+			os.write( ba, 0, nin );
+		}
+		digest = digester.finish();
+	}
+	
 	/**
 	 * The best a FlatDisk can do to verify that a file on disk really
 	 * is the managed representation of the associated unmanaged data
@@ -198,59 +217,30 @@ public class FlatDisk extends ManagedDisk {
 
 	@Override
 	public SeekableInputStream getSeekableInputStream() throws IOException {
-		return new FlatDiskRandomAccessRead();
+		if( managedData == null )
+			throw new IllegalStateException( "managedData missing" );
+		return new ManagedDiskInputStream( this );
 	}
 
-	class FlatDiskRandomAccessRead extends SeekableInputStream {
-		FlatDiskRandomAccessRead() throws IOException {
-			super( size() );
-			raf = new RandomAccessFile( managedData, "r" );
-			raf.seek( header.dataOffset );
-		}
-
-		@Override
-		public void close() throws IOException {
-			raf.close();
-		}
-
-		@Override
-		public void seek( long s ) throws IOException {
-			// according to java.io.RandomAccessFile, no restriction on seek
-			raf.seek( header.dataOffset + s );
-			posn = s;
-		}
-
-		/**
-		   For the array read, we shall attempt to satisy the length
-		   requested, even if it is takes us many reads (of the
-		   physical file) to do so.  While the contract for
-		   InputStream is that any read CAN return < len bytes, for
-		   InputStreams backed by file data, users probably expect len
-		   bytes back (fewer of course if eof).
-
-		   Further, when using this class with our
-		   'ManagedDiskFileSystem', which uses fuse, fuse states that
-		   the callback read operation is REQUIRED to return len bytes
-		   if they are available (i.e. not read past eof)
-		*/
-		   
-		@Override
-		public int readImpl( byte[] ba, int off, int len ) throws IOException {
-
-			long actualL = Math.min( size - posn, len );
-			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
-				(int)actualL;
-
-			int total = 0;
-			while( total < actual ) {
-				int nin = raf.read( ba, off+total, len-total );
-				total += nin;
-				posn += nin;
-			}
-			return total;
+	/**
+	 * Trivial for a FlatDisk, the disk content is the managed data
+	 * less our Header.
+	 */
+	@Override
+	public int readAt( long offset, ByteBuffer dst ) throws IOException {
+		if( offset < 0 )
+			throw new IllegalArgumentException( "Offset: " + offset );
+		long size = size();
+		if( offset >= size )
+			return -1;
+		if( dst.remaining() > size - offset ) {
+			ByteBuffer bb = dst.duplicate();
+			bb.limit( bb.position() + (int)(size - offset) );
+			int nin = readFully( header.dataOffset + offset, bb );
+			dst.position( bb.position() );
+			return nin;
 		}
-
-		private final RandomAccessFile raf;
+		return readFully( header.dataOffset + offset, dst );
 	}
 }
 
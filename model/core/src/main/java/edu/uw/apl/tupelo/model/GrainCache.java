@@ -0,0 +1,319 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A process-wide cache of decompressed grains, keyed by (managed data
+ * file, grain offset in that file).  Used by the SeekableInputStreams
+ * of StreamOptimizedDisks, so that many streams open on the same
+ * managed disk (think Sleuthkit tools walking a FUSE mount, each
+ * opening its own handle) share, rather than repeat, grain
+ * decompression of popular regions (MFT, inode tables, etc).
+ *
+ * The grain data is held off-heap, in direct ByteBuffers carved up
+ * into grain-sized slots, so a large cache adds nothing to GC work.
+ * Replacement is CLOCK (second chance) per segment, the cache being
+ * split into segments, each with its own lock, to reduce contention.
+ * Grains of a size other than the slot size are not cached.
+ *
+ * The byte budget of the shared instance is taken from System
+ * property tupelo.graincache.size (bytes, default 64MB, 0 disables
+ * the cache).
+ *
+ * @see StreamOptimizedDisk
+ */
+public class GrainCache {
+
+	/**
+	 * @param capacityBytes - the byte budget.  Rounded down to a
+	 * whole number of slots.
+	 *
+	 * @param slotBytes - size of a single cache entry.  Only grains
+	 * of exactly this size are cached.
+	 */
+	public GrainCache( long capacityBytes, int slotBytes ) {
+		if( slotBytes < 1 )
+			throw new IllegalArgumentException( "Slot size: " + slotBytes );
+		this.slotBytes = slotBytes;
+		long slots = capacityBytes / slotBytes;
+		int segmentCount = (int)Math.min( SEGMENTS, slots );
+		segments = new Segment[segmentCount];
+		for( int i = 0; i < segmentCount; i++ ) {
+			long segmentSlots = slots / segmentCount;
+			if( i < slots % segmentCount )
+				segmentSlots++;
+			segments[i] = new Segment( (int)segmentSlots );
+		}
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	static public synchronized GrainCache shared() {
+		if( SHARED == null ) {
+			long size = SIZE_DEFAULT;
+			String s = System.getProperty( "tupelo.graincache.size" );
+			if( s != null ) {
+				try {
+					size = Long.parseLong( s );
+				} catch( NumberFormatException nfe ) {
+					log.warn( "Bad tupelo.graincache.size: " + s );
+				}
+			}
+			SHARED = new GrainCache
+				( size, (int)(ManagedDisk.GRAINSIZE_DEFAULT *
+							  Constants.SECTORLENGTH) );
+			log.info( "Shared GrainCache: " + SHARED.capacity() );
+		}
+		return SHARED;
+	}
+	
+	/**
+	 * @return true, and the grain content copied into output, if
+	 * the grain at offset (bytes) in managedData is cached.
+	 */
+	public boolean get( File managedData, long offset, byte[] output ) {
+		if( segments.length == 0 || output.length != slotBytes )
+			return false;
+		Key k = new Key( managedData, offset );
+		boolean result = segment( k ).get( k, output );
+		if( result )
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Add the decompressed grain found at offset (bytes) in
+	 * managedData, evicting some other grain if needed.
+	 */
+	public void put( File managedData, long offset, byte[] grain ) {
+		if( segments.length == 0 || grain.length != slotBytes )
+			return;
+		Key k = new Key( managedData, offset );
+		segment( k ).put( k, grain );
+	}
+
+	/**
+	 * Drop all grains of managedData, which must be called should the
+	 * content of that file ever change
+	 */
+	public void invalidate( File managedData ) {
+		for( Segment s : segments )
+			s.invalidate( managedData );
+	}
+	
+	/**
+	 * @return The byte budget, a whole number of slots
+	 */
+	public long capacity() {
+		long result = 0;
+		for( Segment s : segments )
+			result += (long)s.keys.length * slotBytes;
+		return result;
+	}
+
+	/**
+	 * @return The bytes of grain data currently cached
+	 */
+	public long size() {
+		long result = 0;
+		for( Segment s : segments ) {
+			synchronized( s ) {
+				result += (long)s.index.size() * slotBytes;
+			}
+		}
+		return result;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "GrainCache: size " + size() + "/" + capacity() +
+			", hits " + getHits() + ", misses " + getMisses() +
+			", evictions " + getEvictions();
+	}
+	
+	private Segment segment( Key k ) {
+		int h = k.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+	
+	class Segment {
+		Segment( int slots ) {
+			keys = new Key[slots];
+			referenced = new boolean[slots];
+			index = new HashMap<Key,Integer>( slots );
+			int slotsPerArena = ARENABYTES / slotBytes;
+			int arenaCount = slots == 0 ? 0 :
+				(slots + slotsPerArena - 1) / slotsPerArena;
+			arenas = new ByteBuffer[arenaCount];
+			for( int i = 0; i < arenaCount; i++ ) {
+				int n = Math.min( slotsPerArena, slots - i * slotsPerArena );
+				arenas[i] = ByteBuffer.allocateDirect( n * slotBytes );
+			}
+			this.slotsPerArena = slotsPerArena;
+		}
+
+		synchronized boolean get( Key k, byte[] output ) {
+			Integer slot = index.get( k );
+			if( slot == null )
+				return false;
+			referenced[slot] = true;
+			ByteBuffer bb = position( slot );
+			bb.get( output, 0, slotBytes );
+			return true;
+		}
+
+		synchronized void put( Key k, byte[] grain ) {
+			if( keys.length == 0 || index.containsKey( k ) )
+				return;
+			int slot = victim();
+			if( keys[slot] != null ) {
+				index.remove( keys[slot] );
+				evictions.incrementAndGet();
+			}
+			ByteBuffer bb = position( slot );
+			bb.put( grain, 0, slotBytes );
+			keys[slot] = k;
+			referenced[slot] = false;
+			index.put( k, slot );
+		}
+
+		synchronized void invalidate( File managedData ) {
+			for( int i = 0; i < keys.length; i++ ) {
+				if( keys[i] != null && keys[i].file.equals( managedData ) ) {
+					index.remove( keys[i] );
+					keys[i] = null;
+					referenced[i] = false;
+				}
+			}
+		}
+		
+		/*
+		  CLOCK: sweep the hand around the slots, clearing reference
+		  bits, until an unreferenced slot is found.  Empty slots are
+		  never referenced, so are taken first time round.
+		*/
+		private int victim() {
+			while( true ) {
+				int slot = hand;
+				hand = (hand + 1) % keys.length;
+				if( keys[slot] == null || !referenced[slot] )
+					return slot;
+				referenced[slot] = false;
+			}
+		}
+
+		// Only called with the Segment lock held
+		private ByteBuffer position( int slot ) {
+			ByteBuffer bb = arenas[slot / slotsPerArena];
+			bb.position( (slot % slotsPerArena) * slotBytes );
+			return bb;
+		}
+		
+		final Key[] keys;
+		final boolean[] referenced;
+		final Map<Key,Integer> index;
+		final ByteBuffer[] arenas;
+		final int slotsPerArena;
+		int hand;
+	}
+
+	static class Key {
+		Key( File file, long offset ) {
+			this.file = file;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if( o == this )
+				return true;
+			if( !( o instanceof Key ) )
+				return false;
+			Key that = (Key)o;
+			return this.offset == that.offset && this.file.equals( that.file );
+		}
+
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + (int)(offset ^ (offset >>> 32));
+		}
+		
+		final File file;
+		final long offset;
+	}
+	
+	private final int slotBytes;
+	private final Segment[] segments;
+	private final AtomicLong hits, misses, evictions;
+
+	static private GrainCache SHARED;
+	
+	static public final long SIZE_DEFAULT = 64L * 1024 * 1024;
+
+	static private final int SEGMENTS = 16;
+
+	// Max size of any single direct ByteBuffer we allocate
+	static private final int ARENABYTES = 1 << 30;
+
+	static private final Log log = LogFactory.getLog( GrainCache.class );
+}
+
+// eof
@@ -0,0 +1,448 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.xerial.snappy.Snappy;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Compression and decompression of a single grain, for each of the
+ * ManagedDisk.Compressions algorithms.  A GrainCodec holds on to its
+ * zlib Deflater/Inflater (reset, not re-created, per grain) and to a
+ * scratch buffer for compressed data, so is NOT thread-safe.  Expected
+ * use is one GrainCodec per thread (capture) or per stream (reads),
+ * with a call to end() when done, releasing any native zlib state.
+ *
+ * GZIP data is produced and consumed directly via a raw Deflater and
+ * Inflater plus the gzip header and trailer, so matches that of
+ * java.util.zip.GZIPOutputStream, as previously used by
+ * StreamOptimizedDisk, without the stream objects per grain.
+ *
+ * A compression level applies only when compressing, so is not
+ * recorded in the managed data.  Its meaning is per algorithm: zlib's
+ * 0-9 for DEFLATE and GZIP, zstd's 1-22 for ZSTD, while for LZ4 a
+ * level of 1-17 selects the (slower, tighter) LZ4HC compressor.
+ * ManagedDisk.COMPRESSIONLEVEL_DEFAULT picks each algorithm's own
+ * default.
+ *
+ * @see ManagedDisk.Compressions
+ * @see StreamOptimizedDisk
+ */
+abstract public class GrainCodec {
+
+	static public GrainCodec create( ManagedDisk.Compressions c ) {
+		return create( c, ManagedDisk.COMPRESSIONLEVEL_DEFAULT );
+	}
+
+	static public GrainCodec create( ManagedDisk.Compressions c,
+									 int level ) {
+		switch( c ) {
+		case NONE:
+			return new None();
+		case DEFLATE:
+			return new Deflate( level );
+		case GZIP:
+			return new Gzip( level );
+		case SNAPPY:
+			return new SnappyCodec();
+		case LZ4:
+			return new Lz4( level );
+		case ZSTD:
+			return new ZstdCodec( level );
+		default:
+			throw new IllegalArgumentException( "Unknown compression: " + c );
+		}
+	}
+
+	/**
+	 * A codec private to the calling thread, created on first use and
+	 * kept for the life of that thread.  Suits long-lived pool threads
+	 * which may work on disks of differing compression.  Such codecs
+	 * must NOT be end()ed by the caller.
+	 */
+	static public GrainCodec forThread( ManagedDisk.Compressions c ) {
+		GrainCodec[] codecs = THREADCODECS.get();
+		GrainCodec result = codecs[c.ordinal()];
+		if( result == null ) {
+			result = create( c );
+			codecs[c.ordinal()] = result;
+		}
+		return result;
+	}
+	
+	/**
+	 * @return The compressed data count, in bytes
+	 */
+	abstract public int compress( byte[] ba, int offset, int len,
+								  byte[] output ) throws IOException;
+
+	/**
+	 * @return The uncompressed data count, in bytes
+	 */
+	abstract public int uncompress( byte[] ba, int offset, int len,
+									byte[] output )
+		throws DataFormatException, IOException;
+
+	/**
+	 * A scratch buffer big enough to take the compressed form of a
+	 * grainSizeBytes long grain.  Twice a grain since in pathological
+	 * cases, compression actually EXPANDS the grain!  The same buffer
+	 * is returned on each call, so its content is valid only until
+	 * the next compress.
+	 */
+	public byte[] compressBuffer( int grainSizeBytes ) {
+		int needed = 2 * grainSizeBytes;
+		if( compressBuffer == null || compressBuffer.length < needed )
+			compressBuffer = new byte[needed];
+		return compressBuffer;
+	}
+	
+	/**
+	 * Release any resources (native zlib state) held.  The codec is
+	 * unusable thereafter.
+	 */
+	public void end() {
+	}
+
+	static class None extends GrainCodec {
+		@Override
+		public int compress( byte[] ba, int offset, int len,
+							 byte[] output ) {
+			System.arraycopy( ba, offset, output, 0, len );
+			return len;
+		}
+
+		@Override
+		public int uncompress( byte[] ba, int offset, int len,
+							   byte[] output ) {
+			int result = Math.min( len, output.length );
+			System.arraycopy( ba, offset, output, 0, result );
+			return result;
+		}
+	}
+	
+	static class Deflate extends GrainCodec {
+		Deflate( int level ) {
+			def = new Deflater( level );
+		}
+		
+		@Override
+		public int compress( byte[] ba, int offset, int len,
+							 byte[] output ) {
+			def.reset();
+			def.setInput( ba, offset, len );
+			def.finish();
+			int result = def.deflate( output );
+			if( !def.finished() )
+				throw new IllegalStateException( "Deflate overflow: " + len );
+			return result;
+		}
+
+		@Override
+		public int uncompress( byte[] ba, int offset, int len,
+							   byte[] output ) throws DataFormatException {
+			inf.reset();
+			inf.setInput( ba, offset, len );
+			return inf.inflate( output );
+		}
+
+		@Override
+		public void end() {
+			def.end();
+			inf.end();
+		}
+		
+		private final Deflater def;
+		private final Inflater inf = new Inflater();
+	}
+
+	/**
+	   RFC 1952: a 10 byte header, the raw deflate data, then an 8 byte
+	   trailer of crc32 and input length, both little endian.
+	*/
+	static class Gzip extends GrainCodec {
+		Gzip( int level ) {
+			def = new Deflater( level, true );
+		}
+		
+		@Override
+		public int compress( byte[] ba, int offset, int len,
+							 byte[] output ) {
+			System.arraycopy( HEADER, 0, output, 0, HEADER.length );
+			def.reset();
+			def.setInput( ba, offset, len );
+			def.finish();
+			int result = HEADER.length;
+			result += def.deflate( output, result,
+								   output.length - result - TRAILERLENGTH );
+			if( !def.finished() )
+				throw new IllegalStateException( "Deflate overflow: " + len );
+			crc.reset();
+			crc.update( ba, offset, len );
+			writeIntLE( (int)crc.getValue(), output, result );
+			writeIntLE( len, output, result + 4 );
+			return result + TRAILERLENGTH;
+		}
+
+		@Override
+		public int uncompress( byte[] ba, int offset, int len,
+							   byte[] output )
+			throws DataFormatException {
+			int end = offset + len;
+			int dataStart = skipHeader( ba, offset, end );
+			inf.reset();
+			inf.setInput( ba, dataStart, end - dataStart );
+			int result = inf.inflate( output );
+			/*
+			  With output exactly filled, the inflater may not yet have
+			  seen the end of the deflate stream, so nudge it on
+			*/
+			while( !inf.finished() && !inf.needsInput() ) {
+				if( inf.inflate( spare ) > 0 )
+					throw new DataFormatException( "Gzip overflow" );
+			}
+			if( !inf.finished() || inf.getRemaining() < TRAILERLENGTH )
+				throw new DataFormatException( "Gzip truncated" );
+			int trailer = end - inf.getRemaining();
+			crc.reset();
+			crc.update( output, 0, result );
+			if( readIntLE( ba, trailer ) != (int)crc.getValue() )
+				throw new DataFormatException( "Gzip crc mismatch" );
+			if( readIntLE( ba, trailer + 4 ) != result )
+				throw new DataFormatException( "Gzip length mismatch" );
+			return result;
+		}
+
+		@Override
+		public void end() {
+			def.end();
+			inf.end();
+		}
+
+		/**
+		 * @return offset of the deflate data, past the gzip header
+		 * and any of its optional fields
+		 */
+		private int skipHeader( byte[] ba, int offset, int end )
+			throws DataFormatException {
+			if( end - offset < HEADER.length ||
+				ba[offset] != HEADER[0] || ba[offset+1] != HEADER[1] )
+				throw new DataFormatException( "Not gzip" );
+			if( ba[offset+2] != Deflater.DEFLATED )
+				throw new DataFormatException( "Gzip method" );
+			int flags = ba[offset+3] & 0xff;
+			int result = offset + HEADER.length;
+			if( (flags & FEXTRA) != 0 ) {
+				int xlen = (ba[result] & 0xff) | ((ba[result+1] & 0xff) << 8);
+				result += 2 + xlen;
+			}
+			if( (flags & FNAME) != 0 ) {
+				while( ba[result] != 0 )
+					result++;
+				result++;
+			}
+			if( (flags & FCOMMENT) != 0 ) {
+				while( ba[result] != 0 )
+					result++;
+				result++;
+			}
+			if( (flags & FHCRC) != 0 )
+				result += 2;
+			if( result > end )
+				throw new DataFormatException( "Gzip header" );
+			return result;
+		}
+		
+		static private void writeIntLE( int i, byte[] ba, int offset ) {
+			ba[offset]   = (byte)i;
+			ba[offset+1] = (byte)(i >>> 8);
+			ba[offset+2] = (byte)(i >>> 16);
+			ba[offset+3] = (byte)(i >>> 24);
+		}
+
+		static private int readIntLE( byte[] ba, int offset ) {
+			return (ba[offset] & 0xff) | ((ba[offset+1] & 0xff) << 8) |
+				((ba[offset+2] & 0xff) << 16) | ((ba[offset+3] & 0xff) << 24);
+		}
+		
+		private final Deflater def;
+		private final Inflater inf = new Inflater( true );
+		private final CRC32 crc = new CRC32();
+		private final byte[] spare = new byte[1];
+
+		// No flags, mtime, xfl and an os of 0, as GZIPOutputStream once wrote
+		static private final byte[] HEADER = {
+			0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+		static private final int TRAILERLENGTH = 8;
+
+		static private final int FHCRC = 2;
+		static private final int FEXTRA = 4;
+		static private final int FNAME = 8;
+		static private final int FCOMMENT = 16;
+	}
+
+	// Snappy itself keeps no per-call state, so nothing to retain
+	static class SnappyCodec extends GrainCodec {
+		@Override
+		public int compress( byte[] ba, int offset, int len,
+							 byte[] output ) throws IOException {
+			return Snappy.compress( ba, offset, len, output, 0 );
+		}
+
+		@Override
+		public int uncompress( byte[] ba, int offset, int len,
+							   byte[] output )
+			throws DataFormatException, IOException {
+			if( !Snappy.isValidCompressedBuffer( ba, offset, len ) )
+				throw new DataFormatException( "!isValidCompressedBuffer" );
+			return Snappy.uncompress( ba, offset, len, output, 0 );
+		}
+	}
+
+	/*
+	  The lz4 block format, no frame, so no stored length: the safe
+	  decompressor bounds its output by that of the grain buffer.
+	*/
+	static class Lz4 extends GrainCodec {
+		Lz4( int level ) {
+			LZ4Factory f = LZ4Factory.fastestInstance();
+			compressor = level > 0 ?
+				f.highCompressor( level ) : f.fastCompressor();
+			decompressor = f.safeDecompressor();
+		}
+		
+		@Override
+		public int compress( byte[] ba, int offset, int len,
+							 byte[] output ) throws IOException {
+			try {
+				return compressor.compress( ba, offset, len,
+											output, 0, output.length );
+			} catch( LZ4Exception e ) {
+				throw new IOException( e );
+			}
+		}
+
+		@Override
+		public int uncompress( byte[] ba, int offset, int len,
+							   byte[] output )
+			throws DataFormatException {
+			try {
+				return decompressor.decompress( ba, offset, len,
+												output, 0, output.length );
+			} catch( LZ4Exception e ) {
+				throw new DataFormatException( e.getMessage() );
+			}
+		}
+
+		private final LZ4Compressor compressor;
+		private final LZ4SafeDecompressor decompressor;
+	}
+
+	// Each zstd context is native state, created lazily, freed in end()
+	static class ZstdCodec extends GrainCodec {
+		ZstdCodec( int level ) {
+			this.level = level == ManagedDisk.COMPRESSIONLEVEL_DEFAULT ?
+				Zstd.defaultCompressionLevel() : level;
+		}
+		
+		@Override
+		public int compress( byte[] ba, int offset, int len,
+							 byte[] output ) throws IOException {
+			if( cctx == null ) {
+				cctx = new ZstdCompressCtx();
+				cctx.setLevel( level );
+			}
+			try {
+				return cctx.compressByteArray( output, 0, output.length,
+											   ba, offset, len );
+			} catch( ZstdException e ) {
+				throw new IOException( e );
+			}
+		}
+
+		@Override
+		public int uncompress( byte[] ba, int offset, int len,
+							   byte[] output )
+			throws DataFormatException {
+			if( dctx == null )
+				dctx = new ZstdDecompressCtx();
+			try {
+				return dctx.decompressByteArray( output, 0, output.length,
+												 ba, offset, len );
+			} catch( ZstdException e ) {
+				throw new DataFormatException( e.getMessage() );
+			}
+		}
+
+		@Override
+		public void end() {
+			if( cctx != null )
+				cctx.close();
+			if( dctx != null )
+				dctx.close();
+		}
+		
+		private final int level;
+		private ZstdCompressCtx cctx;
+		private ZstdDecompressCtx dctx;
+	}
+	
+	private byte[] compressBuffer;
+
+	static private final ThreadLocal<GrainCodec[]> THREADCODECS =
+		new ThreadLocal<GrainCodec[]>() {
+		@Override
+		protected GrainCodec[] initialValue() {
+			return new GrainCodec[ManagedDisk.Compressions.values().length];
+		}
+	};
+}
+
+// eof
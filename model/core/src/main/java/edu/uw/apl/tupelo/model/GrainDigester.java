@@ -0,0 +1,156 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.security.MessageDigest;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Builds a ManagedDiskDigest, one hash per grain, in grain order.
+ * Grains can be supplied whole (grain), as already computed hashes
+ * (add, zero), or as an arbitrarily chunked byte stream (update).  In
+ * all cases a zero grain is never actually hashed, the hash of a
+ * zero grain being computed just once.  A final partial grain is
+ * hashed as if padded with zeros, as StreamOptimizedDisk stores it.
+ *
+ * Not thread-safe.
+ *
+ * @see ManagedDiskDigest
+ * @see StreamOptimizedDisk#readFromWriteTo
+ * @see FlatDisk#readFromWriteTo
+ */
+public class GrainDigester {
+
+	public GrainDigester( long grainSizeBytes, int grains ) {
+		this( grainSizeBytes, grains, ManagedDisk.DIGESTALGORITHM );
+	}
+
+	/**
+	 * @param algorithm - see GrainHash
+	 */
+	public GrainDigester( long grainSizeBytes, int grains, String algorithm ) {
+		this.grainSizeBytes = (int)grainSizeBytes;
+		md = GrainHash.create( algorithm );
+		digest = new ManagedDiskDigest( grains, algorithm );
+	}
+
+	/**
+	 * Hash a whole grain and add it to the digest.
+	 *
+	 * @return the hash
+	 */
+	public byte[] grain( byte[] ba, int offset ) {
+		if( ZeroScan.isZero( ba, offset, grainSizeBytes ) )
+			return zero();
+		md.update( ba, offset, grainSizeBytes );
+		byte[] result = md.digest();
+		digest.add( result );
+		return result;
+	}
+
+	/**
+	 * Add a hash already computed, by a caller who needed it anyway
+	 */
+	public void add( byte[] hash ) {
+		digest.add( hash );
+	}
+
+	/**
+	 * Add the hash of a zero grain
+	 *
+	 * @return that hash
+	 */
+	public byte[] zero() {
+		if( zeroHash == null )
+			zeroHash = md.digest( new byte[grainSizeBytes] );
+		digest.add( zeroHash );
+		return zeroHash;
+	}
+
+	/**
+	 * Add the next len bytes of a stream of grains.  Any incomplete
+	 * grain is held over to the next call, or to finish().
+	 */
+	public void update( byte[] ba, int offset, int len ) {
+		if( pending > 0 ) {
+			int n = Math.min( len, grainSizeBytes - pending );
+			System.arraycopy( ba, offset, partial(), pending, n );
+			pending += n;
+			offset += n;
+			len -= n;
+			if( pending < grainSizeBytes )
+				return;
+			grain( partial, 0 );
+			pending = 0;
+		}
+		while( len >= grainSizeBytes ) {
+			grain( ba, offset );
+			offset += grainSizeBytes;
+			len -= grainSizeBytes;
+		}
+		if( len > 0 ) {
+			System.arraycopy( ba, offset, partial(), 0, len );
+			pending = len;
+		}
+	}
+
+	/**
+	 * Complete the digest, hashing any held over partial grain as
+	 * if zero-padded.
+	 */
+	public ManagedDiskDigest finish() {
+		if( pending > 0 ) {
+			for( int i = pending; i < grainSizeBytes; i++ )
+				partial[i] = 0;
+			grain( partial, 0 );
+			pending = 0;
+		}
+		return digest;
+	}
+	
+	private byte[] partial() {
+		if( partial == null )
+			partial = new byte[grainSizeBytes];
+		return partial;
+	}
+	
+	private final int grainSizeBytes;
+	private final MessageDigest md;
+	private final ManagedDiskDigest digest;
+	private byte[] zeroHash, partial;
+	private int pending;
+}
+
+// eof
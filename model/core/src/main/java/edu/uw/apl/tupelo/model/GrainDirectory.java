@@ -33,13 +33,303 @@
  */
 package edu.uw.apl.tupelo.model;
 
-import java.io.DataInput;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class GrainDirectory {
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
-	public GrainDirectory( DataInput di, int len ) {
+/**
+ * The grain directory (GD) of a StreamOptimizedDisk, together with
+ * the grain tables (GTs) it locates.  Answers the one question a
+ * reader has: where is grain gtIndex of grain table gdIndex?
+ *
+ * Two implementations.  {@link Eager} reads every GT onto the heap
+ * when the disk is opened, at 8 bytes per grain.  {@link Mapped}
+ * reads nothing up front, it memory-maps the managed data and reads
+ * GD and GT entries from the mapping only when asked, so costs
+ * neither heap nor open time in proportion to disk size.
+ *
+ * Both are safe for concurrent use by many readers.
+ *
+ * @see StreamOptimizedDisk
+ */
+
+abstract public class GrainDirectory {
+
+	/**
+	 * @return number of grain tables, i.e. GD entries
+	 */
+	abstract public int length();
+
+	/**
+	 * @return {@link #ZERO}, {@link #PARENT} or the location (in
+	 * sectors) of grain table gdIndex in the managed data
+	 */
+	abstract public long gde( int gdIndex );
+
+	/**
+	 * Only meaningful for grain tables actually present, i.e. gde()
+	 * is a location.
+	 *
+	 * @return 0 for a zero grain, -1 for 'use parent', else the
+	 * location (in sectors) of the grain's marker in the managed data
+	 */
+	abstract public long gte( int gdIndex, int gtIndex );
+
+	/**
+	 * The same directory, but any entries still to be read are read
+	 * from managedData, e.g. a link to the file we were read from
+	 * which is itself about to be replaced.
+	 */
+	abstract GrainDirectory relocate( File managedData );
+
+	/**
+	 * @param gdOffset - location of the GD, in sectors
+	 * @param entrySize - 4 or 8, see ManagedDisk.Header.entrySizeOf
+	 */
+	static public GrainDirectory readFrom( RandomAccessFile raf,
+										   long gdOffset,
+										   int grainTableCount,
+										   int numGTEsPerGT,
+										   int entrySize )
+		throws IOException {
+		return new Eager( raf, gdOffset, grainTableCount, numGTEsPerGT,
+						  entrySize );
+	}
+
+	/**
+	 * @param gdOffset - location of the GD, in sectors
+	 * @param entrySize - 4 or 8, see ManagedDisk.Header.entrySizeOf
+	 */
+	static public GrainDirectory map( File managedData, long gdOffset,
+									  int grainTableCount,
+									  int numGTEsPerGT, int entrySize )
+		throws IOException {
+		return map( managedData, gdOffset, grainTableCount, numGTEsPerGT,
+					entrySize, Mapped.CHUNKSIZE );
+	}
+
+	/**
+	 * @param chunkSize - bytes per mapping, a multiple of 8, small
+	 * only for tests
+	 */
+	static GrainDirectory map( File managedData, long gdOffset,
+							   int grainTableCount, int numGTEsPerGT,
+							   int entrySize, long chunkSize )
+		throws IOException {
+		return new Mapped( managedData, gdOffset, grainTableCount,
+						   numGTEsPerGT, entrySize, chunkSize );
+	}
+
+	/*
+	  How a 4 byte GD entry is stored on disk, and how we read it
+	  back: unsigned int OR -1, meaning PARENT.  8 byte entries are
+	  simply read as is.
+	*/
+	static long gdeValue( int gde ) {
+		if( gde == -1 )
+			return PARENT;
+		return gde & 0xffffffffL;
+	}
+	
+	// 4 byte GT entries are stored as unsigned int OR -1, meaning 'use parent'
+	static long gteValue( int gte ) {
+		if( gte == -1 )
+			return -1L;
+		return gte & 0xffffffffL;
 	}
+	
+	static class Eager extends GrainDirectory {
+		Eager( RandomAccessFile raf, long gdOffset, int grainTableCount,
+			   int numGTEsPerGT, int entrySize ) throws IOException {
+			boolean wide = entrySize == 8;
+			byte[] ba = new byte[entrySize * grainTableCount];
+			raf.seek( gdOffset * Constants.SECTORLENGTH );
+			raf.readFully( ba );
+			DataInputStream dis = new DataInputStream
+				( new ByteArrayInputStream( ba ) );
+			gdes = new long[grainTableCount];
+			for( int i = 0; i < gdes.length; i++ ) {
+				gdes[i] = wide ? dis.readLong() : gdeValue( dis.readInt() );
+				if( log.isDebugEnabled() )
+					log.debug( i + " " + gdes[i] );
+			}
+			
+			/*
+			  Each GT is read in one go, along with the GT marker
+			  which precedes it, the marker being a sanity check.
+			*/
+			grainTables = new GrainTable[grainTableCount];
+			ba = new byte[Constants.SECTORLENGTH + entrySize * numGTEsPerGT];
+			for( int i = 0; i < gdes.length; i++ ) {
+				long gde = gdes[i];
+				if( gde == ZERO || gde == PARENT )
+					continue;
+				raf.seek( gde * Constants.SECTORLENGTH -
+						  Constants.SECTORLENGTH );
+				raf.readFully( ba );
+				dis = new DataInputStream( new ByteArrayInputStream( ba ) );
+				StreamOptimizedDisk.MetadataMarker mdm =
+					StreamOptimizedDisk.MetadataMarker.readFrom( dis );
+				if( log.isDebugEnabled() )
+					log.debug( "Expected GT: actual " + mdm );
+				dis.skipBytes( Constants.SECTORLENGTH -
+							   StreamOptimizedDisk.MetadataMarker.FIELDSSIZEOF );
+				grainTables[i] = new GrainTable( dis, numGTEsPerGT, wide );
+			}
+		}
+
+		@Override
+		public int length() {
+			return gdes.length;
+		}
+
+		@Override
+		public long gde( int gdIndex ) {
+			return gdes[gdIndex];
+		}
+
+		@Override
+		public long gte( int gdIndex, int gtIndex ) {
+			return grainTables[gdIndex].gtes[gtIndex];
+		}
+
+		// all on the heap already
+		@Override
+		GrainDirectory relocate( File managedData ) {
+			return this;
+		}
+		
+		private final long[] gdes;
+		private final GrainTable[] grainTables;
+	}
+
+	/**
+	 * The managed data is mapped in chunkSize pieces, each mapped on
+	 * first use.  Entries are aligned to their own size, so no entry
+	 * ever straddles two chunks.  The mappings are read-only and we use
+	 * only absolute gets, so need no locking.
+	 *
+	 * Each chunk is mapped via a channel opened just for that, and
+	 * closed straight after, a mapping outliving its channel.  So a
+	 * reader interrupted while mapping spoils only its own channel,
+	 * never one that later mappings need.
+	 */
+	static class Mapped extends GrainDirectory {
+		Mapped( File managedData, long gdOffset, int grainTableCount,
+				int numGTEsPerGT, int entrySize, long chunkSize )
+			throws IOException {
+			this.managedData = managedData;
+			this.chunkSize = chunkSize;
+			this.entrySize = entrySize;
+			this.gdOffset = gdOffset * Constants.SECTORLENGTH;
+			this.grainTableCount = grainTableCount;
+			this.numGTEsPerGT = numGTEsPerGT;
+			length = managedData.length();
+			chunks = new AtomicReferenceArray<MappedByteBuffer>
+				( (int)((length + chunkSize - 1) / chunkSize) );
+		}
+
+		// Chunks already mapped are of the same content, so are kept
+		private Mapped( Mapped m, File managedData ) {
+			this.managedData = managedData;
+			chunkSize = m.chunkSize;
+			entrySize = m.entrySize;
+			gdOffset = m.gdOffset;
+			grainTableCount = m.grainTableCount;
+			numGTEsPerGT = m.numGTEsPerGT;
+			length = m.length;
+			chunks = new AtomicReferenceArray<MappedByteBuffer>
+				( m.chunks.length() );
+			for( int i = 0; i < chunks.length(); i++ )
+				chunks.set( i, m.chunks.get( i ) );
+		}
+
+		@Override
+		GrainDirectory relocate( File managedData ) {
+			return new Mapped( this, managedData );
+		}
+
+		@Override
+		public int length() {
+			return grainTableCount;
+		}
+
+		@Override
+		public long gde( int gdIndex ) {
+			if( gdIndex < 0 || gdIndex >= grainTableCount )
+				throw new ArrayIndexOutOfBoundsException( gdIndex );
+			long offset = gdOffset + (long)entrySize * gdIndex;
+			if( entrySize == 8 )
+				return buffer( offset ).getLong( position( offset ) );
+			return gdeValue( buffer( offset ).getInt( position( offset ) ) );
+		}
+
+		@Override
+		public long gte( int gdIndex, int gtIndex ) {
+			if( gtIndex < 0 || gtIndex >= numGTEsPerGT )
+				throw new ArrayIndexOutOfBoundsException( gtIndex );
+			long offset = gde( gdIndex ) * Constants.SECTORLENGTH +
+				(long)entrySize * gtIndex;
+			if( entrySize == 8 )
+				return buffer( offset ).getLong( position( offset ) );
+			return gteValue( buffer( offset ).getInt( position( offset ) ) );
+		}
+
+		private MappedByteBuffer buffer( long offset ) {
+			int chunk = (int)(offset / chunkSize);
+			MappedByteBuffer mbb = chunks.get( chunk );
+			if( mbb == null )
+				mbb = map( chunk );
+			return mbb;
+		}
+
+		private int position( long offset ) {
+			return (int)(offset % chunkSize);
+		}
+
+		private MappedByteBuffer map( int chunk ) {
+			long start = (long)chunk * chunkSize;
+			long len = Math.min( chunkSize, length - start );
+			try {
+				FileChannel fc = FileChannel.open( managedData.toPath(),
+												   StandardOpenOption.READ );
+				MappedByteBuffer mbb;
+				try {
+					mbb = fc.map( FileChannel.MapMode.READ_ONLY, start, len );
+				} finally {
+					fc.close();
+				}
+				// Losing a race to map the same chunk is harmless
+				chunks.compareAndSet( chunk, null, mbb );
+				return chunks.get( chunk );
+			} catch( IOException ioe ) {
+				throw new IllegalStateException( managedData + ": mapping " +
+												 start, ioe );
+			}
+		}
+
+		private final File managedData;
+		private final long gdOffset, length, chunkSize;
+		private final int grainTableCount, numGTEsPerGT, entrySize;
+		private final AtomicReferenceArray<MappedByteBuffer> chunks;
+		
+		static final long CHUNKSIZE = 1L << 30;
+	}
+
+	// GD entry values for a grain table of all zeros, or all parent
+	static public final long ZERO = 0;
+	static public final long PARENT = -1;
+	
+	static private final Log log = LogFactory.getLog( GrainDirectory.class );
 }
 
 // eof
-
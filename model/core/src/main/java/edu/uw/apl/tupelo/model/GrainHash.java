@@ -0,0 +1,245 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The algorithms available for grain hashes, i.e. for the
+ * ManagedDiskDigest of a managed disk.  Such hashes are only ever
+ * used to detect a changed grain between captures of the same
+ * unmanaged disk, never to prove integrity, so a cryptographic hash
+ * is not required.  MURMUR3 (128-bit MurmurHash3, x64 variant) is
+ * several times faster than MD5, at the same hash length.
+ *
+ * Every algorithm is presented as a java.security.MessageDigest, so
+ * that callers need not care which is in use.  Names are compared
+ * case-insensitively, and recorded in a digest's header.
+ *
+ * @see ManagedDiskDigest
+ * @see GrainDigester
+ */
+public class GrainHash {
+
+	/**
+	 * @return a new MessageDigest for the named algorithm
+	 *
+	 * @throws IllegalArgumentException if the algorithm is unknown
+	 */
+	static public MessageDigest create( String algorithm ) {
+		String name = canonical( algorithm );
+		if( MURMUR3.equals( name ) )
+			return new Murmur3();
+		try {
+			return MessageDigest.getInstance( name );
+		} catch( NoSuchAlgorithmException nsae ) {
+			throw new IllegalArgumentException( nsae );
+		}
+	}
+
+	/**
+	 * @return the name by which the algorithm is recorded, lower case
+	 *
+	 * @throws IllegalArgumentException if the algorithm is unknown
+	 */
+	static public String canonical( String algorithm ) {
+		if( algorithm == null )
+			throw new IllegalArgumentException( "Null hash algorithm" );
+		for( String s : ALGORITHMS ) {
+			if( s.equalsIgnoreCase( algorithm ) )
+				return s;
+		}
+		// LOOK: accept the JCA alias, as found in older digest files
+		if( "sha256".equalsIgnoreCase( algorithm ) )
+			return SHA256;
+		throw new IllegalArgumentException( "Unknown hash algorithm: " +
+											algorithm );
+	}
+
+	/**
+	 * @return true if the two name the same algorithm
+	 */
+	static public boolean same( String a1, String a2 ) {
+		return canonical( a1 ).equals( canonical( a2 ) );
+	}
+	
+	/**
+	 * MurmurHash3_x64_128, seed 0.  The 16 byte result is h1 then h2,
+	 * each little-endian, so matching other implementations' byte
+	 * output.  Input is consumed 16 bytes at a time, any remainder
+	 * held in a tail buffer until the next update or the digest.
+	 */
+	static class Murmur3 extends MessageDigest {
+		Murmur3() {
+			super( MURMUR3 );
+			tail = new byte[BLOCK];
+			tailBuffer = ByteBuffer.wrap( tail ).order( ByteOrder.LITTLE_ENDIAN );
+		}
+
+		@Override
+		protected int engineGetDigestLength() {
+			return 16;
+		}
+
+		@Override
+		protected void engineUpdate( byte b ) {
+			tail[tailLength++] = b;
+			length++;
+			if( tailLength == BLOCK ) {
+				block( tailBuffer, 0 );
+				tailLength = 0;
+			}
+		}
+
+		@Override
+		protected void engineUpdate( byte[] ba, int offset, int len ) {
+			length += len;
+			if( tailLength > 0 ) {
+				int n = Math.min( len, BLOCK - tailLength );
+				System.arraycopy( ba, offset, tail, tailLength, n );
+				tailLength += n;
+				offset += n;
+				len -= n;
+				if( tailLength < BLOCK )
+					return;
+				block( tailBuffer, 0 );
+				tailLength = 0;
+			}
+			if( len >= BLOCK ) {
+				ByteBuffer bb = ByteBuffer.wrap( ba ).
+					order( ByteOrder.LITTLE_ENDIAN );
+				while( len >= BLOCK ) {
+					block( bb, offset );
+					offset += BLOCK;
+					len -= BLOCK;
+				}
+			}
+			if( len > 0 ) {
+				System.arraycopy( ba, offset, tail, 0, len );
+				tailLength = len;
+			}
+		}
+
+		@Override
+		protected byte[] engineDigest() {
+			long k1 = 0, k2 = 0;
+			for( int i = tailLength - 1; i >= 8; i-- )
+				k2 = (k2 << 8) | (tail[i] & 0xff);
+			for( int i = Math.min( tailLength, 8 ) - 1; i >= 0; i-- )
+				k1 = (k1 << 8) | (tail[i] & 0xff);
+			if( tailLength > 8 ) {
+				k2 *= C2;
+				k2 = Long.rotateLeft( k2, 33 );
+				k2 *= C1;
+				h2 ^= k2;
+			}
+			if( tailLength > 0 ) {
+				k1 *= C1;
+				k1 = Long.rotateLeft( k1, 31 );
+				k1 *= C2;
+				h1 ^= k1;
+			}
+			h1 ^= length;
+			h2 ^= length;
+			h1 += h2;
+			h2 += h1;
+			h1 = fmix( h1 );
+			h2 = fmix( h2 );
+			h1 += h2;
+			h2 += h1;
+			byte[] result = new byte[16];
+			ByteBuffer.wrap( result ).order( ByteOrder.LITTLE_ENDIAN ).
+				putLong( h1 ).putLong( h2 );
+			engineReset();
+			return result;
+		}
+
+		@Override
+		protected void engineReset() {
+			h1 = h2 = 0;
+			length = 0;
+			tailLength = 0;
+		}
+
+		private void block( ByteBuffer bb, int offset ) {
+			long k1 = bb.getLong( offset );
+			long k2 = bb.getLong( offset + 8 );
+			k1 *= C1;
+			k1 = Long.rotateLeft( k1, 31 );
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft( h1, 27 );
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+			k2 *= C2;
+			k2 = Long.rotateLeft( k2, 33 );
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft( h2, 31 );
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		static private long fmix( long k ) {
+			k ^= k >>> 33;
+			k *= 0xff51afd7ed558ccdL;
+			k ^= k >>> 33;
+			k *= 0xc4ceb9fe1a85ec53L;
+			k ^= k >>> 33;
+			return k;
+		}
+		
+		private final byte[] tail;
+		private final ByteBuffer tailBuffer;
+		private long h1, h2, length;
+		private int tailLength;
+
+		static private final int BLOCK = 16;
+		static private final long C1 = 0x87c37b91114253d5L;
+		static private final long C2 = 0x4cf5ad432745937fL;
+	}
+	
+	static public final String MD5 = "md5";
+	static public final String SHA256 = "sha-256";
+	static public final String MURMUR3 = "murmur3-128";
+
+	static private final String[] ALGORITHMS = { MD5, SHA256, MURMUR3 };
+}
+
+// eof
@@ -0,0 +1,225 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.util.Arrays;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The in-memory index of a GrainPool: grain hash -> where that
+ * grain's record lies in the pool, its stored length and its
+ * reference count.  Open addressing with linear probing over flat
+ * arrays, so no object per grain: the cost per slot is a key plus
+ * 16 bytes, see memoryBytes().  Keys are strong (e.g. sha-256)
+ * hashes, so are already uniformly distributed, their first four
+ * bytes serve as the slot hash.
+ *
+ * Not thread-safe, GrainPool synchronizes.
+ *
+ * @see GrainPool
+ */
+class GrainIndex {
+
+	GrainIndex( int keyLength, int capacity ) {
+		this.keyLength = keyLength;
+		int c = 16;
+		while( c < capacity )
+			c <<= 1;
+		allocate( c );
+	}
+
+	/**
+	 * @return the slot holding key, or -1 if none
+	 */
+	int find( byte[] key ) {
+		int i = home( key, 0 );
+		while( locations[i] != EMPTY ) {
+			if( matches( i, key ) )
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a key known to be absent.  Its reference count is zero.
+	 *
+	 * @return its slot, valid until the next insert or remove
+	 */
+	int insert( byte[] key, long location, int length ) {
+		if( (count + 1) * 2 > locations.length )
+			grow();
+		int i = home( key, 0 );
+		while( locations[i] != EMPTY )
+			i = (i + 1) & mask;
+		System.arraycopy( key, 0, keys, i * keyLength, keyLength );
+		locations[i] = location;
+		lengths[i] = length;
+		refs[i] = 0;
+		count++;
+		return i;
+	}
+
+	/**
+	 * Empty a slot, shifting back any later entries of the same probe
+	 * run which would otherwise become unreachable
+	 */
+	void remove( int slot ) {
+		int i = slot;
+		locations[i] = EMPTY;
+		int j = i;
+		while( true ) {
+			j = (j + 1) & mask;
+			if( locations[j] == EMPTY )
+				break;
+			int k = home( keys, j * keyLength );
+			// does k lie cyclically in (i,j] ?  then j stays put
+			boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+			if( stays )
+				continue;
+			System.arraycopy( keys, j * keyLength, keys, i * keyLength,
+							  keyLength );
+			locations[i] = locations[j];
+			lengths[i] = lengths[j];
+			refs[i] = refs[j];
+			locations[j] = EMPTY;
+			i = j;
+		}
+		count--;
+	}
+
+	long location( int slot ) {
+		return locations[slot];
+	}
+
+	void location( int slot, long location ) {
+		locations[slot] = location;
+	}
+	
+	int length( int slot ) {
+		return lengths[slot];
+	}
+
+	int refs( int slot ) {
+		return refs[slot];
+	}
+
+	void refs( int slot, int n ) {
+		refs[slot] = n;
+	}
+
+	void key( int slot, byte[] dst ) {
+		System.arraycopy( keys, slot * keyLength, dst, 0, keyLength );
+	}
+	
+	boolean used( int slot ) {
+		return locations[slot] != EMPTY;
+	}
+
+	/**
+	 * @return the number of slots, for iteration via used()
+	 */
+	int capacity() {
+		return locations.length;
+	}
+	
+	int size() {
+		return count;
+	}
+
+	int keyLength() {
+		return keyLength;
+	}
+	
+	/**
+	 * @return the heap held by this index, all slots, used or not
+	 */
+	long memoryBytes() {
+		return (long)locations.length * (keyLength + 8 + 4 + 4);
+	}
+	
+	private void grow() {
+		byte[] oldKeys = keys;
+		long[] oldLocations = locations;
+		int[] oldLengths = lengths, oldRefs = refs;
+		allocate( oldLocations.length * 2 );
+		for( int s = 0; s < oldLocations.length; s++ ) {
+			if( oldLocations[s] == EMPTY )
+				continue;
+			int i = home( oldKeys, s * keyLength );
+			while( locations[i] != EMPTY )
+				i = (i + 1) & mask;
+			System.arraycopy( oldKeys, s * keyLength, keys, i * keyLength,
+							  keyLength );
+			locations[i] = oldLocations[s];
+			lengths[i] = oldLengths[s];
+			refs[i] = oldRefs[s];
+		}
+	}
+
+	private void allocate( int capacity ) {
+		keys = new byte[capacity * keyLength];
+		locations = new long[capacity];
+		Arrays.fill( locations, EMPTY );
+		lengths = new int[capacity];
+		refs = new int[capacity];
+		mask = capacity - 1;
+	}
+	
+	private int home( byte[] ba, int offset ) {
+		int h = ((ba[offset] & 0xff) << 24) | ((ba[offset+1] & 0xff) << 16) |
+			((ba[offset+2] & 0xff) << 8) | (ba[offset+3] & 0xff);
+		return h & mask;
+	}
+
+	private boolean matches( int slot, byte[] key ) {
+		int offset = slot * keyLength;
+		for( int b = 0; b < keyLength; b++ ) {
+			if( keys[offset+b] != key[b] )
+				return false;
+		}
+		return true;
+	}
+	
+	private final int keyLength;
+	private byte[] keys;
+	private long[] locations;
+	private int[] lengths, refs;
+	private int mask, count;
+
+	static private final long EMPTY = -1L;
+}
+
+// eof
@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Where each grain of a StreamOptimizedDisk really lives, the parent
+ * chain already resolved.  A child's grain table says only 'see
+ * parent' (-1) for grains it shares with its parent, who may in turn
+ * say the same.  The map says which ancestor holds each such grain,
+ * and where in its managed data.  A read is then one read of one
+ * file, however long the chain.
+ *
+ * Each entry is a long: the owner (our index into the chain, 0 being
+ * the disk itself) in the top 16 bits, the sector offset of the
+ * grain (marker) in that owner's managed data in the rest.  Entry 0
+ * is a zero grain, no real grain being at offset 0.  An ancestor
+ * which is not itself a StreamOptimizedDisk (of the same grain size)
+ * ends the chain, its grains then marked DELEGATED, i.e. read via its
+ * own readAt.
+ *
+ * Entries are resolved a grain table (of the disk itself) at a time,
+ * the first time any grain of that table is asked for.  So only the
+ * tables actually read from the parent cost heap, 8 bytes a grain,
+ * and a table wholly zero costs nothing.
+ *
+ * @see StreamOptimizedDisk#grainMap
+ */
+class GrainMap {
+
+	/**
+	 * @param owners - the chain, the disk itself first
+	 *
+	 * @param resolvable - how many owners, from the first, are
+	 * StreamOptimizedDisks whose grain directories we consult, their
+	 * metadata already read.  Any owner after those is delegated to.
+	 *
+	 * @param grainsPerTable - of the disk itself
+	 */
+	GrainMap( List<ManagedDisk> owners, int resolvable,
+			  long grains, int grainsPerTable ) {
+		if( owners.size() > MAXOWNERS )
+			throw new IllegalStateException
+				( owners.get( 0 ).getDescriptor() + ": chain too long" );
+		this.owners = owners.toArray( new ManagedDisk[owners.size()] );
+		this.resolvable = resolvable;
+		this.grains = grains;
+		this.grainsPerTable = grainsPerTable;
+		long tableCount = (grains + grainsPerTable - 1) / grainsPerTable;
+		if( tableCount > Integer.MAX_VALUE )
+			throw new IllegalStateException( "Too many grains: " + grains );
+		tables = new AtomicReferenceArray<long[]>( (int)tableCount );
+	}
+
+	/**
+	 * @throws IllegalStateException if the chain ends before the
+	 * grain is found
+	 */
+	long entry( long grain ) throws IOException {
+		int table = (int)(grain / grainsPerTable);
+		long[] entries = tables.get( table );
+		if( entries == null ) {
+			// Racing resolvers each compute the same table, one wins
+			entries = resolve( table );
+			if( !tables.compareAndSet( table, null, entries ) )
+				entries = tables.get( table );
+		}
+		if( entries == ZEROTABLE )
+			return ZERO;
+		return entries[(int)(grain % grainsPerTable)];
+	}
+
+	ManagedDisk owner( long entry ) {
+		return owners[(int)(entry >>> OWNERSHIFT)];
+	}
+
+	int owners() {
+		return owners.length;
+	}
+	
+	long grains() {
+		return grains;
+	}
+
+	// only tables resolved so far count
+	long memoryBytes() {
+		long result = 8L * tables.length();
+		for( int i = 0; i < tables.length(); i++ ) {
+			long[] entries = tables.get( i );
+			if( entries != null )
+				result += 8L * entries.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Each grain of the table is looked up in each owner in turn,
+	 * until one holds it or says it is zero.
+	 */
+	private long[] resolve( int table ) throws IOException {
+		long first = (long)table * grainsPerTable;
+		int n = (int)Math.min( grainsPerTable, grains - first );
+		long[] result = new long[n];
+		boolean zero = true;
+		for( int i = 0; i < n; i++ ) {
+			result[i] = resolveGrain( first + i );
+			if( result[i] != ZERO )
+				zero = false;
+		}
+		return zero ? ZEROTABLE : result;
+	}
+
+	private long resolveGrain( long grain ) throws IOException {
+		for( int owner = 0; owner < resolvable; owner++ ) {
+			StreamOptimizedDisk sod = (StreamOptimizedDisk)owners[owner];
+			long gte = sod.grainEntry( grain );
+			if( gte != -1 )
+				return gte == 0 ? ZERO : entry( owner, gte );
+		}
+		if( resolvable < owners.length )
+			return entry( resolvable, DELEGATED );
+		throw new IllegalStateException
+			( owners[0].getDescriptor() + ": No parent for grain " +
+			  grain );
+	}
+	
+	static long entry( int owner, long sectors ) {
+		return ((long)owner << OWNERSHIFT) | sectors;
+	}
+
+	static boolean delegated( long entry ) {
+		return offset( entry ) == DELEGATED;
+	}
+
+	// in sectors
+	static long offset( long entry ) {
+		return entry & OFFSETMASK;
+	}
+
+	private final ManagedDisk[] owners;
+	private final int resolvable;
+	private final long grains;
+	private final int grainsPerTable;
+	private final AtomicReferenceArray<long[]> tables;
+
+	static final long ZERO = 0;
+
+	static final int OWNERSHIFT = 48;
+	static final long OFFSETMASK = (1L << OWNERSHIFT) - 1;
+	static final long DELEGATED = OFFSETMASK;
+
+	// as many ancestors as an entry can name, DELEGATED aside
+	static final int MAXOWNERS = 1 << (64 - OWNERSHIFT - 1);
+
+	// shared by all tables whose every grain is zero
+	static private final long[] ZEROTABLE = new long[0];
+}
+
+// eof
@@ -0,0 +1,549 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A content-addressed store of grains, shared by any number of
+ * PooledDisks, so that a grain common to many disks (e.g. many
+ * machines built from one OS image) is stored just once.  Dedup via a
+ * parent digest works only along one disk's chain of captures, this
+ * works across all disks in the pool.
+ *
+ * Grains are keyed by their sha-256 hash, strong enough that equal
+ * hashes are taken as equal content.  Each distinct grain is one
+ * record, appended to the current pack file, grains-NNNNNN.pack:
+ * the hash, a flags+stored length word (the RAW bit as for
+ * StreamOptimizedDisk grain markers), the grain length, then the
+ * grain, Snappy compressed unless that did not make it smaller.
+ * Zero grains are never stored.
+ *
+ * The index, hash -> record location, length and reference count,
+ * is held in memory (GrainIndex) and saved whole, to file 'index',
+ * after each ingest or release.  At some 48 bytes per slot, that is
+ * under 0.1% of the (64K) grains it indexes, so is cheap relative to
+ * the ingest that caused it.  Should we die between appending records
+ * and saving the index, those records are just unreferenced space.
+ *
+ * A release dropping a grain's count to zero removes it from the
+ * index, its record then being garbage within its pack.  LOOK: no
+ * pack compaction yet, see packBytes vs liveBytes.
+ *
+ * Thread-safe: ingests may run concurrently, as may reads.  Hashing,
+ * compression and record reads happen outside our lock.
+ *
+ * @see PooledDisk
+ */
+public class GrainPool {
+
+	public GrainPool( File dir ) throws IOException {
+		this.dir = dir;
+		dir.mkdirs();
+		log = LogFactory.getLog( getClass() );
+		packs = new ArrayList<FileChannel>();
+		for( int i = 0; packFile( i ).exists(); i++ )
+			packs.add( null );
+		File f = new File( dir, INDEXFILE );
+		if( f.exists() ) {
+			loadIndex( f );
+		} else {
+			if( !packs.isEmpty() )
+				throw new IOException( f + ": missing, yet packs present" );
+			index = new GrainIndex( HASHLENGTH, 1024 );
+		}
+		if( !packs.isEmpty() )
+			packLength = packFile( packs.size() - 1 ).length();
+		for( int i = 0; i < packs.size(); i++ )
+			packBytes += packFile( i ).length();
+	}
+
+	/**
+	 * Add all of md's grains to the pool, and write to out the
+	 * PooledDisk now referencing them.  md must be readable, i.e.
+	 * have its managed data (and any parent) already.  Should this
+	 * fail, any references taken are given back.
+	 */
+	public PooledDisk ingest( ManagedDisk md, File out ) throws IOException {
+		ManagedDisk.Header h = new ManagedDisk.Header
+			( md.header, ManagedDisk.DiskTypes.POOLED );
+		h.dataOffset = ManagedDisk.Header.SIZEOF;
+		h.overhead = ManagedDisk.Header.SIZEOF / Constants.SECTORLENGTH;
+		int gsb = (int)md.grainSizeBytes();
+		long size = md.size();
+		int grains = (int)(Utils.alignUp( size, gsb ) / gsb);
+		MessageDigest sha = GrainHash.create( GrainHash.SHA256 );
+		GrainCodec codec = GrainCodec.create( CODEC );
+		byte[] ba = new byte[BLOCKGRAINS * gsb];
+		int done = 0;
+		long added = 0;
+		DataOutputStream dos = new DataOutputStream
+			( new BufferedOutputStream( new FileOutputStream( out ),
+										1 << 20 ) );
+		try {
+			h.writeTo( (DataOutput)dos );
+			for( int g = 0; g < grains; g += BLOCKGRAINS ) {
+				int n = Math.min( BLOCKGRAINS, grains - g );
+				int len = n * gsb;
+				int nin = md.readAt( (long)g * gsb,
+									 ByteBuffer.wrap( ba, 0, len ) );
+				if( nin < len ) {
+					if( nin < 0 || g + n < grains )
+						throw new IOException( md.getDescriptor() +
+											   ": short read at grain " + g );
+					Arrays.fill( ba, nin, len, (byte)0 );
+				}
+				for( int i = 0; i < n; i++ ) {
+					int off = i * gsb;
+					if( ZeroScan.isZero( ba, off, gsb ) ) {
+						dos.write( ZEROREF );
+					} else {
+						sha.update( ba, off, gsb );
+						byte[] hash = sha.digest();
+						if( reference( hash, ba, off, gsb, codec ) )
+							added++;
+						dos.write( hash );
+					}
+					done++;
+				}
+			}
+			dos.close();
+			sync();
+		} catch( IOException ioe ) {
+			dos.close();
+			log.warn( out + ": ingest failed, releasing " + done );
+			unreference( out, done );
+			out.delete();
+			throw ioe;
+		} finally {
+			codec.end();
+		}
+		saveIndex();
+		log.info( md.getDescriptor() + ": " + grains + " grains, " + added +
+				  " new to pool" );
+		return new PooledDisk( out, h, this );
+	}
+
+	/**
+	 * Give back all the references pd holds.  pd itself is then
+	 * unreadable, the caller is expected to delete it.
+	 */
+	public void release( PooledDisk pd ) throws IOException {
+		unreference( pd.managedData, pd.grainCount() );
+		saveIndex();
+	}
+
+	/**
+	 * Read the grain of the given hash into dst
+	 *
+	 * @throws IOException if the pool has no such grain
+	 */
+	void read( byte[] hash, byte[] dst ) throws IOException {
+		long location;
+		int length;
+		synchronized( this ) {
+			int s = index.find( hash );
+			if( s < 0 )
+				throw new IOException( dir + ": no grain " +
+									   Hex.encodeHexString( hash ) );
+			location = index.location( s );
+			length = index.length( s );
+		}
+		byte[] record = recordBuffer( RECORDHEADER + length );
+		ByteBuffer bb = ByteBuffer.wrap( record, 0, RECORDHEADER + length );
+		FileChannel fc = pack( (int)(location >>> PACKSHIFT) );
+		long position = location & OFFSETMASK;
+		while( bb.hasRemaining() ) {
+			int nin = fc.read( bb, position + bb.position() );
+			if( nin < 0 )
+				throw new EOFException( dir + ": truncated record at " +
+										position );
+		}
+		bb.flip();
+		for( int i = 0; i < HASHLENGTH; i++ ) {
+			if( bb.get( i ) != hash[i] )
+				throw new IOException( dir + ": record mismatch at " +
+									   position );
+		}
+		int flags = bb.getInt( HASHLENGTH );
+		int grainLength = bb.getInt( HASHLENGTH + 4 );
+		if( (flags & StreamOptimizedDisk.GrainMarker.RAW) != 0 ) {
+			System.arraycopy( record, RECORDHEADER, dst, 0, grainLength );
+			return;
+		}
+		try {
+			GrainCodec.forThread( CODEC ).uncompress( record, RECORDHEADER,
+													  length, dst );
+		} catch( DataFormatException dfe ) {
+			throw new IOException( dfe );
+		}
+	}
+
+	/**
+	 * @return the number of distinct grains held
+	 */
+	public synchronized long uniqueGrains() {
+		return index.size();
+	}
+
+	/**
+	 * @return the number of (non-zero) grains, across all disks,
+	 * which reference the pool
+	 */
+	public synchronized long referencedGrains() {
+		return references;
+	}
+
+	/**
+	 * @return referencedGrains / uniqueGrains, i.e. how many times
+	 * over the pool would be stored without dedup
+	 */
+	public synchronized double dedupRatio() {
+		return index.size() == 0 ? 1 : (double)references / index.size();
+	}
+
+	/**
+	 * @return bytes of pack file held by referenced grains
+	 */
+	public synchronized long liveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @return bytes of pack file, live or not
+	 */
+	public synchronized long packBytes() {
+		return packBytes;
+	}
+
+	/**
+	 * @return heap held by the index
+	 */
+	public synchronized long indexMemoryBytes() {
+		return index.memoryBytes();
+	}
+
+	public void report( PrintStream ps ) {
+		ps.println( "Pool: " + dir );
+		ps.println( "UniqueGrains: " + uniqueGrains() );
+		ps.println( "ReferencedGrains: " + referencedGrains() );
+		ps.println( String.format( "DedupRatio: %.2f", dedupRatio() ) );
+		ps.println( "LiveBytes: " + liveBytes() );
+		ps.println( "PackBytes: " + packBytes() );
+		ps.println( "IndexMemoryBytes: " + indexMemoryBytes() );
+	}
+
+	public synchronized void close() throws IOException {
+		for( int i = 0; i < packs.size(); i++ ) {
+			FileChannel fc = packs.get( i );
+			if( fc != null )
+				fc.close();
+			packs.set( i, null );
+		}
+		if( appender != null )
+			appender.close();
+		appender = null;
+	}
+
+	@Override
+	public String toString() {
+		return dir.toString();
+	}
+	
+	/**
+	 * Take a reference on the grain of the given hash, first storing
+	 * it if new.  We compress outside the lock, so two ingests may
+	 * race to store the same new grain, the loser's work being
+	 * discarded.
+	 *
+	 * @return true if the grain was new to the pool
+	 */
+	private boolean reference( byte[] hash, byte[] ba, int off, int len,
+							   GrainCodec codec ) throws IOException {
+		synchronized( this ) {
+			int s = index.find( hash );
+			if( s >= 0 ) {
+				index.refs( s, index.refs( s ) + 1 );
+				references++;
+				return false;
+			}
+		}
+		byte[] cb = codec.compressBuffer( len );
+		int clen = codec.compress( ba, off, len, cb );
+		boolean raw = clen >= len;
+		synchronized( this ) {
+			int s = index.find( hash );
+			if( s >= 0 ) {
+				index.refs( s, index.refs( s ) + 1 );
+				references++;
+				return false;
+			}
+			int stored = raw ? len : clen;
+			long location = append( hash, raw ? ba : cb, raw ? off : 0,
+									stored, raw, len );
+			s = index.insert( hash, location, stored );
+			index.refs( s, 1 );
+			references++;
+			liveBytes += RECORDHEADER + stored;
+			return true;
+		}
+	}
+
+	/**
+	 * Drop the first 'grains' references held by the reference table
+	 * in f
+	 */
+	private void unreference( File f, int grains ) throws IOException {
+		DataInputStream dis = new DataInputStream
+			( new BufferedInputStream( new FileInputStream( f ), 1 << 20 ) );
+		try {
+			dis.skipBytes( ManagedDisk.Header.SIZEOF );
+			byte[] hash = new byte[HASHLENGTH];
+			for( int g = 0; g < grains; g++ ) {
+				dis.readFully( hash );
+				if( ZeroScan.isZero( hash, 0, HASHLENGTH ) )
+					continue;
+				synchronized( this ) {
+					int s = index.find( hash );
+					if( s < 0 ) {
+						log.warn( f + ": unknown grain " + g );
+						continue;
+					}
+					int refs = index.refs( s ) - 1;
+					references--;
+					if( refs > 0 ) {
+						index.refs( s, refs );
+					} else {
+						liveBytes -= RECORDHEADER + index.length( s );
+						index.remove( s );
+					}
+				}
+			}
+		} finally {
+			dis.close();
+		}
+	}
+	
+	// Called with our lock held
+	private long append( byte[] hash, byte[] ba, int off, int stored,
+						 boolean raw, int grainLength ) throws IOException {
+		int recordLength = RECORDHEADER + stored;
+		if( appender == null || packLength + recordLength > MAXPACKBYTES ) {
+			if( appender != null ) {
+				appender.force( false );
+				appender.close();
+			}
+			if( packs.isEmpty() || packLength + recordLength > MAXPACKBYTES ) {
+				packs.add( null );
+				packLength = 0;
+			}
+			appender = FileChannel.open( packFile( packs.size() - 1 ).toPath(),
+										 StandardOpenOption.CREATE,
+										 StandardOpenOption.WRITE );
+		}
+		ByteBuffer header = ByteBuffer.allocate( RECORDHEADER );
+		header.put( hash );
+		header.putInt( stored | (raw ? StreamOptimizedDisk.GrainMarker.RAW : 0) );
+		header.putInt( grainLength );
+		header.flip();
+		ByteBuffer data = ByteBuffer.wrap( ba, off, stored );
+		long position = packLength;
+		long result = ((long)(packs.size() - 1) << PACKSHIFT) | position;
+		while( header.hasRemaining() )
+			position += appender.write( header, position );
+		while( data.hasRemaining() )
+			position += appender.write( data, position );
+		packLength += recordLength;
+		packBytes += recordLength;
+		return result;
+	}
+
+	private synchronized void sync() throws IOException {
+		if( appender != null )
+			appender.force( false );
+	}
+	
+	private FileChannel pack( int i ) throws IOException {
+		synchronized( this ) {
+			FileChannel result = packs.get( i );
+			if( result == null || !result.isOpen() ) {
+				result = FileChannel.open( packFile( i ).toPath(),
+										   StandardOpenOption.READ );
+				packs.set( i, result );
+			}
+			return result;
+		}
+	}
+
+	private File packFile( int i ) {
+		return new File( dir, String.format( "grains-%06d.pack", i ) );
+	}
+
+	/**
+	 * Written aside then renamed, so an index file is always whole
+	 */
+	private synchronized void saveIndex() throws IOException {
+		File tmp = new File( dir, INDEXFILE + ".tmp" );
+		FileOutputStream fos = new FileOutputStream( tmp );
+		DataOutputStream dos = new DataOutputStream
+			( new BufferedOutputStream( fos, 1 << 20 ) );
+		dos.writeLong( MAGIC );
+		dos.writeInt( VERSION );
+		dos.writeInt( HASHLENGTH );
+		dos.writeLong( index.size() );
+		byte[] key = new byte[HASHLENGTH];
+		for( int s = 0; s < index.capacity(); s++ ) {
+			if( !index.used( s ) )
+				continue;
+			index.key( s, key );
+			dos.write( key );
+			dos.writeLong( index.location( s ) );
+			dos.writeInt( index.length( s ) );
+			dos.writeInt( index.refs( s ) );
+		}
+		dos.flush();
+		fos.getFD().sync();
+		dos.close();
+		File f = new File( dir, INDEXFILE );
+		if( !tmp.renameTo( f ) ) {
+			f.delete();
+			if( !tmp.renameTo( f ) )
+				throw new IOException( tmp + ": rename failed" );
+		}
+	}
+
+	private void loadIndex( File f ) throws IOException {
+		DataInputStream dis = new DataInputStream
+			( new BufferedInputStream( new FileInputStream( f ), 1 << 20 ) );
+		try {
+			if( dis.readLong() != MAGIC )
+				throw new IOException( f + ": not a grain pool index" );
+			int version = dis.readInt();
+			if( version > VERSION )
+				throw new IOException( f + ": unsupported version " + version );
+			int keyLength = dis.readInt();
+			if( keyLength != HASHLENGTH )
+				throw new IOException( f + ": key length " + keyLength );
+			long count = dis.readLong();
+			if( count < 0 || count > Integer.MAX_VALUE / 2 )
+				throw new IOException( f + ": corrupt count " + count );
+			index = new GrainIndex( HASHLENGTH, (int)count * 2 );
+			byte[] key = new byte[HASHLENGTH];
+			for( long i = 0; i < count; i++ ) {
+				dis.readFully( key );
+				long location = dis.readLong();
+				int length = dis.readInt();
+				int refs = dis.readInt();
+				int s = index.insert( key, location, length );
+				index.refs( s, refs );
+				references += refs;
+				liveBytes += RECORDHEADER + length;
+			}
+		} finally {
+			dis.close();
+		}
+		log.info( f + ": " + index.size() + " grains" );
+	}
+
+	static private byte[] recordBuffer( int len ) {
+		byte[] result = RECORDS.get();
+		if( result == null || result.length < len ) {
+			result = new byte[len];
+			RECORDS.set( result );
+		}
+		return result;
+	}
+	
+	private final File dir;
+	private final Log log;
+	private final List<FileChannel> packs;
+	private GrainIndex index;
+	private FileChannel appender;
+	private long packLength, packBytes, liveBytes, references;
+
+	// sha-256
+	static public final int HASHLENGTH = 32;
+
+	static private final byte[] ZEROREF = new byte[HASHLENGTH];
+	
+	static private final ManagedDisk.Compressions CODEC =
+		ManagedDisk.Compressions.SNAPPY;
+
+	// hash, flags+stored length, grain length
+	static private final int RECORDHEADER = HASHLENGTH + 4 + 4;
+
+	// A record location is pack number << PACKSHIFT | offset in pack
+	static private final int PACKSHIFT = 40;
+	static private final long OFFSETMASK = (1L << PACKSHIFT) - 1;
+
+	static private final long MAXPACKBYTES = 1L << 30;
+
+	// grains per read when ingesting
+	static private final int BLOCKGRAINS = 16;
+	
+	static private final String INDEXFILE = "index";
+
+	// "TUPELOGP"
+	static private final long MAGIC = 0x545550454c4f4750L;
+	static private final int VERSION = 1;
+
+	static private final ThreadLocal<byte[]> RECORDS =
+		new ThreadLocal<byte[]>();
+}
+
+// eof
@@ -36,22 +36,24 @@ package edu.uw.apl.tupelo.model;
 import java.io.DataInput;
 import java.io.IOException;
 
+/**
+ * One grain table of a StreamOptimizedDisk, as held on the heap by
+ * an eagerly loaded {@link GrainDirectory}.
+ */
 public class GrainTable {
 
-	public GrainTable( DataInput di, int len ) throws IOException {
+	/**
+	 * @param wide - true for 8 byte entries (Version.LAYOUT_64)
+	 */
+	public GrainTable( DataInput di, int len, boolean wide )
+		throws IOException {
 		gtes = new long[len];
 		for( int i = 0; i < gtes.length; i++ )
-			gtes[i] = di.readInt() & 0xffffffffL;
+			gtes[i] = wide ? di.readLong() :
+				GrainDirectory.gteValue( di.readInt() );
 	}
 
 	final long[] gtes;
-
-	// Stored in a managed disk file as a gde == 0
-	//	static final GrainTable ZERO = new GrainTable( null, 0 );
-
-	// Stored in a managed disk file as a gde == -1
-	//static final GrainTable PARENT = new GrainTable( null, 0 );
 }
 
 // eof
-
@@ -33,6 +33,7 @@
  */
 package edu.uw.apl.tupelo.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.DataInput;
 import java.io.DataInputStream;
@@ -44,6 +45,11 @@ import java.io.OutputStream;
 import java.io.FilenameFilter;
 import java.io.FileInputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.util.List;
 import java.util.UUID;
@@ -120,9 +126,76 @@ abstract public class ManagedDisk {
 	public Compressions getCompression() {
 		return header.compressAlgorithm;
 	}
+
+	/**
+	 * Only of use when writing, and only by those managed disk types
+	 * which compress at all.  Not persisted, readers need no such
+	 * knowledge.
+	 *
+	 * @see GrainCodec
+	 */
+	public void setCompressionLevel( int level ) {
+		compressionLevel = level;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
 	
 	abstract public void setParentDigest( ManagedDiskDigest grainHashes );
 
+	/**
+	 * Have writeTo/readFromWriteTo also produce the digest of this
+	 * disk's own grains, as a by-product of the write, rather than a
+	 * store re-reading the managed data afterwards to compute it.
+	 * Supported by FlatDisk and StreamOptimizedDisk.
+	 *
+	 * @see #getDigest
+	 */
+	public void setComputeDigest( boolean b ) {
+		computeDigest = b;
+	}
+
+	/**
+	 * The grain hash algorithm (see GrainHash) of this disk's own
+	 * digest, and of any comparison against a parent digest.  Where
+	 * unset, DIGESTALGORITHM.  A capture refuses to compare against a
+	 * parent digest of some other algorithm, since no grain could
+	 * ever match.
+	 *
+	 * @throws IllegalArgumentException if the algorithm is unknown
+	 */
+	public void setDigestAlgorithm( String algorithm ) {
+		digestAlgorithm = GrainHash.canonical( algorithm );
+	}
+
+	public String getDigestAlgorithm() {
+		return digestAlgorithm == null ? DIGESTALGORITHM : digestAlgorithm;
+	}
+	
+	/**
+	 * @return the digest produced by the last write, if
+	 * setComputeDigest( true ) was called beforehand, else null
+	 */
+	public ManagedDiskDigest getDigest() {
+		return digest;
+	}
+
+	/**
+	 * For use by writeTo/readFromWriteTo implementations
+	 *
+	 * @return a digester if one wanted, else null
+	 */
+	protected GrainDigester newDigester() {
+		digest = null;
+		if( !computeDigest )
+			return null;
+		long gsb = grainSizeBytes();
+		return new GrainDigester( gsb,
+								  (int)(Utils.alignUp( size(), gsb ) / gsb),
+								  getDigestAlgorithm() );
+	}
+
 	/**
 	 * Expected that the parent-child association between ManagedDisks
 	 * is handled by the UUIDs held in the ManagedDisk.Header:
@@ -153,6 +226,71 @@ abstract public class ManagedDisk {
 	abstract public SeekableInputStream getSeekableInputStream()
 		throws IOException;
 
+	/**
+	 * Read the (unmanaged) disk content at offset into dst, as many
+	 * bytes as dst has remaining or the disk has left, whichever is
+	 * fewer.  Unlike the streams, there is no file pointer involved,
+	 * so any number of threads may call this concurrently on the
+	 * same ManagedDisk.  All such reads share one FileChannel onto
+	 * the managed data, see {@link #channel}.
+	 *
+	 * @return bytes read, or -1 if offset is at/past the disk end
+	 */
+	abstract public int readAt( long offset, ByteBuffer dst )
+		throws IOException;
+
+	/**
+	 * The single read-only FileChannel onto our managed data, opened
+	 * on first use.  Positional reads on a FileChannel do not touch
+	 * its position, so need no locking.  Should a reading thread be
+	 * interrupted, the channel is closed under everyone's feet, in
+	 * which case the next caller opens a fresh one.
+	 */
+	protected FileChannel channel() throws IOException {
+		FileChannel result = channel;
+		if( result != null && result.isOpen() )
+			return result;
+		synchronized( this ) {
+			if( channel == null || !channel.isOpen() ) {
+				if( managedData == null )
+					throw new IllegalStateException( "managedData missing" );
+				channel = FileChannel.open( managedData.toPath(),
+											StandardOpenOption.READ );
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Positional read of the managed data (NOT the disk content)
+	 * into dst, until dst is full or we hit eof.
+	 *
+	 * @return bytes read, which is less than dst.remaining() only at eof
+	 */
+	protected int readFully( long position, ByteBuffer dst )
+		throws IOException {
+		int total = 0;
+		int retries = 0;
+		while( dst.hasRemaining() ) {
+			int nin;
+			try {
+				nin = channel().read( dst, position + total );
+			} catch( ClosedByInterruptException cbie ) {
+				// we were the one interrupted, so we give up
+				throw cbie;
+			} catch( ClosedChannelException cce ) {
+				// someone else was interrupted, try on a new channel
+				if( ++retries > CHANNELRETRIES )
+					throw cce;
+				continue;
+			}
+			if( nin < 0 )
+				break;
+			total += nin;
+		}
+		return total;
+	}
+
 	static public ManagedDisk readFrom( File managedDisk ) throws IOException {
 		ManagedDisk result = null;
 		FileInputStream fis = new FileInputStream( managedDisk );
@@ -165,6 +303,10 @@ abstract public class ManagedDisk {
 		case STREAMOPTIMIZED:
 			result = new StreamOptimizedDisk( managedDisk, h );
 			break;
+		case POOLED:
+			// unreadable until given its GrainPool, see setPool
+			result = new PooledDisk( managedDisk, h );
+			break;
 		default:
 			throw new IllegalStateException
 				( managedDisk + ": Unknown ManagedDisk type " + h.type );
@@ -188,6 +330,29 @@ abstract public class ManagedDisk {
 		return header.uuidParent;
 	}
 
+	/**
+	 * Take on the create uuid of an earlier writeTo of this same disk,
+	 * so that writing it again produces the very same bytes, e.g. to
+	 * resume an upload begun by some other ManagedDisk object.  Only
+	 * of use before our own writeTo.
+	 *
+	 * @param sector - the first Header.SIZEOF bytes of that writeTo
+	 *
+	 * @throws IllegalArgumentException if sector is the header of
+	 * some other disk
+	 */
+	public void adoptUUIDCreate( byte[] sector ) throws IOException {
+		Header h = new Header( new ByteArrayInputStream( sector ) );
+		// compared as written, a parsed session keeps only the day
+		if( !h.diskID.equals( header.diskID ) ||
+			!h.session.format().equals( header.session.format() ) ||
+			h.type != header.type ||
+			!h.uuidParent.equals( header.uuidParent ) )
+			throw new IllegalArgumentException
+				( "Not a header of " + getDescriptor() );
+		header.uuidCreate = h.uuidCreate;
+	}
+
 	public long grainSizeBytes() {
 		return header.grainSize * Constants.SECTORLENGTH;
 	}
@@ -215,6 +380,7 @@ abstract public class ManagedDisk {
 		ps.println( "UUID.Create: " + getUUIDCreate() );
 		ps.println( "UUID.Parent: " + getUUIDParent() );
 		ps.println( "Compression: " + getCompression() );
+		ps.println( "Layout: " + header.layout );
 		ps.println( "Param: " + paramString() );
 	}
 	
@@ -242,8 +408,33 @@ abstract public class ManagedDisk {
 			this.numGTEsPerGT = NUMGTESPERGT;
 			this.compressAlgorithm = Compressions.NONE;
 			this.overhead = overhead;
+			this.layout = Version.LAYOUT_32;
+		}
+
+		/**
+		 * The same disk, described anew as some other type, so
+		 * keeping the create uuid, by which any children locate it
+		 */
+		Header( Header h, DiskTypes type ) {
+			this( h, type, h.uuidParent );
 		}
 
+		// As above, but now with some other (or no) parent
+		Header( Header h, DiskTypes type, UUID uuidParent ) {
+			this.version = Version.VERSION;
+			this.type = type;
+			this.diskID = h.diskID;
+			this.session = h.session;
+			this.uuidCreate = h.uuidCreate;
+			this.uuidParent = uuidParent;
+			this.capacity = h.capacity;
+			this.padding = h.padding;
+			this.grainSize = h.grainSize;
+			this.numGTEsPerGT = h.numGTEsPerGT;
+			this.compressAlgorithm = Compressions.NONE;
+			this.layout = h.layout;
+		}
+		
 		Header( InputStream is ) throws IOException {
 			this( (DataInput) new DataInputStream( is ) );
 		}
@@ -300,6 +491,22 @@ abstract public class ManagedDisk {
 			// LOOK: check enum bounds...
 			int compressAlgorithmInt = di.readInt();
 			compressAlgorithm = Compressions.values()[compressAlgorithmInt];
+
+			// Written as 0 before we recorded a layout at all
+			layout = di.readInt();
+			if( layout == 0 )
+				layout = Version.LAYOUT_32;
+			if( layout > Version.LAYOUT )
+				throw new IllegalStateException
+					( "Unsupported layout: " + layout );
+		}
+
+		/**
+		 * @return size in bytes of each grain directory and grain
+		 * table entry, per our layout
+		 */
+		public int entrySizeOf() {
+			return layout == Version.LAYOUT_64 ? 8 : 4;
 		}
 
 		// LOOK: may not need this??
@@ -339,6 +546,7 @@ abstract public class ManagedDisk {
 			dop.writeLong( dataOffset );
 			dop.writeInt( padding );
 			dop.writeInt( compressAlgorithm.ordinal() );
+			dop.writeInt( layout );
 
 			byte[] pad = new byte[SIZEOF - FIELDSIZETOTAL];
 			dop.write( pad );
@@ -354,7 +562,9 @@ abstract public class ManagedDisk {
 		final int version;
 		final DiskTypes type;
 		int flags;
-		final UUID uuidCreate, uuidParent;
+		// not final, see adoptUUIDCreate
+		UUID uuidCreate;
+		final UUID uuidParent;
 		final long capacity, grainSize;
 		int numGTEsPerGT;
 		long gdOffset, rgdOffset;
@@ -365,6 +575,9 @@ abstract public class ManagedDisk {
 		long dataOffset;
 		int padding;
 		Compressions compressAlgorithm;
+
+		// see Version.LAYOUT_32, LAYOUT_64
+		int layout;
 		
 		// almost CODEINE, wot no N
 		static public final int MAGIC = 0xC0DE10E;
@@ -382,7 +595,8 @@ abstract public class ManagedDisk {
 			8 +					// overhead
 			8 +					// data offset
 			4 +					// padding
-			4;					// compressAlgorithm
+			4 +					// compressAlgorithm
+			4;					// layout
 
 		// The number of bytes allocated on disk for a Header
 		static public final int SIZEOF = 512;
@@ -407,10 +621,23 @@ abstract public class ManagedDisk {
 	protected File managedData;		
 
 	protected Log log;
+
+	protected int compressionLevel = COMPRESSIONLEVEL_DEFAULT;
+
+	protected boolean computeDigest;
+	protected ManagedDiskDigest digest;
+	protected String digestAlgorithm;
+	
+	private volatile FileChannel channel;
 	
-	public enum DiskTypes { ERROR, FLAT, STREAMOPTIMIZED };
+	// Append only: the ordinal is what is stored in the Header
+	public enum DiskTypes { ERROR, FLAT, STREAMOPTIMIZED, POOLED };
 	
-	public enum Compressions { NONE, DEFLATE, GZIP, SNAPPY };
+	// Append only: the ordinal is what is stored in the Header
+	public enum Compressions { NONE, DEFLATE, GZIP, SNAPPY, LZ4, ZSTD };
+
+	// Whatever each algorithm itself considers its default
+	static public final int COMPRESSIONLEVEL_DEFAULT = -1;
 
 	// Tupelo Managed Disk == tmd
 	static public final String FILESUFFIX = ".tmd";
@@ -433,6 +660,8 @@ abstract public class ManagedDisk {
 	  a managed disk.
 	*/
 	static public final String DIGESTALGORITHM = "md5";
+
+	static private final int CHANNELRETRIES = 3;
 	
 }
 
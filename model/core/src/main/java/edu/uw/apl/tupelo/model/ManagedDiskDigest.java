@@ -35,56 +35,265 @@ package edu.uw.apl.tupelo.model;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
-
+/**
+ * @author Stuart Maclean
+ *
+ * A hash per grain of some ManagedDisk, in grain order, so that a
+ * subsequent capture of the same unmanaged disk can skip any grain
+ * whose content is unchanged (see setParentDigest).
+ *
+ * Hashes are held packed, hashLength() bytes per grain, and NOT as a
+ * byte[] object per grain.  A 2TB disk of 64K grains has 32M of them.
+ * The packing is into chunks of CHUNKLENGTH bytes, each a whole number
+ * of hashes, so no hash straddles two chunks and no byte offset need
+ * fit an int.  An 8TB disk's md5s alone would be more than a single
+ * array can hold.
+ *
+ * Two on-disk forms: the original, one hex-encoded hash per line, and
+ * a binary form, a fixed HEADERLENGTH header then the packed hashes.
+ * The binary form can be memory-mapped instead of read, see
+ * readFrom( File ), which accepts either form.
+ *
+ * @see StreamOptimizedDisk
+ */
 public class ManagedDiskDigest {
 
 	public ManagedDiskDigest( int bins ) {
-		grainHashes = new ArrayList<byte[]>( bins );
+		this( bins, ManagedDisk.DIGESTALGORITHM );
+	}
+
+	/**
+	 * @param algorithm - that which computed the hashes to be added,
+	 * see GrainHash
+	 */
+	public ManagedDiskDigest( int bins, String algorithm ) {
+		this.bins = bins;
+		this.algorithm = GrainHash.canonical( algorithm );
 	}
 
 	public ManagedDiskDigest() {
 		this( 1024 );
 	}
 
+	/**
+	 * Hashes already packed, chunkHashes to each chunk, as by
+	 * sized().  Chunks may be shared, as a test of a vast digest does.
+	 */
+	ManagedDiskDigest( byte[][] chunks, int chunkHashes, int hashLength,
+					   int count, String algorithm ) {
+		this( count, algorithm );
+		this.chunks = chunks;
+		this.chunkHashes = chunkHashes;
+		this.hashLength = hashLength;
+		this.count = count;
+	}
+
+	/**
+	 * For DigestEngine, which fills the chunks directly, each hash at
+	 * chunk( i ), offset( i )
+	 */
+	static ManagedDiskDigest sized( int count, int hashLength,
+									String algorithm ) {
+		int chunkHashes = chunkHashes( hashLength );
+		byte[][] chunks = new byte[chunksFor( count, chunkHashes )][];
+		for( int c = 0; c < chunks.length; c++ ) {
+			int n = Math.min( chunkHashes, count - c * chunkHashes );
+			chunks[c] = new byte[n * hashLength];
+		}
+		return new ManagedDiskDigest( chunks, chunkHashes, hashLength,
+									  count, algorithm );
+	}
+
 	public void add( byte[] ba ) {
-		//byte[] copy = new byte[ba.length];
-		//System.arraycopy( ba, 0, copy, 0, ba.length );
-		grainHashes.add( ba );
+		if( chunks == null ) {
+			hashLength = ba.length;
+			chunkHashes = chunkHashes( hashLength );
+			chunks = new byte[chunksFor( Math.max( bins, 1 ), chunkHashes )][];
+		}
+		if( ba.length != hashLength )
+			throw new IllegalArgumentException( "Hash length " + ba.length +
+												" != " + hashLength );
+		if( count == Integer.MAX_VALUE )
+			throw new IllegalStateException( "Digest full" );
+		int c = count / chunkHashes;
+		int offset = offset( count );
+		if( c == chunks.length )
+			chunks = Arrays.copyOf( chunks, Math.max( 2 * c, c + 1 ) );
+		byte[] chunk = chunks[c];
+		if( chunk == null || offset + hashLength > chunk.length ) {
+			// Only a first chunk starts short, sized by bins, then grows
+			long full = (long)chunkHashes * hashLength;
+			long grown = chunk == null ?
+				(c == 0 ? (long)Math.max( bins, 1 ) * hashLength : full) :
+				Math.max( 2L * chunk.length, offset + hashLength );
+			int len = (int)Math.min( grown, full );
+			chunk = chunk == null ? new byte[len] : Arrays.copyOf( chunk, len );
+			chunks[c] = chunk;
+		}
+		System.arraycopy( ba, 0, chunk, offset, hashLength );
+		count++;
 	}
 
+	/**
+	 * @return a copy of the i'th hash.  Comparing a candidate hash is
+	 * better done by matches(), which allocates nothing.
+	 */
 	public byte[] get( int i ) {
-		return grainHashes.get(i);
+		checkIndex( i );
+		byte[] result = new byte[hashLength];
+		copyTo( i, result, 0 );
+		return result;
 	}
 
+	/**
+	 * @return true if i is a valid index and hash equals our i'th
+	 * hash.  An out-of-range index is no match, as happens when
+	 * comparing against a digest of a smaller parent disk.
+	 */
+	public boolean matches( int i, byte[] hash ) {
+		if( i < 0 || i >= count || hash.length != hashLength )
+			return false;
+		byte[] chunk = chunk( i );
+		int offset = offset( i );
+		for( int b = 0; b < hashLength; b++ ) {
+			if( chunk[offset+b] != hash[b] )
+				return false;
+		}
+		return true;
+	}
+	
 	public int size() {
-		return grainHashes.size();
+		return count;
+	}
+
+	/**
+	 * @return the length in bytes of each hash, 0 if we have none
+	 */
+	public int hashLength() {
+		return hashLength;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * A digest of this digest: one hash, by our algorithm, over each
+	 * run of grainsPerTable grain hashes, the last run possibly
+	 * shorter.  Equal table hashes mean (barring collision) equal
+	 * grain hashes across the whole table, so two digests can be
+	 * compared a table at a time without either being sent in full.
+	 *
+	 * @see DigestDelta
+	 */
+	public ManagedDiskDigest tableDigest( int grainsPerTable ) {
+		int tables = chunksFor( count, grainsPerTable );
+		ManagedDiskDigest result = new ManagedDiskDigest( tables, algorithm );
+		MessageDigest md = GrainHash.create( algorithm );
+		byte[] gh = new byte[hashLength];
+		for( int t = 0; t < tables; t++ ) {
+			int from = t * grainsPerTable;
+			int to = (int)Math.min( (long)from + grainsPerTable, count );
+			for( int i = from; i < to; i++ ) {
+				copyTo( i, gh, 0 );
+				md.update( gh );
+			}
+			result.add( md.digest() );
+		}
+		return result;
+	}
+
+	/**
+	 * @return the grain hashes of just the listed tables, in the
+	 * order listed, runs of grainsPerTable as for tableDigest
+	 */
+	public ManagedDiskDigest select( int[] tables, int grainsPerTable ) {
+		long bins = Math.min( (long)tables.length * grainsPerTable, count );
+		ManagedDiskDigest result = new ManagedDiskDigest
+			( (int)bins, algorithm );
+		byte[] gh = new byte[hashLength];
+		for( int t : tables ) {
+			int from = t * grainsPerTable;
+			checkIndex( from );
+			int to = (int)Math.min( (long)from + grainsPerTable, count );
+			for( int i = from; i < to; i++ ) {
+				copyTo( i, gh, 0 );
+				result.add( gh );
+			}
+		}
+		return result;
 	}
 	
+	/**
+	 * The original, text, form: one hex-encoded hash per line
+	 */
 	public void writeTo( Writer w ) throws IOException {
 		BufferedWriter bw = new BufferedWriter( w, 1 << 20 );
 		PrintWriter pw = new PrintWriter( bw );
-		for( byte[] gh : grainHashes ) {
+		byte[] gh = new byte[hashLength];
+		for( int i = 0; i < count; i++ ) {
+			copyTo( i, gh, 0 );
 			String hashHex = new String( Hex.encodeHex( gh ) );
 			pw.println( hashHex );
 		}
 		pw.close();
 	}
 
+	/**
+	 * The binary form: header then packed hashes.  The stream is
+	 * flushed, not closed.
+	 */
+	public void writeTo( OutputStream os ) throws IOException {
+		DataOutputStream dos = new DataOutputStream( os );
+		byte[] header = new byte[HEADERLENGTH];
+		ByteBuffer bb = ByteBuffer.wrap( header );
+		bb.putLong( MAGIC );
+		bb.putInt( VERSION );
+		bb.putInt( hashLength );
+		bb.putLong( count );
+		byte[] name = algorithm.getBytes( StandardCharsets.US_ASCII );
+		bb.put( name, 0, Math.min( name.length, ALGORITHMLENGTH ) );
+		dos.write( header );
+		writeHashes( dos );
+		dos.flush();
+	}
+
+	/**
+	 * The text form records no algorithm.  It predates any but md5,
+	 * so md5 is assumed.
+	 */
 	static public ManagedDiskDigest readFrom( Reader r ) throws IOException {
-		ManagedDiskDigest result = new ManagedDiskDigest( 1024 );
+		return readFrom( r, ManagedDisk.DIGESTALGORITHM );
+	}
+
+	/**
+	 * @param algorithm - that which the text was known to be produced by
+	 */
+	static public ManagedDiskDigest readFrom( Reader r, String algorithm )
+		throws IOException {
+		ManagedDiskDigest result = new ManagedDiskDigest( 1024, algorithm );
 		BufferedReader br = new BufferedReader( r );
 		String line = null;
 		while( (line = br.readLine()) != null ) {
@@ -99,7 +308,240 @@ public class ManagedDiskDigest {
 		return result;
 	}
 
-	private final List<byte[]> grainHashes;
+	/**
+	 * The binary form off a stream, e.g. an http response, so read
+	 * into the heap.  The stream is not closed.
+	 */
+	static public ManagedDiskDigest readFrom( InputStream is )
+		throws IOException {
+		DataInputStream dis = new DataInputStream( is );
+		byte[] header = new byte[HEADERLENGTH];
+		dis.readFully( header );
+		ManagedDiskDigest h = fromHeader( ByteBuffer.wrap( header ),
+										  "stream" );
+		ManagedDiskDigest result = new ManagedDiskDigest( h.count,
+														  h.algorithm );
+		byte[] gh = new byte[h.hashLength];
+		for( int i = 0; i < h.count; i++ ) {
+			dis.readFully( gh );
+			result.add( gh );
+		}
+		return result;
+	}
+
+	/**
+	 * Load a digest file of either form.  A binary file is mapped,
+	 * not read, so costs no heap at all.  A hex file is read.
+	 */
+	static public ManagedDiskDigest readFrom( File f ) throws IOException {
+		if( isBinary( f ) )
+			return map( f );
+		FileReader fr = new FileReader( f );
+		try {
+			return readFrom( fr );
+		} finally {
+			fr.close();
+		}
+	}
+
+	static public ManagedDiskDigest map( File f ) throws IOException {
+		return map( f, MAPLENGTH );
+	}
+
+	/**
+	 * The hashes are mapped in segments of at most segmentLength
+	 * bytes, each a whole number of hashes, since one mapping is
+	 * limited to 2GB.
+	 */
+	static ManagedDiskDigest map( File f, int segmentLength )
+		throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			FileChannel fc = raf.getChannel();
+			long length = fc.size();
+			if( length < HEADERLENGTH )
+				throw new EOFException( f + ": no digest header" );
+			ByteBuffer header = ByteBuffer.allocate( HEADERLENGTH );
+			while( header.hasRemaining() )
+				if( fc.read( header, header.position() ) < 0 )
+					throw new EOFException( f + ": no digest header" );
+			ManagedDiskDigest h = fromHeader( header, f.toString() );
+			if( length < HEADERLENGTH + (long)h.count * h.hashLength )
+				throw new EOFException( f + ": truncated digest" );
+			int segmentHashes = h.hashLength == 0 ? 1 :
+				Math.max( 1, segmentLength / h.hashLength );
+			ByteBuffer[] segments =
+				new ByteBuffer[chunksFor( h.count, segmentHashes )];
+			for( int s = 0; s < segments.length; s++ ) {
+				int n = Math.min( segmentHashes, h.count - s * segmentHashes );
+				long start = HEADERLENGTH +
+					(long)s * segmentHashes * h.hashLength;
+				segments[s] = fc.map( FileChannel.MapMode.READ_ONLY, start,
+									  (long)n * h.hashLength );
+			}
+			return new Mapped( h, segments, segmentHashes );
+		} finally {
+			// the mappings outlive the channel
+			raf.close();
+		}
+	}
+
+	static boolean isBinary( File f ) throws IOException {
+		if( f.length() < HEADERLENGTH )
+			return false;
+		DataInputStream dis = new DataInputStream
+			( new FileInputStream( f ) );
+		try {
+			return dis.readLong() == MAGIC;
+		} finally {
+			dis.close();
+		}
+	}
+
+	static private ManagedDiskDigest fromHeader( ByteBuffer bb,
+												 String source )
+		throws IOException {
+		if( bb.getLong( 0 ) != MAGIC )
+			throw new IOException( source + ": not a binary digest" );
+		int version = bb.getInt( 8 );
+		if( version > VERSION )
+			throw new IOException( source + ": unsupported digest version " +
+										version );
+		int hashLength = bb.getInt( 12 );
+		long count = bb.getLong( 16 );
+		if( hashLength < 0 || count < 0 || count > Integer.MAX_VALUE )
+			throw new IOException( source + ": corrupt digest header" );
+		byte[] name = new byte[ALGORITHMLENGTH];
+		for( int i = 0; i < name.length; i++ )
+			name[i] = bb.get( 24 + i );
+		int len = 0;
+		while( len < name.length && name[len] != 0 )
+			len++;
+		ManagedDiskDigest result = new ManagedDiskDigest( 0 );
+		result.hashLength = hashLength;
+		result.count = (int)count;
+		result.algorithm = new String( name, 0, len,
+									   StandardCharsets.US_ASCII );
+		return result;
+	}
+	
+	protected void copyTo( int i, byte[] dst, int dstOffset ) {
+		System.arraycopy( chunk( i ), offset( i ), dst, dstOffset,
+						  hashLength );
+	}
+
+	protected void writeHashes( DataOutputStream dos ) throws IOException {
+		for( int c = 0; (long)c * chunkHashes < count; c++ ) {
+			int n = Math.min( chunkHashes, count - c * chunkHashes );
+			dos.write( chunks[c], 0, n * hashLength );
+		}
+	}
+
+	// The chunk holding hash i, see offset
+	byte[] chunk( int i ) {
+		return chunks[i / chunkHashes];
+	}
+
+	// Where in its chunk hash i starts
+	int offset( int i ) {
+		return (i % chunkHashes) * hashLength;
+	}
+
+	static private int chunkHashes( int hashLength ) {
+		return hashLength == 0 ? 1 : Math.max( 1, CHUNKLENGTH / hashLength );
+	}
+
+	// How many chunks (or segments) of perChunk hashes hold count
+	static private int chunksFor( int count, int perChunk ) {
+		return (int)(((long)count + perChunk - 1) / perChunk);
+	}
+	
+	protected void checkIndex( int i ) {
+		if( i < 0 || i >= count )
+			throw new IndexOutOfBoundsException( i + " / " + count );
+	}
+
+	/**
+	 * A binary digest file, mapped, segmentHashes hashes to each
+	 * segment.  Hashes are read via absolute gets on the shared
+	 * buffers, so concurrent readers are safe.  Read-only, add() is
+	 * not supported.
+	 */
+	static class Mapped extends ManagedDiskDigest {
+		Mapped( ManagedDiskDigest header, ByteBuffer[] segments,
+				int segmentHashes ) {
+			super( 0 );
+			hashLength = header.hashLength;
+			count = header.count;
+			algorithm = header.algorithm;
+			this.segments = segments;
+			this.segmentHashes = segmentHashes;
+		}
+
+		@Override
+		public void add( byte[] ba ) {
+			throw new IllegalStateException( "Mapped digest is read-only" );
+		}
+
+		@Override
+		public boolean matches( int i, byte[] hash ) {
+			if( i < 0 || i >= count || hash.length != hashLength )
+				return false;
+			ByteBuffer bb = segments[i / segmentHashes];
+			int offset = (i % segmentHashes) * hashLength;
+			for( int b = 0; b < hashLength; b++ ) {
+				if( bb.get( offset+b ) != hash[b] )
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		protected void copyTo( int i, byte[] dst, int dstOffset ) {
+			ByteBuffer bb = segments[i / segmentHashes];
+			int offset = (i % segmentHashes) * hashLength;
+			for( int b = 0; b < hashLength; b++ )
+				dst[dstOffset+b] = bb.get( offset+b );
+		}
+
+		@Override
+		protected void writeHashes( DataOutputStream dos )
+			throws IOException {
+			byte[] gh = new byte[hashLength];
+			for( int i = 0; i < count; i++ ) {
+				copyTo( i, gh, 0 );
+				dos.write( gh );
+			}
+		}
+		
+		private final ByteBuffer[] segments;
+		private final int segmentHashes;
+	}
+
+	private final int bins;
+	private byte[][] chunks;
+	private int chunkHashes;
+	protected int hashLength;
+	protected int count;
+	protected String algorithm;
+	
+	/*
+	  Binary header: magic (8), version (4), hashLength (4), count (8),
+	  algorithm name, US-ASCII, nul-padded (16), then reserved.
+	*/
+	static public final int HEADERLENGTH = 64;
+
+	static private final long MAGIC = 0x545550454c4f4447L; // "TUPELODG"
+
+	static private final int VERSION = 1;
+	
+	static private final int ALGORITHMLENGTH = 16;
+
+	// Most bytes of hashes in one chunk, on the heap
+	static private final int CHUNKLENGTH = 1 << 24;
+
+	// Most bytes of hashes in one mapped segment
+	static private final int MAPLENGTH = 1 << 30;
 }
 
 // eof
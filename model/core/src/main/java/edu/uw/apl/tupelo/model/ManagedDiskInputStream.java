@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A SeekableInputStream which is nothing more than a file pointer
+ * over {@link ManagedDisk#readAt}.  It holds no file handle, buffers
+ * or grain state of its own, so any number of these can be open on
+ * the same ManagedDisk (e.g. one per fuse open() call) and all
+ * share that disk's single FileChannel.
+ *
+ * @see ManagedDisk#readAt
+ */
+
+public class ManagedDiskInputStream extends SeekableInputStream {
+
+	public ManagedDiskInputStream( ManagedDisk md ) {
+		super( md.size() );
+		this.md = md;
+	}
+
+	@Override
+	public void seek( long s ) throws IOException {
+		// as for java.io.RandomAccessFile, no restriction on seek
+		posn = s;
+	}
+
+	/**
+	   Like the other SeekableInputStreams, we satisfy the length
+	   requested if the data is there, which fuse requires.  readAt
+	   already does that for us.
+	*/
+	@Override
+	public int readImpl( byte[] ba, int off, int len ) throws IOException {
+		int nin = md.readAt( posn, ByteBuffer.wrap( ba, off, len ) );
+		if( nin > 0 )
+			posn += nin;
+		return nin;
+	}
+
+	private final ManagedDisk md;
+}
+
+// eof
@@ -0,0 +1,210 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A managed disk whose grains are held not in its own file but in a
+ * GrainPool shared by many disks, each distinct grain stored once
+ * whatever the number of disks containing it.  The disk's own file is
+ * then just a Header and a reference table: the pool key (hash) of
+ * each grain, in grain order, all zeros for a zero grain (which the
+ * pool never stores).
+ *
+ * A PooledDisk holds ALL its own grains, by reference, so needs no
+ * parent for reading, though it keeps its parent uuid, for lineage.
+ * It is made only by GrainPool.ingest, from some other managed disk,
+ * never captured directly.  Once read back from a store, it is
+ * unreadable until given its pool, see setPool.
+ *
+ * @see GrainPool
+ */
+public class PooledDisk extends ManagedDisk {
+
+	public PooledDisk( File managedData, Header h ) {
+		super( null, managedData );
+		header = h;
+	}
+
+	PooledDisk( File managedData, Header h, GrainPool pool ) {
+		this( managedData, h );
+		this.pool = pool;
+	}
+
+	// As for a StreamOptimizedDisk, from which we are likely made
+	@Override
+	public long size() {
+		return header.capacity * Constants.SECTORLENGTH - header.padding;
+	}
+
+	public void setPool( GrainPool pool ) {
+		this.pool = pool;
+	}
+
+	public GrainPool getPool() {
+		return pool;
+	}
+	
+	@Override
+	public void setParentDigest( ManagedDiskDigest grainHashes ) {
+	}
+
+	// Kept only as the store links it, we never read from it
+	@Override
+	public void setParent( ManagedDisk md ) {
+		parent = md;
+	}
+
+	@Override
+	public void reportMetaData() throws IOException {
+		log.info( "Grains: " + grainCount() );
+		log.info( "Pool: " + pool );
+	}
+
+	@Override
+	public void writeTo( OutputStream os ) throws IOException {
+		throw new IllegalStateException
+			( getClass() + ": made only by GrainPool.ingest" );
+	}
+
+	@Override
+	public void readFromWriteTo( InputStream is, OutputStream os )
+		throws IOException {
+		throw new IllegalStateException
+			( getClass() + ": made only by GrainPool.ingest" );
+	}
+
+	/**
+	 * We can check only that the reference table is complete, the
+	 * pool vouches for the grains themselves
+	 *
+	 * @throws IllegalStateException
+	 */
+	@Override
+	public void verify() throws IOException {
+		if( managedData == null )
+			throw new IllegalStateException( "Verify failed. noManagedData" );
+		long expected = header.dataOffset +
+			(long)grainCount() * GrainPool.HASHLENGTH;
+		if( managedData.length() != expected )
+			throw new IllegalStateException( "Verify failed: " +
+											 managedData.length() + " != " +
+											 expected );
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getSeekableInputStream();
+	}
+
+	@Override
+	public SeekableInputStream getSeekableInputStream() throws IOException {
+		if( managedData == null )
+			throw new IllegalStateException( "managedData missing" );
+		return new ManagedDiskInputStream( this );
+	}
+
+	/**
+	 * Each grain touched costs one read of its pool record, the
+	 * references for all of them being read at once
+	 */
+	@Override
+	public int readAt( long offset, ByteBuffer dst ) throws IOException {
+		if( offset < 0 )
+			throw new IllegalArgumentException( "Offset: " + offset );
+		if( pool == null )
+			throw new IllegalStateException( getDescriptor() + ": no pool" );
+		long size = size();
+		if( offset >= size )
+			return -1;
+		int len = (int)Math.min( dst.remaining(), size - offset );
+		if( len == 0 )
+			return 0;
+		int gsb = (int)grainSizeBytes();
+		long first = offset / gsb;
+		long last = (offset + len - 1) / gsb;
+		int hl = GrainPool.HASHLENGTH;
+		byte[] refs = new byte[(int)(last - first + 1) * hl];
+		int nin = readFully( header.dataOffset + first * hl,
+							 ByteBuffer.wrap( refs ) );
+		if( nin < refs.length )
+			throw new IOException( managedData + ": truncated references" );
+		byte[] grain = grainBuffer( gsb );
+		byte[] hash = new byte[hl];
+		int total = 0;
+		for( long g = first; g <= last; g++ ) {
+			int within = (int)(offset + total - g * gsb);
+			int n = Math.min( len - total, gsb - within );
+			int r = (int)(g - first) * hl;
+			if( ZeroScan.isZero( refs, r, hl ) ) {
+				for( int i = 0; i < n; i++ )
+					dst.put( (byte)0 );
+			} else {
+				System.arraycopy( refs, r, hash, 0, hl );
+				pool.read( hash, grain );
+				dst.put( grain, within, n );
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	int grainCount() {
+		long gsb = grainSizeBytes();
+		return (int)(Utils.alignUp( size(), gsb ) / gsb);
+	}
+
+	static private byte[] grainBuffer( int len ) {
+		byte[] result = GRAINS.get();
+		if( result == null || result.length < len ) {
+			result = new byte[len];
+			GRAINS.set( result );
+		}
+		return result;
+	}
+	
+	private GrainPool pool;
+	private ManagedDisk parent;
+
+	static private final ThreadLocal<byte[]> GRAINS = new ThreadLocal<byte[]>();
+}
+
+// eof
@@ -38,31 +38,45 @@ import java.io.ByteArrayOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.zip.Deflater;;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FileUtils;
 
-import org.xerial.snappy.Snappy;
-
 /**
  * @author Stuart Maclean
  *
@@ -79,7 +93,8 @@ import org.xerial.snappy.Snappy;
  * group of such tables are laid out in a 'grain directory'.
  *
  * A default compression algorithm (DEFLATE) can be altered via call
- * to ManagedDisk.setCompression().
+ * to ManagedDisk.setCompression(), and its level, where it has one,
+ * via ManagedDisk.setCompressionLevel().
  *
  * A tricky part of all this is when a Unmanaged disk size is not a
  * whole number of the chosen grain size.  Imagine a (tiny!) disk of
@@ -194,6 +209,34 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		header.padding = padding;
 		header.dataOffset = Header.SIZEOF;
 		header.compressAlgorithm = Compressions.DEFLATE;
+
+		/*
+		  4 byte grain table entries locate grains only in the first
+		  2TB of managed data.  Even uncompressible data costs us
+		  little more than its own size, so leave 4 byte entries to
+		  disks under half that.
+		*/
+		if( capacityGrains >= LAYOUT_32_LIMIT / 2 )
+			header.layout = Version.LAYOUT_64;
+	}
+
+	/**
+	 * A rewrite of managed disk md, e.g. to shorten its chain of
+	 * parents.  The result is the same disk in identity (descriptor,
+	 * create uuid) as well as content, so any children of md may use
+	 * it in md's place.  With parentUUID NULLUUID all grains are
+	 * stored.  Else grains matching a parent digest (of the disk of
+	 * that uuid, see setParentDigest) are left to that parent.
+	 */
+	public StreamOptimizedDisk( ManagedDisk md, UUID parentUUID ) {
+		super( new Rewrite( md ), null );
+		header = new Header( md.header, DiskTypes.STREAMOPTIMIZED,
+							 parentUUID );
+		header.dataOffset = Header.SIZEOF;
+		header.overhead = 1;
+		header.compressAlgorithm =
+			md.header.compressAlgorithm == Compressions.NONE ?
+			Compressions.DEFLATE : md.header.compressAlgorithm;
 	}
 
 	/**
@@ -292,6 +335,129 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		log.info( "GrainTableCount: " + grainTableCount );
 		
 		long[] grainDirectory = new long[grainTableCount];
+
+		/*
+		  We maintain written count in long space. DataOutputStream.size()
+		  maintains only in int space, pah!  The header is already written,
+		  above.
+		*/
+		long written = Header.SIZEOF;
+
+		if( parentDigest != null &&
+			!GrainHash.same( parentDigest.getAlgorithm(),
+							 getDigestAlgorithm() ) )
+			throw new IllegalStateException
+				( "Parent digest algorithm " + parentDigest.getAlgorithm() +
+				  " != " + getDigestAlgorithm() );
+		
+		GrainDigester digester = newDigester();
+		if( captureThreads > 1 ) {
+			CapturePipeline cp = new CapturePipeline( captureThreads );
+			written = cp.run( is, dos, grainDirectory, written, digester );
+		} else {
+			written = capture( is, dos, grainDirectory, written, digester );
+		}
+		if( digester != null )
+			digest = digester.finish();
+
+		written = writeTrailer( dos, grainDirectory, written );
+
+		log.info( "Written " + written );
+		dos.flush();
+		is.close();
+		//dos.close();
+	}
+
+	/**
+	 * Set the number of worker threads used to zero-check, digest
+	 * and compress grains in readFromWriteTo.  The default of 1 does
+	 * all the work on the calling thread.  Any larger value selects
+	 * the CapturePipeline, which overlaps the unmanaged data read with
+	 * grain compression, useful when capturing large disks with a cpu
+	 * hungry algorithm like DEFLATE.  The managed data produced is
+	 * identical either way.
+	 */
+	public void setCaptureThreads( int n ) {
+		if( n < 1 )
+			throw new IllegalArgumentException( "Capture threads: " + n );
+		captureThreads = n;
+	}
+
+	public int getCaptureThreads() {
+		return captureThreads;
+	}
+
+	/**
+	 * A grain whose compressed size is more than this fraction of
+	 * its original size is stored raw instead, in which case readers
+	 * just copy it.  The default is RAWTHRESHOLD_DEFAULT, i.e. if
+	 * compression cannot save 5%, don't bother.  0 disables raw
+	 * grains altogether, e.g. for managed data to be read by
+	 * versions of this code predating them.
+	 */
+	public void setRawThreshold( double ratio ) {
+		if( ratio < 0 || ratio > 1 )
+			throw new IllegalArgumentException( "Raw threshold: " + ratio );
+		rawThreshold = ratio;
+	}
+
+	public double getRawThreshold() {
+		return rawThreshold;
+	}
+
+	/**
+	 * A grain table all of whose grains match the parent digest is
+	 * normally not written at all, its grain directory entry saying
+	 * PARENT instead.  A whole 32MB (default grain size) table then
+	 * costs 4 or 8 bytes.  Pass false to write such tables out in
+	 * full, e.g. for managed data to be read by versions of this code
+	 * predating PARENT entries.
+	 */
+	public void setParentGDEs( boolean b ) {
+		parentGDEs = b;
+	}
+
+	public boolean getParentGDEs() {
+		return parentGDEs;
+	}
+
+	/**
+	 * Override the file layout chosen at construction time (from the
+	 * disk size), e.g. to write a small disk with 8 byte grain table
+	 * entries.
+	 *
+	 * @param layout - Version.LAYOUT_32 or Version.LAYOUT_64
+	 */
+	public void setLayout( int layout ) {
+		if( layout != Version.LAYOUT_32 && layout != Version.LAYOUT_64 )
+			throw new IllegalArgumentException( "Layout: " + layout );
+		if( layout == Version.LAYOUT_32 &&
+			header.capacity >= LAYOUT_32_LIMIT / 2 )
+			throw new IllegalArgumentException
+				( "Too large for LAYOUT_32: " + header.capacity );
+		header.layout = layout;
+	}
+
+	public int getLayout() {
+		return header.layout;
+	}
+	
+	/**
+	 * The single-threaded capture: read, zero-check, digest compare,
+	 * compress and write each grain in turn.  Writes all grains and
+	 * grain tables, filling in the grain directory as it goes.
+	 *
+	 * @param digester - if non-null, is handed every grain's hash,
+	 * so building our own digest
+	 *
+	 * @return updated managed data byte count
+	 */
+	private long capture( InputStream is, DataOutputStream dos,
+						  long[] grainDirectory, long written,
+						  GrainDigester digester )
+		throws IOException {
+
+		long grainCount = header.capacity / header.grainSize;
 		long[] grainTable = new long[header.numGTEsPerGT];
 		int gdIndex = 0;
 		int gtIndex = 0;
@@ -299,31 +465,21 @@ public class StreamOptimizedDisk extends ManagedDisk {
 
 		long zeroGDEs = 0;
 		long zeroGTEs = 0;
+		long parentGDEs = 0;
 		long parentGTEs = 0;
+		long rawGrains = 0;
 		int digestIndex = 0;
 		
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance( DIGESTALGORITHM );
-		} catch( NoSuchAlgorithmException never ) {
-		}
+		MessageDigest md = GrainHash.create( getDigestAlgorithm() );
 
-		/*
-		  We maintain written count in long space. DataOutputStream.size()
-		  maintains only in int space, pah!  The header is already written,
-		  above.
-		*/
-		long written = Header.SIZEOF;
 		byte[] readBuffer = null;
+		boolean[] zeroFlags = new boolean[header.numGTEsPerGT];
 		
-		// In pathological cases, the compression expands the input!
-		byte[] compressedGrainBuffer = new byte[(int)(2*grainSizeBytes)];
+		GrainCodec codec = GrainCodec.create( header.compressAlgorithm,
+											  compressionLevel );
+		byte[] compressedGrainBuffer =
+			codec.compressBuffer( (int)grainSizeBytes );
 
-		/*
-		  So that all data structures line up on a sector boundary in the
-		  managed file, we pad where necessary (so use a subset of this)
-		*/
-		byte[] padding = new byte[Constants.SECTORLENGTH];
 		/*
 		  Remember: any offset in a GD or GT is an offset (in sectors)
 		  into the _managed_ data file.  The 'lba' values assigned to
@@ -344,42 +500,38 @@ public class StreamOptimizedDisk extends ManagedDisk {
 					throw new IllegalStateException( "Partial read!" );
 				gtIndex = 0;
 
-				if( true ) {
-					// The whole grain table could be zeros...
-					boolean allZeros = true;
-					for( int b = 0; b < readBuffer.length; b++ ) {
-						if( readBuffer[b] != 0 ) {
-							//		log.debug( "!Zero GD at " + b );
-							allZeros = false;
-							break;
-						}
-					}
-					if( allZeros ) {
-						zeroGDEs++;
-						log.debug( "Zero GDE at " + gdIndex );
-						grainDirectory[gdIndex] = 0;
-						gdIndex++;
-						lba += header.grainSize * header.numGTEsPerGT;
-						digestIndex += header.numGTEsPerGT;
-						continue;
+				/*
+				  One pass over the table finds its zero grains, and
+				  if they are all zero, so is the whole table...
+				*/
+				int zeroGrains = ZeroScan.scan( readBuffer, 0,
+												readBuffer.length,
+												(int)grainSizeBytes,
+												zeroFlags );
+				if( zeroGrains == grainTable.length ) {
+					zeroGDEs++;
+					log.debug( "Zero GDE at " + gdIndex );
+					grainDirectory[gdIndex] = 0;
+					gdIndex++;
+					lba += header.grainSize * header.numGTEsPerGT;
+					digestIndex += header.numGTEsPerGT;
+					if( digester != null ) {
+						for( int g = 0; g < grainTable.length; g++ )
+							digester.zero();
 					}
+					continue;
 				}
 				
 				// Some grains in the table could be zeros...
+				int tableParents = 0;
 				for( int g = 0; g < grainTable.length; g++ ) {
 					int offset = (int)(grainSizeBytes * g);
 					log.debug( "GT Offset " + offset );
-					boolean allZeros = true;
-					for( int b = 0; b < grainSizeBytes; b++ ) {
-						if( readBuffer[offset+b] != 0 ) {
-							//log.debug( "!Zero GT at " + b );
-							allZeros = false;
-							break;
-						}
-					}
-					if( allZeros ) {
+					if( zeroFlags[g] ) {
 						zeroGTEs++;
 						digestIndex++;
+						if( digester != null )
+							digester.zero();
 						log.debug( "Zero GT at " + gdIndex + " " + gtIndex );
 						grainTable[gtIndex] = 0;
 						gtIndex++;
@@ -392,13 +544,19 @@ public class StreamOptimizedDisk extends ManagedDisk {
 					  compare.  If compare satisfied, record such and
 					  move on
 					*/
+					byte[] hash = null;
+					if( digester != null )
+						hash = digester.grain( readBuffer, offset );
 					if( parentDigest != null ) {
-						md.reset();
-						md.update( readBuffer, offset, (int)grainSizeBytes );
-						byte[] hash = md.digest();
-						byte[] parent = parentDigest.get( digestIndex );
-						if( MessageDigest.isEqual( hash, parent ) ) {
+						if( hash == null ) {
+							md.reset();
+							md.update( readBuffer, offset,
+									   (int)grainSizeBytes );
+							hash = md.digest();
+						}
+						if( parentDigest.matches( digestIndex, hash ) ) {
 							parentGTEs++;
+							tableParents++;
 							grainTable[gtIndex] = -1;
 							gtIndex++;
 							digestIndex++;
@@ -409,7 +567,7 @@ public class StreamOptimizedDisk extends ManagedDisk {
 
 					// Grain content do not match parent grain. Compress,store
 					int compressedLength =
-						compressGrain( readBuffer, offset, (int)grainSizeBytes,
+						compressGrain( codec, readBuffer, offset,
 									   compressedGrainBuffer );
 					log.debug( "Deflating " + gt + " "+ g +
 								  " = " + compressedLength );
@@ -420,50 +578,38 @@ public class StreamOptimizedDisk extends ManagedDisk {
 					  data this compressed grain sits
 					*/
 					grainTable[gtIndex] = written / Constants.SECTORLENGTH;
-					GrainMarker gm = new GrainMarker( lba, compressedLength );
-					gm.writeTo( dos );
-					dos.write( compressedGrainBuffer, 0, compressedLength );
-					long grainWrite = GrainMarker.SIZEOF + compressedLength;
-					int padLen = (int)(Utils.alignUp
-									   ( grainWrite, Constants.SECTORLENGTH )
-									   - grainWrite );
-					dos.write( padding, 0, padLen );
-					log.debug( "Padding: " + padLen );
+					if( compressedLength < 0 ) {
+						rawGrains++;
+						written += writeGrain( dos, lba, readBuffer, offset,
+											   (int)grainSizeBytes, true );
+					} else {
+						written += writeGrain( dos, lba, compressedGrainBuffer,
+											   0, compressedLength, false );
+					}
 					digestIndex++;
 					gtIndex++;
 					lba += header.grainSize;
-					written += (grainWrite + padLen);
 
 					if( written % Constants.SECTORLENGTH != 0 )
 						throw new IllegalStateException( "" + written );
-					
-					// LOOK: check written % sectorlen == 0
+				}
+				if( parentTable( tableParents, grainTable.length ) ) {
+					parentGDEs++;
+					log.debug( "Parent GDE at " + gdIndex );
+					grainDirectory[gdIndex] = GrainDirectory.PARENT;
+					gdIndex++;
+					continue;
 				}
 				/*
 				  A table's worth of grains just written, next comes
 				  the grain table describing them (their locations in
-				  the managed data)
-				*/
-				int fullGrainTableSizeSectors = 4 * header.numGTEsPerGT
-					/ Constants.SECTORLENGTH;
-				MetadataMarker mdm = new MetadataMarker
-					( fullGrainTableSizeSectors, MetadataMarker.TYPE_GT );
-				mdm.writeTo( dos );
-				dos.flush();
-				written += MetadataMarker.SIZEOF;
-
-				if( written % Constants.SECTORLENGTH != 0 )
-					throw new IllegalStateException( "" + written );
-				/*
-				  We mark where the grain table itself is, NOT its marker,
-				  and record this offset in the grain directory
+				  the managed data).  We mark where the grain table
+				  itself is, NOT its marker, and record this offset in
+				  the grain directory
 				*/
-				long gtOffset = written / Constants.SECTORLENGTH;
-				for( int gte = 0; gte < grainTable.length; gte++ ) {
-					// LOOK: Using 4byte GTE index values restricts us to 2TB
-					dos.writeInt( (int)grainTable[gte] );
-				}
-				written += 4 * grainTable.length;
+				long gtOffset = (written + MetadataMarker.SIZEOF) /
+					Constants.SECTORLENGTH;
+				written += writeGrainTable( dos, grainTable );
 				if( written % Constants.SECTORLENGTH != 0 )
 					throw new IllegalStateException( "" + written );
 
@@ -478,8 +624,11 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			}
 		}
 
-		// LOOK: we are not using any parentDigest for any remainder ??
-		
+		/*
+		  The remainder grains are compared against any parent digest
+		  just as for whole tables.  Any partial last grain was hashed
+		  zero-padded, by us and the parent digester alike.
+		*/
 		int unmanagedRemaining =
 			(int)(unmanagedData.size() -
 				  (wholeGrainTables * grainTableCoverageBytes));
@@ -506,29 +655,48 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			int wholeGrains = (int)(unmanagedRemaining / grainSizeBytes);
 			log.info( "Whole Grains " + wholeGrains );
 			log.info( "Padded Grains " + (grainsLeft - wholeGrains) );
+			ZeroScan.scan( readBuffer, 0, readBuffer.length,
+						   (int)grainSizeBytes, zeroFlags );
+			int tableParents = 0;
 			for( int g = 0; g < grainsLeft; g++ ) {
 				int offset = (int)(grainSizeBytes * g);
 
-				boolean allZeros = true;
-				for( int b = 0; b < grainSizeBytes; b++ ) {
-					if( readBuffer[offset+b] != 0 ) {
-						//log.debug( "!Zero GT at " + b );
-						allZeros = false;
-						break;
-					}
-				}
-				if( allZeros ) {
+				if( zeroFlags[g] ) {
 					zeroGTEs++;
 					log.debug( "Zero GT at " + gdIndex + " " + gtIndex );
 					grainTable[gtIndex] = 0;
 					gtIndex++;
+					digestIndex++;
 					lba += header.grainSize;
+					if( digester != null )
+						digester.zero();
 					continue;
 				}
+
+				byte[] hash = null;
+				if( digester != null )
+					hash = digester.grain( readBuffer, offset );
+				if( parentDigest != null ) {
+					if( hash == null ) {
+						md.reset();
+						md.update( readBuffer, offset,
+								   (int)grainSizeBytes );
+						hash = md.digest();
+					}
+					if( parentDigest.matches( digestIndex, hash ) ) {
+						parentGTEs++;
+						tableParents++;
+						grainTable[gtIndex] = -1;
+						gtIndex++;
+						digestIndex++;
+						lba += header.grainSize;
+						continue;
+					}
+				}
 				
-				// This grain is not zeros, compress
+				// This grain is not zeros, nor the parent's, compress
 				int compressedLength =
-					compressGrain( readBuffer, offset, (int)grainSizeBytes,
+					compressGrain( codec, readBuffer, offset,
 								   compressedGrainBuffer );
 				log.debug( "Deflating " + "remaining" + " " + g +
 						   " = " + compressedLength );
@@ -538,19 +706,17 @@ public class StreamOptimizedDisk extends ManagedDisk {
 				  data this compressed grain sits
 				*/
 				grainTable[gtIndex] = written / Constants.SECTORLENGTH;
-				GrainMarker gm = new GrainMarker( lba, compressedLength );
-				gm.writeTo( dos );
-				dos.write( compressedGrainBuffer, 0, compressedLength );
-				long grainWrite = GrainMarker.SIZEOF + compressedLength;
-				// to do: pad to next sector of os
-				int padLen = (int)(Utils.alignUp( grainWrite,
-												  Constants.SECTORLENGTH)
-								   - grainWrite );
-				dos.write( padding, 0, padLen );
-				log.debug( "Padding: " + padLen );
+				if( compressedLength < 0 ) {
+					rawGrains++;
+					written += writeGrain( dos, lba, readBuffer, offset,
+										   (int)grainSizeBytes, true );
+				} else {
+					written += writeGrain( dos, lba, compressedGrainBuffer,
+										   0, compressedLength, false );
+				}
 				gtIndex++;
+				digestIndex++;
 				lba += header.grainSize;
-				written += (grainWrite + padLen);
 
 				if( written % Constants.SECTORLENGTH != 0 )
 					throw new IllegalStateException( "" + written );
@@ -560,44 +726,138 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			  The final grains just written, next comes
 			  the grain table describing them (their locations in
 			  the managed data).  This table is not 'full', but we
-			  write it all anyway.
-			*/
-			int fullGrainTableSizeSectors = 4 * header.numGTEsPerGT
-				/ Constants.SECTORLENGTH;
-			MetadataMarker mdm = new MetadataMarker
-				( fullGrainTableSizeSectors, MetadataMarker.TYPE_GT );
-			mdm.writeTo( dos );
-			dos.flush();
-			written += MetadataMarker.SIZEOF;
-			if( written % Constants.SECTORLENGTH != 0 )
-				throw new IllegalStateException( "" + written );
-
-			/*
-			  We mark where the grain table itself is, NOT its marker,
-			  and record this offset in the grain directory
+			  write it all anyway.  Unless all are the parent's.
 			*/
-			long gtOffset = written / Constants.SECTORLENGTH;
-
-			// Writing the grain table
-			for( int gte = 0; gte < grainTable.length; gte++ ) {
-				// LOOK: Using 4byte GTE index values restricts us to 2TB
-				dos.writeInt( (int)grainTable[gte] );
+			if( parentTable( tableParents, grainsLeft ) ) {
+				parentGDEs++;
+				grainDirectory[gdIndex] = GrainDirectory.PARENT;
+				gdIndex++;
+			} else {
+				long gtOffset = (written + MetadataMarker.SIZEOF) /
+					Constants.SECTORLENGTH;
+				written += writeGrainTable( dos, grainTable );
+				if( written % Constants.SECTORLENGTH != 0 )
+					throw new IllegalStateException( "" + written );
+				grainDirectory[gdIndex] = gtOffset;
+				gdIndex++;
 			}
-			written += (4 * grainTable.length);
-			if( written % Constants.SECTORLENGTH != 0 )
-				throw new IllegalStateException( "" + written );
-			grainDirectory[gdIndex] = gtOffset;
-			gdIndex++;
 		}
+		codec.end();
 		
+		log.info( "ZeroGDEs: " + zeroGDEs );
+		log.info( "ZeroGTEs: " + zeroGTEs );
+		log.info( "ParentGDEs: " + parentGDEs );
+		log.info( "ParentGTEs: " + parentGTEs );
+		log.info( "RawGrains: " + rawGrains );
+		return written;
+	}
+
+	/**
+	 * Compress one grain, unless compression would not save enough
+	 * to be worth it (see setRawThreshold), in which case the grain
+	 * is to be stored raw.  To spare the cpu on high entropy data
+	 * (encrypted volumes, media, archives), we first compress just
+	 * RAWPROBE bytes of the grain.  If even those fail the threshold,
+	 * we give up on the grain without compressing the rest.
+	 *
+	 * @return compressed length, or -1 to store the grain raw
+	 */
+	private int compressGrain( GrainCodec codec, byte[] ba, int offset,
+							   byte[] output ) throws IOException {
+		int len = (int)grainSizeBytes;
+		if( rawThreshold == 0 )
+			return codec.compress( ba, offset, len, output );
+		if( len >= 2 * RAWPROBE ) {
+			int probe = codec.compress( ba, offset, RAWPROBE, output );
+			if( probe > rawThreshold * RAWPROBE )
+				return -1;
+		}
+		int result = codec.compress( ba, offset, len, output );
+		if( result > rawThreshold * len )
+			return -1;
+		return result;
+	}
 
+	/**
+	 * @return true if a grain table of which all 'grains' are the
+	 * parent's is to be written as a single PARENT grain directory
+	 * entry, in place of the table
+	 */
+	private boolean parentTable( int parents, int grains ) {
+		return parentGDEs && parents == grains;
+	}
+	
+	/**
+	 * Write a single grain: its marker, the compressed (or raw)
+	 * bytes, then padding to the next sector boundary.
+	 *
+	 * @return the byte count written
+	 */
+	private long writeGrain( DataOutputStream dos, long lba,
+							 byte[] grain, int offset, int length,
+							 boolean raw ) throws IOException {
+		GrainMarker gm = new GrainMarker( lba, length, raw );
+		gm.writeTo( dos );
+		dos.write( grain, offset, length );
+		long grainWrite = GrainMarker.SIZEOF + length;
+		int padLen = (int)(Utils.alignUp( grainWrite, Constants.SECTORLENGTH )
+						   - grainWrite );
+		dos.write( SECTORPADDING, 0, padLen );
+		log.debug( "Padding: " + padLen );
+		return grainWrite + padLen;
+	}
 
+	/**
+	 * Write a grain table, preceded by its marker.  The table itself
+	 * starts one sector (the marker length) after the current write
+	 * position.
+	 *
+	 * @return the byte count written
+	 */
+	private long writeGrainTable( DataOutputStream dos, long[] grainTable )
+		throws IOException {
+		int entrySize = header.entrySizeOf();
+		int fullGrainTableSizeSectors = entrySize * header.numGTEsPerGT
+			/ Constants.SECTORLENGTH;
+		MetadataMarker mdm = new MetadataMarker
+			( fullGrainTableSizeSectors, MetadataMarker.TYPE_GT );
+		mdm.writeTo( dos );
+		writeEntries( dos, grainTable );
+		dos.flush();
+		return MetadataMarker.SIZEOF + entrySize * grainTable.length;
+	}
+	
+	/**
+	 * Write grain table or grain directory entries, 4 or 8 bytes
+	 * each according to the header's layout.
+	 */
+	private void writeEntries( DataOutputStream dos, long[] entries )
+		throws IOException {
+		if( header.layout == Version.LAYOUT_64 ) {
+			for( int i = 0; i < entries.length; i++ )
+				dos.writeLong( entries[i] );
+		} else {
+			for( int i = 0; i < entries.length; i++ )
+				dos.writeInt( (int)entries[i] );
+		}
+	}
+	
+	/**
+	 * Write all that follows the last grain table: the grain
+	 * directory, the footer and the end-of-stream marker, all with
+	 * their own markers.
+	 *
+	 * @return updated managed data byte count
+	 */
+	private long writeTrailer( DataOutputStream dos, long[] grainDirectory,
+							   long written ) throws IOException {
 		/*
 		  The grain directory (preceded by its marker) follows
 		  the last grain table...
 		*/
+		int entrySize = header.entrySizeOf();
 		long grainDirectorySizeSectors =
-			Utils.alignUp( 4 * grainDirectory.length,
+			Utils.alignUp( entrySize * grainDirectory.length,
 						   Constants.SECTORLENGTH ) /	Constants.SECTORLENGTH;
 		log.info( "GrainDirectorySizeSectors: " + grainDirectorySizeSectors );
 		MetadataMarker mdm = new MetadataMarker
@@ -612,16 +872,17 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		log.info( "Footer gdOffset: " + gdOffset );
 
 		// This is the grain directory write...
-		for( int gde = 0; gde < grainDirectory.length; gde++ ) {
-			log.debug( "GD: " + gde + " " + grainDirectory[gde] );
-			dos.writeInt( (int)grainDirectory[gde] );
+		if( log.isDebugEnabled() ) {
+			for( int gde = 0; gde < grainDirectory.length; gde++ )
+				log.debug( "GD: " + gde + " " + grainDirectory[gde] );
 		}
-		written += (4 * grainDirectory.length);
+		writeEntries( dos, grainDirectory );
+		written += (entrySize * grainDirectory.length);
 		
-		int gdWrite = 4 * grainDirectory.length;
+		int gdWrite = entrySize * grainDirectory.length;
 		int padLen = (int)Utils.alignUp( gdWrite, Constants.SECTORLENGTH ) -
 			gdWrite;
-		dos.write( padding, 0, padLen );
+		dos.write( SECTORPADDING, 0, padLen );
 		written += padLen;
 
 		if( written % Constants.SECTORLENGTH != 0 )
@@ -660,18 +921,412 @@ public class StreamOptimizedDisk extends ManagedDisk {
 					 
 		if( written % Constants.SECTORLENGTH != 0 )
 			throw new IllegalStateException( "" + written );
+		return written;
+	}
 
-		log.info( "Written " + written );
-		dos.flush();
-		bis.close();
-		//dos.close();
-		//is.close();
+	/**
+	 * The multi-threaded capture, selected via setCaptureThreads.
+	 * The work of the single-threaded capture is split into stages:
+	 *
+	 * 1 A reader thread fills grain-table sized buffers from the
+	 * unmanaged data, so the source disk is kept busy.
+	 *
+	 * 2 Each grain in such a buffer is zero-checked, compared with
+	 * any parent digest and compressed as a task on a pool of worker
+	 * threads.
+	 *
+	 * 3 The calling thread collects task results in grain order and
+	 * writes grains, grain tables and grain directory entries exactly
+	 * as capture() would, so the .tmd produced is byte-for-byte the
+	 * same.
+	 *
+	 * At most CAPTUREDEPTH grain tables are in flight at once, which
+	 * bounds the memory used (each buffer covers a whole grain table,
+	 * 32MB for default grain size).
+	 */
+	class CapturePipeline {
 
-		log.info( "ZeroGDEs: " + zeroGDEs );
-		log.info( "ZeroGTEs: " + zeroGTEs );
-		log.info( "ParentGTEs: " + parentGTEs );
+		CapturePipeline( int threads ) {
+			this.threads = threads;
+			buffers = new LinkedBlockingQueue<byte[]>();
+			filled = new LinkedBlockingQueue<GrainTableBuffer>();
+		}
+
+		long run( final InputStream is, DataOutputStream dos,
+				  long[] grainDirectory, long written,
+				  GrainDigester digester )
+			throws IOException {
+			this.digester = digester;
+
+			long grainCount = header.capacity / header.grainSize;
+			final int wholeGrainTables =
+				(int)(grainCount / header.numGTEsPerGT );
+			final int unmanagedRemaining =
+				(int)(unmanagedData.size() -
+					  (wholeGrainTables * grainTableCoverageBytes));
+			int bufferCount = wholeGrainTables +
+				(unmanagedRemaining > 0 ? 1 : 0);
+			int bufferLength = wholeGrainTables > 0 ?
+				(int)grainTableCoverageBytes :
+				(int)Utils.alignUp( unmanagedRemaining, grainSizeBytes );
+			for( int i = 0; i < Math.min( bufferCount, CAPTUREDEPTH + 1 );
+				 i++ )
+				buffers.add( new byte[bufferLength] );
+			log.info( "Capture threads: " + threads );
+			
+			Thread reader = new Thread( new Runnable() {
+					public void run() {
+						readGrainTables( is, wholeGrainTables,
+										 unmanagedRemaining );
+					}
+				}, "CaptureReader" );
+			reader.setDaemon( true );
+			ExecutorService workers = Executors.newFixedThreadPool( threads );
+			LinkedList<GrainTableResults> pending =
+				new LinkedList<GrainTableResults>();
+			try {
+				reader.start();
+				for( int i = 0; i < bufferCount; i++ ) {
+					GrainTableBuffer gtb = filled.take();
+					if( gtb.failure != null )
+						rethrow( gtb.failure );
+					pending.add( submit( workers, gtb ) );
+					if( pending.size() >= CAPTUREDEPTH ) {
+						written = write( dos, pending.removeFirst(),
+										 grainDirectory, written );
+					}
+				}
+				while( !pending.isEmpty() ) {
+					written = write( dos, pending.removeFirst(),
+									 grainDirectory, written );
+				}
+			} catch( InterruptedException ie ) {
+				throw new InterruptedIOException( "Capture interrupted" );
+			} finally {
+				workers.shutdownNow();
+				reader.interrupt();
+				endCodecs( workers );
+			}
+			log.info( "ZeroGDEs: " + zeroGDEs );
+			log.info( "ZeroGTEs: " + zeroGTEs );
+			log.info( "ParentGDEs: " + parentGDEs );
+			log.info( "ParentGTEs: " + parentGTEs );
+			log.info( "RawGrains: " + rawGrains );
+			return written;
+		}
+
+		/**
+		 * The read stage, runs on its own thread.  Any failure is
+		 * passed along to the writer, in sequence, for it to rethrow.
+		 */
+		private void readGrainTables( InputStream is, int wholeGrainTables,
+									  int unmanagedRemaining ) {
+			try {
+				for( int gt = 0; gt < wholeGrainTables; gt++ ) {
+					byte[] ba = buffers.take();
+					readFully( is, ba, (int)grainTableCoverageBytes );
+					filled.put( new GrainTableBuffer( gt, ba,
+													  header.numGTEsPerGT,
+													  true ) );
+				}
+				if( unmanagedRemaining > 0 ) {
+					int grainSized = (int)Utils.alignUp( unmanagedRemaining,
+														 grainSizeBytes );
+					byte[] ba = buffers.take();
+					readFully( is, ba, unmanagedRemaining );
+					// the trailing padding for the last grain must be zeros
+					Arrays.fill( ba, unmanagedRemaining, grainSized,
+								 (byte)0 );
+					int grainsLeft = (int)(grainSized / grainSizeBytes);
+					filled.put( new GrainTableBuffer( wholeGrainTables, ba,
+													  grainsLeft, false ) );
+				}
+			} catch( InterruptedException ie ) {
+				// The writer has given up, so should we
+			} catch( Throwable t ) {
+				filled.add( new GrainTableBuffer( t ) );
+			}
+		}
+
+		private void readFully( InputStream is, byte[] ba, int len )
+			throws IOException {
+			int total = 0;
+			while( total < len ) {
+				int nin = is.read( ba, total, len - total );
+				if( nin == -1 )
+					throw new IllegalStateException( "Partial read!" );
+				total += nin;
+			}
+		}
+
+		private GrainTableResults submit( ExecutorService workers,
+										  GrainTableBuffer gtb ) {
+			List<Future<GrainResult>> results =
+				new ArrayList<Future<GrainResult>>( gtb.grains );
+			int digestIndex = gtb.gdIndex * header.numGTEsPerGT;
+			for( int g = 0; g < gtb.grains; g++ ) {
+				int offset = (int)(grainSizeBytes * g);
+				boolean compare = parentDigest != null;
+				GrainTask gt = new GrainTask( gtb.data, offset,
+											  compare ? digestIndex + g : -1,
+											  digester != null );
+				results.add( workers.submit( gt ) );
+			}
+			return new GrainTableResults( gtb, results );
+		}
+
+		/**
+		 * The ordered write stage, runs on the caller's thread.  Waits
+		 * for all the grains of one table, then writes them as
+		 * capture() would have.
+		 */
+		private long write( DataOutputStream dos, GrainTableResults gtr,
+							long[] grainDirectory, long written )
+			throws IOException, InterruptedException {
+
+			GrainTableBuffer gtb = gtr.buffer;
+			GrainResult[] grains = new GrainResult[gtb.grains];
+			boolean allZeros = true;
+			int tableParents = 0;
+			for( int g = 0; g < grains.length; g++ ) {
+				try {
+					grains[g] = gtr.results.get( g ).get();
+				} catch( ExecutionException ee ) {
+					rethrow( ee.getCause() );
+				}
+				if( grains[g] != GrainResult.ZERO )
+					allZeros = false;
+				if( grains[g] == GrainResult.PARENT )
+					tableParents++;
+			}
+			// All tasks done with the read buffer, the reader can reuse it
+			buffers.put( gtb.data );
+
+			// Hashes go to any digester in grain order, as for capture()
+			if( digester != null ) {
+				int digestIndex = gtb.gdIndex * header.numGTEsPerGT;
+				for( int g = 0; g < grains.length; g++ ) {
+					GrainResult gr = grains[g];
+					if( gr == GrainResult.ZERO )
+						digester.zero();
+					else if( gr == GrainResult.PARENT )
+						digester.add( parentDigest.get( digestIndex + g ) );
+					else
+						digester.add( gr.hash );
+				}
+			}
+
+			if( gtb.whole && allZeros ) {
+				zeroGDEs++;
+				log.debug( "Zero GDE at " + gtb.gdIndex );
+				grainDirectory[gtb.gdIndex] = 0;
+				return written;
+			}
+			if( parentTable( tableParents, grains.length ) ) {
+				parentGDEs++;
+				parentGTEs += tableParents;
+				log.debug( "Parent GDE at " + gtb.gdIndex );
+				grainDirectory[gtb.gdIndex] = GrainDirectory.PARENT;
+				return written;
+			}
+
+			long[] grainTable = new long[header.numGTEsPerGT];
+			if( !gtb.whole ) {
+				for( int i = 0; i < grainTable.length; i++ )
+					grainTable[i] = -2;
+			}
+			long lba = (long)gtb.gdIndex * header.numGTEsPerGT *
+				header.grainSize;
+			for( int g = 0; g < grains.length; g++ ) {
+				GrainResult gr = grains[g];
+				if( false ) {
+				} else if( gr == GrainResult.ZERO ) {
+					zeroGTEs++;
+					grainTable[g] = 0;
+				} else if( gr == GrainResult.PARENT ) {
+					parentGTEs++;
+					grainTable[g] = -1;
+				} else {
+					grainTable[g] = written / Constants.SECTORLENGTH;
+					if( gr.raw )
+						rawGrains++;
+					written += writeGrain( dos, lba, gr.data, 0,
+										   gr.data.length, gr.raw );
+					if( written % Constants.SECTORLENGTH != 0 )
+						throw new IllegalStateException( "" + written );
+				}
+				lba += header.grainSize;
+			}
+			long gtOffset = (written + MetadataMarker.SIZEOF) /
+				Constants.SECTORLENGTH;
+			written += writeGrainTable( dos, grainTable );
+			if( written % Constants.SECTORLENGTH != 0 )
+				throw new IllegalStateException( "" + written );
+			grainDirectory[gtb.gdIndex] = gtOffset;
+			return written;
+		}
+
+		/**
+		 * Release the workers' codecs, once no worker can be using them
+		 */
+		private void endCodecs( ExecutorService workers ) {
+			try {
+				if( !workers.awaitTermination( 1, TimeUnit.MINUTES ) )
+					return;
+			} catch( InterruptedException ie ) {
+				return;
+			}
+			synchronized( codecs ) {
+				for( GrainCodec gc : codecs )
+					gc.end();
+				codecs.clear();
+			}
+		}
+		
+		private void rethrow( Throwable t ) throws IOException {
+			if( t instanceof IOException )
+				throw (IOException)t;
+			if( t instanceof RuntimeException )
+				throw (RuntimeException)t;
+			if( t instanceof Error )
+				throw (Error)t;
+			throw new IOException( t );
+		}
+		
+		/**
+		 * The zero-detect, digest compare and compress stages for a
+		 * single grain, run on a worker thread.
+		 */
+		class GrainTask implements Callable<GrainResult> {
+			GrainTask( byte[] ba, int offset, int digestIndex,
+					   boolean hashAlways ) {
+				this.ba = ba;
+				this.offset = offset;
+				this.digestIndex = digestIndex;
+				this.hashAlways = hashAlways;
+			}
+
+			@Override
+			public GrainResult call() throws IOException {
+				int len = (int)grainSizeBytes;
+				if( ZeroScan.isZero( ba, offset, len ) )
+					return GrainResult.ZERO;
+				
+				byte[] hash = null;
+				if( digestIndex > -1 || hashAlways ) {
+					MessageDigest md = digests.get();
+					md.reset();
+					md.update( ba, offset, len );
+					hash = md.digest();
+				}
+				if( digestIndex > -1 &&
+					parentDigest.matches( digestIndex, hash ) )
+					return GrainResult.PARENT;
+
+				GrainCodec codec = workerCodecs.get();
+				byte[] output = codec.compressBuffer( len );
+				int compressedLength = compressGrain( codec, ba, offset,
+													  output );
+				if( compressedLength < 0 )
+					return new GrainResult( Arrays.copyOfRange
+											( ba, offset, offset + len ),
+											true, hash );
+				return new GrainResult( Arrays.copyOf( output,
+													   compressedLength ),
+										false, hash );
+			}
+			
+			private final byte[] ba;
+			private final int offset, digestIndex;
+			private final boolean hashAlways;
+		}
+
+		/**
+		   A grain table's worth of unmanaged data, or the remainder
+		   after the last whole grain table.  Alternatively, the
+		   failure which stopped the reader.
+		*/
+		class GrainTableBuffer {
+			GrainTableBuffer( int gdIndex, byte[] data, int grains,
+							  boolean whole ) {
+				this.gdIndex = gdIndex;
+				this.data = data;
+				this.grains = grains;
+				this.whole = whole;
+				this.failure = null;
+			}
+			GrainTableBuffer( Throwable failure ) {
+				this( -1, null, 0, false );
+				this.failure = failure;
+			}
+			final int gdIndex;
+			final byte[] data;
+			final int grains;
+			final boolean whole;
+			Throwable failure;
+		}
+
+		class GrainTableResults {
+			GrainTableResults( GrainTableBuffer buffer,
+							   List<Future<GrainResult>> results ) {
+				this.buffer = buffer;
+				this.results = results;
+			}
+			final GrainTableBuffer buffer;
+			final List<Future<GrainResult>> results;
+		}
+		
+		private final int threads;
+		private final BlockingQueue<byte[]> buffers;
+		private final BlockingQueue<GrainTableBuffer> filled;
+		private long zeroGDEs, zeroGTEs, parentGDEs, parentGTEs, rawGrains;
+		private GrainDigester digester;
+
+		private final ThreadLocal<MessageDigest> digests =
+			new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				return GrainHash.create( getDigestAlgorithm() );
+			}
+		};
+
+		// One codec per worker, all recorded so we can end them
+		private final List<GrainCodec> codecs = new ArrayList<GrainCodec>();
+		private final ThreadLocal<GrainCodec> workerCodecs =
+			new ThreadLocal<GrainCodec>() {
+			@Override
+			protected GrainCodec initialValue() {
+				GrainCodec result = GrainCodec.create
+					( header.compressAlgorithm, compressionLevel );
+				synchronized( codecs ) {
+					codecs.add( result );
+				}
+				return result;
+			}
+		};
 	}
 
+	/**
+	 * The outcome of a CapturePipeline GrainTask: the grain was all
+	 * zeros, matched the parent digest, or was compressed (or is to
+	 * be stored raw).  The hash is kept only if wanted for our own
+	 * digest.
+	 */
+	static class GrainResult {
+		GrainResult( byte[] data, boolean raw, byte[] hash ) {
+			this.data = data;
+			this.raw = raw;
+			this.hash = hash;
+		}
+		final byte[] data;
+		final boolean raw;
+		final byte[] hash;
+
+		static final GrainResult ZERO = new GrainResult( null, false, null );
+		static final GrainResult PARENT = new GrainResult( null, false,
+														   null );
+	}
+	
 
 
 	// Synchronized in case of concurrent access in a web-based store...
@@ -715,47 +1370,16 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		int grainTableCount = (int)Utils.alignUp( grainCount,
 												  footer.numGTEsPerGT ) /
 			footer.numGTEsPerGT;
-		long[] gdes = new long[grainTableCount];
-		raf.seek( footer.gdOffset * Constants.SECTORLENGTH );
-		for( int i = 0; i < gdes.length; i++ ) {
-			long gde = raf.readInt() & 0xffffffffL;
-			log.debug( i + " " + gde );
-			gdes[i] = gde;
-		}
-		grainDirectory = new long[grainTableCount][];
-		for( int i = 0; i < gdes.length; i++ ) {
-			long gde = gdes[i];
-			
-			if( gde == 0 ) {
-				grainDirectory[i] = ZEROGDE;
-				continue;
-			}
-			if( gde == -1 ) {
-				grainDirectory[i] = PARENTGDE;
-				continue;
-			}
-			
-			// sanity check, locate the GT marker, precedes the GT
-			if( true ) {
-				raf.seek( gde * Constants.SECTORLENGTH -
-						  Constants.SECTORLENGTH );
-				MetadataMarker mdm = MetadataMarker.readFrom( raf );
-				log.debug( "Expected GT: actual " + mdm ); 
-			}
-			
-			raf.seek( gde * Constants.SECTORLENGTH );
-			long[] grainTable = new long[footer.numGTEsPerGT];
-			for( int gt = 0; gt < grainTable.length; gt++ ) {
-				// stored as unsigned int OR -1, meaning 'use parent'
-				long gtel;
-				int gte = raf.readInt();
-				if( gte == -1 )
-					gtel = -1L;
-				else
-					gtel = gte & 0xffffffffL;
-				grainTable[gt] = gtel;
-			}
-			grainDirectory[i] = grainTable;
+		if( mapMetaData ) {
+			grainDirectory = GrainDirectory.map( managedData, footer.gdOffset,
+												 grainTableCount,
+												 footer.numGTEsPerGT,
+												 footer.entrySizeOf() );
+		} else {
+			grainDirectory = GrainDirectory.readFrom( raf, footer.gdOffset,
+													  grainTableCount,
+													  footer.numGTEsPerGT,
+													  footer.entrySizeOf() );
 		}
 		raf.close();
 	}
@@ -770,14 +1394,21 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		}
 		int zeroGDEs = 0;
 		int zeroGTEs = 0;
+		int parentGDEs = 0;
 		int parentGTEs = 0;
 		
-		for( long[] gt : grainDirectory ) {
-			if( gt == ZEROGDE ) {
+		for( int i = 0; i < grainDirectory.length(); i++ ) {
+			long gde = grainDirectory.gde( i );
+			if( gde == GrainDirectory.ZERO ) {
 				zeroGDEs++;
 				continue;
 			}
-			for( long gte : gt ) {
+			if( gde == GrainDirectory.PARENT ) {
+				parentGDEs++;
+				continue;
+			}
+			for( int j = 0; j < header.numGTEsPerGT; j++ ) {
+				long gte = grainDirectory.gte( i, j );
 				if( gte == 0 )
 					zeroGTEs++;
 				else if( gte == -1 )
@@ -785,20 +1416,20 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			}
 		}
 		return "ZeroGDEs: " + zeroGDEs + ", zeroGTEs: " + zeroGTEs +
-			", parentGTEs: " + parentGTEs;
+			", parentGDEs: " + parentGDEs + ", parentGTEs: " + parentGTEs;
 	}
 	
 	public void reportMetaData() throws IOException {
 		readMetaData();
-		for( int i = 0; i < grainDirectory.length; i++ ) {
-			long[] gde = grainDirectory[i];
-			log.info( "GT " + i + " " + gde.length );
-			if( gde.length == 0 )
+		for( int i = 0; i < grainDirectory.length(); i++ ) {
+			long gde = grainDirectory.gde( i );
+			log.info( "GT " + i + " " + gde );
+			if( gde == GrainDirectory.ZERO || gde == GrainDirectory.PARENT )
 				continue;
 			StringWriter sw = new StringWriter();
 			PrintWriter pw = new PrintWriter( sw );
-			for( int j = 0; j < gde.length; j++ ) {
-				pw.print( gde[j] + " " );
+			for( int j = 0; j < header.numGTEsPerGT; j++ ) {
+				pw.print( grainDirectory.gte( i, j ) + " " );
 			}
 			pw.flush();
 			log.info( sw.toString() );
@@ -806,14 +1437,64 @@ public class StreamOptimizedDisk extends ManagedDisk {
 	}
 	
 			
+	/**
+	 * Unless setDigestAlgorithm was called, we adopt the parent
+	 * digest's algorithm, for both comparison and any digest of our
+	 * own.
+	 *
+	 * @throws IllegalArgumentException if setDigestAlgorithm named
+	 * some other algorithm
+	 */
 	@Override
 	public void setParentDigest( ManagedDiskDigest grainHashes ) {
+		if( grainHashes != null && digestAlgorithm != null &&
+			!GrainHash.same( grainHashes.getAlgorithm(), digestAlgorithm ) )
+			throw new IllegalArgumentException
+				( "Parent digest algorithm " + grainHashes.getAlgorithm() +
+				  " != " + digestAlgorithm );
 		parentDigest = grainHashes;
 	}
+
+	/**
+	 * @throws IllegalArgumentException if a parent digest of some
+	 * other algorithm was already set
+	 */
+	@Override
+	public void setDigestAlgorithm( String algorithm ) {
+		if( parentDigest != null &&
+			!GrainHash.same( parentDigest.getAlgorithm(), algorithm ) )
+			throw new IllegalArgumentException
+				( "Parent digest algorithm " + parentDigest.getAlgorithm() +
+				  " != " + algorithm );
+		super.setDigestAlgorithm( algorithm );
+	}
 	
 	@Override
-	public void setParent( ManagedDisk md ) {
+	public String getDigestAlgorithm() {
+		if( digestAlgorithm == null && parentDigest != null )
+			return parentDigest.getAlgorithm();
+		return super.getDigestAlgorithm();
+	}
+	
+	/**
+	 * Mapped grain tables then map whatever they have yet to map from
+	 * f too.  A store compacting us points us at a link to our old
+	 * data file, just before replacing that file with the rewrite.
+	 */
+	@Override
+	public synchronized void setManagedData( File f ) {
+		super.setManagedData( f );
+		if( grainDirectory != null )
+			grainDirectory = grainDirectory.relocate( f );
+	}
+
+	/**
+	 * Any grain map we built is then stale, so is dropped
+	 */
+	@Override
+	public synchronized void setParent( ManagedDisk md ) {
 		parent = md;
+		grainMap = null;
 	}
 
 	/**
@@ -855,81 +1536,6 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		}
 	}
 
-	/**
-	 * @return The compressed data count, in bytes
-	 */
-	private int compressGrain( byte[] ba, int offset, int len, byte[] output )
-		throws IOException {
-		int result = 0;
-		switch( header.compressAlgorithm ) {
-		case DEFLATE:
-			Deflater def = new Deflater();// Deflater.BEST_COMPRESSION );
-			def.setInput( ba, offset, len );
-			def.finish();
-			result = def.deflate( output );
-			def.end();
-			break;
-		case GZIP:
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			GZIPOutputStream gzos = new GZIPOutputStream( baos );
-			gzos.write( ba, offset, len );
-			gzos.finish();
-			//			gzos.close();
-			byte[] ba2 = baos.toByteArray();
-			System.arraycopy( ba2, 0, output, 0, ba2.length );
-			result = ba2.length;
-			/*
-			  System.out.println( result );
-			if( true )
-					System.exit(0);
-			*/
-			break;
-		case SNAPPY:
-			result = Snappy.compress( ba, offset, len, output, 0 );
-			break;
-		}
-		return result;
-	}
-	
-	/**
-	 * @return The uncompressed data count, in bytes
-	 */
-	private int uncompressGrain( byte[] ba, int offset, int len, byte[] output )
-		throws DataFormatException, IOException {
-		int result = 0;
-		switch( header.compressAlgorithm ) {
-		case DEFLATE:
-			Inflater inf = new Inflater();
-			inf.setInput( ba, offset, len );
-			result = inf.inflate( output );
-			inf.end();
-			break;
-		case GZIP:
-			ByteArrayInputStream bais = new ByteArrayInputStream( ba );
-			GZIPInputStream gzis = new GZIPInputStream( bais );
-			int total = 0;
-			while( total < output.length ) {
-				int nin = gzis.read( output, total, output.length - total );
-				//				System.out.println( nin + " " + total );
-				if( nin == -1 )
-					break;
-				total += nin;
-			}
-			gzis.close();
-			result = total;
-			break;
-		case SNAPPY:
-			if( true ) {
-				if( !Snappy.isValidCompressedBuffer( ba, offset, len ) )
-				throw new DataFormatException( "!isValidCompressedBuffer" );
-			}
-			result = Snappy.uncompress( ba, offset, len, output, 0 );
-			// to do
-			break;
-		}
-		return result;
-	}
-	
 	public void writeTo( File f ) throws IOException {
 		FileOutputStream fos = new FileOutputStream( f );
 		long defaultGrainTableCoverageBytes = GRAINSIZE_DEFAULT *
@@ -944,25 +1550,309 @@ public class StreamOptimizedDisk extends ManagedDisk {
 	@Override
 	public InputStream getInputStream() throws IOException {
 		readMetaData();
-		InputStream pis = parent == null ? null : parent.getInputStream();
 		log.debug( "getInputStream: " + getDescriptor() );
-		return new SODRandomAccessRead( (SeekableInputStream)pis );
+		/*
+		  Plain InputStreams are typically for a single sequential
+		  pass over all the data, which would just flush the grain
+		  cache of anything useful, so we leave it alone.  No parent
+		  stream needed, grains we do not hold ourselves are located
+		  via our grain map.
+		*/
+		return new SODRandomAccessRead( null );
 	}
 
+	/**
+	 * Seekable streams are for random access (e.g. fuse), so are
+	 * simply positioned calls to {@link #readAt}, sharing our one
+	 * FileChannel and the GrainCache.
+	 */
 	@Override
 	public SeekableInputStream getSeekableInputStream() throws IOException {
 		readMetaData();
-		SeekableInputStream pis = parent == null ?
-			null : parent.getSeekableInputStream();
-		log.debug( "getSeekableInputStream: " + pis );
-		return new SODRandomAccessRead( pis );
+		log.debug( "getSeekableInputStream: " + getDescriptor() );
+		return new ManagedDiskInputStream( this );
+	}
+
+	/**
+	 * The grain tables tell us, for each grain covering the wanted
+	 * range, whether to supply zeros, read from an ancestor (per our
+	 * grain map) or read and uncompress one of our own grains.
+	 * Those last reads are positional reads on the shared channel,
+	 * into buffers private to the calling thread, so nothing here
+	 * needs a lock.
+	 */
+	@Override
+	public int readAt( long offset, ByteBuffer dst ) throws IOException {
+		if( offset < 0 )
+			throw new IllegalArgumentException( "Offset: " + offset );
+		readMetaData();
+		long size = size();
+		if( offset >= size )
+			return -1;
+		int actual = (int)Math.min( size - offset, dst.remaining() );
+		GrainCache cache = GrainCache.shared();
+		int total = 0;
+		while( total < actual ) {
+			long posn = offset + total;
+			int left = actual - total;
+			int gdIndex = (int)(posn / grainTableCoverageBytes);
+			long inTable = posn - gdIndex * grainTableCoverageBytes;
+			int gtIndex = (int)(inTable / grainSizeBytes);
+			int gOffset = (int)(inTable % grainSizeBytes);
+			long gde = grainDirectory.gde( gdIndex );
+			int n;
+			if( false ) {
+			} else if( gde == GrainDirectory.ZERO ) {
+				n = (int)Math.min( left, grainTableCoverageBytes - inTable );
+				dst.put( zeroGrainTable, (int)inTable, n );
+			} else if( gde == GrainDirectory.PARENT ) {
+				n = (int)Math.min( left, grainSizeBytes - gOffset );
+				ByteBuffer bb = dst.duplicate();
+				bb.limit( bb.position() + n );
+				readFromAncestor( posn, bb, cache );
+				dst.position( bb.position() );
+			} else {
+				n = (int)Math.min( left, grainSizeBytes - gOffset );
+				long gte = grainDirectory.gte( gdIndex, gtIndex );
+				if( false ) {
+				} else if( gte == 0 ) {
+					dst.put( zeroGrain, 0, n );
+				} else if( gte == -1 ) {
+					ByteBuffer bb = dst.duplicate();
+					bb.limit( bb.position() + n );
+					readFromAncestor( posn, bb, cache );
+					dst.position( bb.position() );
+				} else {
+					byte[] grain = readAtBuffer( READATGRAIN );
+					long grainOffset = gte * Constants.SECTORLENGTH;
+					if( cache == null ||
+						!cache.get( managedData, grainOffset, grain ) ) {
+						readGrainAt( grainOffset, grain );
+						if( cache != null )
+							cache.put( managedData, grainOffset, grain );
+					}
+					dst.put( grain, gOffset, n );
+				}
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Positional read of the grain whose marker is at grainOffset
+	 * (bytes), uncompressed into grain.  The first read is of a
+	 * size which, for grains which compress well (most do),
+	 * fetches the marker and the whole grain.  Otherwise, a second
+	 * read gets the rest.
+	 */
+	private void readGrainAt( long grainOffset, byte[] grain )
+		throws IOException {
+		byte[] compressed = readAtBuffer( READATCOMPRESSED );
+		ByteBuffer bb = ByteBuffer.wrap( compressed, 0,
+										 Math.min( READATFIRST,
+												   compressed.length ) );
+		int nin = readFully( grainOffset, bb );
+		if( nin < GrainMarker.SIZEOF )
+			throw new IllegalStateException( "Truncated grain marker: " +
+											 grainOffset );
+		int size = bb.getInt( 8 );
+		boolean raw = GrainMarker.isRaw( size );
+		size = GrainMarker.length( size );
+		if( GrainMarker.SIZEOF + size > compressed.length )
+			throw new IllegalStateException( "Bad grain size: " + size );
+		if( GrainMarker.SIZEOF + size > nin ) {
+			bb = ByteBuffer.wrap( compressed, nin,
+								  GrainMarker.SIZEOF + size - nin );
+			nin += readFully( grainOffset + nin, bb );
+			if( GrainMarker.SIZEOF + size > nin )
+				throw new IllegalStateException
+					( "Partial read: "+ nin + " " + size );
+		}
+		if( raw ) {
+			if( size != grainSizeBytes )
+				throw new IllegalStateException( "Bad raw grain len: " + size );
+			System.arraycopy( compressed, GrainMarker.SIZEOF, grain, 0, size );
+			return;
+		}
+		GrainCodec gc = GrainCodec.forThread( header.compressAlgorithm );
+		try {
+			int actualLength = gc.uncompress( compressed, GrainMarker.SIZEOF,
+											  size, grain );
+			if( actualLength != grainSizeBytes )
+				throw new IllegalStateException
+					( "Bad inflate len: " + actualLength );
+		} catch( DataFormatException dfe ) {
+			throw new IOException( managedData + ": grain at " +
+								   grainOffset, dfe );
+		}
+	}
+
+	/**
+	 * Supply dst.remaining() bytes, at posn and all within the one
+	 * grain, this being a grain we leave to our parent.  Whichever
+	 * ancestor really holds it is read directly.
+	 *
+	 * @param cache - as for our own grains, may be null
+	 */
+	private void readFromAncestor( long posn, ByteBuffer dst,
+								   GrainCache cache ) throws IOException {
+		GrainMap map = grainMap();
+		long entry = map.entry( posn / grainSizeBytes );
+		int n = dst.remaining();
+		if( entry == GrainMap.ZERO ) {
+			dst.put( zeroGrain, 0, n );
+			return;
+		}
+		ManagedDisk owner = map.owner( entry );
+		if( GrainMap.delegated( entry ) ) {
+			int nin = owner.readAt( posn, dst );
+			if( nin != n )
+				throw new IllegalStateException
+					( "Parent read: " + nin + " " + n );
+			return;
+		}
+		StreamOptimizedDisk sod = (StreamOptimizedDisk)owner;
+		long grainOffset = GrainMap.offset( entry ) * Constants.SECTORLENGTH;
+		byte[] grain = readAtBuffer( READATGRAIN );
+		if( cache == null || !cache.get( sod.managedData, grainOffset, grain ) ) {
+			sod.readGrainAt( grainOffset, grain );
+			if( cache != null )
+				cache.put( sod.managedData, grainOffset, grain );
+		}
+		dst.put( grain, (int)(posn % grainSizeBytes), n );
+	}
+
+	/**
+	 * Our GrainMap, built when first needed, i.e. at the first read
+	 * of a grain we do not hold ourselves, and kept until we are
+	 * given some other parent.  We are cached per descriptor by a
+	 * store, so then is our map.
+	 */
+	GrainMap grainMap() throws IOException {
+		GrainMap result = grainMap;
+		if( result != null )
+			return result;
+		synchronized( this ) {
+			if( grainMap == null )
+				grainMap = buildGrainMap();
+			return grainMap;
+		}
+	}
+
+	/**
+	 * Our chain of ancestors, read up to its end or to one not a
+	 * StreamOptimizedDisk like us.  The grains themselves are
+	 * resolved by the map only as they are read.
+	 */
+	private GrainMap buildGrainMap() throws IOException {
+		readMetaData();
+		long grainCount = header.capacity / header.grainSize;
+		List<ManagedDisk> owners = new ArrayList<ManagedDisk>();
+		int resolvable = 0;
+		ManagedDisk md = this;
+		while( md != null && owners.size() <= GrainMap.MAXOWNERS ) {
+			owners.add( md );
+			if( !( md instanceof StreamOptimizedDisk ) )
+				break;
+			StreamOptimizedDisk sod = (StreamOptimizedDisk)md;
+			sod.readMetaData();
+			// else read via its readAt, as if not a StreamOptimizedDisk
+			if( sod.grainSizeBytes != grainSizeBytes ||
+				sod.header.capacity / sod.header.grainSize < grainCount )
+				break;
+			resolvable++;
+			md = sod.parent;
+		}
+		GrainMap result = new GrainMap( owners, resolvable, grainCount,
+										header.numGTEsPerGT );
+		log.info( getDescriptor() + ": grain map of " + owners.size() +
+				  " disks" );
+		return result;
+	}
+
+	/**
+	 * Where our own grain directory puts a grain, for our GrainMap
+	 *
+	 * @return 0 for a zero grain, -1 for one left to our parent, else
+	 * the location (in sectors) of the grain's marker
+	 */
+	long grainEntry( long grain ) {
+		int gtesPerGT = header.numGTEsPerGT;
+		int gdIndex = (int)(grain / gtesPerGT);
+		long gde = grainDirectory.gde( gdIndex );
+		if( gde == GrainDirectory.ZERO )
+			return 0;
+		if( gde == GrainDirectory.PARENT )
+			return -1;
+		return grainDirectory.gte( gdIndex, (int)(grain % gtesPerGT) );
+	}
+	
+	/**
+	 * The calling thread's scratch buffers for readAt, which we
+	 * reallocate should this disk's grain size differ from that of
+	 * the last disk read.  The grain buffer must be exactly one grain
+	 * long, it is what we hand to the GrainCache.
+	 */
+	private byte[] readAtBuffer( int which ) {
+		byte[][] buffers = READATBUFFERS.get();
+		byte[] result = buffers[which];
+		if( false ) {
+		} else if( which == READATGRAIN ) {
+			if( result == null || result.length != grainSizeBytes )
+				result = new byte[(int)grainSizeBytes];
+		} else {
+			int needed = GrainMarker.SIZEOF + 2 * (int)grainSizeBytes;
+			if( result == null || result.length < needed )
+				result = new byte[needed];
+		}
+		buffers[which] = result;
+		return result;
 	}
 
+	/**
+	 * A managed disk as the unmanaged data of its own rewrite
+	 */
+	static class Rewrite implements UnmanagedDisk {
+		Rewrite( ManagedDisk md ) {
+			this.md = md;
+		}
+
+		@Override
+		public String getID() {
+			return md.getDescriptor().getDiskID();
+		}
+
+		@Override
+		public long size() {
+			return md.size();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return md.getInputStream();
+		}
+
+		@Override
+		public File getSource() {
+			return md.managedData;
+		}
+
+		private final ManagedDisk md;
+	}
+	
 	class SODRandomAccessRead extends SeekableInputStream {
-		SODRandomAccessRead( SeekableInputStream parentStream )
-			throws IOException {
+		/**
+		 * @param cache - shared store of decompressed grains, consulted
+		 * before (and updated after) any grain read.  May be null.
+		 */
+		SODRandomAccessRead( GrainCache cache ) throws IOException {
 			super( size() );
-			this.parentStream = parentStream;
+			this.cache = cache;
+			readAhead = readAheadGrains;
+			prefetched = new LinkedHashMap<Long,Future<byte[]>>();
+			prefetchedTo = -1;
+			sequentialEnd = -1;
 			raf = new RandomAccessFile( managedData, "r" );
 			log2GrainSize = log2( grainSizeBytes );
 			log2GrainTableCoverage = log2( grainTableCoverageBytes );
@@ -972,16 +1862,17 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			  Twice a grain since in pathological cases, compression
 			  actually EXPANDS the grain!
 			*/
-			compressedGrainBuffer = new byte[(int)(2*grainSizeBytes)];
+			codec = GrainCodec.create( header.compressAlgorithm );
+			compressedGrainBuffer = codec.compressBuffer( (int)grainSizeBytes );
 			grainBuffer = new byte[(int)grainSizeBytes];
 			dPos();
 		}
 
 		@Override
 		public void close() throws IOException {
-			if( parentStream != null )
-				parentStream.close();
+			cancelReadAhead();
 			raf.close();
+			codec.end();
 		}
 		   
 		@Override
@@ -990,17 +1881,20 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			  According to java.io.RandomAccessFile, no restriction on
 			  seek.  That is, seek posn can be -ve or past eof
 			*/
-			if( parentStream != null )
-				parentStream.seek( s );
 			posn = s;
 			dPos();
 		}
 
 		@Override
 		public long skip( long n ) throws IOException {
-			if( parentStream != null )
-				parentStream.skip( n );
+			boolean sequential = posn == sequentialEnd;
 			long result = super.skip( n );
+			/*
+			  Skipping forward from where the last read ended is
+			  still a sequential pass
+			*/
+			if( sequential )
+				sequentialEnd = posn;
 			dPos();
 			return result;
 		}
@@ -1011,6 +1905,13 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			if( log.isDebugEnabled() )
 				log.debug( "Posn " + posn + " len  " + len );
 
+			if( posn == sequentialEnd ) {
+				sequentialReads++;
+			} else {
+				sequentialReads = 0;
+				cancelReadAhead();
+			}
+
 			// do min in long space, since size - posn may overflow int...
 			long actualL = Math.min( size - posn, len );
 
@@ -1022,13 +1923,13 @@ public class StreamOptimizedDisk extends ManagedDisk {
 			int total = 0;
 			while( total < actual ) {
 				int left = actual - total;
-				long[] gt = grainDirectory[gdIndex];
+				long gde = grainDirectory.gde( gdIndex );
 				if( false ) {
-				} else if( gt == ZEROGDE ) {
+				} else if( gde == GrainDirectory.ZERO ) {
 					if( log.isDebugEnabled() )
 						log.debug( "Zero GD : " + gdIndex );
 					int grainTableOffset = (int)
-						(gtIndex << log2GrainSize + gOffset);
+						((gtIndex << log2GrainSize) + gOffset);
 					int inGrainTable = (int)
 						(grainTableCoverageBytes - grainTableOffset);
 					int fromGrainTable = Math.min( left, inGrainTable );
@@ -1040,10 +1941,13 @@ public class StreamOptimizedDisk extends ManagedDisk {
 								   fromGrainTable );
 					total += fromGrainTable;
 					posn += fromGrainTable;
-					if( parentStream != null )
-						parentStream.skip( fromGrainTable );
-				} else if( gt == PARENTGDE ) {
-					throw new IllegalStateException( "PARENTGDE!" );
+				} else if( gde == GrainDirectory.PARENT ) {
+					int inGrain = (int)(grainSizeBytes - gOffset );
+					int fromGrain = Math.min( left, inGrain );
+					readFromAncestor( posn, ByteBuffer.wrap
+									  ( ba, off+total, fromGrain ), cache );
+					total += fromGrain;
+					posn += fromGrain;
 				} else {
 					int inGrain = (int)(grainSizeBytes - gOffset );
 					int fromGrain = Math.min( left, inGrain );
@@ -1051,7 +1955,7 @@ public class StreamOptimizedDisk extends ManagedDisk {
 						log.debug( len + " " + actual + " " + left + " " +
 								   inGrain +
 								   " " + fromGrain );
-					long gte = gt[gtIndex];
+					long gte = grainDirectory.gte( gdIndex, gtIndex );
 					if( false ) {
 					} else if( gte == 0 ) {
 						if( log.isDebugEnabled() )
@@ -1060,41 +1964,24 @@ public class StreamOptimizedDisk extends ManagedDisk {
 										  ba, off+total, fromGrain );
 						total += fromGrain;
 						posn += fromGrain;
-						if( parentStream != null )
-							parentStream.skip( fromGrain );
 					} else if( gte == -1 ) {
-						if( parentStream == null )
-							throw new IllegalStateException
-								( "No parent: " + gdIndex + " " + gtIndex );
-						// LOOK: fromParent should ALWAYS == fromGrain
-						int fromParent = parentStream.readImpl( ba, off+total,
-																fromGrain );
-						total += fromParent;
-						posn += fromParent;
+						readFromAncestor( posn, ByteBuffer.wrap
+										  ( ba, off+total, fromGrain ),
+										  cache );
+						total += fromGrain;
+						posn += fromGrain;
 					} else {
 						if( gte != gtePrev ) {
-							raf.seek( gte * Constants.SECTORLENGTH );
-							GrainMarker gm = GrainMarker.readFrom( raf );
-							int nin = raf.read( compressedGrainBuffer,
-												0, gm.size );
-							if( nin != gm.size )
-								throw new IllegalStateException
-									( "Partial read: "+ nin + " " + gm.size);
-							if( log.isDebugEnabled() ) {
-								log.debug( "Inflating " + gdIndex + " "+
-										   gtIndex +
-										   " = " + nin + " " + gm.lba );
-							}
-							try {
-								int actualLength = uncompressGrain
-									( compressedGrainBuffer, 0, nin,
-									  grainBuffer );
-								if( actualLength != grainSizeBytes )
-									throw new IllegalStateException
-										( "Bad inflate len: " + actualLength );
-							} catch( DataFormatException dfe ) {
-								// what now??
-								log.warn( dfe );
+							long grainOffset = gte * Constants.SECTORLENGTH;
+							boolean found = readAheadGrain( grainOffset ) ||
+								(cache != null &&
+								 cache.get( managedData, grainOffset,
+											grainBuffer ));
+							if( !found ) {
+								readGrain( grainOffset );
+								if( cache != null )
+									cache.put( managedData, grainOffset,
+											   grainBuffer );
 							}
 							gtePrev = gte;
 						}
@@ -1102,18 +1989,163 @@ public class StreamOptimizedDisk extends ManagedDisk {
 										  ba, off+total, fromGrain );
 						total += fromGrain;
 						posn += fromGrain;
-						if( parentStream != null )
-							parentStream.skip( fromGrain );
 					}
 				}
 				if( log.isDebugEnabled() )
 					log.debug( total + " " + posn );
 				dPos();
 			}
+			sequentialEnd = posn;
 			return total;
 		}
 
 
+		/**
+		 * Read-ahead.  Once we see READAHEADTRIGGER consecutive
+		 * sequential reads, we keep the next readAhead grains (the
+		 * compressed ones) in flight: a single positional read of
+		 * their compressed bytes, then decompression of each on the
+		 * READAHEAD executor.  Any non-sequential read cancels it all.
+		 *
+		 * @return true if grainBuffer now holds the grain at
+		 * grainOffset (bytes), courtesy of a previous prefetch
+		 */
+		private boolean readAheadGrain( long grainOffset )
+			throws IOException {
+			if( readAhead == 0 || sequentialReads < READAHEADTRIGGER )
+				return false;
+			long grain = ((long)gdIndex << (log2GrainTableCoverage -
+											log2GrainSize)) + gtIndex;
+			if( grain + readAhead / 2 > prefetchedTo )
+				prefetch( Math.max( grain, prefetchedTo + 1 ), grainOffset );
+			Future<byte[]> f = prefetched.remove( grainOffset );
+			if( f == null )
+				return false;
+			byte[] grainData = null;
+			try {
+				grainData = f.get();
+			} catch( InterruptedException ie ) {
+				throw new InterruptedIOException( "Read-ahead interrupted" );
+			} catch( ExecutionException ee ) {
+				log.warn( ee.getCause() );
+			}
+			if( grainData == null )
+				return false;
+			System.arraycopy( grainData, 0, grainBuffer, 0, grainData.length );
+			return true;
+		}
+
+		/**
+		 * Issue read-ahead for up to readAhead grains, starting with
+		 * grain index 'from'.
+		 *
+		 * @param current - offset of the grain now being read.  Any
+		 * prefetched grains before it were never wanted.
+		 */
+		private void prefetch( long from, long current ) throws IOException {
+			Iterator<Long> i = prefetched.keySet().iterator();
+			while( i.hasNext() ) {
+				long l = i.next();
+				if( l >= current )
+					break;
+				prefetched.get( l ).cancel( false );
+				i.remove();
+			}
+
+			long grainCount = header.capacity / header.grainSize;
+			long to = Math.min( from + readAhead, grainCount );
+			int log2GTEsPerGT = log2GrainTableCoverage - log2GrainSize;
+			List<Long> offsets = new ArrayList<Long>( readAhead );
+			for( long g = from; g < to; g++ ) {
+				int gdIndex = (int)(g >>> log2GTEsPerGT);
+				long gde = grainDirectory.gde( gdIndex );
+				if( gde == GrainDirectory.ZERO || gde == GrainDirectory.PARENT )
+					continue;
+				long gte = grainDirectory.gte
+					( gdIndex, (int)(g & (header.numGTEsPerGT - 1)) );
+				if( gte > 0 )
+					offsets.add( gte * Constants.SECTORLENGTH );
+			}
+			prefetchedTo = to - 1;
+			if( offsets.isEmpty() )
+				return;
+			
+			/*
+			  Grains are laid out in the managed data in grain order,
+			  so all those wanted lie in one contiguous region.  We
+			  know where the last grain starts but not its length,
+			  so allow for the worst case.
+			*/
+			long start = offsets.get( 0 );
+			long end = Math.min( offsets.get( offsets.size() - 1 ) +
+								 GrainMarker.SIZEOF + 2 * grainSizeBytes,
+								 raf.length() );
+			byte[] region = new byte[(int)(end - start)];
+			raf.seek( start );
+			raf.readFully( region );
+
+			ExecutorService es = readAheadExecutor();
+			for( long offset : offsets ) {
+				int p = (int)(offset - start);
+				int size = (region[p+8] & 0xff) << 24 |
+					(region[p+9] & 0xff) << 16 |
+					(region[p+10] & 0xff) << 8 |
+					(region[p+11] & 0xff);
+				boolean raw = GrainMarker.isRaw( size );
+				size = GrainMarker.length( size );
+				if( p + GrainMarker.SIZEOF + size > region.length )
+					continue;
+				prefetched.put( offset, es.submit
+								( new GrainInflate( region,
+													p + GrainMarker.SIZEOF,
+													size, raw ) ) );
+			}
+		}
+
+		private void cancelReadAhead() {
+			for( Future<byte[]> f : prefetched.values() )
+				f.cancel( false );
+			prefetched.clear();
+			prefetchedTo = -1;
+		}
+		
+		/**
+		 * Load grainBuffer with the grain whose marker is at
+		 * grainOffset (bytes) in the managed data.
+		 *
+		 * @throws IOException if the grain data could not be
+		 * uncompressed, as readGrainAt does
+		 */
+		private void readGrain( long grainOffset ) throws IOException {
+			raf.seek( grainOffset );
+			GrainMarker gm = GrainMarker.readFrom( raf );
+			if( gm.raw ) {
+				if( gm.size != grainSizeBytes )
+					throw new IllegalStateException
+						( "Bad raw grain len: " + gm.size );
+				raf.readFully( grainBuffer );
+				return;
+			}
+			int nin = raf.read( compressedGrainBuffer, 0, gm.size );
+			if( nin != gm.size )
+				throw new IllegalStateException
+					( "Partial read: "+ nin + " " + gm.size);
+			if( log.isDebugEnabled() ) {
+				log.debug( "Inflating " + gdIndex + " "+ gtIndex +
+						   " = " + nin + " " + gm.lba );
+			}
+			try {
+				int actualLength = codec.uncompress
+					( compressedGrainBuffer, 0, nin, grainBuffer );
+				if( actualLength != grainSizeBytes )
+					throw new IllegalStateException
+						( "Bad inflate len: " + actualLength );
+			} catch( DataFormatException dfe ) {
+				throw new IOException( managedData + ": grain at " +
+									   grainOffset, dfe );
+			}
+		}
+
 		/**
 		   Called whenever the local posn changes value.  Do NOT make
 		   calls to the parent.dPos here.  Only update parent posn via
@@ -1157,7 +2189,12 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		}
 	
 		private final RandomAccessFile raf;
-		private final SeekableInputStream parentStream;
+		private final GrainCodec codec;
+		private final GrainCache cache;
+		private final int readAhead;
+		private final Map<Long,Future<byte[]>> prefetched;
+		private long prefetchedTo, sequentialEnd;
+		private int sequentialReads;
 		private int log2GrainSize, log2GrainTableCoverage;
 		private byte[] compressedGrainBuffer;
 		private byte[] grainBuffer;
@@ -1166,6 +2203,248 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		private long gtePrev;
 	}
 	
+	/**
+	 * Uncompress a single grain on behalf of SODRandomAccessRead's
+	 * read-ahead, using the calling (pool) thread's codec.  Raw
+	 * grains are just copied.
+	 *
+	 * @return the grain, or null if the data would not uncompress
+	 */
+	class GrainInflate implements Callable<byte[]> {
+		GrainInflate( byte[] region, int offset, int length, boolean raw ) {
+			this.region = region;
+			this.offset = offset;
+			this.length = length;
+			this.raw = raw;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			if( raw ) {
+				if( length != grainSizeBytes )
+					return null;
+				return Arrays.copyOfRange( region, offset, offset + length );
+			}
+			GrainCodec gc = GrainCodec.forThread( header.compressAlgorithm );
+			byte[] result = new byte[(int)grainSizeBytes];
+			try {
+				int actualLength = gc.uncompress( region, offset, length,
+												  result );
+				if( actualLength != grainSizeBytes )
+					return null;
+			} catch( DataFormatException dfe ) {
+				return null;
+			}
+			return result;
+		}
+
+		private final byte[] region;
+		private final int offset, length;
+		private final boolean raw;
+	}
+
+	/**
+	 * Set how many grains ahead the InputStreams of this disk read
+	 * (and uncompress, in the background) once they detect sequential
+	 * access.  0 disables read-ahead.  Affects streams created after
+	 * the call.
+	 *
+	 * @throws IllegalArgumentException if negative, or if the grains
+	 * would span more than READAHEAD_MAXBYTES, the managed data for a
+	 * read-ahead being read whole into one array
+	 */
+	public void setReadAhead( int grains ) {
+		if( grains < 0 ||
+			(long)grains * grainSizeBytes() > READAHEAD_MAXBYTES )
+			throw new IllegalArgumentException( "Read-ahead: " + grains );
+		readAheadGrains = grains;
+	}
+
+	/**
+	 * Choose how the grain directory and grain tables are held once
+	 * read.  Loaded onto the heap (the default) costs 8 bytes per
+	 * grain and a read of every grain table at open time.
+	 * Memory-mapped, entries are read from the mapping as needed,
+	 * so there is no such up front cost, whatever the disk size.
+	 * The default is mapped if system property tupelo.sod.mapmetadata
+	 * is true.  Must be set before any read of this disk.
+	 */
+	public synchronized void setMapMetaData( boolean b ) {
+		if( grainDirectory != null )
+			throw new IllegalStateException( "Metadata already loaded" );
+		mapMetaData = b;
+	}
+
+	static private synchronized ExecutorService readAheadExecutor() {
+		if( READAHEAD == null ) {
+			int n = Runtime.getRuntime().availableProcessors();
+			READAHEAD = Executors.newFixedThreadPool( n, new ThreadFactory() {
+					@Override
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread( r, "ReadAhead" );
+						t.setDaemon( true );
+						return t;
+					}
+				} );
+		}
+		return READAHEAD;
+	}
+	
+	/**
+	 * Rewrite a Version.LAYOUT_32 managed disk file as LAYOUT_64, in
+	 * place.  The rewrite is to a temporary file alongside, renamed
+	 * over the original only once complete, so an interrupted upgrade
+	 * leaves the original intact.  Grains are copied as is.  Only the
+	 * grain tables, grain directory and header/footer change, though
+	 * since grain tables grow, all that follows them moves too, so
+	 * the shared GrainCache drops its grains of managedData.
+	 *
+	 * @return false if managedData needed no upgrade (is not a
+	 * StreamOptimizedDisk, or is already LAYOUT_64)
+	 */
+	static public boolean upgradeLayout( File managedData )
+		throws IOException {
+		byte[] sector = new byte[Constants.SECTORLENGTH];
+		ByteBuffer bb = ByteBuffer.wrap( sector );
+		DataInputStream dis = new DataInputStream
+			( new BufferedInputStream( new FileInputStream( managedData ),
+									   1024 * 1024 ) );
+		File tmp = new File( managedData.getPath() + ".upgrade" );
+		DataOutputStream dos = null;
+		try {
+			dis.readFully( sector );
+			Header header = new Header( new ByteArrayInputStream( sector ) );
+			if( header.type != DiskTypes.STREAMOPTIMIZED ||
+				header.layout == Version.LAYOUT_64 )
+				return false;
+			header.layout = Version.LAYOUT_64;
+			dos = new DataOutputStream
+				( new BufferedOutputStream( new FileOutputStream( tmp ),
+											1024 * 1024 ) );
+			header.writeTo( (DataOutput)dos );
+
+			// Sector positions in old and new files
+			long in = 1, out = 1;
+
+			/*
+			  Each grain table written moves all that follows by the
+			  growth of that table.  Keyed by old sector, the shift in
+			  effect from there on.
+			*/
+			TreeMap<Long,Long> shifts = new TreeMap<Long,Long>();
+			shifts.put( 0L, 0L );
+			
+			long gdOffset = 0;
+			while( true ) {
+				dis.readFully( sector );
+				int size = GrainMarker.length( bb.getInt( 8 ) );
+				if( size != 0 ) {
+					// A grain, marker and data, padded to a sector
+					int len = (int)Utils.alignUp( GrainMarker.SIZEOF + size,
+												  Constants.SECTORLENGTH );
+					byte[] grain = new byte[len];
+					System.arraycopy( sector, 0, grain, 0, sector.length );
+					dis.readFully( grain, sector.length,
+								   len - sector.length );
+					dos.write( grain );
+					in += len / Constants.SECTORLENGTH;
+					out += len / Constants.SECTORLENGTH;
+					continue;
+				}
+				long numSectors = bb.getLong( 0 );
+				int type = bb.getInt( 12 );
+				if( false ) {
+				} else if( type == MetadataMarker.TYPE_GT ) {
+					long[] gt = new long[header.numGTEsPerGT];
+					byte[] ba = new byte[(int)numSectors *
+										 Constants.SECTORLENGTH];
+					dis.readFully( ba );
+					ByteBuffer gtb = ByteBuffer.wrap( ba );
+					for( int i = 0; i < gt.length; i++ ) {
+						int gte = gtb.getInt( 4 * i );
+						if( gte == 0 || gte == -1 || gte == -2 ) {
+							// zero, parent, unused: no locations
+							gt[i] = gte;
+						} else {
+							long l = gte & 0xffffffffL;
+							gt[i] = l + shifts.floorEntry( l ).getValue();
+						}
+					}
+					long newSectors = 8L * gt.length / Constants.SECTORLENGTH;
+					new MetadataMarker( newSectors, MetadataMarker.TYPE_GT ).
+						writeTo( dos );
+					for( long gte : gt )
+						dos.writeLong( gte );
+					in += 1 + numSectors;
+					out += 1 + newSectors;
+					shifts.put( in, out - in );
+				} else if( type == MetadataMarker.TYPE_GD ) {
+					byte[] ba = new byte[(int)numSectors *
+										 Constants.SECTORLENGTH];
+					dis.readFully( ba );
+					ByteBuffer gdb = ByteBuffer.wrap( ba );
+					long grainCount = header.capacity / header.grainSize;
+					int grainTableCount = (int)
+						(Utils.alignUp( grainCount, header.numGTEsPerGT ) /
+						 header.numGTEsPerGT);
+					int gdWrite = 8 * grainTableCount;
+					long newSectors = Utils.alignUp
+						( gdWrite, Constants.SECTORLENGTH ) /
+						Constants.SECTORLENGTH;
+					new MetadataMarker( newSectors, MetadataMarker.TYPE_GD ).
+						writeTo( dos );
+					for( int i = 0; i < grainTableCount; i++ ) {
+						long gde = gdb.getInt( 4 * i );
+						if( gde != 0 && gde != -1 ) {
+							gde &= 0xffffffffL;
+							gde += shifts.floorEntry( gde ).getValue();
+						}
+						dos.writeLong( gde );
+					}
+					dos.write( new byte[(int)(newSectors *
+											  Constants.SECTORLENGTH -
+											  gdWrite)] );
+					gdOffset = out + 1;
+					in += 1 + numSectors;
+					out += 1 + newSectors;
+				} else if( type == MetadataMarker.TYPE_FOOTER ) {
+					dos.write( sector );
+					dis.readFully( sector );
+					Header footer = new Header
+						( new ByteArrayInputStream( sector ) );
+					footer.layout = Version.LAYOUT_64;
+					footer.gdOffset = gdOffset;
+					footer.writeTo( (DataOutput)dos );
+					in += 2;
+					out += 2;
+				} else if( type == MetadataMarker.TYPE_EOS ) {
+					dos.write( sector );
+					break;
+				} else {
+					throw new IllegalStateException
+						( managedData + ": Unknown marker type " + type +
+						  " at sector " + in );
+				}
+			}
+			dos.close();
+			dos = null;
+		} finally {
+			dis.close();
+			if( dos != null ) {
+				dos.close();
+				tmp.delete();
+			}
+		}
+		Files.move( tmp.toPath(), managedData.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE );
+		// grains cached at their old offsets are no longer there
+		GrainCache cache = GrainCache.shared();
+		if( cache != null )
+			cache.invalidate( managedData );
+		return true;
+	}
+	
 	static int log2( long i ) {
 		for( int p = 0; p < 32; p++ ) {
 			if( i == 1 << p )
@@ -1181,22 +2460,39 @@ public class StreamOptimizedDisk extends ManagedDisk {
 	   }
 	*/
 	static class GrainMarker {
-		GrainMarker( long lba, int size ) {
+		GrainMarker( long lba, int size, boolean raw ) {
 			this.lba = lba;
 			this.size = size;
+			this.raw = raw;
 		}
 		void writeTo( DataOutputStream dos ) throws IOException {
 			dos.writeLong( lba );
-			dos.writeInt( size );
+			dos.writeInt( raw ? size | RAW : size );
 		}
 		static GrainMarker readFrom( DataInput di ) throws IOException {
 			long lba = di.readLong();
 			int size = di.readInt();
-			return new GrainMarker( lba, size );
+			return new GrainMarker( lba, length( size ), isRaw( size ) );
+		}
+
+		// Decoding the on-disk size field
+		static int length( int size ) {
+			return size & ~RAW;
+		}
+		static boolean isRaw( int size ) {
+			return (size & RAW) != 0;
 		}
 		
 		final long lba;
 		final int size;
+		final boolean raw;
+
+		/*
+		  High bit of the on-disk size field: grain data stored as is,
+		  not compressed.  No grain is anywhere near 2GB, so the bit
+		  was always clear before raw grains.
+		*/
+		static final int RAW = 0x80000000;
 
 		static final int SIZEOF = 8 + 4;
 	}
@@ -1258,11 +2554,17 @@ public class StreamOptimizedDisk extends ManagedDisk {
 
 	private ManagedDiskDigest parentDigest;
 	private ManagedDisk parent;
+	private volatile GrainMap grainMap;
+	private int captureThreads = 1;
+	private double rawThreshold = RAWTHRESHOLD_DEFAULT;
+	private boolean parentGDEs = true;
+	private int readAheadGrains = READAHEAD_DEFAULT;
 
 	private long grainSizeBytes, grainTableCoverageBytes;
 	private byte[] zeroGrain;
 	private byte[] zeroGrainTable;
-	private long[][] grainDirectory;
+	private volatile GrainDirectory grainDirectory;
+	private boolean mapMetaData = MAPMETADATA_DEFAULT;
 
 	
 	static private final byte[] ZEROGRAIN_DEFAULT =
@@ -1272,8 +2574,59 @@ public class StreamOptimizedDisk extends ManagedDisk {
 		new byte[(int)(GRAINSIZE_DEFAULT * Constants.SECTORLENGTH *
 					   NUMGTESPERGT )];
 
-	static private long[] ZEROGDE = new long[0];
-	static private long[] PARENTGDE = new long[0];
+	/*
+	  How many grain tables the CapturePipeline has read but not yet
+	  written
+	*/
+	static private final int CAPTUREDEPTH = 2;
+
+	static public final double RAWTHRESHOLD_DEFAULT = 0.95;
+
+	// Bytes of a grain test-compressed to judge whether to store it raw
+	static private final int RAWPROBE = 4096;
+
+	// Grains (so 2MB for default grain size) read ahead by InputStreams
+	static public final int READAHEAD_DEFAULT = 32;
+
+	// Most a read-ahead may span, well short of the 2GB array limit
+	static public final long READAHEAD_MAXBYTES = 256L * 1024 * 1024;
+
+	// Consecutive sequential reads needed to start read-ahead
+	static private final int READAHEADTRIGGER = 2;
+
+	// readAt's per-thread buffers, one for a grain, one for its compressed form
+	static private final int READATGRAIN = 0;
+	static private final int READATCOMPRESSED = 1;
+	static private final ThreadLocal<byte[][]> READATBUFFERS =
+		new ThreadLocal<byte[][]>() {
+			@Override
+			protected byte[][] initialValue() {
+				return new byte[2][];
+			}
+		};
+
+	// Size of readAt's first read of a grain (marker+data), in bytes
+	static private final int READATFIRST = 8192;
+	
+	// Shared by all disks, since their read-ahead tasks are cpu-bound
+	static private ExecutorService READAHEAD;
+
+	/*
+	  So that all data structures line up on a sector boundary in the
+	  managed file, we pad where necessary (so use a subset of this)
+	*/
+	static private final byte[] SECTORPADDING =
+		new byte[Constants.SECTORLENGTH];
+	
+	// Sector offsets beyond this need Version.LAYOUT_64
+	static private final long LAYOUT_32_LIMIT = 1L << 32;
+
+	/*
+	  Whether grain tables are memory-mapped rather than loaded onto
+	  the heap, for disks not told otherwise, see setMapMetaData.
+	*/
+	static private final boolean MAPMETADATA_DEFAULT =
+		Boolean.getBoolean( "tupelo.sod.mapmetadata" );
 }
 
 // eof
@@ -51,6 +51,23 @@ public class Version {
 	static public int PATCH = 0;
 
 	static public int VERSION;
+
+	/*
+	  Versions of the managed disk (.tmd) file layout, as recorded in
+	  each ManagedDisk.Header.  Independent of the code version above,
+	  this is what a reader needs to know to parse the file at all.
+
+	  LAYOUT_32: grain directory and grain table entries are 4 byte
+	  sector offsets, so no managed file can exceed 2TB.  Files
+	  predating the layout field have 0 there, and are LAYOUT_32.
+
+	  LAYOUT_64: those entries are 8 bytes.
+	*/
+	static public final int LAYOUT_32 = 1;
+	static public final int LAYOUT_64 = 2;
+
+	// The newest layout this code can read (and write)
+	static public final int LAYOUT = LAYOUT_64;
 	
 	static private final Pattern REGEX =
 		Pattern.compile( "(\\d+)\\.(\\d+)\\.(\\d+)" );
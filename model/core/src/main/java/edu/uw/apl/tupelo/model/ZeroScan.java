@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Fast all-zeros tests on byte arrays, as needed by the capture of a
+ * StreamOptimizedDisk, which omits zero grains (and grain tables)
+ * from the managed data.  Rather than test each byte, we OR together
+ * eight longs (64 bytes) at a time and test the result, which the
+ * JIT turns into wide loads.  Only at the ends of a range, or for
+ * ranges not a multiple of 8 bytes, do we test single bytes.
+ *
+ * @see StreamOptimizedDisk
+ */
+public class ZeroScan {
+
+	/**
+	 * @return true if ba[off, off+len) is all zeros
+	 */
+	static public boolean isZero( byte[] ba, int off, int len ) {
+		ByteBuffer bb = ByteBuffer.wrap( ba ).order( ByteOrder.nativeOrder() );
+		return isZero( bb, ba, off, len );
+	}
+
+	/**
+	 * Zero-test each grainSize piece of ba[off, off+len), in a single
+	 * pass, so the caller can tell a zero grain table (all flags set)
+	 * from one with some zero grains.
+	 *
+	 * @param zeros - receives one flag per grain, must be at least
+	 * len/grainSize long.  A trailing piece shorter than a grain
+	 * is treated as a grain.
+	 *
+	 * @return the number of zero grains
+	 */
+	static public int scan( byte[] ba, int off, int len, int grainSize,
+							boolean[] zeros ) {
+		ByteBuffer bb = ByteBuffer.wrap( ba ).order( ByteOrder.nativeOrder() );
+		int result = 0;
+		for( int g = 0; g * (long)grainSize < len; g++ ) {
+			int gOff = off + g * grainSize;
+			int gLen = Math.min( grainSize, off + len - gOff );
+			zeros[g] = isZero( bb, ba, gOff, gLen );
+			if( zeros[g] )
+				result++;
+		}
+		return result;
+	}
+
+	static private boolean isZero( ByteBuffer bb, byte[] ba, int off,
+								   int len ) {
+		int end = off + len;
+		int i = off;
+		// Bytes up to an 8 byte boundary...
+		while( i < end && (i & 7) != 0 ) {
+			if( ba[i] != 0 )
+				return false;
+			i++;
+		}
+		// 64 bytes at a time, a branch per 64 not per byte...
+		for( ; i + 64 <= end; i += 64 ) {
+			long l = bb.getLong( i ) | bb.getLong( i + 8 ) |
+				bb.getLong( i + 16 ) | bb.getLong( i + 24 ) |
+				bb.getLong( i + 32 ) | bb.getLong( i + 40 ) |
+				bb.getLong( i + 48 ) | bb.getLong( i + 56 );
+			if( l != 0 )
+				return false;
+		}
+		for( ; i + 8 <= end; i += 8 ) {
+			if( bb.getLong( i ) != 0 )
+				return false;
+		}
+		// and any bytes left over
+		for( ; i < end; i++ ) {
+			if( ba[i] != 0 )
+				return false;
+		}
+		return true;
+	}
+}
+
+// eof
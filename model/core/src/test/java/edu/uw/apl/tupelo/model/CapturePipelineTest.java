@@ -0,0 +1,156 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Testing the multi-threaded capture of StreamOptimizedDisk.  Whatever
+ * the thread count, the managed data produced must be identical to
+ * that of the single-threaded capture.
+ *
+ * @see StreamOptimizedDisk#setCaptureThreads
+ */
+public class CapturePipelineTest extends junit.framework.TestCase {
+
+	/*
+	  Two whole grain tables (one of them all zeros, so becoming a zero
+	  GDE) and a remainder of one and a half grains
+	*/
+	static final long SIZE = 2 * 32L * 1024 * 1024 + 96 * 1024;
+	
+	public void testSameAsSequential() throws IOException {
+		for( ManagedDisk.Compressions c : ManagedDisk.Compressions.values() ) {
+			UnmanagedDisk ud = new PatternDisk( SIZE );
+			StreamOptimizedDisk sod = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			sod.setCompression( c );
+			byte[] sequential = capture( sod, 1 );
+			byte[] pipelined = capture( sod, 4 );
+			System.out.println( c + ": " + sequential.length );
+			assertTrue( Arrays.equals( sequential, pipelined ) );
+		}
+	}
+
+	public void testSameAsSequentialWithParentDigest() throws Exception {
+		UnmanagedDisk ud = new PatternDisk( SIZE );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		byte[] full = capture( sod, 4 );
+		sod.setParentDigest( digest( ud ) );
+		byte[] sequential = capture( sod, 1 );
+		byte[] pipelined = capture( sod, 4 );
+		assertTrue( Arrays.equals( sequential, pipelined ) );
+		assertTrue( pipelined.length < full.length );
+	}
+
+	public void testRoundTrip() throws Exception {
+		UnmanagedDisk ud = new PatternDisk( SIZE );
+		InputStream is1 = ud.getInputStream();
+		String md51 = Utils.md5sum( is1 );
+		is1.close();
+
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.setCaptureThreads( 3 );
+		File out = new File( ud.getID() + ManagedDisk.FILESUFFIX );
+		sod.writeTo( out );
+
+		ManagedDisk md = ManagedDisk.readFrom( out );
+		InputStream is2 = md.getInputStream();
+		String md52 = Utils.md5sum( is2 );
+		is2.close();
+		out.delete();
+		
+		assertEquals( md51, md52 );
+	}
+
+	private byte[] capture( StreamOptimizedDisk sod, int threads )
+		throws IOException {
+		sod.setCaptureThreads( threads );
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		sod.writeTo( baos );
+		return baos.toByteArray();
+	}
+
+	static ManagedDiskDigest digest( UnmanagedDisk ud ) throws Exception {
+		MessageDigest md = MessageDigest.getInstance
+			( ManagedDisk.DIGESTALGORITHM );
+		byte[] grain = new byte[(int)(ManagedDisk.GRAINSIZE_DEFAULT *
+									  Constants.SECTORLENGTH)];
+		ManagedDiskDigest result = new ManagedDiskDigest();
+		InputStream is = ud.getInputStream();
+		long total = 0;
+		while( total < ud.size() ) {
+			int nin = IOUtils.read( is, grain );
+			Arrays.fill( grain, nin, grain.length, (byte)0 );
+			md.reset();
+			md.update( grain );
+			result.add( md.digest() );
+			total += nin;
+		}
+		is.close();
+		return result;
+	}
+	
+	/*
+	  Some zero grains, some compressible ones, and a grain table
+	  entirely of zeros
+	*/
+	static class PatternDisk extends MemoryDisk {
+		PatternDisk( long size ) {
+			super( size );
+		}
+
+		@Override
+		protected byte supplyByte( long offset ) {
+			long grain = offset >>> 16;
+			if( grain >= 512 && grain < 1024 )
+				return 0;
+			if( grain % 5 == 0 )
+				return 0;
+			return (byte)(grain * 7 + (offset % 13));
+		}
+	}
+}
+
+// eof
@@ -39,11 +39,98 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
 public class CompressionAlgorithmsTest extends junit.framework.TestCase {
 
+	static final long SIZE = 32L * 1024 * 1024;
+	
 	public void testNull() {
 	}
 
+	// Each compression, at its default and a non-default level
+	public void testRoundTrips() throws IOException {
+		UnmanagedDisk ud = new WordDisk( SIZE / 4 );
+		InputStream is = ud.getInputStream();
+		String expected = Utils.md5sum( is );
+		is.close();
+		int[] levels = { ManagedDisk.COMPRESSIONLEVEL_DEFAULT, 9 };
+		File f = new File( "roundtrip" + ManagedDisk.FILESUFFIX );
+		for( ManagedDisk.Compressions c :
+				 ManagedDisk.Compressions.values() ) {
+			for( int level : levels ) {
+				StreamOptimizedDisk md =
+					new StreamOptimizedDisk( ud, Session.CANNED );
+				md.setCompression( c );
+				md.setCompressionLevel( level );
+				md.writeTo( f );
+				ManagedDisk md2 = ManagedDisk.readFrom( f );
+				assertEquals( c, md2.getCompression() );
+				is = md2.getInputStream();
+				assertEquals( c + " " + level, expected, Utils.md5sum( is ) );
+				is.close();
+			}
+		}
+		f.delete();
+	}
+
+	/*
+	  Compression ratio (managed/unmanaged size, so smaller is better)
+	  and MB/s for capture and for a sequential read back.  Random data
+	  is stored raw (see StreamOptimizedDisk.setRawThreshold), so for
+	  it we disable raw grains, else all codecs look alike.
+	*/
+	public void testBenchmark() throws IOException {
+		UnmanagedDisk[] uds = { new RandomDisk( SIZE ), new WordDisk( SIZE ) };
+		File f = new File( "benchmark" + ManagedDisk.FILESUFFIX );
+		System.out.printf( "%-10s %-8s %6s %6s %10s %10s\n", "Disk", "Codec",
+						   "Level", "Ratio", "Write MB/s", "Read MB/s" );
+		for( UnmanagedDisk ud : uds ) {
+			for( ManagedDisk.Compressions c :
+					 ManagedDisk.Compressions.values() ) {
+				benchmark( ud, c, ManagedDisk.COMPRESSIONLEVEL_DEFAULT, f );
+				if( c == ManagedDisk.Compressions.ZSTD ) {
+					benchmark( ud, c, 1, f );
+					benchmark( ud, c, 9, f );
+				}
+				if( c == ManagedDisk.Compressions.LZ4 )
+					benchmark( ud, c, 9, f );
+			}
+		}
+		f.delete();
+	}
+
+	private void benchmark( UnmanagedDisk ud, ManagedDisk.Compressions c,
+							int level, File f ) throws IOException {
+		StreamOptimizedDisk md = new StreamOptimizedDisk( ud, Session.CANNED );
+		md.setCompression( c );
+		md.setCompressionLevel( level );
+		md.setRawThreshold( 0 );
+		long start = System.nanoTime();
+		md.writeTo( f );
+		long write = System.nanoTime() - start;
+
+		ManagedDisk md2 = ManagedDisk.readFrom( f );
+		InputStream is = md2.getInputStream();
+		CountingOutputStream cos =
+			new CountingOutputStream( new NullOutputStream() );
+		start = System.nanoTime();
+		byte[] ba = new byte[1024*1024];
+		int nin;
+		while( (nin = is.read( ba )) != -1 )
+			cos.write( ba, 0, nin );
+		long read = System.nanoTime() - start;
+		is.close();
+		assertEquals( ud.size(), cos.getByteCount() );
+		
+		double mb = ud.size() / (1024.0 * 1024);
+		System.out.printf( "%-10s %-8s %6d %6.3f %10.1f %10.1f\n",
+						   ud.getClass().getSimpleName(), c, level,
+						   f.length() / (double)ud.size(),
+						   mb / (write / 1e9), mb / (read / 1e9) );
+	}
+
 	public void testWriteNuga2() throws IOException {
 		File f = new File( "data/nuga2.dd" );
 		if( !f.exists() )
@@ -54,6 +141,8 @@ public class CompressionAlgorithmsTest extends junit.framework.TestCase {
 		testWrite( md, ManagedDisk.Compressions.DEFLATE );
 		testWrite( md, ManagedDisk.Compressions.GZIP );
 		testWrite( md, ManagedDisk.Compressions.SNAPPY );
+		testWrite( md, ManagedDisk.Compressions.LZ4 );
+		testWrite( md, ManagedDisk.Compressions.ZSTD );
 	}
 
 	private void testWrite( ManagedDisk md, ManagedDisk.Compressions c )
@@ -81,6 +170,8 @@ public class CompressionAlgorithmsTest extends junit.framework.TestCase {
 			ManagedDisk.Compressions.DEFLATE,
 			ManagedDisk.Compressions.GZIP,
 			ManagedDisk.Compressions.SNAPPY,
+			ManagedDisk.Compressions.LZ4,
+			ManagedDisk.Compressions.ZSTD,
 		};
 		for( ManagedDisk.Compressions c : cs ) {
 			File f = new File( "nuga2.dd" + ManagedDisk.FILESUFFIX +
@@ -99,6 +190,26 @@ public class CompressionAlgorithmsTest extends junit.framework.TestCase {
 			System.out.println( f + " -> " + (stop-start)/1000 );
 		}
 	}
+
+	/*
+	  Text-like content, runs of 8 letters drawn from a small
+	  vocabulary, so compressible but not trivially so.
+	*/
+	static class WordDisk extends MemoryDisk {
+		WordDisk( long size ) {
+			super( size );
+		}
+
+		@Override
+		protected byte supplyByte( long offset ) {
+			long h = (offset >>> 3) * 0x9E3779B97F4A7C15L;
+			int word = (int)(h >>> 58);
+			int c = (int)(offset & 7);
+			if( c == 7 )
+				return ' ';
+			return (byte)('a' + (word * 11 + c * 7) % 26);
+		}
+	}
 }
 
 // eof
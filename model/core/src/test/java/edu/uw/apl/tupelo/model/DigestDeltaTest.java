@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Testing DigestDelta: a parent digest rebuilt from its table digest,
+ * a local digest and just the differing tables must equal the parent
+ * digest itself.
+ */
+public class DigestDeltaTest extends junit.framework.TestCase {
+
+	static final long GRAINSIZEBYTES = 4096;
+	static final int GRAINSPERTABLE = ManagedDisk.NUMGTESPERGT;
+
+	// Two whole 2MB tables, a partial one, and a partial grain
+	static final long SIZE = (5L << 20) + 3072;
+	static final int EXTENT = 1024 * 109;
+	
+	protected void setUp() throws IOException {
+		parent = DigestDelta.digest( new RandomDisk( SIZE, EXTENT, 3 ),
+									 GRAINSIZEBYTES, GrainHash.MD5 );
+	}
+
+	public void testUnchanged() throws IOException {
+		ManagedDiskDigest local = DigestDelta.digest
+			( new RandomDisk( SIZE, EXTENT, 3 ), GRAINSIZEBYTES,
+			  GrainHash.MD5 );
+		DigestDelta dd = new DigestDelta
+			( local, parent.tableDigest( GRAINSPERTABLE ), parent.size(),
+			  GRAINSPERTABLE );
+		assertEquals( 0, dd.differing().length );
+		same( parent, dd.merge( parent.select( dd.differing(),
+											   GRAINSPERTABLE ) ) );
+	}
+
+	public void testChanged() throws IOException {
+		RandomDisk ud = new RandomDisk( SIZE, EXTENT, 3 );
+		ud.set( (2L << 20) + 10000, new byte[100] );
+		ManagedDiskDigest local = DigestDelta.digest
+			( ud, GRAINSIZEBYTES, GrainHash.MD5 );
+		DigestDelta dd = new DigestDelta
+			( local, parent.tableDigest( GRAINSPERTABLE ), parent.size(),
+			  GRAINSPERTABLE );
+		assertTrue( Arrays.equals( new int[] { 1 }, dd.differing() ) );
+		same( parent, dd.merge( parent.select( dd.differing(),
+											   GRAINSPERTABLE ) ) );
+	}
+
+	// A local disk larger than the parent needs no more than its digest
+	public void testGrown() throws IOException {
+		ManagedDiskDigest local = DigestDelta.digest
+			( new RandomDisk( 2 * SIZE, EXTENT, 3 ), GRAINSIZEBYTES,
+			  GrainHash.MD5 );
+		DigestDelta dd = new DigestDelta
+			( local, parent.tableDigest( GRAINSPERTABLE ), parent.size(),
+			  GRAINSPERTABLE );
+		// only the last, partial, parent table differs
+		assertTrue( Arrays.equals( new int[] { 2 }, dd.differing() ) );
+		same( parent, dd.merge( parent.select( dd.differing(),
+											   GRAINSPERTABLE ) ) );
+	}
+
+	public void testAlgorithms() throws IOException {
+		ManagedDiskDigest local = DigestDelta.digest
+			( new RandomDisk( SIZE, EXTENT, 3 ), GRAINSIZEBYTES,
+			  GrainHash.SHA256 );
+		try {
+			new DigestDelta( local, parent.tableDigest( GRAINSPERTABLE ),
+							 parent.size(), GRAINSPERTABLE );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+	}
+
+	private void same( ManagedDiskDigest expected, ManagedDiskDigest actual ) {
+		assertEquals( expected.size(), actual.size() );
+		for( int i = 0; i < expected.size(); i++ )
+			assertTrue( actual.matches( i, expected.get( i ) ) );
+	}
+	
+	private ManagedDiskDigest parent;
+}
+
+// eof
@@ -0,0 +1,133 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Testing that the parallel DigestEngine produces exactly the digest
+ * a sequential read and hash (as FilesystemStore.computeDigest does)
+ * produces, for one disk and for several at once.
+ */
+public class DigestEngineTest extends junit.framework.TestCase {
+
+	// Whole grain tables, then a remainder ending in a partial grain
+	static final long SIZE = 64L * 1024 * 1024 + 96 * 1024 + 1024;
+
+	protected void setUp() throws IOException {
+		files = new ArrayList<File>();
+		UnmanagedDisk ud = new CapturePipelineTest.PatternDisk( SIZE );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.writeTo( file( "pattern" ) );
+		ud = new RandomDisk( SIZE / 2 );
+		sod = new StreamOptimizedDisk( ud, Session.CANNED );
+		sod.writeTo( file( "random" ) );
+		ud = new CapturePipelineTest.PatternDisk( 16L * 1024 * 1024 + 1024 );
+		FlatDisk fd = new FlatDisk( ud, Session.CANNED );
+		fd.writeTo( file( "flat" ) );
+	}
+
+	protected void tearDown() {
+		for( File f : files )
+			f.delete();
+	}
+
+	public void testSingle() throws IOException {
+		DigestEngine de = new DigestEngine( 4, 2 );
+		for( File f : files ) {
+			ManagedDisk md = ManagedDisk.readFrom( f );
+			long start = System.currentTimeMillis();
+			byte[] expected = asBytes( sequential( md ) );
+			long mid = System.currentTimeMillis();
+			byte[] actual = asBytes( de.digest( md ) );
+			long stop = System.currentTimeMillis();
+			System.out.println( f + ": sequential " + (mid-start) +
+								"ms, engine " + (stop-mid) + "ms" );
+			assertTrue( f.toString(), Arrays.equals( expected, actual ) );
+		}
+		de.shutdown();
+	}
+
+	public void testAll() throws IOException {
+		List<ManagedDisk> mds = new ArrayList<ManagedDisk>();
+		for( File f : files )
+			mds.add( ManagedDisk.readFrom( f ) );
+		DigestEngine de = new DigestEngine( 3, 1 );
+		List<ManagedDiskDigest> digests = de.digestAll( mds );
+		de.shutdown();
+		assertEquals( mds.size(), digests.size() );
+		for( int i = 0; i < mds.size(); i++ ) {
+			assertTrue( Arrays.equals( asBytes( sequential( mds.get(i) ) ),
+									   asBytes( digests.get(i) ) ) );
+		}
+	}
+
+	// The pre-DigestEngine way, see FilesystemStore.computeDigest
+	private ManagedDiskDigest sequential( ManagedDisk md ) throws IOException {
+		long gsb = md.grainSizeBytes();
+		GrainDigester gd = new GrainDigester
+			( gsb, (int)(Utils.alignUp( md.size(), gsb ) / gsb) );
+		InputStream is = md.getInputStream();
+		byte[] ba = new byte[1 << 20];
+		int nin;
+		while( (nin = is.read( ba )) != -1 )
+			gd.update( ba, 0, nin );
+		is.close();
+		return gd.finish();
+	}
+
+	private byte[] asBytes( ManagedDiskDigest d ) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		d.writeTo( baos );
+		return baos.toByteArray();
+	}
+	
+	private File file( String name ) {
+		File result = new File( "digestengine-" + name +
+								ManagedDisk.FILESUFFIX );
+		files.add( result );
+		return result;
+	}
+	
+	private List<File> files;
+}
+
+// eof
@@ -0,0 +1,144 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for the GrainCache, both standalone and as shared by the
+ * SeekableInputStreams of a StreamOptimizedDisk.
+ */
+public class GrainCacheTest extends junit.framework.TestCase {
+
+	public void testHitMiss() {
+		GrainCache gc = new GrainCache( 64 * 16, 16 );
+		File f = new File( "some.tmd" );
+		byte[] grain = new byte[16];
+		Arrays.fill( grain, (byte)7 );
+		byte[] output = new byte[16];
+		assertFalse( gc.get( f, 512, output ) );
+		gc.put( f, 512, grain );
+		assertTrue( gc.get( f, 512, output ) );
+		assertTrue( Arrays.equals( grain, output ) );
+		assertFalse( gc.get( new File( "other.tmd" ), 512, output ) );
+		assertEquals( 1, gc.getHits() );
+		assertEquals( 2, gc.getMisses() );
+		assertEquals( 16, gc.size() );
+
+		// wrong sized grains are never cached
+		gc.put( f, 1024, new byte[32] );
+		assertEquals( 16, gc.size() );
+	}
+
+	public void testEviction() {
+		int slots = 64;
+		GrainCache gc = new GrainCache( slots * 16, 16 );
+		assertEquals( slots * 16, gc.capacity() );
+		File f = new File( "some.tmd" );
+		byte[] grain = new byte[16];
+		int puts = slots * 4;
+		for( int i = 0; i < puts; i++ ) {
+			Arrays.fill( grain, (byte)i );
+			gc.put( f, i * 512L, grain );
+		}
+		assertTrue( gc.size() <= gc.capacity() );
+		assertEquals( puts, gc.size() / 16 + gc.getEvictions() );
+
+		// whatever survived must still have the right content
+		byte[] output = new byte[16];
+		for( int i = 0; i < puts; i++ ) {
+			if( gc.get( f, i * 512L, output ) ) {
+				Arrays.fill( grain, (byte)i );
+				assertTrue( Arrays.equals( grain, output ) );
+			}
+		}
+		gc.invalidate( f );
+		assertEquals( 0, gc.size() );
+	}
+
+	// A zero byte budget is a disabled cache
+	public void testDisabled() {
+		GrainCache gc = new GrainCache( 0, 16 );
+		File f = new File( "some.tmd" );
+		gc.put( f, 0, new byte[16] );
+		assertFalse( gc.get( f, 0, new byte[16] ) );
+		assertEquals( 0, gc.capacity() );
+	}
+	
+	public void testSharedAcrossStreams() throws IOException {
+		UnmanagedDisk ud = new RandomDisk( 1024 * 1024 );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		File out = new File( "graincache" + ManagedDisk.FILESUFFIX );
+		sod.writeTo( out );
+		try {
+			ManagedDisk md = ManagedDisk.readFrom( out );
+			GrainCache gc = GrainCache.shared();
+			byte[] ba1 = new byte[(int)md.size()];
+			byte[] ba2 = new byte[(int)md.size()];
+			SeekableInputStream s1 = md.getSeekableInputStream();
+			s1.seek( 0 );
+			readFully( s1, ba1 );
+			long hits = gc.getHits();
+			SeekableInputStream s2 = md.getSeekableInputStream();
+			readFully( s2, ba2 );
+			s1.close();
+			s2.close();
+			assertTrue( Arrays.equals( ba1, ba2 ) );
+			// All 16 grains read by s2 were inflated by s1
+			assertEquals( hits + md.size() / md.grainSizeBytes(),
+						  gc.getHits() );
+		} finally {
+			out.delete();
+		}
+	}
+
+	private void readFully( SeekableInputStream s, byte[] ba )
+		throws IOException {
+		int total = 0;
+		while( total < ba.length ) {
+			int nin = s.read( ba, total, ba.length - total );
+			if( nin == -1 )
+				break;
+			total += nin;
+		}
+		assertEquals( ba.length, total );
+	}
+}
+
+// eof
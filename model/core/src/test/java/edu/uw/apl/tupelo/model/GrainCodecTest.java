@@ -0,0 +1,246 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Round trip tests for each GrainCodec, plus a comparison of heap
+ * bytes allocated per grain: 'before' is how StreamOptimizedDisk
+ * used to (de)compress, with new zlib objects and streams per grain,
+ * 'after' is a single, reused GrainCodec.  Heap allocation counts come
+ * from the (HotSpot-specific) com.sun.management.ThreadMXBean.  Note
+ * that native zlib state is not heap, so the 'before' numbers
+ * understate the true cost.
+ */
+public class GrainCodecTest extends junit.framework.TestCase {
+
+	static final int GRAINSIZE = (int)(ManagedDisk.GRAINSIZE_DEFAULT *
+									   Constants.SECTORLENGTH);
+
+	static final int GRAINS = 256;
+	
+	protected void setUp() {
+		grain = new byte[GRAINSIZE];
+		Random r = new Random( 1234 );
+		// Half random, half zeros, so some compression is possible
+		byte[] half = new byte[GRAINSIZE/2];
+		r.nextBytes( half );
+		System.arraycopy( half, 0, grain, 0, half.length );
+	}
+	
+	public void testRoundTrips() throws Exception {
+		for( ManagedDisk.Compressions c : ManagedDisk.Compressions.values() ) {
+			GrainCodec gc = GrainCodec.create( c );
+			byte[] compressed = gc.compressBuffer( GRAINSIZE );
+			byte[] uncompressed = new byte[GRAINSIZE];
+			// reuse is the point, so round trip more than once
+			for( int i = 0; i < 3; i++ ) {
+				int clen = gc.compress( grain, 0, GRAINSIZE, compressed );
+				Arrays.fill( uncompressed, (byte)1 );
+				int ulen = gc.uncompress( compressed, 0, clen, uncompressed );
+				assertEquals( c.toString(), GRAINSIZE, ulen );
+				assertTrue( c.toString(), Arrays.equals( grain, uncompressed ) );
+			}
+			gc.end();
+		}
+	}
+
+	// Existing managed data has grains written by GZIPOutputStream
+	public void testGzipCompatible() throws Exception {
+		GrainCodec gc = GrainCodec.create( ManagedDisk.Compressions.GZIP );
+		byte[] compressed = gc.compressBuffer( GRAINSIZE );
+		int clen = gzipBefore( grain, compressed );
+		byte[] uncompressed = new byte[GRAINSIZE];
+		int ulen = gc.uncompress( compressed, 0, clen, uncompressed );
+		assertEquals( GRAINSIZE, ulen );
+		assertTrue( Arrays.equals( grain, uncompressed ) );
+
+		// and the reverse...
+		clen = gc.compress( grain, 0, GRAINSIZE, compressed );
+		GZIPInputStream gzis = new GZIPInputStream
+			( new ByteArrayInputStream( compressed, 0, clen ) );
+		int total = 0;
+		Arrays.fill( uncompressed, (byte)1 );
+		while( total < uncompressed.length ) {
+			int nin = gzis.read( uncompressed, total,
+								 uncompressed.length - total );
+			if( nin == -1 )
+				break;
+			total += nin;
+		}
+		gzis.close();
+		assertEquals( GRAINSIZE, total );
+		assertTrue( Arrays.equals( grain, uncompressed ) );
+		gc.end();
+	}
+
+	public void testAllocationPerGrain() throws Exception {
+		com.sun.management.ThreadMXBean tmx = threadMXBean();
+		if( tmx == null )
+			return;
+		long tid = Thread.currentThread().getId();
+		byte[] compressed = new byte[2*GRAINSIZE];
+		byte[] uncompressed = new byte[GRAINSIZE];
+		System.out.printf( "%-11s %14s %14s\n", "Bytes/grain", "Before", "After" );
+		for( ManagedDisk.Compressions c : ManagedDisk.Compressions.values() ) {
+			// warm up both, so class loading etc is not counted
+			int clen = 0;
+			for( int i = 0; i < 16; i++ ) {
+				clen = compressBefore( c, grain, compressed );
+				uncompressBefore( c, compressed, clen, uncompressed );
+			}
+			long start = tmx.getThreadAllocatedBytes( tid );
+			for( int i = 0; i < GRAINS; i++ ) {
+				clen = compressBefore( c, grain, compressed );
+				uncompressBefore( c, compressed, clen, uncompressed );
+			}
+			long before = (tmx.getThreadAllocatedBytes( tid ) - start) /
+				GRAINS;
+
+			GrainCodec gc = GrainCodec.create( c );
+			for( int i = 0; i < 16; i++ ) {
+				clen = gc.compress( grain, 0, GRAINSIZE, compressed );
+				gc.uncompress( compressed, 0, clen, uncompressed );
+			}
+			start = tmx.getThreadAllocatedBytes( tid );
+			for( int i = 0; i < GRAINS; i++ ) {
+				clen = gc.compress( grain, 0, GRAINSIZE, compressed );
+				gc.uncompress( compressed, 0, clen, uncompressed );
+			}
+			long after = (tmx.getThreadAllocatedBytes( tid ) - start) /
+				GRAINS;
+			gc.end();
+			System.out.printf( "%-11s %14d %14d\n", c, before, after );
+			if( c == ManagedDisk.Compressions.GZIP )
+				assertTrue( after < before );
+		}
+	}
+
+	private com.sun.management.ThreadMXBean threadMXBean() {
+		java.lang.management.ThreadMXBean tmx =
+			ManagementFactory.getThreadMXBean();
+		if( !( tmx instanceof com.sun.management.ThreadMXBean ) )
+			return null;
+		com.sun.management.ThreadMXBean result =
+			(com.sun.management.ThreadMXBean)tmx;
+		if( !result.isThreadAllocatedMemorySupported() )
+			return null;
+		result.setThreadAllocatedMemoryEnabled( true );
+		return result;
+	}
+	
+	/*
+	  The per-grain (de)compression as StreamOptimizedDisk did it
+	  before GrainCodec
+	*/
+	
+	private int compressBefore( ManagedDisk.Compressions c, byte[] ba,
+								byte[] output ) throws IOException {
+		switch( c ) {
+		case DEFLATE:
+			Deflater def = new Deflater();
+			def.setInput( ba, 0, ba.length );
+			def.finish();
+			int result = def.deflate( output );
+			def.end();
+			return result;
+		case GZIP:
+			return gzipBefore( ba, output );
+		case SNAPPY:
+			return Snappy.compress( ba, 0, ba.length, output, 0 );
+		default:
+			return 0;
+		}
+	}
+
+	private int gzipBefore( byte[] ba, byte[] output ) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		GZIPOutputStream gzos = new GZIPOutputStream( baos );
+		gzos.write( ba, 0, ba.length );
+		gzos.finish();
+		byte[] ba2 = baos.toByteArray();
+		System.arraycopy( ba2, 0, output, 0, ba2.length );
+		return ba2.length;
+	}
+	
+	private int uncompressBefore( ManagedDisk.Compressions c, byte[] ba,
+								  int len, byte[] output )
+		throws DataFormatException, IOException {
+		switch( c ) {
+		case DEFLATE:
+			Inflater inf = new Inflater();
+			inf.setInput( ba, 0, len );
+			int result = inf.inflate( output );
+			inf.end();
+			return result;
+		case GZIP:
+			ByteArrayInputStream bais = new ByteArrayInputStream( ba );
+			GZIPInputStream gzis = new GZIPInputStream( bais );
+			int total = 0;
+			while( total < output.length ) {
+				int nin = gzis.read( output, total, output.length - total );
+				if( nin == -1 )
+					break;
+				total += nin;
+			}
+			gzis.close();
+			return total;
+		case SNAPPY:
+			if( !Snappy.isValidCompressedBuffer( ba, 0, len ) )
+				throw new DataFormatException( "!isValidCompressedBuffer" );
+			return Snappy.uncompress( ba, 0, len, output, 0 );
+		default:
+			return 0;
+		}
+	}
+
+	private byte[] grain;
+}
+
+// eof
@@ -0,0 +1,247 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Testing the two GrainDirectory implementations, heap and mapped,
+ * which must of course agree on every entry.
+ *
+ * @see StreamOptimizedDisk#setMapMetaData
+ */
+public class GrainDirectoryTest extends junit.framework.TestCase {
+
+	static final long SIZE = CapturePipelineTest.SIZE;
+
+	protected void setUp() throws Exception {
+		ud = new CapturePipelineTest.PatternDisk( SIZE );
+		byte[] mutation = new byte[1000];
+		new Random( 5 ).nextBytes( mutation );
+		ud.set( 70000, mutation );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		// Digest of the unmutated data, so most grains are 'use parent'
+		sod.setParentDigest( CapturePipelineTest.digest
+							 ( new CapturePipelineTest.PatternDisk
+							   ( SIZE ) ) );
+		managed = new File( "graindirectory" + ManagedDisk.FILESUFFIX );
+		sod.writeTo( managed );
+	}
+
+	protected void tearDown() {
+		managed.delete();
+	}
+	
+	public void testSameEntries() throws IOException {
+		ManagedDisk.Header footer = footer();
+		long gdOffset = footer.gdOffset;
+		long grainCount = footer.capacity / footer.grainSize;
+		int grainTableCount = (int)Utils.alignUp
+			( grainCount, ManagedDisk.NUMGTESPERGT ) / ManagedDisk.NUMGTESPERGT;
+		
+		RandomAccessFile raf = new RandomAccessFile( managed, "r" );
+		long start = System.nanoTime();
+		GrainDirectory eager = GrainDirectory.readFrom
+			( raf, gdOffset, grainTableCount, ManagedDisk.NUMGTESPERGT,
+			  footer.entrySizeOf() );
+		long eagerNanos = System.nanoTime() - start;
+		raf.close();
+
+		start = System.nanoTime();
+		GrainDirectory mapped = GrainDirectory.map
+			( managed, gdOffset, grainTableCount, ManagedDisk.NUMGTESPERGT,
+			  footer.entrySizeOf() );
+		long mappedNanos = System.nanoTime() - start;
+		System.out.println( "Open: eager " + eagerNanos / 1000 +
+							"us, mapped " + mappedNanos / 1000 + "us" );
+
+		assertEquals( grainTableCount, eager.length() );
+		assertEquals( eager.length(), mapped.length() );
+		int zeroGDEs = 0, parentGTEs = 0, zeroGTEs = 0;
+		for( int i = 0; i < eager.length(); i++ ) {
+			long gde = eager.gde( i );
+			assertEquals( gde, mapped.gde( i ) );
+			if( gde == GrainDirectory.ZERO ) {
+				zeroGDEs++;
+				continue;
+			}
+			for( int j = 0; j < ManagedDisk.NUMGTESPERGT; j++ ) {
+				long gte = eager.gte( i, j );
+				assertEquals( gte, mapped.gte( i, j ) );
+				if( gte == 0 )
+					zeroGTEs++;
+				if( gte == -1 )
+					parentGTEs++;
+			}
+		}
+		// The PatternDisk has one zero grain table, zero grains and
+		// here, parent grains
+		assertEquals( 1, zeroGDEs );
+		assertTrue( zeroGTEs > 0 );
+		assertTrue( parentGTEs > 0 );
+	}
+
+	/*
+	  A reader interrupted while mapping fails, but must not leave the
+	  directory unable to map for later readers
+	*/
+	public void testInterruptedMap() throws IOException {
+		ManagedDisk.Header footer = footer();
+		long grainCount = footer.capacity / footer.grainSize;
+		int grainTableCount = (int)Utils.alignUp
+			( grainCount, ManagedDisk.NUMGTESPERGT ) / ManagedDisk.NUMGTESPERGT;
+		GrainDirectory mapped = GrainDirectory.map
+			( managed, footer.gdOffset, grainTableCount,
+			  ManagedDisk.NUMGTESPERGT, footer.entrySizeOf() );
+		Thread.currentThread().interrupt();
+		try {
+			mapped.gde( 0 );
+			fail();
+		} catch( IllegalStateException ise ) {
+		} finally {
+			Thread.interrupted();
+		}
+		RandomAccessFile raf = new RandomAccessFile( managed, "r" );
+		GrainDirectory eager = GrainDirectory.readFrom
+			( raf, footer.gdOffset, grainTableCount,
+			  ManagedDisk.NUMGTESPERGT, footer.entrySizeOf() );
+		raf.close();
+		for( int i = 0; i < eager.length(); i++ )
+			assertEquals( eager.gde( i ), mapped.gde( i ) );
+	}
+
+	/*
+	  Relocated to a link, chunks not yet mapped must come from the
+	  link and not from whatever later replaces the original file, as
+	  when a store compacts the disk.  Small chunks, so most are mapped
+	  after the replace.
+	*/
+	public void testRelocate() throws IOException {
+		ManagedDisk.Header footer = footer();
+		long grainCount = footer.capacity / footer.grainSize;
+		int grainTableCount = (int)Utils.alignUp
+			( grainCount, ManagedDisk.NUMGTESPERGT ) / ManagedDisk.NUMGTESPERGT;
+		GrainDirectory mapped = GrainDirectory.map
+			( managed, footer.gdOffset, grainTableCount,
+			  ManagedDisk.NUMGTESPERGT, footer.entrySizeOf(), 4096 );
+		mapped.gde( 0 );
+		
+		File link = new File( "graindirectory-link" + ManagedDisk.FILESUFFIX );
+		File other = new File( "graindirectory-other" +
+							   ManagedDisk.FILESUFFIX );
+		link.delete();
+		Files.createLink( link.toPath(), managed.toPath() );
+		try {
+			mapped = mapped.relocate( link );
+			new StreamOptimizedDisk( ud, Session.CANNED ).writeTo( other );
+			Files.move( other.toPath(), managed.toPath(),
+						StandardCopyOption.REPLACE_EXISTING );
+
+			RandomAccessFile raf = new RandomAccessFile( link, "r" );
+			GrainDirectory eager = GrainDirectory.readFrom
+				( raf, footer.gdOffset, grainTableCount,
+				  ManagedDisk.NUMGTESPERGT, footer.entrySizeOf() );
+			raf.close();
+			for( int i = 0; i < eager.length(); i++ ) {
+				long gde = eager.gde( i );
+				assertEquals( gde, mapped.gde( i ) );
+				if( gde == GrainDirectory.ZERO )
+					continue;
+				for( int j = 0; j < ManagedDisk.NUMGTESPERGT; j++ )
+					assertEquals( eager.gte( i, j ), mapped.gte( i, j ) );
+			}
+		} finally {
+			link.delete();
+			other.delete();
+		}
+	}
+
+	// Reading with the parent, both disks with mapped metadata
+	public void testMappedRead() throws IOException {
+		StreamOptimizedDisk parent = new StreamOptimizedDisk
+			( new CapturePipelineTest.PatternDisk( SIZE ), Session.CANNED );
+		File f = new File( "graindirectory-parent" + ManagedDisk.FILESUFFIX );
+		parent.writeTo( f );
+		try {
+			StreamOptimizedDisk pmd =
+				(StreamOptimizedDisk)ManagedDisk.readFrom( f );
+			pmd.setMapMetaData( true );
+			StreamOptimizedDisk md =
+				(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+			md.setMapMetaData( true );
+			md.setParent( pmd );
+
+			byte[] expected = new byte[(int)SIZE];
+			InputStream is = ud.getInputStream();
+			IOUtils.readFully( is, expected );
+			is.close();
+			byte[] actual = new byte[(int)SIZE];
+			is = md.getInputStream();
+			IOUtils.readFully( is, actual );
+			is.close();
+			assertTrue( Arrays.equals( expected, actual ) );
+			
+			try {
+				md.setMapMetaData( false );
+				fail();
+			} catch( IllegalStateException ise ) {
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	private ManagedDisk.Header footer() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( managed, "r" );
+		raf.seek( raf.length() - 2 * Constants.SECTORLENGTH );
+		ManagedDisk.Header result = new ManagedDisk.Header( raf );
+		raf.close();
+		return result;
+	}
+
+	private MemoryDisk ud;
+	private File managed;
+}
+
+// eof
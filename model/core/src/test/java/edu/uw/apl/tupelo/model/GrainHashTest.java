@@ -0,0 +1,181 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Testing the grain hash algorithms of GrainHash, in particular our
+ * own MurmurHash3 (checked against known outputs), and that a capture
+ * refuses to compare against a parent digest of another algorithm.
+ */
+public class GrainHashTest extends junit.framework.TestCase {
+
+	public void testNames() {
+		assertEquals( GrainHash.MD5, GrainHash.canonical( "MD5" ) );
+		assertEquals( GrainHash.SHA256, GrainHash.canonical( "SHA-256" ) );
+		assertEquals( GrainHash.MURMUR3, GrainHash.canonical( "Murmur3-128" ) );
+		assertTrue( GrainHash.same( "sha256", "sha-256" ) );
+		try {
+			GrainHash.create( "crc32" );
+			fail();
+		} catch( IllegalArgumentException expected ) {
+		}
+		assertEquals( 16, GrainHash.create( GrainHash.MD5 ).getDigestLength() );
+		assertEquals( 32,
+					  GrainHash.create( GrainHash.SHA256 ).getDigestLength() );
+		assertEquals( 16,
+					  GrainHash.create( GrainHash.MURMUR3 ).getDigestLength() );
+	}
+	
+	// Expected values as produced by other MurmurHash3_x64_128 impls
+	public void testMurmur3Vectors() throws Exception {
+		murmur3( "", "00000000000000000000000000000000" );
+		murmur3( "hello", "029bbd41b3a7d8cb191dae486a901e5b" );
+		murmur3( "The quick brown fox jumps over the lazy dog",
+				 "6c1b07bc7bbc4be347939ac4a93c437a" );
+		murmur3( "0123456789abcdef", "a7d14acf946de04bda08a7635c5bc387" );
+		murmur3( "0123456789abcdefg", "def945aa2d61328eee72c306c2f40008" );
+	}
+
+	// However the input is chunked, the hash is the same
+	public void testMurmur3Chunked() throws Exception {
+		byte[] ba = new byte[65536];
+		for( int i = 0; i < ba.length; i++ )
+			ba[i] = (byte)(i * 31 + 7);
+		String expected = "2cc1e6f467a5f6f694dd898a57a0027b";
+		MessageDigest md = GrainHash.create( GrainHash.MURMUR3 );
+		assertEquals( expected, Hex.encodeHexString( md.digest( ba ) ) );
+		int[] chunks = { 1, 3, 15, 16, 17, 1000 };
+		for( int chunk : chunks ) {
+			for( int i = 0; i < ba.length; i += chunk )
+				md.update( ba, i, Math.min( chunk, ba.length - i ) );
+			assertEquals( "" + chunk, expected,
+						  Hex.encodeHexString( md.digest() ) );
+		}
+		for( int i = 0; i < ba.length; i++ )
+			md.update( ba[i] );
+		assertEquals( expected, Hex.encodeHexString( md.digest() ) );
+	}
+
+	public void testDigesterAlgorithm() {
+		GrainDigester gd = new GrainDigester( 1024, 2, GrainHash.SHA256 );
+		byte[] ba = new byte[1024];
+		ba[100] = 1;
+		gd.grain( ba, 0 );
+		gd.zero();
+		ManagedDiskDigest mdd = gd.finish();
+		assertEquals( GrainHash.SHA256, mdd.getAlgorithm() );
+		assertEquals( 32, mdd.hashLength() );
+		assertTrue( mdd.matches
+					( 0, GrainHash.create( GrainHash.SHA256 ).digest( ba ) ) );
+	}
+	
+	/**
+	 * A child capture adopts its parent digest's algorithm, unless
+	 * told otherwise, in which case no comparison is attempted
+	 */
+	public void testParentAlgorithm() throws Exception {
+		UnmanagedDisk ud = new CapturePipelineTest.PatternDisk
+			( 4L * 1024 * 1024 );
+		File f = new File( "grainhash" + ManagedDisk.FILESUFFIX );
+		try {
+			StreamOptimizedDisk parent = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			parent.setDigestAlgorithm( GrainHash.MURMUR3 );
+			parent.setComputeDigest( true );
+			parent.writeTo( f );
+			ManagedDiskDigest digest = parent.getDigest();
+			assertEquals( GrainHash.MURMUR3, digest.getAlgorithm() );
+
+			StreamOptimizedDisk child = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			child.setParentDigest( digest );
+			child.setComputeDigest( true );
+			child.writeTo( f );
+			assertEquals( GrainHash.MURMUR3, child.getDigestAlgorithm() );
+			for( int i = 0; i < digest.size(); i++ )
+				assertTrue( Arrays.equals( digest.get( i ),
+										   child.getDigest().get( i ) ) );
+
+			StreamOptimizedDisk other = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			other.setDigestAlgorithm( GrainHash.MD5 );
+			try {
+				other.setParentDigest( digest );
+				fail();
+			} catch( IllegalArgumentException expected ) {
+			}
+			try {
+				child.setDigestAlgorithm( GrainHash.SHA256 );
+				fail();
+			} catch( IllegalArgumentException expected ) {
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	public void testSpeed() {
+		byte[] ba = new byte[64 * 1024];
+		new java.util.Random( 42 ).nextBytes( ba );
+		int n = 2000;
+		String[] algorithms = { GrainHash.MD5, GrainHash.SHA256,
+								GrainHash.MURMUR3 };
+		for( String a : algorithms ) {
+			MessageDigest md = GrainHash.create( a );
+			for( int i = 0; i < n / 10; i++ )
+				md.digest( ba );
+			long start = System.nanoTime();
+			for( int i = 0; i < n; i++ )
+				md.digest( ba );
+			long ns = System.nanoTime() - start;
+			System.out.println( a + ": " +
+								( (long)n * ba.length * 1000 / ns ) +
+								" MB/s" );
+		}
+	}
+	
+	private void murmur3( String s, String expected ) throws Exception {
+		MessageDigest md = GrainHash.create( GrainHash.MURMUR3 );
+		assertEquals( s, expected, Hex.encodeHexString
+					  ( md.digest( s.getBytes( "US-ASCII" ) ) ) );
+	}
+}
+
+// eof
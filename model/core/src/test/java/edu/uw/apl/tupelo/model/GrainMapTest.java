@@ -0,0 +1,160 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Testing the GrainMap of a StreamOptimizedDisk: a chain of captures,
+ * each a little changed from the last, read back through the map
+ * must match what was captured, by stream and by readAt.
+ */
+public class GrainMapTest extends junit.framework.TestCase {
+
+	// Small grains, so a small disk still has whole grain tables
+	static final long GRAINSIZE = 8;
+	static final int GRAINBYTES = (int)GRAINSIZE * Constants.SECTORLENGTH;
+	static final long SIZE = 8L << 20;
+
+	static final int GENERATIONS = 4;
+
+	List<File> files;
+	List<ManagedDisk> chain;
+	
+	protected void setUp() throws IOException {
+		files = new ArrayList<File>();
+		chain = new ArrayList<ManagedDisk>();
+		ManagedDiskDigest digest = null;
+		ManagedDisk parent = null;
+		for( int g = 0; g < GENERATIONS; g++ ) {
+			StreamOptimizedDisk sod = new StreamOptimizedDisk
+				( TestDisks.generation( SIZE, 5, g ), Session.CANNED,
+				  parent == null ? Constants.NULLUUID :
+				  parent.getUUIDCreate(), GRAINSIZE );
+			sod.setParentDigest( digest );
+			sod.setComputeDigest( true );
+			File f = new File( "grainmaptest" + g + ManagedDisk.FILESUFFIX );
+			sod.writeTo( f );
+			files.add( f );
+			digest = sod.getDigest();
+			ManagedDisk md = ManagedDisk.readFrom( f );
+			if( parent != null )
+				md.setParent( parent );
+			chain.add( md );
+			parent = md;
+		}
+	}
+
+	protected void tearDown() {
+		for( File f : files )
+			f.delete();
+	}
+
+	public void testOwners() throws Exception {
+		int g = GENERATIONS - 1;
+		StreamOptimizedDisk sod = (StreamOptimizedDisk)chain.get( g );
+		GrainMap map = sod.grainMap();
+		assertEquals( GENERATIONS, map.owners() );
+		assertEquals( SIZE / GRAINBYTES, map.grains() );
+		// generation i changed megabyte i, so owns it
+		for( int i = 1; i <= g; i++ ) {
+			long entry = map.entry( ((long)i << 20) / GRAINBYTES );
+			assertSame( chain.get( i ), map.owner( entry ) );
+		}
+		// all else is from the first capture
+		long entry = map.entry( (5L << 20) / GRAINBYTES );
+		assertSame( chain.get( 0 ), map.owner( entry ) );
+
+		// kept, until a new parent
+		assertSame( map, sod.grainMap() );
+		sod.setParent( chain.get( g - 1 ) );
+		assertNotSame( map, sod.grainMap() );
+	}
+
+	public void testLazy() throws Exception {
+		StreamOptimizedDisk sod = (StreamOptimizedDisk)chain.get
+			( GENERATIONS - 1 );
+		GrainMap map = sod.grainMap();
+		long empty = map.memoryBytes();
+		assertTrue( empty < map.grains() );
+		// just the one grain table, of the several
+		map.entry( (5L << 20) / GRAINBYTES );
+		long one = map.memoryBytes() - empty;
+		assertTrue( one > 0 );
+		assertTrue( one < 8 * map.grains() / 2 );
+	}
+
+	public void testStream() throws Exception {
+		for( int g = 0; g < GENERATIONS; g++ )
+			TestDisks.assertSameContent( TestDisks.generation( SIZE, 5, g ),
+										 chain.get( g ) );
+	}
+
+	public void testReadAt() throws Exception {
+		int g = GENERATIONS - 1;
+		byte[] expected = IOUtils.toByteArray
+			( TestDisks.generation( SIZE, 5, g ).getInputStream() );
+		ManagedDisk md = chain.get( g );
+		Random r = new Random( 13 );
+		for( int i = 0; i < 200; i++ ) {
+			int len = 1 + r.nextInt( 3 * GRAINBYTES );
+			long offset = (long)(r.nextDouble() * (SIZE - len));
+			ByteBuffer bb = ByteBuffer.allocate( len );
+			assertEquals( len, md.readAt( offset, bb ) );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( expected, (int)offset,
+											  (int)offset + len ),
+						  bb.array() ) );
+		}
+	}
+
+	public void testNoParent() throws Exception {
+		ManagedDisk md = ManagedDisk.readFrom( files.get( 1 ) );
+		try {
+			md.readAt( 1L << 19, ByteBuffer.allocate( 16 ) );
+			fail();
+		} catch( IllegalStateException ise ) {
+		}
+	}
+}
+
+// eof
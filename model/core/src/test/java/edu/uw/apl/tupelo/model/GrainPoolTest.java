@@ -0,0 +1,135 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Testing GrainPool: disks sharing content share pool grains, read
+ * back intact, and give their grains back on release.
+ */
+public class GrainPoolTest extends junit.framework.TestCase {
+
+	static final File DIR = new File( "grainpooltest" );
+
+	// ends in a partial grain
+	static final long SIZE = 4L * 1024 * 1024 + 1024;
+
+	static final long RANDOMSIZE = 4L * 1024 * 1024;
+	
+	protected void setUp() throws IOException {
+		FileUtils.deleteDirectory( DIR );
+		DIR.mkdirs();
+	}
+
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory( DIR );
+	}
+
+	public void testSharedContent() throws Exception {
+		GrainPool pool = new GrainPool( new File( DIR, "pool" ) );
+		UnmanagedDisk ud = new CapturePipelineTest.PatternDisk( SIZE );
+		PooledDisk pd1 = ingest( pool, ud, "1" );
+		long unique = pool.uniqueGrains();
+		long refs = pool.referencedGrains();
+		assertTrue( unique > 0 );
+		assertTrue( refs <= pd1.grainCount() );
+		TestDisks.assertSameContent( ud, pd1 );
+
+		// Same content, different disk: nothing new stored
+		PooledDisk pd2 = ingest( pool, ud, "2" );
+		assertEquals( unique, pool.uniqueGrains() );
+		assertEquals( 2 * refs, pool.referencedGrains() );
+		assertEquals( 2.0 * refs / unique, pool.dedupRatio(), 0.001 );
+		TestDisks.assertSameContent( ud, pd2 );
+		pool.report( System.out );
+
+		pool.release( pd1 );
+		assertEquals( unique, pool.uniqueGrains() );
+		assertEquals( refs, pool.referencedGrains() );
+		TestDisks.assertSameContent( ud, pd2 );
+		pool.release( pd2 );
+		assertEquals( 0, pool.uniqueGrains() );
+		assertEquals( 0, pool.liveBytes() );
+		pool.close();
+	}
+
+	public void testZeroGrainsNotStored() throws Exception {
+		GrainPool pool = new GrainPool( new File( DIR, "pool" ) );
+		UnmanagedDisk ud = new ZeroDisk( SIZE );
+		PooledDisk pd = ingest( pool, ud, "z" );
+		assertEquals( 0, pool.uniqueGrains() );
+		TestDisks.assertSameContent( ud, pd );
+		pool.close();
+	}
+	
+	public void testReopen() throws Exception {
+		File dir = new File( DIR, "pool" );
+		GrainPool pool = new GrainPool( dir );
+		UnmanagedDisk ud = new RandomDisk( RANDOMSIZE, 1 << 20, 7 );
+		PooledDisk pd = ingest( pool, ud, "r" );
+		long unique = pool.uniqueGrains();
+		long refs = pool.referencedGrains();
+		pool.close();
+
+		pool = new GrainPool( dir );
+		assertEquals( unique, pool.uniqueGrains() );
+		assertEquals( refs, pool.referencedGrains() );
+		ManagedDisk md = ManagedDisk.readFrom( pd.managedData );
+		assertTrue( md instanceof PooledDisk );
+		((PooledDisk)md).setPool( pool );
+		md.verify();
+		TestDisks.assertSameContent( ud, md );
+		pool.close();
+	}
+
+	private PooledDisk ingest( GrainPool pool, UnmanagedDisk ud, String name )
+		throws IOException {
+		File f = new File( DIR, name + ManagedDisk.FILESUFFIX );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk( ud, Session.CANNED );
+		sod.writeTo( f );
+		ManagedDisk md = ManagedDisk.readFrom( f );
+		PooledDisk result = pool.ingest
+			( md, new File( DIR, name + ".pooled" ) );
+		assertEquals( md.getDescriptor(), result.getDescriptor() );
+		assertEquals( md.getUUIDCreate(), result.getUUIDCreate() );
+		assertEquals( md.size(), result.size() );
+		return result;
+	}
+}
+
+// eof
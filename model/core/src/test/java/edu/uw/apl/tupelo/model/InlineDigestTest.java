@@ -0,0 +1,138 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Testing that the digest produced as a by-product of writing a
+ * managed disk (ManagedDisk.setComputeDigest) matches that computed
+ * by reading the managed disk back, as FilesystemStore.computeDigest
+ * does.
+ */
+public class InlineDigestTest extends junit.framework.TestCase {
+
+	// Whole grain tables, then a remainder ending in a partial grain
+	static final long SIZE = 32L * 1024 * 1024 + 96 * 1024 + 1024;
+
+	protected void setUp() {
+		ud = new CapturePipelineTest.PatternDisk( SIZE );
+		managed = new File( "inlinedigest" + ManagedDisk.FILESUFFIX );
+	}
+
+	protected void tearDown() {
+		managed.delete();
+	}
+	
+	public void testSequential() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		testInline( sod );
+	}
+
+	public void testPipelined() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.setCaptureThreads( 3 );
+		testInline( sod );
+	}
+
+	// Every whole grain matches the parent, the digest must not differ
+	public void testWithParent() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		ManagedDiskDigest parent = testInline( sod );
+		for( int threads = 1; threads <= 3; threads += 2 ) {
+			StreamOptimizedDisk child = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			child.setParentDigest( parent );
+			child.setCaptureThreads( threads );
+			child.setComputeDigest( true );
+			child.writeTo( managed );
+			same( parent, child.getDigest() );
+		}
+	}
+	
+	public void testFlat() throws Exception {
+		FlatDisk fd = new FlatDisk( ud, Session.CANNED );
+		testInline( fd );
+	}
+
+	public void testNotRequested() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.writeTo( managed );
+		assertNull( sod.getDigest() );
+	}
+	
+	private ManagedDiskDigest testInline( ManagedDisk md ) throws IOException {
+		md.setComputeDigest( true );
+		if( md instanceof FlatDisk )
+			((FlatDisk)md).writeTo( managed );
+		else
+			((StreamOptimizedDisk)md).writeTo( managed );
+		ManagedDiskDigest inline = md.getDigest();
+		assertNotNull( inline );
+
+		ManagedDisk readBack = ManagedDisk.readFrom( managed );
+		long gsb = readBack.grainSizeBytes();
+		int grains = (int)(Utils.alignUp( readBack.size(), gsb ) / gsb);
+		GrainDigester gd = new GrainDigester( gsb, grains );
+		InputStream is = readBack.getInputStream();
+		byte[] ba = new byte[100000];
+		int nin;
+		while( (nin = is.read( ba )) != -1 )
+			gd.update( ba, 0, nin );
+		is.close();
+		ManagedDiskDigest expected = gd.finish();
+		assertEquals( grains, expected.size() );
+		same( expected, inline );
+		return inline;
+	}
+
+	private void same( ManagedDiskDigest expected, ManagedDiskDigest actual ) {
+		assertEquals( expected.size(), actual.size() );
+		for( int i = 0; i < expected.size(); i++ )
+			assertTrue( "" + i, Arrays.equals( expected.get( i ),
+											   actual.get( i ) ) );
+	}
+	
+	private UnmanagedDisk ud;
+	private File managed;
+}
+
+// eof
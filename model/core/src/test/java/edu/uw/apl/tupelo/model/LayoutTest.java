@@ -0,0 +1,167 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Testing the two .tmd layouts (4 and 8 byte grain table/directory
+ * entries), and the upgrade of the former to the latter.
+ *
+ * @see Version#LAYOUT_64
+ * @see StreamOptimizedDisk#upgradeLayout
+ */
+public class LayoutTest extends junit.framework.TestCase {
+
+	static final long SIZE = CapturePipelineTest.SIZE;
+	
+	protected void setUp() throws Exception {
+		ud = new CapturePipelineTest.PatternDisk( SIZE );
+		InputStream is = ud.getInputStream();
+		md5 = Utils.md5sum( is );
+		is.close();
+		managed = new File( "layout" + ManagedDisk.FILESUFFIX );
+	}
+
+	protected void tearDown() {
+		managed.delete();
+	}
+
+	// The layout is chosen by disk size, 1TB and up being LAYOUT_64
+	public void testDefault() {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		assertEquals( Version.LAYOUT_32, sod.getLayout() );
+		sod = new StreamOptimizedDisk
+			( new ZeroDisk( 1L << 40 ), Session.CANNED );
+		assertEquals( Version.LAYOUT_64, sod.getLayout() );
+		try {
+			sod.setLayout( Version.LAYOUT_32 );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+	}
+	
+	public void testLayout64() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.setLayout( Version.LAYOUT_64 );
+		sod.writeTo( managed );
+		check( false );
+		check( true );
+	}
+
+	public void testUpgrade() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.writeTo( managed );
+		long len = managed.length();
+		assertEquals( Version.LAYOUT_32,
+					  ((StreamOptimizedDisk)ManagedDisk.readFrom
+					   ( managed )).getLayout() );
+		// a grain cached at its pre-upgrade offset must not outlive it
+		GrainCache cache = GrainCache.shared();
+		byte[] grain = new byte[(int)(ManagedDisk.GRAINSIZE_DEFAULT *
+									  Constants.SECTORLENGTH)];
+		cache.put( managed, Constants.SECTORLENGTH, grain );
+		assertTrue( cache.get( managed, Constants.SECTORLENGTH, grain ) );
+		assertTrue( StreamOptimizedDisk.upgradeLayout( managed ) );
+		assertFalse( cache.get( managed, Constants.SECTORLENGTH, grain ) );
+		assertTrue( managed.length() > len );
+		check( false );
+		check( true );
+		// Once is enough
+		assertFalse( StreamOptimizedDisk.upgradeLayout( managed ) );
+	}
+
+	// Grain table entries of 0 and -1 are not locations, must survive as is
+	public void testUpgradeWithParent() throws Exception {
+		File parentFile = new File( "layout-parent" + ManagedDisk.FILESUFFIX );
+		StreamOptimizedDisk parent = new StreamOptimizedDisk
+			( new CapturePipelineTest.PatternDisk( SIZE ), Session.CANNED );
+		parent.writeTo( parentFile );
+		try {
+			byte[] mutation = new byte[1000];
+			new Random( 5 ).nextBytes( mutation );
+			ud.set( 70000, mutation );
+			InputStream is = ud.getInputStream();
+			md5 = Utils.md5sum( is );
+			is.close();
+			StreamOptimizedDisk sod = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			sod.setParentDigest( CapturePipelineTest.digest
+								 ( new CapturePipelineTest.PatternDisk
+								   ( SIZE ) ) );
+			sod.writeTo( managed );
+			assertTrue( StreamOptimizedDisk.upgradeLayout( managed ) );
+			assertTrue( StreamOptimizedDisk.upgradeLayout( parentFile ) );
+			StreamOptimizedDisk md =
+				(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+			md.setParent( ManagedDisk.readFrom( parentFile ) );
+			is = md.getInputStream();
+			assertEquals( md5, Utils.md5sum( is ) );
+			is.close();
+		} finally {
+			parentFile.delete();
+		}
+	}
+	
+	private void check( boolean mapped ) throws Exception {
+		StreamOptimizedDisk md =
+			(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+		assertEquals( Version.LAYOUT_64, md.getLayout() );
+		md.verify();
+		md.setMapMetaData( mapped );
+		InputStream is = md.getInputStream();
+		assertEquals( md5, Utils.md5sum( is ) );
+		is.close();
+
+		// and via readAt, a slice from the second grain table
+		ByteBuffer bb = ByteBuffer.allocate( 100000 );
+		long offset = 40 * 1024 * 1024 + 17;
+		assertEquals( bb.capacity(), md.readAt( offset, bb ) );
+		for( int i = 0; i < bb.capacity(); i++ )
+			assertEquals( ud.supplyByte( offset + i ), bb.get( i ) );
+	}
+	
+	private MemoryDisk ud;
+	private File managed;
+	private String md5;
+}
+
+// eof
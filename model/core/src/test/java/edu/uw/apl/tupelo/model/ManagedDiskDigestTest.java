@@ -0,0 +1,252 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Testing the text (hex) and binary (mapped) forms of a
+ * ManagedDiskDigest, and that both load via readFrom( File ).
+ */
+public class ManagedDiskDigestTest extends junit.framework.TestCase {
+
+	// More than the initial capacity, so the flat array must grow
+	static final int GRAINS = 5000;
+	
+	protected void setUp() throws Exception {
+		MessageDigest md = MessageDigest.getInstance
+			( ManagedDisk.DIGESTALGORITHM );
+		digest = new ManagedDiskDigest( 16 );
+		for( int i = 0; i < GRAINS; i++ ) {
+			md.reset();
+			md.update( (byte)i );
+			md.update( (byte)(i >>> 8) );
+			digest.add( md.digest() );
+		}
+		f = new File( "digesttest." + ManagedDisk.DIGESTALGORITHM );
+	}
+
+	protected void tearDown() {
+		f.delete();
+	}
+	
+	public void testFlat() {
+		assertEquals( GRAINS, digest.size() );
+		assertEquals( 16, digest.hashLength() );
+		for( int i = 0; i < GRAINS; i++ )
+			assertTrue( digest.matches( i, digest.get( i ) ) );
+		assertFalse( digest.matches( 0, digest.get( 1 ) ) );
+		assertFalse( digest.matches( GRAINS, digest.get( 0 ) ) );
+		assertFalse( digest.matches( -1, digest.get( 0 ) ) );
+	}
+
+	public void testHex() throws IOException {
+		FileWriter fw = new FileWriter( f );
+		digest.writeTo( fw );
+		fw.close();
+		assertEquals( GRAINS * 33, f.length() );
+		ManagedDiskDigest loaded = ManagedDiskDigest.readFrom( f );
+		assertFalse( loaded instanceof ManagedDiskDigest.Mapped );
+		same( digest, loaded );
+	}
+
+	public void testBinary() throws IOException {
+		FileOutputStream fos = new FileOutputStream( f );
+		BufferedOutputStream bos = new BufferedOutputStream( fos );
+		digest.writeTo( bos );
+		bos.close();
+		assertEquals( ManagedDiskDigest.HEADERLENGTH + GRAINS * 16,
+					  f.length() );
+		ManagedDiskDigest loaded = ManagedDiskDigest.readFrom( f );
+		assertTrue( loaded instanceof ManagedDiskDigest.Mapped );
+		assertEquals( ManagedDisk.DIGESTALGORITHM, loaded.getAlgorithm() );
+		same( digest, loaded );
+		assertFalse( loaded.matches( GRAINS, digest.get( 0 ) ) );
+		try {
+			loaded.add( digest.get( 0 ) );
+			fail();
+		} catch( IllegalStateException expected ) {
+		}
+
+		// and a mapped digest writes out identically
+		File f2 = new File( f.getPath() + ".2" );
+		fos = new FileOutputStream( f2 );
+		loaded.writeTo( fos );
+		fos.close();
+		same( digest, ManagedDiskDigest.readFrom( f2 ) );
+		assertEquals( f.length(), f2.length() );
+		f2.delete();
+	}
+
+	// The binary form off a stream, as over http
+	public void testStream() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		digest.writeTo( baos );
+		ManagedDiskDigest read = ManagedDiskDigest.readFrom
+			( new ByteArrayInputStream( baos.toByteArray() ) );
+		assertEquals( ManagedDisk.DIGESTALGORITHM, read.getAlgorithm() );
+		same( digest, read );
+	}
+
+	public void testTables() {
+		ManagedDiskDigest tables = digest.tableDigest( 512 );
+		// the last table partial
+		assertEquals( (GRAINS + 511) / 512, tables.size() );
+		assertEquals( digest.hashLength(), tables.hashLength() );
+		assertFalse( tables.matches( 1, tables.get( 0 ) ) );
+
+		ManagedDiskDigest selected = digest.select
+			( new int[] { 9, 2 }, 512 );
+		assertEquals( GRAINS - 9 * 512 + 512, selected.size() );
+		assertTrue( Arrays.equals( digest.get( 9 * 512 ),
+								   selected.get( 0 ) ) );
+		assertTrue( Arrays.equals( digest.get( 2 * 512 ),
+								   selected.get( GRAINS - 9 * 512 ) ) );
+	}
+
+	public void testTruncated() throws IOException {
+		FileOutputStream fos = new FileOutputStream( f );
+		digest.writeTo( fos );
+		fos.close();
+		java.io.RandomAccessFile raf = new java.io.RandomAccessFile( f, "rw" );
+		raf.setLength( f.length() - 1 );
+		raf.close();
+		try {
+			ManagedDiskDigest.readFrom( f );
+			fail();
+		} catch( IOException expected ) {
+		}
+	}
+
+	public void testEmpty() throws IOException {
+		ManagedDiskDigest empty = new ManagedDiskDigest();
+		FileOutputStream fos = new FileOutputStream( f );
+		empty.writeTo( fos );
+		fos.close();
+		assertEquals( 0, ManagedDiskDigest.readFrom( f ).size() );
+	}
+	
+	// Mapped in many small segments, as a vast digest file would be
+	public void testSegments() throws IOException {
+		FileOutputStream fos = new FileOutputStream( f );
+		digest.writeTo( fos );
+		fos.close();
+		// not a whole number of hashes, so rounded down
+		ManagedDiskDigest mapped = ManagedDiskDigest.map( f, 100 );
+		same( digest, mapped );
+	}
+
+	// Past the first chunk, so hashes span chunks
+	public void testChunks() throws IOException {
+		int n = (1 << 20) + 3;
+		ManagedDiskDigest big = new ManagedDiskDigest( 16 );
+		byte[] h = new byte[16];
+		for( int i = 0; i < n; i++ ) {
+			h[0] = (byte)i;
+			h[1] = (byte)(i >>> 8);
+			h[2] = (byte)(i >>> 16);
+			big.add( h );
+		}
+		assertEquals( n, big.size() );
+		for( int i = n - 10; i < n; i++ ) {
+			h[0] = (byte)i;
+			h[1] = (byte)(i >>> 8);
+			h[2] = (byte)(i >>> 16);
+			assertTrue( big.matches( i, h ) );
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		big.writeTo( baos );
+		assertEquals( ManagedDiskDigest.HEADERLENGTH + 16L * n, baos.size() );
+		same( big, ManagedDiskDigest.readFrom
+			  ( new ByteArrayInputStream( baos.toByteArray() ) ) );
+	}
+
+	/*
+	  More sha-256 hashes than an int can address the bytes of (64GB
+	  worth), cheaply: every chunk is one of just two shared arrays.
+	*/
+	public void testVast() {
+		int hashLength = 32;
+		int chunkHashes = 1 << 16;
+		int count = Integer.MAX_VALUE;
+		byte[] even = new byte[chunkHashes * hashLength];
+		byte[] odd = new byte[even.length];
+		Arrays.fill( odd, (byte)1 );
+		byte[][] chunks = new byte[(count / chunkHashes) + 1][];
+		for( int c = 0; c < chunks.length; c++ )
+			chunks[c] = c % 2 == 0 ? even : odd;
+		ManagedDiskDigest vast = new ManagedDiskDigest
+			( chunks, chunkHashes, hashLength, count, "sha-256" );
+		assertTrue( (long)vast.size() * vast.hashLength() >
+					Integer.MAX_VALUE );
+		byte[] zeros = new byte[hashLength];
+		byte[] ones = new byte[hashLength];
+		Arrays.fill( ones, (byte)1 );
+		int last = count - 1;
+		// the last chunk is number 32767, odd
+		assertTrue( Arrays.equals( ones, vast.get( last ) ) );
+		assertTrue( vast.matches( last, ones ) );
+		assertFalse( vast.matches( last, zeros ) );
+		int evenChunk = last - chunkHashes;
+		assertTrue( Arrays.equals( zeros, vast.get( evenChunk ) ) );
+
+		ManagedDiskDigest selected = vast.select
+			( new int[] { last / 512 }, 512 );
+		assertEquals( last % 512 + 1, selected.size() );
+		assertTrue( selected.matches( selected.size() - 1, ones ) );
+	}
+	
+	private void same( ManagedDiskDigest expected, ManagedDiskDigest actual ) {
+		assertEquals( expected.size(), actual.size() );
+		assertEquals( expected.hashLength(), actual.hashLength() );
+		for( int i = 0; i < expected.size(); i++ ) {
+			byte[] h = expected.get( i );
+			assertTrue( Arrays.equals( h, actual.get( i ) ) );
+			assertTrue( actual.matches( i, h ) );
+		}
+	}
+
+	private ManagedDiskDigest digest;
+	private File f;
+}
+
+// eof
@@ -57,8 +57,14 @@ public class ManagedDiskSizeTest extends junit.framework.TestCase {
 			ManagedDisk md = new StreamOptimizedDisk( ud, Session.CANNED );
 			File out = new File( f.getName() + ".sd" );
 			FileOutputStream fos = new FileOutputStream( out );
-			md.writeTo( fos );
-			assertTrue( out.length() % Constants.SECTORLENGTH == 0 );
+			try {
+				md.writeTo( fos );
+				fos.close();
+				assertTrue( out.length() % Constants.SECTORLENGTH == 0 );
+			} finally {
+				fos.close();
+				out.delete();
+			}
 		} catch( IllegalArgumentException iae ) {
 			fail();
 		}
@@ -73,8 +79,14 @@ public class ManagedDiskSizeTest extends junit.framework.TestCase {
 			ManagedDisk md = new FlatDisk( ud, Session.CANNED );
 			File out = new File( f.getName() + ".fd" );
 			FileOutputStream fos = new FileOutputStream( out );
-			md.writeTo( fos );
-			assertTrue( out.length() % Constants.SECTORLENGTH == 0 );
+			try {
+				md.writeTo( fos );
+				fos.close();
+				assertTrue( out.length() % Constants.SECTORLENGTH == 0 );
+			} finally {
+				fos.close();
+				out.delete();
+			}
 		} catch( IllegalArgumentException iae ) {
 			fail();
 		}
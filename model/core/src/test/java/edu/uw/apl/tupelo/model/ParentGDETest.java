@@ -0,0 +1,191 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Testing the parent grain directory entries of a StreamOptimizedDisk.
+ * A grain table all of whose grains match the parent digest is not
+ * written, its directory entry says 'use parent' instead.  This
+ * includes the last, partial, grain table, whose grains are now
+ * compared too.
+ */
+public class ParentGDETest extends junit.framework.TestCase {
+
+	// Small grains, so each grain table is 2MB
+	static final long GRAINSIZE = 8;
+	static final int GRAINBYTES = (int)GRAINSIZE * Constants.SECTORLENGTH;
+
+	// Two whole grain tables, a partial one, and a partial grain
+	static final long SIZE = (5L << 20) + 3072;
+
+	// Divides SIZE, but not a grain multiple, so grains vary
+	static final int EXTENT = 1024 * 109;
+	
+	protected void setUp() throws IOException {
+		parentFile = new File( "parentgdetest-parent" +
+							   ManagedDisk.FILESUFFIX );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( disk(), Session.CANNED, Constants.NULLUUID, GRAINSIZE );
+		sod.setComputeDigest( true );
+		sod.writeTo( parentFile );
+		digest = sod.getDigest();
+		parent = ManagedDisk.readFrom( parentFile );
+		childFile = new File( "parentgdetest-child" +
+							  ManagedDisk.FILESUFFIX );
+	}
+
+	protected void tearDown() {
+		parentFile.delete();
+		childFile.delete();
+	}
+
+	public void testUnchanged() throws Exception {
+		StreamOptimizedDisk sod = child( disk() );
+		sod.writeTo( childFile );
+		long[] gdes = gdes( childFile );
+		assertEquals( 3, gdes.length );
+		for( long gde : gdes )
+			assertEquals( GrainDirectory.PARENT, gde );
+		assertTrue( childFile.length() < parentFile.length() / 100 );
+		assertSameContent( disk() );
+	}
+
+	public void testChanged() throws Exception {
+		// a changed grain in the first table, another in the last
+		RandomDisk ud = disk();
+		ud.set( 3 * GRAINBYTES, new byte[GRAINBYTES] );
+		ud.set( SIZE - 100, new byte[50] );
+		StreamOptimizedDisk sod = child( ud );
+		sod.writeTo( childFile );
+		long[] gdes = gdes( childFile );
+		assertTrue( gdes[0] != GrainDirectory.PARENT );
+		assertEquals( GrainDirectory.PARENT, gdes[1] );
+		assertTrue( gdes[2] != GrainDirectory.PARENT );
+		assertSameContent( ud );
+	}
+
+	public void testSameAsSequential() throws Exception {
+		StreamOptimizedDisk sod = child( disk() );
+		sod.setCaptureThreads( 1 );
+		ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+		sod.writeTo( sequential );
+		sod.setCaptureThreads( 4 );
+		ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+		sod.writeTo( pipelined );
+		assertTrue( Arrays.equals( sequential.toByteArray(),
+								   pipelined.toByteArray() ) );
+	}
+
+	// For readers predating parent grain directory entries
+	public void testNoParentGDEs() throws Exception {
+		StreamOptimizedDisk sod = child( disk() );
+		sod.setParentGDEs( false );
+		sod.writeTo( childFile );
+		for( long gde : gdes( childFile ) )
+			assertTrue( gde != GrainDirectory.PARENT );
+		assertSameContent( disk() );
+	}
+
+	private StreamOptimizedDisk child( UnmanagedDisk ud ) {
+		StreamOptimizedDisk result = new StreamOptimizedDisk
+			( ud, Session.CANNED, parent.getUUIDCreate(), GRAINSIZE );
+		result.setParentDigest( digest );
+		return result;
+	}
+
+	private void assertSameContent( UnmanagedDisk ud ) throws IOException {
+		byte[] expected = IOUtils.toByteArray( ud.getInputStream() );
+		ManagedDisk md = ManagedDisk.readFrom( childFile );
+		md.setParent( parent );
+		InputStream is = md.getInputStream();
+		byte[] actual = IOUtils.toByteArray( is );
+		is.close();
+		assertTrue( Arrays.equals( expected, actual ) );
+
+		Random r = new Random( 17 );
+		for( int i = 0; i < 100; i++ ) {
+			int len = 1 + r.nextInt( 3 * GRAINBYTES );
+			long offset = (long)(r.nextDouble() * (SIZE - len));
+			ByteBuffer bb = ByteBuffer.allocate( len );
+			assertEquals( len, md.readAt( offset, bb ) );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( expected, (int)offset,
+											  (int)offset + len ),
+						  bb.array() ) );
+		}
+	}
+
+	static private long[] gdes( File f ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			raf.seek( raf.length() - 2 * Constants.SECTORLENGTH );
+			ManagedDisk.Header footer = new ManagedDisk.Header( raf );
+			long grainCount = Utils.alignUp
+				( footer.capacity, footer.grainSize ) / footer.grainSize;
+			int grainTableCount = (int)(Utils.alignUp
+				( grainCount, ManagedDisk.NUMGTESPERGT ) /
+										ManagedDisk.NUMGTESPERGT);
+			GrainDirectory gd = GrainDirectory.readFrom
+				( raf, footer.gdOffset, grainTableCount,
+				  ManagedDisk.NUMGTESPERGT, footer.entrySizeOf() );
+			long[] result = new long[gd.length()];
+			for( int i = 0; i < result.length; i++ )
+				result[i] = gd.gde( i );
+			return result;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	static private RandomDisk disk() {
+		return new RandomDisk( SIZE, EXTENT, 7 );
+	}
+
+	private File parentFile, childFile;
+	private ManagedDiskDigest digest;
+	private ManagedDisk parent;
+}
+
+// eof
@@ -0,0 +1,198 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Testing the storage of incompressible grains raw, i.e. with no
+ * compression, and the reading back of such grains.
+ *
+ * @see StreamOptimizedDisk#setRawThreshold
+ */
+public class RawGrainTest extends junit.framework.TestCase {
+
+	// Whole grain tables plus a remainder
+	static final long SIZE = 32L * 1024 * 1024 + 96 * 1024;
+
+	protected void setUp() throws Exception {
+		ud = new RandomDisk( SIZE );
+		InputStream is = ud.getInputStream();
+		md5 = Utils.md5sum( is );
+		is.close();
+		managed = new File( "rawgrain" + ManagedDisk.FILESUFFIX );
+	}
+
+	protected void tearDown() {
+		managed.delete();
+	}
+
+	public void testRandomIsRaw() throws Exception {
+		for( ManagedDisk.Compressions c :
+				 ManagedDisk.Compressions.values() ) {
+			StreamOptimizedDisk sod = new StreamOptimizedDisk
+				( ud, Session.CANNED );
+			sod.setCompression( c );
+			long start = System.currentTimeMillis();
+			sod.writeTo( managed );
+			long stop = System.currentTimeMillis();
+			System.out.println( c + " raw: " + (stop-start) + "ms" );
+			assertTrue( c + "", firstGrainRaw() );
+			check();
+		}
+	}
+
+	// With raw grains disabled, we compress whatever
+	public void testDisabled() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		sod.setRawThreshold( 0 );
+		long start = System.currentTimeMillis();
+		sod.writeTo( managed );
+		long stop = System.currentTimeMillis();
+		System.out.println( "DEFLATE, no raw: " + (stop-start) + "ms" );
+		assertFalse( firstGrainRaw() );
+		check();
+	}
+
+	// Compressible data is still compressed
+	public void testCompressible() throws Exception {
+		UnmanagedDisk pd = new CapturePipelineTest.PatternDisk( SIZE );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( pd, Session.CANNED );
+		sod.writeTo( managed );
+		assertFalse( firstGrainRaw() );
+		assertTrue( managed.length() < SIZE / 2 );
+	}
+	
+	public void testPipelined() throws Exception {
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+		sod.writeTo( sequential );
+		sod.setCaptureThreads( 3 );
+		ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+		sod.writeTo( pipelined );
+		assertTrue( Arrays.equals( sequential.toByteArray(),
+								   pipelined.toByteArray() ) );
+		FileOutputStream fos = new FileOutputStream( managed );
+		pipelined.writeTo( fos );
+		fos.close();
+		check();
+	}
+	
+	/*
+	  A compressed grain which fails to inflate is an error on every
+	  read path, never whatever the grain buffer held before
+	*/
+	public void testCorrupt() throws Exception {
+		UnmanagedDisk pd = new CapturePipelineTest.PatternDisk( SIZE );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( pd, Session.CANNED );
+		sod.writeTo( managed );
+		assertFalse( firstGrainRaw() );
+		RandomAccessFile raf = new RandomAccessFile( managed, "rw" );
+		raf.seek( ManagedDisk.Header.SIZEOF +
+				  StreamOptimizedDisk.GrainMarker.SIZEOF );
+		raf.write( new byte[] { -1, -1, -1, -1 } );
+		raf.close();
+		// else readAt may be served grains of an earlier test's file
+		GrainCache.shared().invalidate( managed );
+
+		// the first grain stored, PatternDisk's grain 0 being zeros
+		StreamOptimizedDisk md =
+			(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+		byte[] ba = new byte[256 * 1024];
+		InputStream is = md.getInputStream();
+		try {
+			is.read( ba );
+			fail();
+		} catch( IOException ioe ) {
+		} finally {
+			is.close();
+		}
+		is = md.getSeekableInputStream();
+		try {
+			is.read( ba );
+			fail();
+		} catch( IOException ioe ) {
+		} finally {
+			is.close();
+		}
+		try {
+			md.readAt( 0, ByteBuffer.wrap( ba ) );
+			fail();
+		} catch( IOException ioe ) {
+		}
+	}
+	
+	// All three read paths: stream (with read-ahead), seekable, readAt
+	private void check() throws IOException {
+		StreamOptimizedDisk md =
+			(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+		InputStream is = md.getInputStream();
+		assertEquals( md5, Utils.md5sum( is ) );
+		is.close();
+		is = md.getSeekableInputStream();
+		assertEquals( md5, Utils.md5sum( is, 100000 ) );
+		is.close();
+		ByteBuffer bb = ByteBuffer.allocate( (int)SIZE );
+		assertEquals( SIZE, md.readAt( 0, bb ) );
+		bb.flip();
+		is = new java.io.ByteArrayInputStream( bb.array() );
+		assertEquals( md5, Utils.md5sum( is ) );
+	}
+
+	// The first grain's marker follows the header
+	private boolean firstGrainRaw() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( managed, "r" );
+		raf.seek( ManagedDisk.Header.SIZEOF + 8 );
+		int size = raf.readInt();
+		raf.close();
+		return StreamOptimizedDisk.GrainMarker.isRaw( size );
+	}
+	
+	private UnmanagedDisk ud;
+	private File managed;
+	private String md5;
+}
+
+// eof
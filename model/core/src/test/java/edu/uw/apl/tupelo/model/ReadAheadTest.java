@@ -0,0 +1,168 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for the read-ahead of StreamOptimizedDisk streams.  Content
+ * must be the same with and without read-ahead, whatever the access
+ * pattern.  We also print sequential read times, with and without.
+ *
+ * @see StreamOptimizedDisk#setReadAhead
+ */
+public class ReadAheadTest extends junit.framework.TestCase {
+
+	static final long SIZE = 2 * 32L * 1024 * 1024 + 96 * 1024;
+
+	protected void setUp() throws IOException {
+		ud = new HalfRandomDisk( SIZE );
+		content = new byte[(int)SIZE];
+		InputStream is = ud.getInputStream();
+		IOUtils.readFully( is, content );
+		is.close();
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		managed = new File( "readahead" + ManagedDisk.FILESUFFIX );
+		sod.writeTo( managed );
+	}
+
+	protected void tearDown() {
+		managed.delete();
+	}
+	
+	public void testSequential() throws IOException {
+		// first pass is warm up
+		for( int readAhead : new int[] { 0, 0, 8, 32, 128, 0 } ) {
+			StreamOptimizedDisk md =
+				(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+			md.setReadAhead( readAhead );
+			byte[] ba = new byte[(int)SIZE];
+			long start = System.currentTimeMillis();
+			InputStream is = md.getInputStream();
+			// CatMD-sized reads
+			byte[] buf = new byte[4096];
+			int total = 0;
+			while( true ) {
+				int nin = is.read( buf );
+				if( nin == -1 )
+					break;
+				System.arraycopy( buf, 0, ba, total, nin );
+				total += nin;
+			}
+			is.close();
+			long stop = System.currentTimeMillis();
+			System.out.println( "ReadAhead " + readAhead + ": " +
+								(stop-start) + "ms" );
+			assertEquals( SIZE, total );
+			assertTrue( Arrays.equals( content, ba ) );
+		}
+	}
+
+	// Sequential runs (which trigger read-ahead) broken up by seeks
+	// A read-ahead region is one array, so must stay well under 2GB
+	public void testLimit() throws IOException {
+		StreamOptimizedDisk md =
+			(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+		int most = (int)(StreamOptimizedDisk.READAHEAD_MAXBYTES /
+						 md.grainSizeBytes());
+		md.setReadAhead( most );
+		try {
+			md.setReadAhead( most + 1 );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+		try {
+			md.setReadAhead( Integer.MAX_VALUE );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+	}
+
+	public void testSeekable() throws IOException {
+		StreamOptimizedDisk md =
+			(StreamOptimizedDisk)ManagedDisk.readFrom( managed );
+		SeekableInputStream sis = md.getSeekableInputStream();
+		Random r = new Random( 99 );
+		byte[] buf = new byte[8192];
+		for( int run = 0; run < 50; run++ ) {
+			long posn = (r.nextLong() & Long.MAX_VALUE) % SIZE;
+			sis.seek( posn );
+			int reads = r.nextInt( 64 );
+			for( int i = 0; i < reads && posn < SIZE; i++ ) {
+				int nin = sis.read( buf );
+				assertTrue( nin > 0 );
+				for( int b = 0; b < nin; b++ )
+					assertEquals( content[(int)posn+b], buf[b] );
+				posn += nin;
+			}
+		}
+		sis.close();
+	}
+
+	/*
+	  Grains half random, half zeros, so decompression has some real
+	  work to do.  The random bytes repeat every 1MB.
+	*/
+	static class HalfRandomDisk extends MemoryDisk {
+		HalfRandomDisk( long size ) {
+			super( size );
+			random = new byte[1024*1024];
+			new Random( size ).nextBytes( random );
+		}
+
+		@Override
+		protected byte supplyByte( long offset ) {
+			if( (offset & 0x8000) != 0 )
+				return 0;
+			return random[(int)(offset & (random.length-1))];
+		}
+
+		private final byte[] random;
+	}
+	
+	private UnmanagedDisk ud;
+	private byte[] content;
+	private File managed;
+}
+
+// eof
@@ -0,0 +1,166 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Testing ManagedDisk.readAt, in particular many threads reading
+ * the same ManagedDisk at once.
+ *
+ * @see ManagedDisk#readAt
+ */
+public class ReadAtTest extends junit.framework.TestCase {
+
+	static final long SIZE = CapturePipelineTest.SIZE;
+
+	protected void setUp() throws Exception {
+		ud = new CapturePipelineTest.PatternDisk( SIZE );
+		content = contentOf( ud );
+		StreamOptimizedDisk sod = new StreamOptimizedDisk
+			( ud, Session.CANNED );
+		managed = new File( "readat" + ManagedDisk.FILESUFFIX );
+		sod.writeTo( managed );
+	}
+
+	protected void tearDown() {
+		managed.delete();
+	}
+	
+	public void testWhole() throws IOException {
+		ManagedDisk md = ManagedDisk.readFrom( managed );
+		ByteBuffer bb = ByteBuffer.allocate( content.length + 1000 );
+		assertEquals( content.length, md.readAt( 0, bb ) );
+		assertEquals( content.length, bb.position() );
+		for( int i = 0; i < content.length; i++ )
+			assertEquals( content[i], bb.get( i ) );
+		assertEquals( -1, md.readAt( SIZE, bb ) );
+	}
+
+	public void testConcurrent() throws Exception {
+		final ManagedDisk md = ManagedDisk.readFrom( managed );
+		final Throwable[] failures = new Throwable[4];
+		Thread[] ts = new Thread[failures.length];
+		for( int t = 0; t < ts.length; t++ ) {
+			final int id = t;
+			ts[t] = new Thread() {
+					public void run() {
+						try {
+							randomReads( md, new Random( id ), 2000,
+										 id % 2 == 0 );
+						} catch( Throwable th ) {
+							failures[id] = th;
+						}
+					}
+				};
+			ts[t].start();
+		}
+		for( Thread t : ts )
+			t.join();
+		for( Throwable th : failures ) {
+			if( th != null )
+				throw new Exception( th );
+		}
+	}
+
+	// Grains the child shares with its parent are read via parent.readAt
+	public void testWithParent() throws Exception {
+		MemoryDisk childData = new CapturePipelineTest.PatternDisk( SIZE );
+		byte[] mutation = new byte[1000];
+		new Random( 5 ).nextBytes( mutation );
+		childData.set( 70000, mutation );
+		childData.set( 40 * 1024 * 1024, mutation );
+		StreamOptimizedDisk child = new StreamOptimizedDisk
+			( childData, Session.CANNED );
+		child.setParentDigest( CapturePipelineTest.digest( ud ) );
+		File f = new File( "readat-child" + ManagedDisk.FILESUFFIX );
+		child.writeTo( f );
+		try {
+			ManagedDisk md = ManagedDisk.readFrom( f );
+			md.setParent( ManagedDisk.readFrom( managed ) );
+			content = contentOf( childData );
+			randomReads( md, new Random( 9 ), 1000, false );
+		} finally {
+			f.delete();
+		}
+	}
+	
+	public void testFlatDisk() throws IOException {
+		FlatDisk fd = new FlatDisk( ud, Session.CANNED );
+		File f = new File( "readat-flat" + ManagedDisk.FILESUFFIX );
+		fd.writeTo( f );
+		try {
+			randomReads( ManagedDisk.readFrom( f ), new Random( 3 ), 1000,
+						 true );
+		} finally {
+			f.delete();
+		}
+	}
+
+	private void randomReads( ManagedDisk md, Random r, int count,
+							  boolean direct ) throws IOException {
+		ByteBuffer bb = direct ? ByteBuffer.allocateDirect( 256 * 1024 ) :
+			ByteBuffer.allocate( 256 * 1024 );
+		for( int i = 0; i < count; i++ ) {
+			int offset = r.nextInt( content.length );
+			int len = 1 + r.nextInt( bb.capacity() );
+			bb.clear();
+			bb.limit( len );
+			int nin = md.readAt( offset, bb );
+			assertEquals( Math.min( len, content.length - offset ), nin );
+			for( int b = 0; b < nin; b++ )
+				assertEquals( content[offset+b], bb.get( b ) );
+		}
+	}
+
+	static private byte[] contentOf( UnmanagedDisk ud ) throws IOException {
+		byte[] result = new byte[(int)ud.size()];
+		InputStream is = ud.getInputStream();
+		IOUtils.readFully( is, result );
+		is.close();
+		return result;
+	}
+
+	private UnmanagedDisk ud;
+	private File managed;
+	private byte[] content;
+}
+
+// eof
@@ -34,10 +34,12 @@
 package edu.uw.apl.tupelo.model;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 public class StreamOptimizedDiskTest extends junit.framework.TestCase {
 
@@ -84,6 +86,40 @@ public class StreamOptimizedDiskTest extends junit.framework.TestCase {
 		}
 	}
 
+	/*
+	  A fresh disk of the same data, taking the create uuid of an
+	  earlier one, writes the very same bytes, as a resumed upload
+	  needs
+	*/
+	public void testAdoptUUIDCreate() throws IOException {
+		UnmanagedDisk ud = new CapturePipelineTest.PatternDisk( 1024 * 1024 );
+		ManagedDisk first = new StreamOptimizedDisk( ud, Session.CANNED );
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		first.writeTo( expected );
+		byte[] header = Arrays.copyOf( expected.toByteArray(),
+									   ManagedDisk.Header.SIZEOF );
+
+		ManagedDisk second = new StreamOptimizedDisk( ud, Session.CANNED );
+		assertFalse( first.getUUIDCreate().equals
+					 ( second.getUUIDCreate() ) );
+		second.adoptUUIDCreate( header );
+		assertEquals( first.getUUIDCreate(), second.getUUIDCreate() );
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		second.writeTo( actual );
+		assertTrue( Arrays.equals( expected.toByteArray(),
+								   actual.toByteArray() ) );
+
+		// but not the header of some other disk
+		ManagedDisk other = new StreamOptimizedDisk
+			( new CapturePipelineTest.PatternDisk( 2 * 1024 * 1024 ),
+			  Session.CANNED );
+		try {
+			other.adoptUUIDCreate( header );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+	}
+
 	public void testManage1k() throws IOException {
 		File f = new File( "src/test/resources/1k" );
 		if( !f.exists() )
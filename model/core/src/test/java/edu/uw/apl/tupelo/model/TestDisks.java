@@ -0,0 +1,82 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Disks and checks shared by model and store tests.  The store
+ * modules get these via our test-jar.
+ */
+public class TestDisks {
+
+	/**
+	 * A chain of captures in miniature: generation 0 is random, each
+	 * later one the last plus one more changed megabyte, megabyte i
+	 * (1 <= i <= g) filled with byte i.
+	 */
+	static public RandomDisk generation( long size, long seed, int g ) {
+		RandomDisk result = new RandomDisk( size, 1 << 20, seed );
+		for( int i = 1; i <= g; i++ ) {
+			byte[] ba = new byte[1 << 20];
+			Arrays.fill( ba, (byte)i );
+			result.set( (long)i << 20, ba );
+		}
+		return result;
+	}
+
+	/**
+	 * Fails unless md, read as a stream, holds exactly the content of ud
+	 */
+	static public void assertSameContent( UnmanagedDisk ud, ManagedDisk md )
+		throws IOException {
+		Assert.assertNotNull( md );
+		InputStream expected = ud.getInputStream();
+		InputStream actual = md.getInputStream();
+		try {
+			Assert.assertTrue( IOUtils.contentEquals( expected, actual ) );
+		} finally {
+			expected.close();
+			actual.close();
+		}
+	}
+}
+
+// eof
@@ -0,0 +1,139 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.model;
+
+import java.util.Random;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Testing ZeroScan against the obvious byte-at-a-time loop, for
+ * correctness and for speed.  The speed test is a microbenchmark
+ * over a zero grain table, the worst case for capture (the whole
+ * buffer must be scanned) and a common one for freshly wiped disks.
+ */
+public class ZeroScanTest extends junit.framework.TestCase {
+
+	public void testIsZero() {
+		byte[] ba = new byte[1000];
+		assertTrue( ZeroScan.isZero( ba, 0, ba.length ) );
+		assertTrue( ZeroScan.isZero( ba, 3, 0 ) );
+		// every position, every small range around it...
+		for( int i = 0; i < ba.length; i++ ) {
+			ba[i] = 1;
+			for( int off = Math.max( 0, i - 70 ); off <= i; off++ ) {
+				for( int len = 0; off + len <= Math.min( ba.length, i + 70 );
+					 len++ ) {
+					assertEquals( off + len <= i,
+								  ZeroScan.isZero( ba, off, len ) );
+				}
+			}
+			ba[i] = 0;
+		}
+	}
+
+	public void testScan() {
+		int grainSize = 4096;
+		int grains = 64;
+		byte[] ba = new byte[grainSize * grains + 100];
+		Random r = new Random( 7 );
+		boolean[] expected = new boolean[grains+1];
+		for( int g = 0; g < expected.length; g++ ) {
+			expected[g] = r.nextBoolean();
+			if( !expected[g] ) {
+				int len = Math.min( grainSize, ba.length - g * grainSize );
+				ba[g * grainSize + r.nextInt( len )] = (byte)(1 + r.nextInt(255));
+			}
+		}
+		int zeroCount = 0;
+		for( boolean b : expected )
+			if( b )
+				zeroCount++;
+		boolean[] zeros = new boolean[expected.length];
+		assertEquals( zeroCount, ZeroScan.scan( ba, 0, ba.length, grainSize,
+												zeros ) );
+		for( int g = 0; g < expected.length; g++ )
+			assertEquals( "" + g, expected[g], zeros[g] );
+	}
+
+	public void testSpeed() {
+		// A grain table's worth, as read by capture
+		byte[] ba = new byte[(int)(ManagedDisk.GRAINSIZE_DEFAULT *
+								   Constants.SECTORLENGTH *
+								   ManagedDisk.NUMGTESPERGT)];
+		int grainSize = (int)(ManagedDisk.GRAINSIZE_DEFAULT *
+							  Constants.SECTORLENGTH);
+		boolean[] zeros = new boolean[ManagedDisk.NUMGTESPERGT];
+		int passes = 20;
+		// warm up both
+		for( int i = 0; i < 5; i++ ) {
+			byteLoop( ba, grainSize, zeros );
+			ZeroScan.scan( ba, 0, ba.length, grainSize, zeros );
+		}
+		long start = System.nanoTime();
+		for( int i = 0; i < passes; i++ )
+			assertEquals( zeros.length, byteLoop( ba, grainSize, zeros ) );
+		long bytes = System.nanoTime() - start;
+		start = System.nanoTime();
+		for( int i = 0; i < passes; i++ )
+			assertEquals( zeros.length,
+						  ZeroScan.scan( ba, 0, ba.length, grainSize, zeros ) );
+		long scan = System.nanoTime() - start;
+		long mb = (long)ba.length * passes / (1024 * 1024);
+		System.out.println( "Byte loop: " + mb * 1000000000L / bytes +
+							" MBs-1, ZeroScan: " +
+							mb * 1000000000L / scan + " MBs-1" );
+	}
+
+	// What capture used to do
+	private int byteLoop( byte[] ba, int grainSize, boolean[] zeros ) {
+		int result = 0;
+		for( int g = 0; g < zeros.length; g++ ) {
+			int offset = g * grainSize;
+			boolean allZeros = true;
+			for( int b = 0; b < grainSize; b++ ) {
+				if( ba[offset+b] != 0 ) {
+					allZeros = false;
+					break;
+				}
+			}
+			zeros[g] = allZeros;
+			if( allZeros )
+				result++;
+		}
+		return result;
+	}
+}
+
+// eof
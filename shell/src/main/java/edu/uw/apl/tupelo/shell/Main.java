@@ -115,6 +115,8 @@ public class Main extends Shell {
 		tmpDir = new File( tmpDirS );
 		storeLocation = "./test-store";
 		verbose = false;
+		compression = ManagedDisk.Compressions.SNAPPY;
+		compressionLevel = ManagedDisk.COMPRESSIONLEVEL_DEFAULT;
 
 		// report available Java memory...
 		addCommand( "mem", new Lambda() {
@@ -164,6 +166,33 @@ public class Main extends Shell {
 			} );
 		commandHelp( "s", "Print the store location" );
 
+		// report/set the compression used by putdisk...
+		addCommand( "compression", "(\\S*)\\s*(-?\\d*)", new Lambda() {
+				public void apply( String[] args ) throws Exception {
+					if( args.length > 1 && !args[1].isEmpty() ) {
+						try {
+							compression = ManagedDisk.Compressions.valueOf
+								( args[1].toUpperCase() );
+						} catch( IllegalArgumentException iae ) {
+							System.err.println( "Unknown compression: " +
+												args[1] );
+							return;
+						}
+						compressionLevel = ManagedDisk.COMPRESSIONLEVEL_DEFAULT;
+						if( args.length > 2 && !args[2].isEmpty() )
+							compressionLevel = Integer.parseInt( args[2] );
+					}
+					System.out.println( "Compression: " + compression +
+										(compressionLevel ==
+										 ManagedDisk.COMPRESSIONLEVEL_DEFAULT ?
+										 "" : " " + compressionLevel) );
+				}
+			} );
+		commandHelp( "compression", "[" +
+					 Arrays.toString( ManagedDisk.Compressions.values() ) +
+					 " [level]]",
+					 "Print, or set, the compression used by putdisk" );
+
 		/*
 		  vshash, hash the volume system (unallocated areas) of an identified
 		  unmanaged disk
@@ -629,7 +658,8 @@ public class Main extends Shell {
 				md = new StreamOptimizedDisk( ud, session, uuid );
 			else
 				md = new StreamOptimizedDisk( ud, session );
-			md.setCompression( ManagedDisk.Compressions.SNAPPY );
+			md.setCompression( compression );
+			md.setCompressionLevel( compressionLevel );
 		}
 
 		if( digest != null )
@@ -858,6 +888,8 @@ public class Main extends Shell {
 	List<DiskImage> diskImages;
 	File tmpDir;
 	static boolean verbose, debug;
+	ManagedDisk.Compressions compression;
+	int compressionLevel;
 	Session session;
 	VirtualMachineFileSystem vmfs;
 	Set<String> vmNames;
@@ -0,0 +1,103 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.UUID;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+
+/**
+ * @author Stuart Maclean
+ *
+ * What a listing of a Store typically wants to know of each of its
+ * managed disks: size, uuid and attribute names.  Gathered in one
+ * call per disk, or for a remote store, one call for many disks, see
+ * WireFormat.
+ */
+public class DiskSummary {
+
+	public DiskSummary( ManagedDiskDescriptor mdd, long size, UUID uuid,
+						Collection<String> attributeNames ) {
+		this.mdd = mdd;
+		this.size = size;
+		this.uuid = uuid;
+		this.attributeNames = attributeNames;
+	}
+
+	/**
+	 * By the individual Store calls, as a remote store does for
+	 * each disk in a batch
+	 */
+	static public DiskSummary of( Store store, ManagedDiskDescriptor mdd )
+		throws IOException {
+		return new DiskSummary( mdd, store.size( mdd ), store.uuid( mdd ),
+								store.listAttributes( mdd ) );
+	}
+	
+	public ManagedDiskDescriptor getDescriptor() {
+		return mdd;
+	}
+
+	/**
+	 * @return -1 if the store had no such disk
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return null if the store had no such disk
+	 */
+	public UUID uuid() {
+		return uuid;
+	}
+
+	public Collection<String> attributeNames() {
+		return attributeNames;
+	}
+
+	@Override
+	public String toString() {
+		return mdd + " " + size + " " + uuid + " " + attributeNames;
+	}
+	
+	private final ManagedDiskDescriptor mdd;
+	private final long size;
+	private final UUID uuid;
+	private final Collection<String> attributeNames;
+}
+
+// eof
@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The binary form of Store results as passed between a remote Store
+ * and its client, e.g. the http DataServlet and HttpStoreProxy.  It
+ * replaces Java object serialization, which is tied to class versions
+ * at both ends, and which for a ManagedDiskDigest meant one object
+ * per grain hash.
+ *
+ * Every message starts with MAGIC and a VERSION, a reader refusing a
+ * version newer than its own.  Then, big-endian as per
+ * DataOutputStream:
+ *
+ * size - a long
+ *
+ * uuid - two longs, most then least significant bits
+ *
+ * enumerate - an int count, then per descriptor its disk id and full
+ * session (Session.format), both as writeUTF
+ *
+ * digest - the ManagedDiskDigest binary form, which is streamed
+ * by writer and reader alike
+ *
+ * summaries - an int count, then per DiskSummary its descriptor (as
+ * for enumerate), size, a boolean then uuid if it has one, then its
+ * attribute names as for enumerate's count and writeUTF
+ *
+ * Selected by content negotiation on CONTENTTYPE.
+ */
+public class WireFormat {
+
+	/**
+	 * Start a message
+	 */
+	static public DataOutputStream begin( OutputStream os )
+		throws IOException {
+		DataOutputStream result = new DataOutputStream( os );
+		result.writeInt( MAGIC );
+		result.writeShort( VERSION );
+		return result;
+	}
+
+	/**
+	 * Start reading a message, checking its magic and version
+	 */
+	static public DataInputStream open( InputStream is ) throws IOException {
+		DataInputStream result = new DataInputStream( is );
+		int magic = result.readInt();
+		if( magic != MAGIC )
+			throw new IOException( "Not a Tupelo wire message: " +
+								   Integer.toHexString( magic ) );
+		int version = result.readShort();
+		if( version > VERSION )
+			throw new IOException( "Unsupported wire version " + version );
+		return result;
+	}
+
+	static public void writeUUID( DataOutputStream dos, UUID u )
+		throws IOException {
+		dos.writeLong( u.getMostSignificantBits() );
+		dos.writeLong( u.getLeastSignificantBits() );
+	}
+
+	static public UUID readUUID( DataInputStream dis ) throws IOException {
+		long msb = dis.readLong();
+		long lsb = dis.readLong();
+		return new UUID( msb, lsb );
+	}
+
+	static public void writeDescriptors
+		( DataOutputStream dos, Collection<ManagedDiskDescriptor> mdds )
+		throws IOException {
+		dos.writeInt( mdds.size() );
+		for( ManagedDiskDescriptor mdd : mdds )
+			writeDescriptor( dos, mdd );
+	}
+
+	static public List<ManagedDiskDescriptor> readDescriptors
+		( DataInputStream dis ) throws IOException {
+		int n = dis.readInt();
+		List<ManagedDiskDescriptor> result =
+			new ArrayList<ManagedDiskDescriptor>( n );
+		for( int i = 0; i < n; i++ )
+			result.add( readDescriptor( dis ) );
+		return result;
+	}
+
+	static public void writeSummaries
+		( DataOutputStream dos, Collection<DiskSummary> dss )
+		throws IOException {
+		dos.writeInt( dss.size() );
+		for( DiskSummary ds : dss ) {
+			writeDescriptor( dos, ds.getDescriptor() );
+			dos.writeLong( ds.size() );
+			dos.writeBoolean( ds.uuid() != null );
+			if( ds.uuid() != null )
+				writeUUID( dos, ds.uuid() );
+			dos.writeInt( ds.attributeNames().size() );
+			for( String s : ds.attributeNames() )
+				dos.writeUTF( s );
+		}
+	}
+
+	static public List<DiskSummary> readSummaries( DataInputStream dis )
+		throws IOException {
+		int n = dis.readInt();
+		List<DiskSummary> result = new ArrayList<DiskSummary>( n );
+		for( int i = 0; i < n; i++ ) {
+			ManagedDiskDescriptor mdd = readDescriptor( dis );
+			long size = dis.readLong();
+			UUID uuid = dis.readBoolean() ? readUUID( dis ) : null;
+			int attrs = dis.readInt();
+			List<String> names = new ArrayList<String>( attrs );
+			for( int a = 0; a < attrs; a++ )
+				names.add( dis.readUTF() );
+			result.add( new DiskSummary( mdd, size, uuid, names ) );
+		}
+		return result;
+	}
+
+	static private void writeDescriptor( DataOutputStream dos,
+										 ManagedDiskDescriptor mdd )
+		throws IOException {
+		dos.writeUTF( mdd.getDiskID() );
+		dos.writeUTF( mdd.getSession().format() );
+	}
+
+	static private ManagedDiskDescriptor readDescriptor
+		( DataInputStream dis ) throws IOException {
+		String diskID = dis.readUTF();
+		try {
+			Session s = Session.parse( dis.readUTF() );
+			return new ManagedDiskDescriptor( diskID, s );
+		} catch( ParseException pe ) {
+			throw new IOException( pe );
+		}
+	}
+	
+	static public final String CONTENTTYPE = "application/x-tupelo-binary";
+
+	static public final int VERSION = 1;
+
+	static private final int MAGIC = 0x54504c57; // "TPLW"
+}
+
+// eof
@@ -0,0 +1,341 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The FilesystemStore's record of what managed disks it holds, so
+ * that opening the store need neither walk the disks/ tree nor read
+ * the header of every .tmd file in it.  Per managed disk we record
+ * its descriptor, the path of its data file (relative to the store
+ * root), its size, its create and parent uuids, and the data file's
+ * length and modification time as last seen, by which the entry can
+ * be checked (lazily, see FilesystemStore) against the file itself.
+ *
+ * Two files.  The snapshot, catalog.txt, holds the entire catalog as
+ * of some time.  The journal, catalog.journal, holds all changes
+ * since, one line per change, appended (and synced) as each put
+ * completes.  Loading is then snapshot then replayed journal.  Every
+ * SNAPSHOTINTERVAL changes, we write a new snapshot and empty the
+ * journal.  Since replaying a change already in the snapshot is
+ * harmless, a crash between those two steps loses nothing.  A crash
+ * mid-append leaves a partial last journal line, which is ignored.
+ *
+ * All lines are tab-separated fields, first an op, '+' (add or
+ * replace) or '-' (remove).
+ *
+ * Thread-safe.  Changes are serialized, lookups are not, so never
+ * wait on a change (a journal sync) in progress.
+ */
+class Catalog {
+
+	Catalog( File root ) {
+		snapshot = new File( root, SNAPSHOTFILE );
+		journal = new File( root, JOURNALFILE );
+		this.root = root;
+		entries = new ConcurrentHashMap<ManagedDiskDescriptor,Entry>();
+		uuids = new ConcurrentHashMap<UUID,Entry>();
+		log = LogFactory.getLog( getClass() );
+	}
+
+	/**
+	 * @return true if this store has a catalog at all.  Stores
+	 * pre-dating the catalog do not, see FilesystemStore.
+	 */
+	boolean exists() {
+		return snapshot.exists() || journal.exists();
+	}
+	
+	synchronized void load() throws IOException {
+		entries.clear();
+		uuids.clear();
+		if( snapshot.exists() )
+			replay( snapshot );
+		if( journal.exists() )
+			journalled = replay( journal );
+		loaded = true;
+		log.info( "Catalog: " + entries.size() + " managed disks" );
+	}
+
+	/**
+	 * Replace the whole catalog, e.g. after a scan of the store
+	 */
+	synchronized void rebuild( Collection<Entry> es ) throws IOException {
+		entries.clear();
+		uuids.clear();
+		for( Entry e : es )
+			apply( '+', e );
+		loaded = true;
+		writeSnapshot();
+	}
+
+	synchronized void add( Entry e ) throws IOException {
+		append( '+', e );
+		apply( '+', e );
+		snapshotDue();
+	}
+	
+	synchronized void remove( ManagedDiskDescriptor mdd ) throws IOException {
+		Entry e = entries.get( mdd );
+		if( e == null )
+			return;
+		append( '-', e );
+		apply( '-', e );
+		snapshotDue();
+	}
+
+	Entry get( ManagedDiskDescriptor mdd ) {
+		return entries.get( mdd );
+	}
+
+	/**
+	 * @return the entry for the managed disk whose create uuid is
+	 * that supplied, so how a child locates its parent
+	 */
+	Entry get( UUID create ) {
+		return uuids.get( create );
+	}
+
+	boolean contains( ManagedDiskDescriptor mdd ) {
+		return entries.containsKey( mdd );
+	}
+
+	Collection<ManagedDiskDescriptor> descriptors() {
+		return new ArrayList<ManagedDiskDescriptor>( entries.keySet() );
+	}
+	
+	int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * One managed disk, as catalogued
+	 */
+	static class Entry {
+		Entry( ManagedDiskDescriptor mdd, String path, long size,
+			   UUID create, UUID parent, long length, long modified ) {
+			this.mdd = mdd;
+			this.path = path;
+			this.size = size;
+			this.create = create;
+			this.parent = parent;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		/**
+		 * @param f - md's data file, under root
+		 */
+		static Entry of( ManagedDisk md, File root, File f ) {
+			String path = root.toURI().relativize( f.toURI() ).getPath();
+			return new Entry( md.getDescriptor(), path, md.size(),
+							  md.getUUIDCreate(),
+							  md.hasParent() ? md.getUUIDParent() : null,
+							  f.length(), f.lastModified() );
+		}
+
+		File file( File root ) {
+			return new File( root, path );
+		}
+		
+		/**
+		 * @return true if f looks just as it did when catalogued
+		 */
+		boolean current( File f ) {
+			return f.length() == length && f.lastModified() == modified;
+		}
+		
+		String format( char op ) {
+			return op + "\t" + mdd.getDiskID() + "\t" +
+				mdd.getSession().format() + "\t" + path + "\t" + size + "\t" +
+				create + "\t" + (parent == null ? NOPARENT : parent.toString()) +
+				"\t" + length + "\t" + modified;
+		}
+
+		static Entry parse( String[] fields ) throws ParseException {
+			if( fields.length != 9 )
+				throw new ParseException( "Field count " + fields.length, 0 );
+			try {
+				Session s = Session.parse( fields[2] );
+				ManagedDiskDescriptor mdd = new ManagedDiskDescriptor
+					( fields[1], s );
+				UUID parent = NOPARENT.equals( fields[6] ) ? null :
+					UUID.fromString( fields[6] );
+				return new Entry( mdd, fields[3], Long.parseLong( fields[4] ),
+								  UUID.fromString( fields[5] ), parent,
+								  Long.parseLong( fields[7] ),
+								  Long.parseLong( fields[8] ) );
+			} catch( IllegalArgumentException iae ) {
+				// includes NumberFormatException
+				throw new ParseException( iae.getMessage(), 0 );
+			}
+		}
+		
+		final ManagedDiskDescriptor mdd;
+		final String path;
+		final long size;
+		final UUID create, parent;
+		final long length, modified;
+	}
+
+	private void apply( char op, Entry e ) {
+		if( op == '+' ) {
+			Entry prev = entries.put( e.mdd, e );
+			if( prev != null )
+				uuids.remove( prev.create );
+			uuids.put( e.create, e );
+		} else {
+			entries.remove( e.mdd );
+			uuids.remove( e.create );
+		}
+	}
+	
+	/**
+	 * @return number of lines applied
+	 */
+	private int replay( File f ) throws IOException {
+		int result = 0;
+		BufferedReader br = new BufferedReader( new FileReader( f ) );
+		try {
+			String line;
+			int lineNumber = 0;
+			while( (line = br.readLine()) != null ) {
+				lineNumber++;
+				if( line.isEmpty() )
+					continue;
+				String[] fields = line.split( "\t" );
+				char op = fields[0].length() == 1 ? fields[0].charAt(0) : 0;
+				try {
+					if( op != '+' && op != '-' )
+						throw new ParseException( "Op " + fields[0], 0 );
+					apply( op, Entry.parse( fields ) );
+					result++;
+				} catch( ParseException pe ) {
+					// LOOK: expected only of a journal's last line
+					log.warn( f + ":" + lineNumber + ": " + pe.getMessage() );
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return result;
+	}
+
+	private void append( char op, Entry e ) throws IOException {
+		FileOutputStream fos = new FileOutputStream( journal, true );
+		try {
+			fos.write( (e.format( op ) + "\n").
+					   getBytes( StandardCharsets.UTF_8 ) );
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		journalled++;
+	}
+
+	private void snapshotDue() throws IOException {
+		/*
+		  A catalog never loaded (FilesystemStore with
+		  loadManagedDisks false) holds only its own changes, so
+		  must never be snapshotted
+		*/
+		if( loaded && journalled >= SNAPSHOTINTERVAL )
+			writeSnapshot();
+	}
+
+	private void writeSnapshot() throws IOException {
+		File tmp = new File( root, SNAPSHOTFILE + ".tmp" );
+		FileOutputStream fos = new FileOutputStream( tmp );
+		try {
+			PrintWriter pw = new PrintWriter
+				( new OutputStreamWriter( fos, StandardCharsets.UTF_8 ) );
+			for( Entry e : entries.values() )
+				pw.print( e.format( '+' ) + "\n" );
+			pw.flush();
+			if( pw.checkError() )
+				throw new IOException( tmp + ": write error" );
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if( !tmp.renameTo( snapshot ) ) {
+			// LOOK: Windows will not rename onto an existing file
+			snapshot.delete();
+			if( !tmp.renameTo( snapshot ) )
+				throw new IOException( tmp + ": rename failed" );
+		}
+		new FileOutputStream( journal ).close();
+		journalled = 0;
+		log.info( "Catalog snapshot: " + entries.size() + " managed disks" );
+	}
+	
+	private final File root, snapshot, journal;
+	private final Map<ManagedDiskDescriptor,Entry> entries;
+	private final Map<UUID,Entry> uuids;
+	private final Log log;
+	private boolean loaded;
+	private int journalled;
+
+	static private final String SNAPSHOTFILE = "catalog.txt";
+	static private final String JOURNALFILE = "catalog.journal";
+	static private final String NOPARENT = "-";
+	
+	// Journal lines between snapshots
+	static final int SNAPSHOTINTERVAL = 256;
+}
+
+// eof
@@ -44,10 +44,9 @@ import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.DigestInputStream;
 import java.text.ParseException;
 import java.util.Calendar;
@@ -58,15 +57,31 @@ import java.util.List;
 import java.util.UUID;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 
+import edu.uw.apl.tupelo.model.Constants;
+import edu.uw.apl.tupelo.model.DigestEngine;
+import edu.uw.apl.tupelo.model.GrainCache;
+import edu.uw.apl.tupelo.model.GrainDigester;
+import edu.uw.apl.tupelo.model.GrainHash;
+import edu.uw.apl.tupelo.model.GrainPool;
 import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
+import edu.uw.apl.tupelo.model.PooledDisk;
 import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
 import edu.uw.apl.tupelo.model.ProgressMonitor;
 import edu.uw.apl.tupelo.model.Utils;
 import edu.uw.apl.tupelo.store.Store;
@@ -112,6 +127,10 @@ public class FilesystemStore implements Store {
 	 * @param loadManagedDisks - normally true, but for test cases useful to
 	 * pass false so a FilesystemStore has known empty status initially,
 	 * in terms of 'managed disk details loaded into memory'.
+	 *
+	 * The managed disks are known from the store's Catalog.  Only a
+	 * store with no catalog yet (one pre-dating it) is scanned, once,
+	 * to build it.  No managed disk is opened until first needed.
 	 */
 	public FilesystemStore( File root, boolean loadManagedDisks )
 		throws IOException {
@@ -121,12 +140,29 @@ public class FilesystemStore implements Store {
 		tempDir = new File( root, "temp" );
 		tempDir.mkdirs();
 		log.debug( "FSStore.tmp = " + tempDir );
+		// data replaced by compact, kept for any readers then, not now
+		File[] retired = tempDir.listFiles();
+		if( retired != null ) {
+			for( File f : retired ) {
+				if( f.getName().endsWith( RETIREDSUFFIX ) )
+					f.delete();
+			}
+		}
 		uuid = loadUUID();
-		descriptorMap = new HashMap<ManagedDiskDescriptor,ManagedDisk>();
-		pathMap = new HashMap<String,ManagedDisk>();
-		if( loadManagedDisks )
-			loadManagedDisks();
+		digestAlgorithm = loadDigestAlgorithm();
+		descriptorMap =
+			new ConcurrentHashMap<ManagedDiskDescriptor,ManagedDisk>();
+		putting = Collections.newSetFromMap
+			( new ConcurrentHashMap<ManagedDiskDescriptor,Boolean>() );
+		catalog = new Catalog( root );
+		if( loadManagedDisks ) {
+			if( catalog.exists() )
+				catalog.load();
+			else
+				rebuildCatalog();
+		}
 		writable = true;
+		digestOnPut = Boolean.getBoolean( DIGESTONPUTPROPERTY );
 	}
 
 	/**
@@ -136,6 +172,41 @@ public class FilesystemStore implements Store {
 	public void setWritable( boolean b ) {
 		writable = b;
 	}
+
+	/**
+	 * If set, each put() has the managed disk compute its own digest
+	 * while it is written, saving a later computeDigest() from
+	 * re-reading (and decompressing) the whole managed disk.  Default
+	 * is false, or the value of system property DIGESTONPUTPROPERTY.
+	 */
+	public void setDigestOnPut( boolean b ) {
+		digestOnPut = b;
+	}
+	
+	/**
+	 * The grain hash algorithm (see GrainHash) for all digests this
+	 * store computes from now on.  Recorded in the store itself, so
+	 * it persists.  Digests already computed are unaffected, each
+	 * records its own algorithm, and a later capture against such a
+	 * digest uses that algorithm.
+	 *
+	 * @throws IllegalArgumentException if the algorithm is unknown
+	 */
+	public synchronized void setDigestAlgorithm( String algorithm )
+		throws IOException {
+		algorithm = GrainHash.canonical( algorithm );
+		File f = new File( root, DIGESTALGORITHMFILE );
+		PrintWriter pw = new PrintWriter( new FileWriter( f ) );
+		pw.println( algorithm );
+		pw.close();
+		if( pw.checkError() )
+			throw new IOException( f + ": write error" );
+		digestAlgorithm = algorithm;
+	}
+
+	public synchronized String getDigestAlgorithm() {
+		return digestAlgorithm;
+	}
 	
 	@Override
 	public synchronized UUID getUUID() {
@@ -179,153 +250,451 @@ public class FilesystemStore implements Store {
 	}
 
 	/**
+	 * Not synchronized, so that any number of puts may be writing
+	 * into temp/ at once, while other store operations proceed.  Only
+	 * the final move into the store proper, and catalog update, take
+	 * the store lock (see commit).
+	 *
+	 * @throws IllegalArgumentException if mdd already stored, or
+	 * being put right now.
+	 *
 	 * @throws IllegalStateException if the verify operation fails.
 	 * If so, the temporary file used to hold the manageddisk is discarded
 	 * and the store proper NOT updated
 	 */
 	@Override
-	public synchronized void put( ManagedDisk md ) throws IOException {
+	public void put( ManagedDisk md ) throws IOException {
 
 		ManagedDiskDescriptor mdd = md.getDescriptor();
-		if( descriptorMap.containsKey( mdd ) )
-			throw new IllegalArgumentException( "Already stored: " + mdd );
-		
-		String fileName = dataFileName( mdd );
-		File tempFile = new File( tempDir, fileName );
-		log.info( "Writing to " + tempFile );
-		/*
-		  Since the temp file itself is to be used as a lock,
-		  canonicalise it first to avoid any unintended side-stepping
-		  of lock requirements.  Since this is where the expensive
-		  operation occurs, we maintain the accessibility of the wider
-		  store object itself...
-		*/
-		tempFile = tempFile.getCanonicalFile();
-		synchronized( tempFile ) {
-			log.debug( "Locked " + tempFile );
-			FileOutputStream fos = new FileOutputStream( tempFile );
-			BufferedOutputStream bos = new BufferedOutputStream( fos, 1024*64 );
-			md.writeTo( bos );
-			bos.close();
-			fos.close();
-			// Verify for that data written is complete...
-			try {
-				md.setManagedData( tempFile );
-				md.verify();
-			} catch( IllegalStateException ise ) {
-				log.warn( ise );
-				tempFile.delete();
-				throw ise;
+		reserve( mdd );
+		try {
+			String fileName = dataFileName( mdd );
+			File tempFile = new File( tempDir, fileName );
+			log.info( "Writing to " + tempFile );
+			/*
+			  Since the temp file itself is to be used as a lock,
+			  canonicalise it first to avoid any unintended side-stepping
+			  of lock requirements.  Since this is where the expensive
+			  operation occurs, we maintain the accessibility of the wider
+			  store object itself...
+			*/
+			tempFile = tempFile.getCanonicalFile();
+			synchronized( tempFile ) {
+				log.debug( "Locked " + tempFile );
+				if( digestOnPut )
+					requestDigest( md );
+				FileOutputStream fos = new FileOutputStream( tempFile );
+				BufferedOutputStream bos = new BufferedOutputStream
+					( fos, 1024*64 );
+				md.writeTo( bos );
+				bos.close();
+				fos.close();
+				// Verify for that data written is complete...
+				try {
+					md.setManagedData( tempFile );
+					md.verify();
+				} catch( IllegalStateException ise ) {
+					log.warn( ise );
+					tempFile.delete();
+					throw ise;
+				}
+				log.debug( "Unlocked " + tempFile );
 			}
-			log.debug( "Unlocked " + tempFile );
+			commit( md, tempFile );
+		} finally {
+			release( mdd );
 		}
+	}
 
-		// we are now adding to the Store proper, so need the lock....
-		synchronized( this ) {
-			File outDir = diskDataDir( root, mdd );
-			outDir.mkdirs();
-			File outFile = new File( outDir, fileName );
+	@Override
+	public void put( ManagedDisk md, ProgressMonitor.Callback cb,
+					 int progressUpdateIntervalSecs )
+		throws IOException {
+
+		// LOOK: this is same code as put(ManagedDisk) but with the progmon..
+
+		ManagedDiskDescriptor mdd = md.getDescriptor();
+		reserve( mdd );
+		try {
+			String fileName = dataFileName( mdd );
+			File tempFile = new File( tempDir, fileName );
+			log.info( "Writing to " + tempFile );
+			tempFile = tempFile.getCanonicalFile();
+			synchronized( tempFile ) {
+				log.debug( "Locked " + tempFile );
+				if( digestOnPut )
+					requestDigest( md );
+				FileOutputStream fos = new FileOutputStream( tempFile );
+				BufferedOutputStream bos = new BufferedOutputStream
+					( fos, 1024*64 );
+				ProgressMonitor pm = new ProgressMonitor
+					( md, bos, cb, progressUpdateIntervalSecs );
+				pm.start();
+				bos.close();
+				fos.close();
+				log.debug( "Unlocked " + tempFile );
+			}
+			commit( md, tempFile );
+		} finally {
+			release( mdd );
+		}
+	}
+
+	/**
+	 * Claim mdd for a put in progress, so that no concurrent put of
+	 * the same descriptor can collide with it in temp/.
+	 *
+	 * Claimed first, then the catalog checked.  A put of mdd ends by
+	 * adding it to the catalog, then releasing it, so between the two
+	 * tests there is no moment when a completed put passes both.
+	 */
+	private void reserve( ManagedDiskDescriptor mdd ) {
+		if( !putting.add( mdd ) )
+			throw new IllegalArgumentException( "Already being stored: " +
+												mdd );
+		if( catalog.contains( mdd ) ) {
+			putting.remove( mdd );
+			throw new IllegalArgumentException( "Already stored: " + mdd );
+		}
+	}
+
+	private void release( ManagedDiskDescriptor mdd ) {
+		putting.remove( mdd );
+	}
+	
+	/**
+	 * Move a completely written managed disk from temp/ into the
+	 * store proper.  The disk's directories are its own (mdd being
+	 * reserved), so only the catalog update needs the store lock.
+	 * In a pooled store, what is moved in is instead the PooledDisk
+	 * made from it.
+	 */
+	private void commit( ManagedDisk md, File tempFile ) throws IOException {
+		ManagedDiskDescriptor mdd = md.getDescriptor();
+		File outDir = diskDataDir( root, mdd );
+		outDir.mkdirs();
+		File outFile = new File( outDir, dataFileName( mdd ) );
+		// computed while writing, so the same for any pooled form
+		ManagedDiskDigest digest = md.getDigest();
+		if( isPooled() ) {
+			md = ingest( md, tempFile, outFile );
+		} else {
 			log.info( "Moving to " + outFile );
-			tempFile.renameTo( outFile );
+			if( !tempFile.renameTo( outFile ) )
+				throw new IOException( tempFile + ": rename failed" );
 			log.info( "Moved to " + outFile );
 			md.setManagedData( outFile );
+		}
 
-			// Access controls in place to guard against file system screw ups..
-			outFile.setWritable( writable );
-			/*
-			  Since only ever supposed to be a single file in the dir,
-			  protect the dir
-			*/
-			outDir.setWritable( writable );
-			
+		if( digest != null ) {
+			File digestFile = managedDataDigest( root, mdd );
+			log.info( "Digest to " + digestFile );
+			writeDigest( digestFile, digest );
+		}
+
+		// Access controls in place to guard against file system screw ups..
+		outFile.setWritable( writable );
+		/*
+		  Since only ever supposed to be a single file in the dir,
+		  protect the dir
+		*/
+		outDir.setWritable( writable );
+
+		// we are now adding to the Store proper, so need the lock....
+		synchronized( this ) {
 			link( md );
+			catalog.add( Catalog.Entry.of( md, root, outFile ) );
 			descriptorMap.put( mdd, md );
-			String path = asPathName( mdd );
-			pathMap.put( path, md );
 		}
 	}
 
-	@Override
-	public synchronized void put( ManagedDisk md, ProgressMonitor.Callback cb,
-								  int progressUpdateIntervalSecs )
+	/**
+	 * Turn md, as written to tempFile, into a PooledDisk at outFile.
+	 * md is read back in full, its parent chain too, so is linked
+	 * first.
+	 */
+	private ManagedDisk ingest( ManagedDisk md, File tempFile, File outFile )
 		throws IOException {
+		md.setManagedData( tempFile );
+		synchronized( this ) {
+			link( md );
+		}
+		log.info( "Pooling to " + outFile );
+		PooledDisk result = pool().ingest( md, outFile );
+		tempFile.delete();
+		return result;
+	}
 
-		// LOOK: this is same code as put(ManagedDisk) but with the progmon..
+	/**
+	 * Have all future puts stored via a GrainPool, each distinct
+	 * grain held once across all managed disks, whatever their
+	 * disk or session.  Disks already stored are left as they are.
+	 * Persistent, a store once pooled stays so.
+	 */
+	public synchronized void enableGrainPool() throws IOException {
+		File dir = new File( root, POOLDIR );
+		dir.mkdirs();
+		pool();
+	}
 
-		ManagedDiskDescriptor mdd = md.getDescriptor();
-		if( descriptorMap.containsKey( mdd ) )
-			throw new IllegalArgumentException( "Already stored: " + mdd );
-		
-		String fileName = dataFileName( mdd );
-		File tempFile = new File( tempDir, fileName );
-		log.info( "Writing to " + tempFile );
-		/*
-		  Since the temp file itself is to be used as a lock,
-		  canonicalise it first to avoid any unintended side-stepping
-		  of lock requirements.  Since this is where the expensive
-		  operation occurs, we maintain the accessibility of the wider
-		  store object itself...
-		*/
-		tempFile = tempFile.getCanonicalFile();
-		synchronized( tempFile ) {
-			log.debug( "Locked " + tempFile );
-			FileOutputStream fos = new FileOutputStream( tempFile );
-			BufferedOutputStream bos = new BufferedOutputStream( fos, 1024*64 );
-			ProgressMonitor pm = new ProgressMonitor
-				( md, bos, cb, progressUpdateIntervalSecs );
-			pm.start();
+	public boolean isPooled() {
+		return new File( root, POOLDIR ).isDirectory();
+	}
+
+	/**
+	 * @return our GrainPool, for its dedup statistics, null if the
+	 * store is not pooled
+	 */
+	public GrainPool getGrainPool() throws IOException {
+		return isPooled() ? pool() : null;
+	}
+	
+	private synchronized GrainPool pool() throws IOException {
+		if( pool == null )
+			pool = new GrainPool( new File( root, POOLDIR ) );
+		return pool;
+	}
+
+	/**
+	 * Remove a managed disk from the store, together with its digest
+	 * and attributes.  A pooled disk gives back its grain references,
+	 * any grains then unreferenced being dropped from the pool.
+	 *
+	 * @throws IllegalStateException if some other stored disk needs
+	 * mdd as its parent.  Pooled children do not, holding all their
+	 * own grains.
+	 *
+	 * @return false if mdd not in the store
+	 */
+	public boolean delete( ManagedDiskDescriptor mdd ) throws IOException {
+		ManagedDisk md;
+		synchronized( this ) {
+			md = openLocked( mdd );
+			if( md == null )
+				return false;
+			if( putting.contains( mdd ) )
+				throw new IllegalStateException( "Being stored: " + mdd );
+			UUID create = md.getUUIDCreate();
+			for( ManagedDiskDescriptor d : catalog.descriptors() ) {
+				Catalog.Entry e = catalog.get( d );
+				if( e == null || !create.equals( e.parent ) )
+					continue;
+				if( !( openLocked( d ) instanceof PooledDisk ) )
+					throw new IllegalStateException( "Parent of: " + d );
+			}
+			catalog.remove( mdd );
+			descriptorMap.remove( mdd );
+		}
+		if( md instanceof PooledDisk )
+			pool().release( (PooledDisk)md );
+		File dir = diskDir( root, mdd );
+		for( File f : FileUtils.listFilesAndDirs
+				 ( dir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE ) )
+			f.setWritable( true );
+		FileUtils.deleteDirectory( dir );
+		log.info( "Deleted: " + mdd );
+		return true;
+	}
+
+	/**
+	 * Rewrite the managed disk mdd so that it keeps at most 'keep'
+	 * ancestors, 0 making it self-contained.  Every grain now held
+	 * further up its chain than that is copied into it.  Reads of mdd
+	 * (and of its children) then touch fewer files, which matters for
+	 * disks captured many times over.
+	 *
+	 * Runs in the background, one compaction at a time.  mdd remains
+	 * readable throughout.  On completion the rewrite replaces it
+	 * (same descriptor, same create uuid) and its children are
+	 * re-linked to it.  ManagedDisks handed out before that continue
+	 * to read from the old data, which is retired to temp/ and
+	 * removed next time the store is opened.
+	 *
+	 * @param cb - progress callback, may be null
+	 *
+	 * @throws IllegalArgumentException if mdd not stored, or being
+	 * stored, deleted or compacted already
+	 */
+	public Future<Void> compact( final ManagedDiskDescriptor mdd,
+								 final int keep,
+								 final ProgressMonitor.Callback cb,
+								 final int progressUpdateIntervalSecs ) {
+		if( keep < 0 )
+			throw new IllegalArgumentException( "Keep: " + keep );
+		if( !catalog.contains( mdd ) )
+			throw new IllegalArgumentException( "Not stored: " + mdd );
+		if( !putting.add( mdd ) )
+			throw new IllegalArgumentException( "Busy: " + mdd );
+		Callable<Void> c = new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						compactImpl( mdd, keep, cb,
+									 progressUpdateIntervalSecs );
+					} catch( Exception e ) {
+						log.warn( mdd + ": compaction failed", e );
+						throw e;
+					} finally {
+						putting.remove( mdd );
+					}
+					return null;
+				}
+			};
+		try {
+			return compactor().submit( c );
+		} catch( RuntimeException re ) {
+			putting.remove( mdd );
+			throw re;
+		}
+	}
+
+	private void compactImpl( ManagedDiskDescriptor mdd, int keep,
+							  ProgressMonitor.Callback cb,
+							  int progressUpdateIntervalSecs )
+		throws IOException {
+		ManagedDisk md = open( mdd );
+		if( md == null )
+			throw new IllegalArgumentException( "Not stored: " + mdd );
+		if( !( md instanceof StreamOptimizedDisk ) ) {
+			log.info( mdd + ": not compactable, has no parents" );
+			return;
+		}
+		List<ManagedDiskDescriptor> ancestors =
+			new ArrayList<ManagedDiskDescriptor>();
+		Catalog.Entry e = catalog.get( mdd );
+		while( e != null && e.parent != null ) {
+			e = catalog.get( e.parent );
+			if( e != null )
+				ancestors.add( e.mdd );
+		}
+		if( ancestors.size() <= keep ) {
+			log.info( mdd + ": " + ancestors.size() + " ancestors, kept" );
+			return;
+		}
+		log.info( mdd + ": " + ancestors.size() + " ancestors -> " + keep );
+
+		StreamOptimizedDisk sod;
+		if( keep == 0 ) {
+			sod = new StreamOptimizedDisk( md, Constants.NULLUUID );
+		} else {
+			ManagedDiskDescriptor base =
+				ancestors.get( ancestors.size() - keep );
+			ManagedDisk parent = open( base );
+			sod = new StreamOptimizedDisk( md, parent.getUUIDCreate() );
+			computeDigest( base );
+			sod.setParentDigest( digest( base ) );
+		}
+		File tempFile = new File( tempDir, dataFileName( mdd ) ).
+			getCanonicalFile();
+		FileOutputStream fos = new FileOutputStream( tempFile );
+		BufferedOutputStream bos = new BufferedOutputStream( fos, 1024*64 );
+		try {
+			if( cb == null ) {
+				sod.writeTo( bos );
+			} else {
+				ProgressMonitor pm = new ProgressMonitor
+					( sod, bos, cb, progressUpdateIntervalSecs );
+				pm.start();
+			}
+		} finally {
 			bos.close();
 			fos.close();
-			log.debug( "Unlocked " + tempFile );
 		}
+		try {
+			// ProgressMonitor logs, rather than throws, write failures
+			sod.setManagedData( tempFile );
+			sod.verify();
+		} catch( IllegalStateException ise ) {
+			tempFile.delete();
+			throw ise;
+		}
+		replace( md, tempFile );
+	}
 
-		// we are now adding to the Store proper, so need the lock....
-		synchronized( this ) {
-			File outDir = diskDataDir( root, mdd );
-			outDir.mkdirs();
-			File outFile = new File( outDir, fileName );
-			log.info( "Moving to " + outFile );
-			tempFile.renameTo( outFile );
-			log.info( "Moved to " + outFile );
-			md.setManagedData( outFile );
-
-			// Access controls in place to guard against file system screw ups..
+	/**
+	 * Swap a compacted rewrite, in tempFile, for md.  The old data
+	 * file is first hard linked into temp/ and md pointed at that,
+	 * so that md (and any streams on it) reads on unaffected.  Without
+	 * the link there is no swap: md, and the grain maps of any
+	 * children, locate grains by offsets in the old file only.
+	 *
+	 * @throws IOException if the link fails, tempFile then deleted
+	 */
+	private synchronized void replace( ManagedDisk md, File tempFile )
+		throws IOException {
+		ManagedDiskDescriptor mdd = md.getDescriptor();
+		File outDir = diskDataDir( root, mdd );
+		File outFile = new File( outDir, dataFileName( mdd ) );
+		File retired = new File( tempDir, dataFileName( mdd ) + "." +
+								 System.currentTimeMillis() + RETIREDSUFFIX );
+		try {
+			Files.createLink( retired.toPath(), outFile.toPath() );
+		} catch( IOException ioe ) {
+			tempFile.delete();
+			throw new IOException( mdd + ": not compacted, link failed", ioe );
+		}
+		md.setManagedData( retired );
+		outDir.setWritable( true );
+		outFile.setWritable( true );
+		try {
+			if( !tempFile.renameTo( outFile ) )
+				throw new IOException( tempFile + ": rename failed" );
+		} finally {
 			outFile.setWritable( writable );
-			/*
-			  Since only ever supposed to be a single file in the dir,
-			  protect the dir
-			*/
 			outDir.setWritable( writable );
-			
-			link( md );
-			descriptorMap.put( mdd, md );
-			String path = asPathName( mdd );
-			pathMap.put( path, md );
 		}
+		GrainCache cache = GrainCache.shared();
+		if( cache != null )
+			cache.invalidate( outFile );
+
+		ManagedDisk result = ManagedDisk.readFrom( outFile );
+		link( result );
+		catalog.add( Catalog.Entry.of( result, root, outFile ) );
+		descriptorMap.put( mdd, result );
+		UUID create = result.getUUIDCreate();
+		for( ManagedDisk child : descriptorMap.values() ) {
+			if( child.hasParent() && child.getUUIDParent().equals( create ) &&
+				!( child instanceof PooledDisk ) )
+				child.setParent( result );
+		}
+		log.info( "Compacted: " + mdd );
+	}
+
+	private synchronized ExecutorService compactor() {
+		if( compactor == null ) {
+			compactor = Executors.newSingleThreadExecutor
+				( new ThreadFactory() {
+						public Thread newThread( Runnable r ) {
+							Thread t = new Thread( r, "compactor-" + root );
+							t.setDaemon( true );
+							return t;
+						}
+					} );
+		}
+		return compactor;
 	}
 
 	@Override
-	public synchronized long size( ManagedDiskDescriptor mdd )
+	public long size( ManagedDiskDescriptor mdd )
 		throws IOException {
 
-		ManagedDisk md = descriptorMap.get( mdd );
-		if( md == null ) {
+		Catalog.Entry e = catalog.get( mdd );
+		if( e == null ) {
 			log.warn( "size. No such descriptor: " + mdd );
 			return -1;
 		}
-		return md.size();
+		return e.size;
 	}
 
 	@Override
-	public synchronized UUID uuid( ManagedDiskDescriptor mdd )
+	public UUID uuid( ManagedDiskDescriptor mdd )
 		throws IOException {
 
-		ManagedDisk md = descriptorMap.get( mdd );
-		if( md == null ) {
+		Catalog.Entry e = catalog.get( mdd );
+		if( e == null ) {
 			log.warn( "uuid. No such descriptor: " + mdd );
 			return null;
 		}
-		return md.getUUIDCreate();
+		return e.create;
 	}
 	
 	/**
@@ -346,7 +715,7 @@ public class FilesystemStore implements Store {
 	public ManagedDiskDigest digest( ManagedDiskDescriptor mdd )
 		throws IOException {
 
-		if( !descriptorMap.containsKey( mdd ) ) {
+		if( !catalog.contains( mdd ) ) {
 			// LOOK: warning ?
 			return null;
 		}
@@ -367,10 +736,8 @@ public class FilesystemStore implements Store {
 		ois.close();
 		fis.close();
 		*/
-		FileReader fr = new FileReader( f );
-		ManagedDiskDigest result = ManagedDiskDigest.readFrom( fr );
-		fr.close();
-		return result;
+		// Either the binary (mapped) or the older hex form
+		return ManagedDiskDigest.readFrom( f );
 	}
 
 	/**
@@ -385,7 +752,7 @@ public class FilesystemStore implements Store {
 		if( digestFile.exists() )
 			return;
 		
-		ManagedDisk md = descriptorMap.get( mdd );
+		ManagedDisk md = open( mdd );
 		if( md == null ) {
 			// LOOK: warning ?
 			return;
@@ -393,70 +760,109 @@ public class FilesystemStore implements Store {
 		
 		//md.reportMetaData();
 		
-		MessageDigest mdg = null;
-		try {
-			mdg = MessageDigest.getInstance( ManagedDisk.DIGESTALGORITHM );
-		} catch( NoSuchAlgorithmException never ) {
-		}
-
 		int grainCount = (int)(Utils.alignUp( md.size(), md.grainSizeBytes() ) /
 							   md.grainSizeBytes());
 		log.info( "Grains: " + grainCount );
-		byte[] grain = new byte[(int)md.grainSizeBytes()];
+		/*
+		  The digester zero-pads any partial last grain, as
+		  StreamOptimizedDisk does when storing it
+		*/
+		GrainDigester digester = new GrainDigester( md.grainSizeBytes(),
+													grainCount,
+													getDigestAlgorithm() );
+		byte[] ba = new byte[1 << 20];
 		InputStream is = md.getInputStream();
-		//		DigestInputStream dis = new DigestInputStream( is, sha1 );
-		//		List<byte[]> digest = new ArrayList<byte[]>( grainCount );
-		ManagedDiskDigest digest = new ManagedDiskDigest( grainCount );
-		BufferedInputStream bis = new BufferedInputStream( is, 1 << 20 );
-		for( int g = 1; g <= grainCount; g++ ) {
-			//	int nin = dis.read( grain );
-			int nin = bis.read( grain );
-			/*
-			  Only the last read could/should return a partial grain,
-			  and that would be if the data size not a multiple of
-			  grainSize, which is OK.
-			*/
-			if( nin != grain.length && g < grainCount ) {
-				throw new IllegalStateException( "Partial read (" +
-												 g + "/" +
-												 grainCount + "). Fix!" );
-			}
-			byte[] hash = mdg.digest( grain );
-			digest.add( hash );
-			mdg.reset();
-			if( log.isTraceEnabled() )
-				log.trace( g );
+		while( true ) {
+			int nin = is.read( ba );
+			if( nin < 0 )
+				break;
+			digester.update( ba, 0, nin );
 		}
-		//		dis.close();
 		is.close();
+		ManagedDiskDigest digest = digester.finish();
+		if( digest.size() != grainCount ) {
+			throw new IllegalStateException( "Partial read (" +
+											 digest.size() + "/" +
+											 grainCount + "). Fix!" );
+		}
+		writeDigest( digestFile, digest );
+	}
 
+	/**
+	 * As computeDigest, but for many managed disks at once, and
+	 * each disk's grains read and hashed in parallel, by the supplied
+	 * engine.  Disks already having a digest are skipped.  The digest
+	 * files are identical to those computeDigest would write.
+	 *
+	 * @throws IllegalArgumentException if the engine's algorithm is
+	 * not this store's
+	 */
+	public void computeDigests( Collection<ManagedDiskDescriptor> mdds,
+								DigestEngine engine ) throws IOException {
+		if( !GrainHash.same( engine.getAlgorithm(), getDigestAlgorithm() ) )
+			throw new IllegalArgumentException
+				( "Engine algorithm " + engine.getAlgorithm() + " != " +
+				  getDigestAlgorithm() );
+		List<ManagedDisk> mds = new ArrayList<ManagedDisk>();
+		List<File> digestFiles = new ArrayList<File>();
+		for( ManagedDiskDescriptor mdd : mdds ) {
+			File digestFile = managedDataDigest( root, mdd );
+			if( digestFile.exists() )
+				continue;
+			ManagedDisk md = open( mdd );
+			if( md == null )
+				continue;
+			mds.add( md );
+			digestFiles.add( digestFile );
+		}
+		List<ManagedDiskDigest> digests = engine.digestAll( mds );
+		for( int i = 0; i < digests.size(); i++ )
+			writeDigest( digestFiles.get( i ), digests.get( i ) );
+	}
 
-		/*		FileOutputStream fos = new FileOutputStream( digestFile );
-		ObjectOutputStream oos = new ObjectOutputStream( fos );
-		oos.writeObject( digest );
-		oos.close();
-		fos.close();
-		*/
-		FileWriter fw = new FileWriter( digestFile );
-		digest.writeTo( fw );
-		fw.close();
+	/**
+	 * Have md digest itself as it is written, in our algorithm.  Not
+	 * possible if md is to be compared against a parent digest of an
+	 * older algorithm, so then the digest is left to computeDigest.
+	 */
+	private void requestDigest( ManagedDisk md ) {
+		try {
+			md.setDigestAlgorithm( getDigestAlgorithm() );
+		} catch( IllegalArgumentException iae ) {
+			log.warn( iae );
+			return;
+		}
+		md.setComputeDigest( true );
+	}
+
+	private void writeDigest( File digestFile, ManagedDiskDigest digest )
+		throws IOException {
+		FileOutputStream fos = new FileOutputStream( digestFile );
+		BufferedOutputStream bos = new BufferedOutputStream( fos, 1 << 20 );
+		digest.writeTo( bos );
+		bos.close();
 	}
 	
 	// for the benefit of the fuse-based ManagedDiskFileSystem
 	@Override
 	public ManagedDisk locate( ManagedDiskDescriptor mdd ) {
-		return descriptorMap.get( mdd );
+		try {
+			return open( mdd );
+		} catch( IOException ioe ) {
+			log.warn( ioe );
+			return null;
+		}
 	}
 
 	@Override
-	public synchronized Collection<ManagedDiskDescriptor> enumerate()
+	public Collection<ManagedDiskDescriptor> enumerate()
 		throws IOException {
 		/*
-		  Do NOT just return a reference to our descriptorMap,
+		  Do NOT just return a reference to our catalog's map,
 		  since then a sequence of enumerate,put,enumerate will
 		  fail to show increased size due to put
 		*/
-		return new ArrayList<>( descriptorMap.keySet() );
+		return catalog.descriptors();
 	}
 
 	@Override
@@ -504,6 +910,29 @@ public class FilesystemStore implements Store {
 	
 	/*********************** Private Implementation *********************/
 	
+	private String loadDigestAlgorithm() throws IOException {
+		File f = new File( root, DIGESTALGORITHMFILE );
+		if( !f.exists() )
+			return GrainHash.canonical
+				( System.getProperty( DIGESTALGORITHMPROPERTY,
+									  ManagedDisk.DIGESTALGORITHM ) );
+		String line = null;
+		try {
+			BufferedReader br = new BufferedReader( new FileReader( f ) );
+			line = br.readLine();
+			br.close();
+		} catch( IOException ioe ) {
+			log.warn( ioe );
+			throw new IOException( f + ": digest algorithm read error" );
+		}
+		try {
+			return GrainHash.canonical( line == null ? "" : line.trim() );
+		} catch( IllegalArgumentException iae ) {
+			log.warn( iae );
+			throw new IOException( f + ": " + iae.getMessage() );
+		}
+	}
+	
 	private UUID loadUUID() throws IOException {
 		UUID result = null;
 		File f = new File( root, "uuid.txt" );
@@ -537,73 +966,103 @@ public class FilesystemStore implements Store {
 		return result;
 	}
 
-	private void loadManagedDisks() {
+	/**
+	 * Rebuild the catalog by scanning the store, reading the header
+	 * of every managed disk found.  Done automatically, once, for a
+	 * store without a catalog.  Needed again only if managed data is
+	 * added to or removed from disks/ other than by put.
+	 */
+	public synchronized void rebuildCatalog() throws IOException {
 		File dir = new File( root, "disks" );
 		dir.mkdirs();
 		Collection<File> fs = FileUtils.listFiles
 			( dir, new String[] { ManagedDisk.FILESUFFIX.substring(1) }, true );
+		Map<ManagedDiskDescriptor,Catalog.Entry> es =
+			new HashMap<ManagedDiskDescriptor,Catalog.Entry>();
 		for( File f : fs ) {
 			try {
 				ManagedDisk md = ManagedDisk.readFrom( f );
 				ManagedDiskDescriptor mdd = md.getDescriptor();
 				log.debug( "Adding: " + mdd );
-				ManagedDisk prev = descriptorMap.put( mdd, md );
+				Catalog.Entry prev = es.put
+					( mdd, Catalog.Entry.of( md, root, f ) );
 				if( prev != null ) {
-					log.warn( "Previous value: " + prev + " for descriptor " +
-							  mdd );
+					log.warn( "Previous value: " + prev.path +
+							  " for descriptor " + mdd );
 				}
-				String path = asPathName( mdd );
-				pathMap.put( path, md );
 				log.debug( "Located managed disk: " + f );
 			} catch( IOException ioe ) {
 				log.warn( ioe );
 				continue;
 			}
 		}
-		Collection<ManagedDisk> allDisks = pathMap.values();
-		List<ManagedDisk> linkedDisks = new ArrayList<ManagedDisk>
-			( allDisks.size() );
-		for( ManagedDisk md : allDisks ) {
-			// LOOK: withdraw any ManagedDisk which cannot be fully linked
-			link( md, allDisks, linkedDisks );
-		}
+		descriptorMap.clear();
+		catalog.rebuild( es.values() );
 	}
 
-	private void link( ManagedDisk md ) {
-		if( !md.hasParent() )
-			return;
-		Collection<ManagedDisk> allDisks = pathMap.values();
-		UUID linkage = md.getUUIDParent();
-		ManagedDisk parent = locate( linkage, allDisks );
-		md.setParent( parent );
-	}
-		
 	/**
-	 * @param linkedDisks - the accumulating result, often needed for
-	 * base case testing when using a recursive process.
+	 * Our ManagedDisk for mdd, opened on first request.  Only then is
+	 * the catalog entry checked against the data file.  A changed file
+	 * is re-catalogued, a missing one dropped.  The parent chain is
+	 * opened and linked likewise.
+	 *
+	 * @return null if mdd not in the store
 	 */
-	private void link( ManagedDisk md, Collection<ManagedDisk> allDisks,
-					   List<ManagedDisk> linkedDisks ) {
-		if( !md.hasParent() )
+	private ManagedDisk open( ManagedDiskDescriptor mdd )
+		throws IOException {
+		ManagedDisk result = descriptorMap.get( mdd );
+		if( result != null )
+			return result;
+		synchronized( this ) {
+			return openLocked( mdd );
+		}
+	}
+
+	private ManagedDisk openLocked( ManagedDiskDescriptor mdd )
+		throws IOException {
+		ManagedDisk result = descriptorMap.get( mdd );
+		if( result != null )
+			return result;
+		Catalog.Entry e = catalog.get( mdd );
+		if( e == null )
+			return null;
+		File f = e.file( root );
+		if( !f.isFile() ) {
+			log.warn( "Catalogued but missing: " + f );
+			catalog.remove( mdd );
+			return null;
+		}
+		result = ManagedDisk.readFrom( f );
+		if( !mdd.equals( result.getDescriptor() ) ) {
+			log.warn( "Catalog entry wrong: " + f );
+			catalog.remove( mdd );
+			catalog.add( Catalog.Entry.of( result, root, f ) );
+			return null;
+		}
+		if( !e.current( f ) || !e.create.equals( result.getUUIDCreate() ) ) {
+			log.warn( "Catalog entry stale: " + f );
+			catalog.add( Catalog.Entry.of( result, root, f ) );
+		}
+		link( result );
+		descriptorMap.put( mdd, result );
+		return result;
+	}
+
+	private void link( ManagedDisk md ) throws IOException {
+		if( md instanceof PooledDisk ) {
+			((PooledDisk)md).setPool( pool() );
 			return;
-		if( linkedDisks.contains( md ) )
+		}
+		if( !md.hasParent() )
 			return;
 		UUID linkage = md.getUUIDParent();
-		ManagedDisk parent = locate( linkage, allDisks );
+		Catalog.Entry e = catalog.get( linkage );
+		ManagedDisk parent = e == null ? null : openLocked( e.mdd );
+		if( parent == null )
+			throw new IllegalStateException( "No such uuid: " + linkage );
 		md.setParent( parent );
-		log.info( "SetParent: " + md.getDescriptor() + " -> " +
-				  parent.getDescriptor() );
-		linkedDisks.add( md );
-		link( parent, allDisks, linkedDisks );
-	}
-
-	private ManagedDisk locate( UUID needle,
-								Collection<ManagedDisk> allDisks ) {
-		for( ManagedDisk md : allDisks ) {
-			if( md.getUUIDCreate().equals( needle ) )
-				return md;
-		}
-		throw new IllegalStateException( "No such uuid: " + needle );
+		log.debug( "SetParent: " + md.getDescriptor() + " -> " +
+				   parent.getDescriptor() );
 	}
 
 	/*
@@ -652,15 +1111,14 @@ public class FilesystemStore implements Store {
 		return dir;
 	}
 
-	static String asPathName( ManagedDiskDescriptor mdd ) {
-		return mdd.getDiskID() + File.separator +
-			mdd.getSession().toString();
-	}
-
 	static String dataFileName( ManagedDiskDescriptor mdd ) {
 		return asFileBase( mdd ) + ManagedDisk.FILESUFFIX;
 	}
 
+	/*
+	  Named .md5 whatever the algorithm, since files predate any
+	  choice.  A binary digest's header says which it is.
+	*/
 	static String digestFileName( ManagedDiskDescriptor mdd ) {
 		return asFileBase( mdd ) + "." + ManagedDisk.DIGESTALGORITHM;
 	}
@@ -669,13 +1127,30 @@ public class FilesystemStore implements Store {
 		return mdd.getDiskID() + "-" + mdd.getSession().toString();
 	}
 
-	private boolean writable;
+	private volatile boolean writable, digestOnPut;
+	private String digestAlgorithm;
+	private GrainPool pool;
+	private ExecutorService compactor;
 	
 	private final UUID uuid;
 	private final File root, tempDir;
 	private final Map<ManagedDiskDescriptor,ManagedDisk> descriptorMap;
-	private final Map<String,ManagedDisk> pathMap;
+	private final Set<ManagedDiskDescriptor> putting;
+	private final Catalog catalog;
 	private final Log log;
+
+	static public final String DIGESTONPUTPROPERTY =
+		"tupelo.store.digestonput";
+
+	// Default for a store which has never had setDigestAlgorithm
+	static public final String DIGESTALGORITHMPROPERTY =
+		"tupelo.store.digestalgorithm";
+
+	static private final String DIGESTALGORITHMFILE = "digestalgorithm.txt";
+
+	static private final String POOLDIR = "pool";
+
+	static private final String RETIREDSUFFIX = ".retired";
 }
 
 // eof
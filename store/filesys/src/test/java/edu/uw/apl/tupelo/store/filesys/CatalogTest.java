@@ -0,0 +1,188 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
+import edu.uw.apl.tupelo.model.ZeroDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Unit tests for the FilesystemStore's Catalog, both directly and as
+ * used by the store on re-open.
+ */
+public class CatalogTest extends junit.framework.TestCase {
+
+	static final File ROOT = new File( "store-catalogtest" );
+	
+	protected void setUp() {
+		ROOT.mkdirs();
+	}
+
+	protected void tearDown() {
+		try {
+			FileUtils.deleteDirectory( ROOT );
+		} catch( IOException ioe ) {
+			System.err.println( ioe );
+			fail();
+		}
+	}
+
+	public void testJournalAndSnapshot() throws Exception {
+		Catalog c = new Catalog( ROOT );
+		assertFalse( c.exists() );
+		c.load();
+		int n = Catalog.SNAPSHOTINTERVAL + 10;
+		for( int i = 0; i < n; i++ )
+			c.add( entry( "disk" + i, null ) );
+		File journal = new File( ROOT, "catalog.journal" );
+		// a snapshot was written, so only the last 10 are journalled
+		assertEquals( 10, FileUtils.readLines( journal ).size() );
+		Catalog.Entry gone = c.get( c.descriptors().iterator().next() );
+		c.remove( gone.mdd );
+
+		Catalog c2 = new Catalog( ROOT );
+		assertTrue( c2.exists() );
+		c2.load();
+		assertEquals( n - 1, c2.size() );
+		assertNull( c2.get( gone.mdd ) );
+		assertNull( c2.get( gone.create ) );
+		for( ManagedDiskDescriptor mdd : c.descriptors() ) {
+			Catalog.Entry e = c2.get( mdd );
+			assertEquals( c.get( mdd ).create, e.create );
+			assertSame( e, c2.get( e.create ) );
+		}
+	}
+
+	// A crash part way through a journal append loses just that line
+	public void testTornJournal() throws Exception {
+		Catalog c = new Catalog( ROOT );
+		c.load();
+		Catalog.Entry e1 = entry( "disk1", null );
+		Catalog.Entry e2 = entry( "disk2", e1.create );
+		c.add( e1 );
+		c.add( e2 );
+		FileWriter fw = new FileWriter( new File( ROOT, "catalog.journal" ),
+										true );
+		fw.write( entry( "disk3", null ).format( '+' ).substring( 0, 30 ) );
+		fw.close();
+		Catalog c2 = new Catalog( ROOT );
+		c2.load();
+		assertEquals( 2, c2.size() );
+		assertEquals( e1.create, c2.get( e2.mdd ).parent );
+		assertNull( c2.get( e1.mdd ).parent );
+	}
+
+	// Re-open a store from its catalog, and from a scan
+	public void testStoreReopen() throws Exception {
+		FilesystemStore store = new FilesystemStore( ROOT );
+		ZeroDisk zd = new ZeroDisk( 1 << 20 );
+		Session s1 = store.newSession();
+		StreamOptimizedDisk parent = new StreamOptimizedDisk( zd, s1 );
+		store.put( parent );
+		Session s2 = store.newSession();
+		StreamOptimizedDisk child = new StreamOptimizedDisk
+			( zd, s2, parent.getUUIDCreate() );
+		store.put( child );
+		ManagedDiskDescriptor mdd1 = parent.getDescriptor();
+		ManagedDiskDescriptor mdd2 = child.getDescriptor();
+
+		store = new FilesystemStore( ROOT );
+		check( store, mdd1, mdd2, parent.getUUIDCreate() );
+
+		new File( ROOT, "catalog.txt" ).delete();
+		new File( ROOT, "catalog.journal" ).delete();
+		store = new FilesystemStore( ROOT );
+		assertTrue( new File( ROOT, "catalog.txt" ).isFile() );
+		check( store, mdd1, mdd2, parent.getUUIDCreate() );
+	}
+
+	// A catalogued disk whose data has gone is dropped, on first use
+	public void testMissingData() throws Exception {
+		FilesystemStore store = new FilesystemStore( ROOT );
+		ZeroDisk zd = new ZeroDisk( 1 << 20 );
+		Session s = store.newSession();
+		StreamOptimizedDisk sod = new StreamOptimizedDisk( zd, s );
+		store.put( sod );
+		ManagedDiskDescriptor mdd = sod.getDescriptor();
+		assertTrue( FilesystemStore.managedDataFile( ROOT, mdd ).delete() );
+
+		store = new FilesystemStore( ROOT );
+		assertEquals( 1, store.enumerate().size() );
+		assertNull( store.locate( mdd ) );
+		assertEquals( 0, store.enumerate().size() );
+		store = new FilesystemStore( ROOT );
+		assertEquals( 0, store.enumerate().size() );
+	}
+	
+	private void check( FilesystemStore store, ManagedDiskDescriptor mdd1,
+						ManagedDiskDescriptor mdd2, UUID parentUUID )
+		throws IOException {
+		Collection<ManagedDiskDescriptor> mdds = store.enumerate();
+		assertEquals( 2, mdds.size() );
+		assertTrue( mdds.contains( mdd1 ) );
+		assertTrue( mdds.contains( mdd2 ) );
+		assertEquals( 1 << 20, store.size( mdd2 ) );
+		assertEquals( parentUUID, store.uuid( mdd1 ) );
+		ManagedDisk child = store.locate( mdd2 );
+		assertNotNull( child );
+		assertEquals( parentUUID, child.getUUIDParent() );
+		// reading the child walks its (linked) parent
+		java.io.InputStream is = child.getInputStream();
+		assertEquals( 1 << 20, org.apache.commons.io.IOUtils.skip( is, 1 << 21 ) );
+		is.close();
+	}
+	
+	private Catalog.Entry entry( String diskID, UUID parent ) {
+		Session s = new Session( UUID.randomUUID(),
+								 java.util.Calendar.getInstance( Session.UTC ),
+								 1 );
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( diskID, s );
+		return new Catalog.Entry( mdd, "disks/" + diskID, 1 << 20,
+								  UUID.randomUUID(), parent, 1234, 5678 );
+	}
+}
+
+// eof
@@ -0,0 +1,189 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.ProgressMonitor;
+import edu.uw.apl.tupelo.model.RandomDisk;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
+import edu.uw.apl.tupelo.model.TestDisks;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Testing FilesystemStore.compact, on a chain of captures of the one
+ * disk, each capture a little changed from the last.
+ */
+public class CompactTest extends junit.framework.TestCase {
+
+	static final File ROOT = new File( "store-compacttest" );
+
+	// one whole grain table, parent digests being of no use in less
+	static final long SIZE = 32L << 20;
+
+	static final int GENERATIONS = 4;
+	
+	FilesystemStore store;
+	List<ManagedDiskDescriptor> mdds;
+	
+	protected void setUp() throws IOException {
+		FileUtils.deleteDirectory( ROOT );
+		ROOT.mkdirs();
+		store = new FilesystemStore( ROOT );
+		store.setDigestOnPut( true );
+		mdds = new ArrayList<ManagedDiskDescriptor>();
+		UUID parent = null;
+		for( int g = 0; g < GENERATIONS; g++ ) {
+			Session s = store.newSession();
+			StreamOptimizedDisk sod = parent == null ?
+				new StreamOptimizedDisk( generation( g ), s ) :
+				new StreamOptimizedDisk( generation( g ), s, parent );
+			if( parent != null )
+				sod.setParentDigest( store.digest( mdds.get( g-1 ) ) );
+			store.put( sod );
+			mdds.add( sod.getDescriptor() );
+			parent = store.uuid( sod.getDescriptor() );
+		}
+	}
+
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory( ROOT );
+	}
+
+	public void testSelfContained() throws Exception {
+		int g = GENERATIONS - 2;
+		ManagedDiskDescriptor mdd = mdds.get( g );
+		ManagedDisk before = store.locate( mdd );
+		ManagedDisk child = store.locate( mdds.get( g + 1 ) );
+		UUID create = before.getUUIDCreate();
+		long length = FilesystemStore.managedDataFile( ROOT, mdd ).length();
+
+		final int[] updates = new int[1];
+		ProgressMonitor.Callback cb = new ProgressMonitor.Callback() {
+				public void update( long in, long out, long elapsed ) {
+					updates[0]++;
+				}
+			};
+		store.compact( mdd, 0, cb, 1 ).get();
+		assertTrue( updates[0] > 0 );
+
+		ManagedDisk after = store.locate( mdd );
+		assertNotSame( before, after );
+		assertFalse( after.hasParent() );
+		assertEquals( create, after.getUUIDCreate() );
+		assertTrue( FilesystemStore.managedDataFile( ROOT, mdd ).length() >
+					length );
+		TestDisks.assertSameContent( generation( g ), after );
+
+		// Readers of the old, and children, unaffected
+		TestDisks.assertSameContent( generation( g ), before );
+		TestDisks.assertSameContent( generation( g + 1 ), child );
+
+		// and all as read back, by a fresh store
+		store = new FilesystemStore( ROOT );
+		for( int i = 0; i < GENERATIONS; i++ )
+			TestDisks.assertSameContent( generation( i ),
+										 store.locate( mdds.get( i ) ) );
+		assertFalse( store.locate( mdd ).hasParent() );
+	}
+
+	/*
+	  An old reader with mapped metadata, open across the swap, must
+	  go on reading the old data, not the rewrite.  GrainDirectoryTest
+	  covers chunks first mapped after the swap.
+	*/
+	public void testMappedMetaData() throws Exception {
+		int g = GENERATIONS - 1;
+		ManagedDiskDescriptor mdd = mdds.get( g );
+		store = new FilesystemStore( ROOT );
+		StreamOptimizedDisk before =
+			(StreamOptimizedDisk)store.locate( mdd );
+		before.setMapMetaData( true );
+		InputStream is = before.getSeekableInputStream();
+		store.compact( mdd, 0, null, 0 ).get();
+		InputStream expected = generation( g ).getInputStream();
+		try {
+			assertTrue( IOUtils.contentEquals( expected, is ) );
+		} finally {
+			expected.close();
+			is.close();
+		}
+		TestDisks.assertSameContent( generation( g ), store.locate( mdd ) );
+	}
+
+	public void testShallower() throws Exception {
+		int g = GENERATIONS - 1;
+		ManagedDiskDescriptor mdd = mdds.get( g );
+		store.compact( mdd, 2, null, 0 ).get();
+		ManagedDisk after = store.locate( mdd );
+		assertEquals( store.uuid( mdds.get( 1 ) ), after.getUUIDParent() );
+		TestDisks.assertSameContent( generation( g ), after );
+
+		// already shallow enough, a no-op
+		long length = FilesystemStore.managedDataFile( ROOT, mdd ).length();
+		store.compact( mdd, 2, null, 0 ).get();
+		assertEquals( length,
+					  FilesystemStore.managedDataFile( ROOT, mdd ).length() );
+
+		store = new FilesystemStore( ROOT );
+		TestDisks.assertSameContent( generation( g ), store.locate( mdd ) );
+	}
+
+	public void testNotStored() throws Exception {
+		try {
+			store.compact( new ManagedDiskDescriptor
+						   ( "nosuchdisk", Session.CANNED ), 0, null, 0 );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+	}
+	
+	static private RandomDisk generation( int g ) {
+		return TestDisks.generation( SIZE, 3, g );
+	}
+}
+
+// eof
@@ -0,0 +1,233 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.RandomDisk;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
+import edu.uw.apl.tupelo.model.TestDisks;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Stress test of FilesystemStore.put: N puts of RandomDisks at once,
+ * while another thread keeps on reading the store.  All must land,
+ * intact, and the reader never block for the length of a put.
+ */
+public class ConcurrentPutTest extends junit.framework.TestCase {
+
+	static final File ROOT = new File( "store-concurrentputtest" );
+
+	static final int PUTS = 6;
+	static final long SIZE = 8L << 20;
+	
+	FilesystemStore store;
+	
+	protected void setUp() {
+		ROOT.mkdirs();
+		try {
+			store = new FilesystemStore( ROOT );
+		} catch( IOException ioe ) {
+			System.err.println( ioe );
+			fail();
+		}
+	}
+
+	protected void tearDown() {
+		try {
+			FileUtils.deleteDirectory( ROOT );
+		} catch( IOException ioe ) {
+			System.err.println( ioe );
+			fail();
+		}
+	}
+
+	public void testParallelPuts() throws Exception {
+		List<RandomDisk> sources = new ArrayList<RandomDisk>();
+		List<ManagedDiskDescriptor> mdds =
+			new ArrayList<ManagedDiskDescriptor>();
+		List<Callable<Void>> puts = new ArrayList<Callable<Void>>();
+		final CountDownLatch start = new CountDownLatch( 1 );
+		for( int i = 0; i < PUTS; i++ ) {
+			RandomDisk rd = new RandomDisk( SIZE, 1 << 20, i );
+			Session s = store.newSession();
+			final StreamOptimizedDisk sod = new StreamOptimizedDisk( rd, s );
+			sources.add( rd );
+			mdds.add( sod.getDescriptor() );
+			puts.add( new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						store.put( sod );
+						return null;
+					}
+				} );
+		}
+		ExecutorService es = Executors.newFixedThreadPool( PUTS );
+		List<Future<Void>> fs = new ArrayList<Future<Void>>();
+		for( Callable<Void> c : puts )
+			fs.add( es.submit( c ) );
+		start.countDown();
+
+		// Readers proceed while the puts are in progress
+		long maxReadNanos = 0;
+		int reads = 0;
+		while( !allDone( fs ) ) {
+			long t = System.nanoTime();
+			Collection<ManagedDiskDescriptor> stored = store.enumerate();
+			for( ManagedDiskDescriptor mdd : stored ) {
+				assertEquals( SIZE, store.size( mdd ) );
+				assertNotNull( store.uuid( mdd ) );
+			}
+			maxReadNanos = Math.max( maxReadNanos, System.nanoTime() - t );
+			reads++;
+			Thread.sleep( 5 );
+		}
+		for( Future<Void> f : fs )
+			f.get();
+		es.shutdown();
+		es.awaitTermination( 1, TimeUnit.MINUTES );
+		System.out.println( "Reads " + reads + ", longest " +
+							(maxReadNanos / 1000000) + "ms" );
+		
+		assertEquals( PUTS, store.enumerate().size() );
+		for( int i = 0; i < PUTS; i++ )
+			TestDisks.assertSameContent( sources.get( i ),
+										 store.locate( mdds.get( i ) ) );
+
+		// and the catalog agrees, on re-open
+		FilesystemStore reopened = new FilesystemStore( ROOT );
+		assertEquals( PUTS, reopened.enumerate().size() );
+	}
+
+	// Of two simultaneous puts of the one descriptor, one must fail
+	public void testParallelDuplicatePuts() throws Exception {
+		RandomDisk rd = new RandomDisk( SIZE, 1 << 20, 42 );
+		Session s = store.newSession();
+		final CountDownLatch start = new CountDownLatch( 1 );
+		List<Callable<Void>> puts = new ArrayList<Callable<Void>>();
+		for( int i = 0; i < 2; i++ ) {
+			final StreamOptimizedDisk sod = new StreamOptimizedDisk( rd, s );
+			puts.add( new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						store.put( sod );
+						return null;
+					}
+				} );
+		}
+		ExecutorService es = Executors.newFixedThreadPool( 2 );
+		List<Future<Void>> fs = new ArrayList<Future<Void>>();
+		for( Callable<Void> c : puts )
+			fs.add( es.submit( c ) );
+		start.countDown();
+		int failed = 0;
+		for( Future<Void> f : fs ) {
+			try {
+				f.get();
+			} catch( ExecutionException ee ) {
+				assertTrue( ee.getCause() instanceof IllegalArgumentException );
+				failed++;
+			}
+		}
+		es.shutdown();
+		assertEquals( 1, failed );
+		assertEquals( 1, store.enumerate().size() );
+	}
+
+	/*
+	  Many small puts of one descriptor, so that some start just as
+	  another finishes.  Still exactly one may succeed.
+	*/
+	public void testManyDuplicatePuts() throws Exception {
+		final int THREADS = 8;
+		ExecutorService es = Executors.newFixedThreadPool( THREADS );
+		for( int round = 0; round < 20; round++ ) {
+			RandomDisk rd = new RandomDisk( 64 * 1024, 1024, round );
+			Session s = store.newSession();
+			final CountDownLatch start = new CountDownLatch( 1 );
+			List<Future<Void>> fs = new ArrayList<Future<Void>>();
+			for( int i = 0; i < THREADS; i++ ) {
+				final StreamOptimizedDisk sod =
+					new StreamOptimizedDisk( rd, s );
+				fs.add( es.submit( new Callable<Void>() {
+						public Void call() throws Exception {
+							start.await();
+							store.put( sod );
+							return null;
+						}
+					} ) );
+			}
+			start.countDown();
+			int stored = 0;
+			for( Future<Void> f : fs ) {
+				try {
+					f.get();
+					stored++;
+				} catch( ExecutionException ee ) {
+					assertTrue( ee.getCause() instanceof
+								IllegalArgumentException );
+				}
+			}
+			assertEquals( 1, stored );
+		}
+		es.shutdown();
+		assertEquals( 20, store.enumerate().size() );
+	}
+
+	private boolean allDone( List<Future<Void>> fs ) {
+		for( Future<Void> f : fs ) {
+			if( !f.isDone() )
+				return false;
+		}
+		return true;
+	}
+}
+
+// eof
@@ -36,11 +36,15 @@ package edu.uw.apl.tupelo.store.filesys;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import edu.uw.apl.tupelo.model.DigestEngine;
 import edu.uw.apl.tupelo.model.DiskImage;
 import edu.uw.apl.tupelo.model.FlatDisk;
+import edu.uw.apl.tupelo.model.GrainHash;
+import edu.uw.apl.tupelo.model.ManagedDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
 import edu.uw.apl.tupelo.model.ManagedDiskDigest;
 import edu.uw.apl.tupelo.model.Session;
@@ -64,7 +68,7 @@ public class DigestComputeTest extends junit.framework.TestCase {
 		}
 	}
 
-	protected void _tearDown() {
+	protected void tearDown() {
 		try {
 			FileUtils.deleteDirectory( ROOT );
 		} catch( IOException ioe ) {
@@ -84,6 +88,80 @@ public class DigestComputeTest extends junit.framework.TestCase {
 		testDigest( z20, 1 << 20 );
 	}
 
+	// The digest comes from the put itself, no computeDigest needed
+	public void testDigestOnPut() throws Exception {
+		ZeroDisk z20 = new ZeroDisk( 1 << 20 );
+		Session session = store.newSession();
+		ManagedDiskDescriptor mdd = new ManagedDiskDescriptor( z20.getID(),
+															   session );
+		store.setDigestOnPut( true );
+		store.put( new FlatDisk( z20, session ) );
+		ManagedDiskDigest digest = store.digest( mdd );
+		assertNotNull( digest );
+		assertEquals( 16, digest.size() );
+		for( int i = 1; i < digest.size(); i++ )
+			assertTrue( digest.matches( i, digest.get( 0 ) ) );
+	}
+
+	public void testComputeDigests() throws Exception {
+		List<ManagedDiskDescriptor> mdds =
+			new ArrayList<ManagedDiskDescriptor>();
+		for( int i = 1; i <= 3; i++ ) {
+			ZeroDisk zd = new ZeroDisk( i << 20 );
+			Session session = store.newSession();
+			ManagedDiskDescriptor mdd =
+				new ManagedDiskDescriptor( zd.getID(), session );
+			store.put( new FlatDisk( zd, session ) );
+			mdds.add( mdd );
+		}
+		DigestEngine engine = new DigestEngine( 2, 2 );
+		store.computeDigests( mdds, engine );
+		engine.shutdown();
+		for( int i = 1; i <= 3; i++ ) {
+			ManagedDiskDigest digest = store.digest( mdds.get( i-1 ) );
+			assertEquals( 16 * i, digest.size() );
+		}
+	}
+
+	/**
+	 * A store's digest algorithm persists, and is used by both put
+	 * and computeDigest.  Own store root, so not to alter the others.
+	 */
+	public void testDigestAlgorithm() throws Exception {
+		File root = new File( "store-digestalgorithm-tests" );
+		try {
+			FilesystemStore fs = new FilesystemStore( root );
+			assertEquals( ManagedDisk.DIGESTALGORITHM,
+						  fs.getDigestAlgorithm() );
+			fs.setDigestAlgorithm( GrainHash.MURMUR3 );
+			fs = new FilesystemStore( root );
+			assertEquals( GrainHash.MURMUR3, fs.getDigestAlgorithm() );
+
+			ZeroDisk zd = new ZeroDisk( 1 << 20 );
+			Session session = fs.newSession();
+			ManagedDiskDescriptor mdd =
+				new ManagedDiskDescriptor( zd.getID(), session );
+			fs.put( new FlatDisk( zd, session ) );
+			fs.computeDigest( mdd );
+			assertEquals( GrainHash.MURMUR3, fs.digest( mdd ).getAlgorithm() );
+
+			fs.setDigestOnPut( true );
+			session = fs.newSession();
+			mdd = new ManagedDiskDescriptor( zd.getID(), session );
+			fs.put( new FlatDisk( zd, session ) );
+			assertEquals( GrainHash.MURMUR3, fs.digest( mdd ).getAlgorithm() );
+
+			try {
+				fs.computeDigests( new ArrayList<ManagedDiskDescriptor>(),
+								   new DigestEngine( 1, 1 ) );
+				fail();
+			} catch( IllegalArgumentException expected ) {
+			}
+		} finally {
+			FileUtils.deleteDirectory( root );
+		}
+	}
+	
 	/**
 	 * Test that a put + computeDigest of a known UnmanagedDisk works
 	 */
@@ -99,6 +177,9 @@ public class DigestComputeTest extends junit.framework.TestCase {
 		store.put( fd );
 
 		store.computeDigest( mdd );
+
+		ManagedDiskDigest digest = store.digest( mdd );
+		assertEquals( expectedSize / fd.grainSizeBytes(), digest.size() );
 	}
 
 }
@@ -39,6 +39,8 @@ import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collection;
 
+import org.apache.commons.io.FileUtils;
+
 import edu.uw.apl.tupelo.model.DiskImage;
 import edu.uw.apl.tupelo.model.FlatDisk;
 import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
@@ -46,16 +48,22 @@ import edu.uw.apl.tupelo.model.Session;
 
 public class FilesystemStoreTest extends junit.framework.TestCase {
 
+	static final File ROOT = new File( "test-store" );
+
 	FilesystemStore store;
 	
 	protected void setUp() {
 		try {
-			store = new FilesystemStore( new File( "test-store" ), false );
+			store = new FilesystemStore( ROOT, false );
 		} catch( IOException ioe ) {
 			System.err.println( ioe );
 			fail();
 		}
 	}
+
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory( ROOT );
+	}
 	
 	public void testNull() {
 	}
@@ -0,0 +1,114 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store.filesys;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.tupelo.model.GrainPool;
+import edu.uw.apl.tupelo.model.ManagedDiskDescriptor;
+import edu.uw.apl.tupelo.model.PooledDisk;
+import edu.uw.apl.tupelo.model.RandomDisk;
+import edu.uw.apl.tupelo.model.Session;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
+import edu.uw.apl.tupelo.model.TestDisks;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A pooled FilesystemStore: two sessions of the same content cost
+ * the pool no more than one, and both go on deletion.
+ */
+public class PooledStoreTest extends junit.framework.TestCase {
+
+	static final File ROOT = new File( "store-pooledstoretest" );
+
+	static final long SIZE = 8L << 20;
+	
+	protected void setUp() throws IOException {
+		FileUtils.deleteDirectory( ROOT );
+		ROOT.mkdirs();
+	}
+
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory( ROOT );
+	}
+
+	public void testPutsShareGrains() throws Exception {
+		FilesystemStore store = new FilesystemStore( ROOT );
+		store.enableGrainPool();
+		RandomDisk rd = new RandomDisk( SIZE, 1 << 20, 11 );
+		ManagedDiskDescriptor mdd1 = put( store, rd );
+		GrainPool pool = store.getGrainPool();
+		long unique = pool.uniqueGrains();
+		long refs = pool.referencedGrains();
+		assertTrue( unique > 0 );
+		ManagedDiskDescriptor mdd2 = put( store, rd );
+		assertEquals( unique, pool.uniqueGrains() );
+		assertEquals( 2 * refs, pool.referencedGrains() );
+		pool.report( System.out );
+
+		// as read back, by a store knowing only what is on disk
+		store = new FilesystemStore( ROOT );
+		assertTrue( store.isPooled() );
+		TestDisks.assertSameContent( rd, store.locate( mdd1 ) );
+		TestDisks.assertSameContent( rd, store.locate( mdd2 ) );
+		assertTrue( store.locate( mdd1 ) instanceof PooledDisk );
+		assertNotNull( store.digest( mdd1 ) );
+		
+		assertTrue( store.delete( mdd1 ) );
+		assertNull( store.locate( mdd1 ) );
+		pool = store.getGrainPool();
+		assertEquals( unique, pool.uniqueGrains() );
+		assertEquals( refs, pool.referencedGrains() );
+		TestDisks.assertSameContent( rd, store.locate( mdd2 ) );
+		assertTrue( store.delete( mdd2 ) );
+		assertFalse( store.delete( mdd2 ) );
+		assertEquals( 0, pool.uniqueGrains() );
+		assertEquals( 0, store.enumerate().size() );
+	}
+
+	private ManagedDiskDescriptor put( FilesystemStore store, RandomDisk rd )
+		throws IOException {
+		Session s = store.newSession();
+		StreamOptimizedDisk sod = new StreamOptimizedDisk( rd, s );
+		store.setDigestOnPut( true );
+		store.put( sod );
+		return sod.getDescriptor();
+	}
+}
+
+// eof
@@ -0,0 +1,163 @@
+/**
+ * Copyright © 2016, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *
+ *     * Neither the name of the University of Washington nor the names
+ *       of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written
+ *       permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL UNIVERSITY OF
+ * WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.tupelo.store.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.*;
+import org.apache.log4j.LogManager;
+
+import edu.uw.apl.tupelo.model.ManagedDisk;
+import edu.uw.apl.tupelo.model.StreamOptimizedDisk;
+import edu.uw.apl.tupelo.model.Version;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Upgrade .tmd (Tupelo Managed Disk) files written with 4 byte grain
+ * table entries (Version.LAYOUT_32) to 8 byte ones (LAYOUT_64), in
+ * place.  Each argument is a .tmd file, or a directory (e.g. a
+ * filesystem store root) searched recursively for .tmd files.  Files
+ * already LAYOUT_64 are left alone, so re-running is harmless.
+ *
+ * Like TMDInfo, goes straight to the files, bypassing any store, so
+ * no store should be running over the files at the time.
+ *
+ * Usage: TMDUpgrade [-n] (/path/to/tmdfile | /path/to/store)+
+ */
+
+public class TMDUpgrade {
+
+	static public void main( String[] args ) {
+		TMDUpgrade main = new TMDUpgrade();
+		try {
+			main.readArgs( args );
+			main.start();
+		} catch( Exception e ) {
+			System.err.println( e );
+			if( debug )
+				e.printStackTrace();
+			System.exit(-1);
+		} finally {
+			LogManager.shutdown();
+		}
+			  
+	}
+
+	public TMDUpgrade() {
+	}
+
+	public void readArgs( String[] args ) {
+		Options os = new Options();
+		os.addOption( "d", false, "Debug" );
+		os.addOption( "n", false, "Dry run, list files needing upgrade" );
+		String usage = TMDUpgrade.class.getName() +
+			" [-d] [-n] (/path/to/tmdfile | /path/to/store)+";
+		final String header =
+			"Upgrade .tmd files to 64-bit grain table entries, in place.";
+		final String footer = "";
+		CommandLineParser clp = new PosixParser();
+		CommandLine cl = null;
+		try {
+			cl = clp.parse( os, args );
+		} catch( ParseException pe ) {
+			HelpFormatter hf = new HelpFormatter();
+			hf.setWidth( 80 );
+			hf.printHelp( usage, header, os, footer );
+			System.exit(1);
+		}
+		debug = cl.hasOption( "d" );
+		dryRun = cl.hasOption( "n" );
+		args = cl.getArgs();
+		if( args.length < 1 ) {
+			HelpFormatter hf = new HelpFormatter();
+			hf.setWidth( 80 );
+			hf.printHelp( usage, header, os, footer );
+			System.exit(1);
+		}
+		inFileNames = args;
+	}
+	
+	public void start() throws Exception {
+		List<File> tmds = new ArrayList<File>();
+		for( String s : inFileNames ) {
+			File f = new File( s );
+			if( false ) {
+			} else if( f.isDirectory() ) {
+				locate( f, tmds );
+			} else if( f.isFile() ) {
+				tmds.add( f );
+			} else {
+				throw new IllegalStateException( f + ": No such file" );
+			}
+		}
+		int upgraded = 0;
+		for( File f : tmds ) {
+			ManagedDisk md = ManagedDisk.readFrom( f );
+			if( !( md instanceof StreamOptimizedDisk ) )
+				continue;
+			StreamOptimizedDisk sod = (StreamOptimizedDisk)md;
+			if( sod.getLayout() == Version.LAYOUT_64 )
+				continue;
+			System.out.println( ( dryRun ? "Needs upgrade: " : "Upgrading: " )
+								+ f + " (" + f.length() + " bytes)" );
+			if( dryRun )
+				continue;
+			if( StreamOptimizedDisk.upgradeLayout( f ) )
+				upgraded++;
+		}
+		if( !dryRun )
+			System.out.println( "Upgraded: " + upgraded + "/" + tmds.size() );
+	}
+
+	static private void locate( File dir, List<File> result ) {
+		File[] fs = dir.listFiles();
+		if( fs == null )
+			return;
+		for( File f : fs ) {
+			if( f.isDirectory() )
+				locate( f, result );
+			else if( ManagedDisk.FILEFILTER.accept( dir, f.getName() ) )
+				result.add( f );
+		}
+	}
+	
+	static boolean debug;
+	boolean dryRun;
+	String[] inFileNames;
+}
+
+// eof